@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.mindrot.jbcrypt.BCrypt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Compares the verification of a bcrypt hash by jbcrypt's {@code BCrypt.checkpw} with the {@link BcryptEngine},
+ * from the hash string as {@link BcryptPasswordEncoder#matches(String, String)} does, and from a hash decoded once
+ * as the {@link CredentialsStore} does.  Run with {@code -prof gc} to compare the allocations too.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BcryptBenchmark {
+
+    private static final String PASSWORD = "CorrectHorseBatteryStaple";
+
+    @Param({"10"})
+    public int cost;
+
+    private String passwordHash;
+    private BcryptHash preparedHash;
+    private final BcryptPasswordEncoder passwordEncoder = new BcryptPasswordEncoder();
+
+    @Setup
+    public void setup() {
+        passwordHash = BCrypt.hashpw(PASSWORD, BCrypt.gensalt(cost));
+        preparedHash = BcryptHash.parse(passwordHash);
+    }
+
+    @Benchmark
+    public boolean jbcrypt() {
+        return BCrypt.checkpw(PASSWORD, passwordHash);
+    }
+
+    @Benchmark
+    public boolean engine() {
+        return passwordEncoder.matches(PASSWORD, passwordHash);
+    }
+
+    @Benchmark
+    public boolean enginePrepared() {
+        return preparedHash.matches(PASSWORD);
+    }
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures the {@link CredentialsStore} operations against synthetic credentials files of 10 to a million users.
+ * Password hashes have the minimum bcrypt cost, so that {@code checkPassword} shows the cost of the store rather
+ * than that of bcrypt, which {@link BcryptBenchmark} measures.
+ *
+ * <p>Lookups and password checks run on one thread, and on as many threads as there are processors in their
+ * {@code Concurrent} variants; {@code -t} runs every benchmark on another number of threads.</p>
+ *
+ * <p>The {@code Indexed} variants use a store served from the compiled {@link CredentialsIndex} of the file:
+ * {@code loadIndexed} opens the index already compiled, as at a restart.</p>
+ *
+ * <p>The {@code Compact} variants use a store holding its users as {@link PackedCredentials}; their heap footprint
+ * can be compared with {@code -prof gc} or a heap histogram of the forked JVM.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class CredentialsStoreBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int users;
+
+    private File directory;
+    private File credentialsFile;
+    private File saveFile;
+    private SyntheticCredentials credentials;
+    private String[] userNames;
+    private CredentialsStore credentialsStore;
+    private CredentialsStore streamingCredentialsStore;
+    private CredentialsStore indexedCredentialsStore;
+    private CredentialsStore compactCredentialsStore;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("credentials-benchmark").toFile();
+        credentialsFile = new File(directory, "login-credentials.xml");
+        saveFile = new File(directory, "saved-credentials.xml");
+        credentials = new SyntheticCredentials(BcryptPasswordEncoder.MIN_COST);
+        credentials.write(credentialsFile, users);
+        userNames = SyntheticCredentials.userNames(users);
+        credentialsStore = new CredentialsStore(credentialsFile);
+        credentialsStore.load();
+        streamingCredentialsStore = new CredentialsStore(credentialsFile);
+        streamingCredentialsStore.setStreamingLoad(true);
+        indexedCredentialsStore = new CredentialsStore(credentialsFile);
+        indexedCredentialsStore.setUseIndex(true);
+        indexedCredentialsStore.load();
+        compactCredentialsStore = new CredentialsStore(credentialsFile);
+        compactCredentialsStore.setStreamingLoad(true);
+        compactCredentialsStore.setCompact(true);
+        compactCredentialsStore.load();
+    }
+
+    @TearDown
+    public void tearDown() {
+        CredentialsIndex.getIndexFile(credentialsFile).delete();
+        credentialsFile.delete();
+        saveFile.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public UserCredentials findUser() {
+        return credentialsStore.findUser(userNames[ThreadLocalRandom.current().nextInt(users)]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public UserCredentials findUserConcurrent() {
+        return findUser();
+    }
+
+    @Benchmark
+    public UserCredentials findUserIndexed() {
+        return indexedCredentialsStore.findUser(userNames[ThreadLocalRandom.current().nextInt(users)]);
+    }
+
+    /**
+     * Measures the lookup of a username missing from the index, which the Bloom filter rejects in most cases.
+     */
+    @Benchmark
+    public UserCredentials findUnknownUserIndexed() {
+        return indexedCredentialsStore.findUser("unknown" + ThreadLocalRandom.current().nextInt(users));
+    }
+
+    @Benchmark
+    public UserCredentials findUserCompact() {
+        return compactCredentialsStore.findUser(userNames[ThreadLocalRandom.current().nextInt(users)]);
+    }
+
+    @Benchmark
+    public boolean checkPassword() {
+        final int index = ThreadLocalRandom.current().nextInt(users);
+        final UserCredentials userCreds = credentialsStore.findUser(userNames[index]);
+        return credentialsStore.checkPassword(userCreds, credentials.password(index));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean checkPasswordConcurrent() {
+        return checkPassword();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public CredentialsSnapshot load() throws Exception {
+        credentialsStore.load();
+        return credentialsStore.getSnapshot();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public CredentialsSnapshot loadStreaming() throws Exception {
+        streamingCredentialsStore.load();
+        return streamingCredentialsStore.getSnapshot();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public CredentialsSnapshot loadIndexed() throws Exception {
+        indexedCredentialsStore.load();
+        return indexedCredentialsStore.getSnapshot();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public CredentialsSnapshot loadCompact() throws Exception {
+        compactCredentialsStore.load();
+        return compactCredentialsStore.getSnapshot();
+    }
+
+    /**
+     * Measures the check done before every login when the file is not watched, for an unchanged file.
+     */
+    @Benchmark
+    public boolean reloadIfModified() throws Exception {
+        return credentialsStore.reloadIfModified();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void save() throws Exception {
+        credentialsStore.save(saveFile);
+    }
+
+}
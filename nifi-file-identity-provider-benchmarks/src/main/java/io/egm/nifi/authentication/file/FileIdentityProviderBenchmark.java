@@ -0,0 +1,144 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.apache.nifi.authentication.AuthenticationResponse;
+import org.apache.nifi.authentication.LoginCredentials;
+import org.apache.nifi.authentication.LoginIdentityProviderConfigurationContext;
+import org.apache.nifi.authentication.LoginIdentityProviderInitializationContext;
+import org.apache.nifi.authentication.LoginIdentityProviderLookup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures end-to-end logins through {@link FileIdentityProvider#authenticate(LoginCredentials)} against synthetic
+ * credentials files of 10 to a million users, with and without the verified login cache.  As in
+ * {@link CredentialsStoreBenchmark}, password hashes have the minimum bcrypt cost, and the {@code Concurrent}
+ * variant runs on as many threads as there are processors.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class FileIdentityProviderBenchmark {
+
+    private static final String IDENTIFIER = "file-identity-provider";
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int users;
+
+    @Param({"0", "10000"})
+    public int verifiedLoginCacheSize;
+
+    private File directory;
+    private File credentialsFile;
+    private SyntheticCredentials credentials;
+    private String[] userNames;
+    private FileIdentityProvider provider;
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("provider-benchmark").toFile();
+        credentialsFile = new File(directory, "login-credentials.xml");
+        credentials = new SyntheticCredentials(BcryptPasswordEncoder.MIN_COST);
+        credentials.write(credentialsFile, users);
+        userNames = SyntheticCredentials.userNames(users);
+
+        final Map<String, String> properties = new HashMap<>();
+        properties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, credentialsFile.getAbsolutePath());
+        properties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, "12 hours");
+        properties.put(FileIdentityProvider.PROPERTY_VERIFIED_LOGIN_CACHE_SIZE, Integer.toString(verifiedLoginCacheSize));
+        provider = new FileIdentityProvider();
+        provider.initialize(new InitializationContext());
+        provider.onConfigured(new ConfigurationContext(properties));
+    }
+
+    @TearDown
+    public void tearDown() {
+        provider.preDestruction();
+        credentialsFile.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public AuthenticationResponse authenticate() {
+        final int index = ThreadLocalRandom.current().nextInt(users);
+        return provider.authenticate(new LoginCredentials(userNames[index], credentials.password(index)));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public AuthenticationResponse authenticateConcurrent() {
+        return authenticate();
+    }
+
+    private static class InitializationContext implements LoginIdentityProviderInitializationContext {
+        @Override
+        public String getIdentifier() {
+            return IDENTIFIER;
+        }
+
+        @Override
+        public LoginIdentityProviderLookup getAuthorityProviderLookup() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class ConfigurationContext implements LoginIdentityProviderConfigurationContext {
+        private final Map<String, String> properties;
+
+        ConfigurationContext(Map<String, String> properties) {
+            this.properties = properties;
+        }
+
+        @Override
+        public String getIdentifier() {
+            return IDENTIFIER;
+        }
+
+        @Override
+        public Map<String, String> getProperties() {
+            return properties;
+        }
+
+        @Override
+        public String getProperty(String property) {
+            return properties.get(property);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.apache.nifi.authentication.LoginCredentials;
+import org.apache.nifi.authentication.LoginIdentityProviderConfigurationContext;
+import org.apache.nifi.authentication.LoginIdentityProviderInitializationContext;
+import org.apache.nifi.authentication.LoginIdentityProviderLookup;
+import org.apache.nifi.authentication.exception.InvalidLoginCredentialsException;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Drives logins through {@link FileIdentityProvider#authenticate(LoginCredentials)} from many threads for a while,
+ * as an operator keeps rewriting the credentials file through {@link CredentialsStore#save()}, and reports the
+ * throughput, latency percentiles and errors.  Unlike the JMH benchmarks, it is meant to reproduce the conditions
+ * of a busy NiFi cluster rather than to measure one operation, so every login is timed and nothing is averaged
+ * away.
+ *
+ * <p>Users are picked following a Zipf distribution over a synthetic credentials file, so that a few users log in
+ * often and most rarely, and a share of the logins use a wrong password.  A login is an error when a right password
+ * is rejected, a wrong one accepted, or anything else than {@link InvalidLoginCredentialsException} is thrown.</p>
+ *
+ * <p>Usage: {@code LoginLoadTest [--users N] [--threads N] [--virtual-threads] [--duration SECS]
+ * [--zipf-exponent S] [--wrong-passwords FRACTION] [--rewrite-interval MILLIS] [--cost COST]
+ * [--property NAME=VALUE]...}</p>
+ */
+public final class LoginLoadTest {
+
+    private static final String IDENTIFIER = "file-identity-provider";
+
+    private int users = 10000;
+    private int threads = 200;
+    private boolean virtualThreads;
+    private long durationSeconds = 30;
+    private double zipfExponent = 1.0;
+    private double wrongPasswords = 0.1;
+    private long rewriteIntervalMillis = 1000;
+    private int cost = BcryptPasswordEncoder.MIN_COST;
+    private final Map<String, String> properties = new HashMap<>();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder successCount = new LongAdder();
+    private final LongAdder rejectionCount = new LongAdder();
+    private final Map<String, LongAdder> errorCounts = new ConcurrentHashMap<>();
+    private final LongAdder rewriteCount = new LongAdder();
+
+    private SyntheticCredentials credentials;
+    private String[] userNames;
+    private double[] zipfDistribution;
+    private volatile boolean running;
+
+    void processArgs(String[] args) {
+        int i = 0;
+        while (i < args.length) {
+            final String option = args[i];
+            if (option.equals("--virtual-threads")) {
+                virtualThreads = true;
+                i++;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value of option " + option);
+            }
+            final String value = args[i + 1];
+            switch (option) {
+                case "--users" -> users = Integer.parseInt(value);
+                case "--threads" -> threads = Integer.parseInt(value);
+                case "--duration" -> durationSeconds = Long.parseLong(value);
+                case "--zipf-exponent" -> zipfExponent = Double.parseDouble(value);
+                case "--wrong-passwords" -> wrongPasswords = Double.parseDouble(value);
+                case "--rewrite-interval" -> rewriteIntervalMillis = Long.parseLong(value);
+                case "--cost" -> cost = Integer.parseInt(value);
+                case "--property" -> {
+                    final int separator = value.indexOf('=');
+                    if (separator < 1) {
+                        throw new IllegalArgumentException("Expected NAME=VALUE for option --property: " + value);
+                    }
+                    properties.put(value.substring(0, separator), value.substring(separator + 1));
+                }
+                default -> throw new IllegalArgumentException("Unknown option " + option);
+            }
+            i += 2;
+        }
+        if (users < 1 || threads < 1 || durationSeconds < 1) {
+            throw new IllegalArgumentException("The users, threads and duration must be positive");
+        }
+    }
+
+    /**
+     * Returns the cumulative distribution of a Zipf distribution over the users: the probability of the user of
+     * rank k, from 1, is proportional to 1 / k^s.
+     */
+    static double[] zipfDistribution(int userCount, double exponent) {
+        final double[] distribution = new double[userCount];
+        double sum = 0.0;
+        for (int k = 0; k < userCount; k++) {
+            sum += 1.0 / Math.pow(k + 1, exponent);
+            distribution[k] = sum;
+        }
+        for (int k = 0; k < userCount; k++) {
+            distribution[k] /= sum;
+        }
+        return distribution;
+    }
+
+    static int sample(double[] distribution, double random) {
+        final int index = Arrays.binarySearch(distribution, random);
+        return Math.min(distribution.length - 1, index >= 0 ? index : -index - 1);
+    }
+
+    void run() throws Exception {
+        final File directory = Files.createTempDirectory("login-load-test").toFile();
+        final File credentialsFile = new File(directory, "login-credentials.xml");
+        try {
+            System.out.printf("Writing %d users with bcrypt cost %d%n", users, cost);
+            credentials = new SyntheticCredentials(cost);
+            credentials.write(credentialsFile, users);
+            userNames = SyntheticCredentials.userNames(users);
+            zipfDistribution = zipfDistribution(users, zipfExponent);
+
+            properties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, credentialsFile.getAbsolutePath());
+            properties.putIfAbsent(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, "12 hours");
+            final FileIdentityProvider provider = new FileIdentityProvider();
+            provider.initialize(new InitializationContext());
+            provider.onConfigured(new ConfigurationContext(properties));
+            try {
+                run(provider, credentialsFile);
+            } finally {
+                provider.preDestruction();
+            }
+        } finally {
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private void run(FileIdentityProvider provider, File credentialsFile) throws Exception {
+        System.out.printf("Logging in from %d %s threads for %d s%n", threads, virtualThreads ? "virtual" : "platform",
+                durationSeconds);
+        running = true;
+        final Thread rewriter = rewriteIntervalMillis > 0 ? Thread.ofPlatform().daemon().name("Credentials Rewriter")
+                .start(() -> rewrite(credentialsFile)) : null;
+        final Thread.Builder builder = virtualThreads ? Thread.ofVirtual().name("Login-", 0)
+                : Thread.ofPlatform().daemon().name("Login-", 0);
+        final List<Thread> loginThreads = new ArrayList<>(threads);
+        final long startNanos = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            loginThreads.add(builder.start(() -> login(provider)));
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+        running = false;
+        for (Thread loginThread : loginThreads) {
+            loginThread.join();
+        }
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        if (rewriter != null) {
+            rewriter.join();
+        }
+        report(provider, elapsedNanos);
+    }
+
+    private void login(FileIdentityProvider provider) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running) {
+            final int index = sample(zipfDistribution, random.nextDouble());
+            final boolean wrongPassword = random.nextDouble() < wrongPasswords;
+            final String password = wrongPassword ? "wrong" + credentials.password(index)
+                    : credentials.password(index);
+            final long startNanos = System.nanoTime();
+            try {
+                provider.authenticate(new LoginCredentials(userNames[index], password));
+                latency.record(System.nanoTime() - startNanos);
+                if (wrongPassword) {
+                    recordError("wrong password accepted");
+                } else {
+                    successCount.increment();
+                }
+            } catch (InvalidLoginCredentialsException e) {
+                latency.record(System.nanoTime() - startNanos);
+                if (wrongPassword) {
+                    rejectionCount.increment();
+                } else {
+                    recordError("right password rejected");
+                }
+            } catch (RuntimeException e) {
+                latency.record(System.nanoTime() - startNanos);
+                recordError(e.getClass().getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Resets the password of a random user to the same password, so that the file changes while every login keeps
+     * the same outcome.
+     */
+    private void rewrite(File credentialsFile) {
+        try {
+            final CredentialsStore credentialsStore = CredentialsStore.fromFile(credentialsFile);
+            credentialsStore.setPasswordEncoder(new BcryptPasswordEncoder(cost));
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (running) {
+                final int index = random.nextInt(users);
+                try {
+                    credentialsStore.resetPassword(userNames[index], credentials.password(index));
+                    credentialsStore.save();
+                    rewriteCount.increment();
+                } catch (Exception e) {
+                    recordError("rewrite failed: " + e.getClass().getName() + ": " + e.getMessage());
+                }
+                Thread.sleep(rewriteIntervalMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            recordError("rewriter failed: " + e.getClass().getName() + ": " + e.getMessage());
+        }
+    }
+
+    private void recordError(String error) {
+        errorCounts.computeIfAbsent(error, key -> new LongAdder()).increment();
+    }
+
+    private void report(FileIdentityProvider provider, long elapsedNanos) {
+        final long loginCount = latency.getCount();
+        final double elapsedSeconds = elapsedNanos / 1e9;
+        System.out.printf("Logins:      %d in %.1f s, %.1f/s%n", loginCount, elapsedSeconds, loginCount / elapsedSeconds);
+        System.out.printf("Outcomes:    %d succeeded, %d rejected as expected%n", successCount.sum(),
+                rejectionCount.sum());
+        System.out.printf("Latency:     p50 %s, p99 %s, p999 %s, max %s%n", format(latency.getPercentile(0.5)),
+                format(latency.getPercentile(0.99)), format(latency.getPercentile(0.999)), format(latency.getMax()));
+        final FileIdentityProviderMetrics metrics = provider.getMetrics();
+        System.out.printf("Rewrites:    %d saved, %d reloaded, %d deferred, %d failed to parse%n",
+                rewriteCount.sum(), metrics.getReloadCount(), metrics.getDeferredReloadCount(),
+                metrics.getParseErrorCount());
+        final Map<String, LongAdder> errors = new TreeMap<>(errorCounts);
+        long errorCount = 0;
+        for (LongAdder count : errors.values()) {
+            errorCount += count.sum();
+        }
+        System.out.printf("Errors:      %d%n", errorCount);
+        for (Map.Entry<String, LongAdder> error : errors.entrySet()) {
+            System.out.printf("    %8d  %s%n", error.getValue().sum(), error.getKey());
+        }
+    }
+
+    private static String format(long nanos) {
+        if (nanos >= 10_000_000L) {
+            return String.format("%.1f ms", nanos / 1e6);
+        }
+        return String.format("%.1f us", nanos / 1e3);
+    }
+
+    boolean hasErrors() {
+        return !errorCounts.isEmpty();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final LoginLoadTest loadTest = new LoginLoadTest();
+        try {
+            loadTest.processArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoginLoadTest [--users N] [--threads N] [--virtual-threads] [--duration SECS]"
+                    + " [--zipf-exponent S] [--wrong-passwords FRACTION] [--rewrite-interval MILLIS] [--cost COST]"
+                    + " [--property NAME=VALUE]...");
+            System.exit(1);
+        }
+        loadTest.run();
+        System.exit(loadTest.hasErrors() ? 2 : 0);
+    }
+
+    private static class InitializationContext implements LoginIdentityProviderInitializationContext {
+        @Override
+        public String getIdentifier() {
+            return IDENTIFIER;
+        }
+
+        @Override
+        public LoginIdentityProviderLookup getAuthorityProviderLookup() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class ConfigurationContext implements LoginIdentityProviderConfigurationContext {
+        private final Map<String, String> properties;
+
+        ConfigurationContext(Map<String, String> properties) {
+            this.properties = properties;
+        }
+
+        @Override
+        public String getIdentifier() {
+            return IDENTIFIER;
+        }
+
+        @Override
+        public Map<String, String> getProperties() {
+            return properties;
+        }
+
+        @Override
+        public String getProperty(String property) {
+            return properties.get(property);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Compares the cost of one login, i.e. one password verification, for each {@link PasswordEncoder}.  The default
+ * parameters are the minimum settings recommended by the OWASP Password Storage Cheat Sheet, which it considers
+ * equivalent: bcrypt cost 10, PBKDF2-HMAC-SHA256 with 600,000 iterations, and Argon2id with 19 MiB and 2 iterations
+ * or 46 MiB and 1 iteration.  Bcrypt cost 12 is included as a common stronger choice.
+ *
+ * <p>Encoders are given as {@code algorithm:cost[:memory KiB:parallelism]}, and may be overridden with
+ * {@code -p encoder=...}.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PasswordEncoderBenchmark {
+
+    private static final String PASSWORD = "CorrectHorseBatteryStaple";
+
+    @Param({"bcrypt:10", "bcrypt:12", "pbkdf2-sha256:600000", "argon2id:2:19456:1", "argon2id:1:47104:1"})
+    public String encoder;
+
+    private PasswordEncoder passwordEncoder;
+    private String passwordHash;
+
+    @Setup
+    public void setup() {
+        final String[] fields = encoder.split(":");
+        passwordEncoder = PasswordEncoders.create(fields[0],
+                fields.length > 1 ? Integer.valueOf(fields[1]) : null,
+                fields.length > 2 ? Integer.valueOf(fields[2]) : null,
+                fields.length > 3 ? Integer.valueOf(fields[3]) : null);
+        passwordHash = passwordEncoder.encode(PASSWORD);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return PasswordEncoders.matches(PASSWORD, passwordHash);
+    }
+
+    @Benchmark
+    public String encode() {
+        return passwordEncoder.encode(PASSWORD);
+    }
+
+}
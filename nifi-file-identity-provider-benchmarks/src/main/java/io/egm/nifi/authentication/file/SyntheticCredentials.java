@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+
+/**
+ * Writes synthetic credentials files for the benchmarks.  The users are named {@code user0}, {@code user1}, ...,
+ * and their passwords cycle through {@link #HASH_COUNT} passwords, whose bcrypt hashes are computed once, so that
+ * a file of a million users is written in about a second.
+ *
+ * <p>Also runnable on its own: {@code SyntheticCredentials <file> <user count> [bcrypt cost]}.</p>
+ */
+public final class SyntheticCredentials {
+
+    static final int HASH_COUNT = 16;
+
+    private final String[] passwords = new String[HASH_COUNT];
+    private final String[] passwordHashes = new String[HASH_COUNT];
+
+    /**
+     * Precomputes the password hashes with the given bcrypt cost.
+     */
+    SyntheticCredentials(int cost) {
+        final BcryptPasswordEncoder passwordEncoder = new BcryptPasswordEncoder(cost);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            passwords[i] = "password" + i;
+            passwordHashes[i] = passwordEncoder.encode(passwords[i]);
+        }
+    }
+
+    static String userName(int index) {
+        return "user" + index;
+    }
+
+    /**
+     * Returns the password of the user with the given index.
+     */
+    String password(int index) {
+        return passwords[index % HASH_COUNT];
+    }
+
+    /**
+     * Returns the names of the users of a file with the given number of users, in file order.
+     */
+    static String[] userNames(int userCount) {
+        final String[] userNames = new String[userCount];
+        for (int i = 0; i < userCount; i++) {
+            userNames[i] = userName(i);
+        }
+        return userNames;
+    }
+
+    void write(File file, int userCount) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file.toPath()),
+                StandardCharsets.UTF_8), 1 << 16)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n<credentials>\n");
+            for (int i = 0; i < userCount; i++) {
+                writer.write("    <user name=\"");
+                writer.write(userName(i));
+                writer.write("\" passwordHash=\"");
+                writer.write(passwordHashes[i % HASH_COUNT]);
+                writer.write("\"/>\n");
+            }
+            writer.write("</credentials>\n");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SyntheticCredentials <file> <user count> [bcrypt cost]");
+            System.exit(1);
+        }
+        final int cost = args.length > 2 ? Integer.parseInt(args[2]) : BcryptPasswordEncoder.DEFAULT_COST;
+        new SyntheticCredentials(cost).write(new File(args[0]), Integer.parseInt(args[1]));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+
+/**
+ * Argon2id password encoder, using the Bouncy Castle implementation.  Hashes are stored in the PHC string format
+ * {@code $argon2id$v=19$m=<memory KiB>,t=<iterations>,p=<parallelism>$<salt>$<hash>}, as written by the reference
+ * implementation.
+ *
+ * <p>The memory cost makes each verification use that much memory, which is what makes Argon2id expensive to
+ * attack with dedicated hardware; it also bounds how many logins a node can verify at once.</p>
+ */
+class Argon2PasswordEncoder implements PasswordEncoder {
+
+    static final String PREFIX = "$argon2id$";
+    static final int DEFAULT_MEMORY_KIB = 19_456;
+    static final int DEFAULT_ITERATIONS = 2;
+    static final int DEFAULT_PARALLELISM = 1;
+
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final int memoryKib;
+    private final int iterations;
+    private final int parallelism;
+
+    Argon2PasswordEncoder() {
+        this(DEFAULT_MEMORY_KIB, DEFAULT_ITERATIONS, DEFAULT_PARALLELISM);
+    }
+
+    Argon2PasswordEncoder(int memoryKib, int iterations, int parallelism) {
+        if (iterations < 1 || parallelism < 1 || parallelism > 255) {
+            throw new IllegalArgumentException("Argon2 iterations must be at least 1, and parallelism between 1 and 255");
+        }
+        if (memoryKib < 8 * parallelism) {
+            throw new IllegalArgumentException("Argon2 memory must be at least 8 KiB per lane of parallelism");
+        }
+        this.memoryKib = memoryKib;
+        this.iterations = iterations;
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public boolean supports(String passwordHash) {
+        return passwordHash != null && passwordHash.startsWith(PREFIX);
+    }
+
+    @Override
+    public String encode(String rawPassword) {
+        final byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        final byte[] hash = hash(rawPassword, salt, memoryKib, iterations, parallelism, HASH_LENGTH);
+        final Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return PREFIX + "v=19$m=" + memoryKib + ",t=" + iterations + ",p=" + parallelism + "$"
+                + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+    }
+
+    @Override
+    public boolean matches(String rawPassword, String passwordHash) {
+        return ParsedHash.parse(passwordHash).matches(rawPassword);
+    }
+
+    @Override
+    public PreparedHash prepare(String passwordHash) {
+        return ParsedHash.parse(passwordHash);
+    }
+
+    @Override
+    public boolean needsRehash(String passwordHash) {
+        try {
+            final ParsedHash parsedHash = ParsedHash.parse(passwordHash);
+            return parsedHash.memoryKib != memoryKib || parsedHash.iterations != iterations
+                    || parsedHash.parallelism != parallelism;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    private static byte[] hash(String rawPassword, byte[] salt, int memoryKib, int iterations, int parallelism,
+                               int length) {
+        final Argon2Parameters parameters = new Argon2Parameters.Builder(Argon2Parameters.ARGON2_id)
+                .withVersion(Argon2Parameters.ARGON2_VERSION_13)
+                .withMemoryAsKB(memoryKib)
+                .withIterations(iterations)
+                .withParallelism(parallelism)
+                .withSalt(salt)
+                .build();
+        final Argon2BytesGenerator generator = new Argon2BytesGenerator();
+        generator.init(parameters);
+        final byte[] hash = new byte[length];
+        generator.generateBytes(rawPassword.getBytes(StandardCharsets.UTF_8), hash);
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "Argon2id m=" + memoryKib + ",t=" + iterations + ",p=" + parallelism;
+    }
+
+    private static final class ParsedHash implements PreparedHash {
+        private final int memoryKib;
+        private final int iterations;
+        private final int parallelism;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        private ParsedHash(int memoryKib, int iterations, int parallelism, byte[] salt, byte[] hash) {
+            this.memoryKib = memoryKib;
+            this.iterations = iterations;
+            this.parallelism = parallelism;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        static ParsedHash parse(String passwordHash) {
+            // "", "argon2id", "v=19", "m=<memory>,t=<iterations>,p=<parallelism>", salt, hash
+            final String[] fields = passwordHash.split("\\$", -1);
+            if (fields.length != 6 || !fields[2].equals("v=19")) {
+                throw new IllegalArgumentException("Invalid Argon2id hash format");
+            }
+            final String[] parameters = fields[3].split(",", -1);
+            if (parameters.length != 3 || !parameters[0].startsWith("m=") || !parameters[1].startsWith("t=")
+                    || !parameters[2].startsWith("p=")) {
+                throw new IllegalArgumentException("Invalid Argon2id hash parameters");
+            }
+            try {
+                final int memoryKib = Integer.parseInt(parameters[0].substring(2));
+                final int iterations = Integer.parseInt(parameters[1].substring(2));
+                final int parallelism = Integer.parseInt(parameters[2].substring(2));
+                final byte[] salt = Base64.getDecoder().decode(fields[4]);
+                final byte[] hash = Base64.getDecoder().decode(fields[5]);
+                if (iterations < 1 || parallelism < 1 || memoryKib < 8 * parallelism || salt.length < 8
+                        || hash.length < 4) {
+                    throw new IllegalArgumentException("Invalid Argon2id hash parameters");
+                }
+                return new ParsedHash(memoryKib, iterations, parallelism, salt, hash);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid Argon2id hash format", e);
+            }
+        }
+
+        @Override
+        public int getCost() {
+            return iterations;
+        }
+
+        @Override
+        public boolean matches(String rawPassword) {
+            final byte[] computedHash = hash(rawPassword, salt, memoryKib, iterations, parallelism, hash.length);
+            return MessageDigest.isEqual(computedHash, hash);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Audit trail of login attempts, appended to a local file by a background thread so that logins never wait for
+ * the disk.  Each attempt is one line with its time, outcome, username and reason:
+ *
+ * <pre>2016-06-30T12:00:00.123Z outcome=failure user="jane" reason="invalid password"</pre>
+ *
+ * <p>Logins hand their entries to an {@link AuditRingBuffer}, which takes no locks.  The writer thread drains it in
+ * batches, writing each batch at once, and rolls the file over when it grows past the maximum size, keeping a
+ * number of older files suffixed {@code .1}, {@code .2} and so on.</p>
+ *
+ * <p>When the queue is full, because the disk cannot keep up, an entry is either dropped and counted, or the login
+ * waits for the writer to make room, depending on the policy.  Entries lost to write errors are counted as dropped
+ * too.</p>
+ */
+class AuditLog implements Closeable {
+
+    static final String POLICY_DROP = "drop";
+    static final String POLICY_BLOCK = "block";
+
+    private static final Logger logger = LoggerFactory.getLogger(AuditLog.class);
+
+    private static final long SHUTDOWN_TIMEOUT_MILLISECONDS = 5000;
+    private static final int BATCH_SIZE = 512;
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ISO_INSTANT;
+
+    private final File file;
+    private final boolean blockWhenFull;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final AuditRingBuffer<Entry> buffer;
+    private final LongAdder recordedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder writtenCount = new LongAdder();
+    private final LongAdder writeErrorCount = new LongAdder();
+    private final StringBuilder batch = new StringBuilder();
+    private volatile boolean running;
+    private volatile Thread writerThread;
+    private OutputStream output;
+    private long fileSize;
+
+    /**
+     * @param file the file to append to
+     * @param capacity the number of entries that may wait for the writer
+     * @param blockWhenFull whether a login waits for room in a full queue, rather than dropping its entry
+     * @param maxFileSize the size after which the file is rolled over, in bytes
+     * @param maxFiles the number of rolled over files kept
+     */
+    AuditLog(File file, int capacity, boolean blockWhenFull, long maxFileSize, int maxFiles) {
+        this.file = file.getAbsoluteFile();
+        this.blockWhenFull = blockWhenFull;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.buffer = new AuditRingBuffer<>(capacity);
+    }
+
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        final Thread thread = new Thread(this::run, "Authentication Audit Writer [" + file.getName() + "]");
+        thread.setDaemon(true);
+        writerThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Queues an entry for the writer.  Returns at once unless the queue is full and the policy is to block.
+     */
+    void record(String userName, String outcome, String reason) {
+        final Entry entry = new Entry(System.currentTimeMillis(), userName, outcome, reason);
+        recordedCount.increment();
+        if (buffer.offer(entry)) {
+            return;
+        }
+        if (!blockWhenFull) {
+            droppedCount.increment();
+            return;
+        }
+        LockSupport.unpark(writerThread);
+        while (!buffer.offer(entry)) {
+            if (!running) {
+                droppedCount.increment();
+                return;
+            }
+            LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                if (buffer.isEmpty()) {
+                    LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+                } else {
+                    writeBatch();
+                }
+            }
+            // Entries recorded before the log was closed are still written
+            while (!buffer.isEmpty()) {
+                writeBatch();
+            }
+        } finally {
+            closeOutput();
+        }
+    }
+
+    private void writeBatch() {
+        batch.setLength(0);
+        final int count = buffer.drain(this::append, BATCH_SIZE);
+        if (count == 0) {
+            // A producer claimed a slot but has not filled it yet
+            Thread.yield();
+            return;
+        }
+        try {
+            if (output == null) {
+                openOutput();
+            }
+            final byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+            output.write(bytes);
+            output.flush();
+            fileSize += bytes.length;
+            writtenCount.add(count);
+            if (fileSize >= maxFileSize) {
+                rollOver();
+            }
+        } catch (IOException e) {
+            writeErrorCount.increment();
+            droppedCount.add(count);
+            logger.error("Failed writing {} entries to authentication audit log '{}'", count, file, e);
+            closeOutput();
+        }
+    }
+
+    private void append(Entry entry) {
+        TIMESTAMP_FORMATTER.formatTo(Instant.ofEpochMilli(entry.timestamp), batch);
+        batch.append(" outcome=").append(entry.outcome).append(" user=");
+        appendQuoted(entry.userName);
+        batch.append(" reason=");
+        appendQuoted(entry.reason);
+        batch.append('\n');
+    }
+
+    /**
+     * Appends a quoted value with its quotes, backslashes and control characters escaped, so that a username
+     * cannot forge further entries.
+     */
+    private void appendQuoted(String value) {
+        batch.append('"');
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    batch.append('\\').append(c);
+                } else if (c == '\n') {
+                    batch.append("\\n");
+                } else if (c == '\r') {
+                    batch.append("\\r");
+                } else if (c == '\t') {
+                    batch.append("\\t");
+                } else if (Character.isISOControl(c)) {
+                    batch.append(String.format("\\u%04x", (int) c));
+                } else {
+                    batch.append(c);
+                }
+            }
+        }
+        batch.append('"');
+    }
+
+    private void openOutput() throws IOException {
+        final File directory = file.getParentFile();
+        if (directory != null) {
+            Files.createDirectories(directory.toPath());
+        }
+        output = new FileOutputStream(file, true);
+        fileSize = file.length();
+    }
+
+    private void closeOutput() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                logger.warn("Failed closing authentication audit log '{}'", file, e);
+            }
+            output = null;
+        }
+    }
+
+    private void rollOver() throws IOException {
+        closeOutput();
+        if (maxFiles < 1) {
+            Files.delete(file.toPath());
+            return;
+        }
+        Files.deleteIfExists(getRolledFile(maxFiles).toPath());
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            final File rolledFile = getRolledFile(i);
+            if (rolledFile.exists()) {
+                Files.move(rolledFile.toPath(), getRolledFile(i + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file.toPath(), getRolledFile(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    File getRolledFile(int index) {
+        return new File(file.getPath() + "." + index);
+    }
+
+    long getRecordedCount() {
+        return recordedCount.sum();
+    }
+
+    /**
+     * Returns the number of entries dropped because the queue was full, or lost to write errors.
+     */
+    long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    long getWrittenCount() {
+        return writtenCount.sum();
+    }
+
+    long getWriteErrorCount() {
+        return writeErrorCount.sum();
+    }
+
+    /**
+     * Returns the number of entries waiting for the writer.
+     */
+    int getPendingCount() {
+        return buffer.size();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Writes the entries already queued and stops the writer.
+     */
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        final Thread thread = writerThread;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(SHUTDOWN_TIMEOUT_MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            logger.warn("Authentication audit log '{}' writer did not stop in time", file);
+        }
+    }
+
+    private static final class Entry {
+        private final long timestamp;
+        private final String userName;
+        private final String outcome;
+        private final String reason;
+
+        private Entry(long timestamp, String userName, String outcome, String reason) {
+            this.timestamp = timestamp;
+            this.userName = userName;
+            this.outcome = outcome;
+            this.reason = reason;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import java.util.Arrays;
+
+
+/**
+ * A bcrypt hash decoded into its cost, salt and digest, and verified with the {@link BcryptEngine}.  Parsing is
+ * strict: a hash must be 60 characters, with a cost from 4 to 31, and salt and digest encoded as bcrypt itself
+ * encodes them, since jbcrypt never matches a hash that does not re-encode to the same string.
+ *
+ * <p>A hash can also be packed into {@link #PACKED_LENGTH} bytes, its prefix letter, cost, salt and digest, from
+ * which the same hash string is formatted again.</p>
+ */
+final class BcryptHash implements PasswordEncoder.PreparedHash {
+
+    private static final int LENGTH = 60;
+    private static final int SALT_OFFSET = 7;
+    private static final int SALT_CHARS = 22;
+    private static final int DIGEST_OFFSET = SALT_OFFSET + SALT_CHARS;
+    private static final int DIGEST_CHARS = 31;
+    static final int PACKED_LENGTH = 2 + BcryptEngine.SALT_LENGTH + BcryptEngine.DIGEST_LENGTH;
+
+    private static final String ALPHABET = "./ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+    private static final byte[] INDEX = new byte[128];
+
+    static {
+        Arrays.fill(INDEX, (byte) -1);
+        for (int i = 0; i < ALPHABET.length(); i++) {
+            INDEX[ALPHABET.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final int cost;
+    private final byte[] salt;
+    private final byte[] digest;
+
+    private BcryptHash(int cost, byte[] salt, byte[] digest) {
+        this.cost = cost;
+        this.salt = salt;
+        this.digest = digest;
+    }
+
+    /**
+     * Decodes a bcrypt hash with the {@code $2a$}, {@code $2b$} or {@code $2y$} prefix.
+     *
+     * @throws IllegalArgumentException if the hash is malformed
+     */
+    static BcryptHash parse(String passwordHash) {
+        if (passwordHash == null || passwordHash.length() != LENGTH || !passwordHash.startsWith("$2")
+                || "aby".indexOf(passwordHash.charAt(2)) < 0) {
+            throw new IllegalArgumentException("Invalid bcrypt hash format");
+        }
+        final int cost = BcryptPasswordEncoder.getCost(passwordHash);
+        if (cost < BcryptPasswordEncoder.MIN_COST || cost > BcryptPasswordEncoder.MAX_COST) {
+            throw new IllegalArgumentException("Invalid bcrypt hash cost");
+        }
+        final byte[] salt = decode(passwordHash, SALT_OFFSET, BcryptEngine.SALT_LENGTH);
+        final byte[] digest = decode(passwordHash, DIGEST_OFFSET, BcryptEngine.DIGEST_LENGTH);
+        return new BcryptHash(cost, salt, digest);
+    }
+
+    /**
+     * Packs a bcrypt hash into {@link #PACKED_LENGTH} bytes of an array.
+     *
+     * @return false, leaving the array unchanged, if the hash is not a well-formed bcrypt hash
+     */
+    static boolean pack(String passwordHash, byte[] packed, int offset) {
+        final BcryptHash hash;
+        try {
+            hash = parse(passwordHash);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        packed[offset] = (byte) passwordHash.charAt(2);
+        packed[offset + 1] = (byte) hash.cost;
+        System.arraycopy(hash.salt, 0, packed, offset + 2, BcryptEngine.SALT_LENGTH);
+        System.arraycopy(hash.digest, 0, packed, offset + 2 + BcryptEngine.SALT_LENGTH, BcryptEngine.DIGEST_LENGTH);
+        return true;
+    }
+
+    /**
+     * Returns the hash packed by {@link #pack(String, byte[], int)} at an offset of an array.
+     */
+    static BcryptHash unpack(byte[] packed, int offset) {
+        final int saltOffset = offset + 2;
+        final int digestOffset = saltOffset + BcryptEngine.SALT_LENGTH;
+        return new BcryptHash(packed[offset + 1],
+                Arrays.copyOfRange(packed, saltOffset, saltOffset + BcryptEngine.SALT_LENGTH),
+                Arrays.copyOfRange(packed, digestOffset, digestOffset + BcryptEngine.DIGEST_LENGTH));
+    }
+
+    /**
+     * Returns the string of the hash packed by {@link #pack(String, byte[], int)} at an offset of an array.
+     */
+    static String format(byte[] packed, int offset) {
+        final int cost = packed[offset + 1];
+        final StringBuilder passwordHash = new StringBuilder(LENGTH)
+                .append("$2").append((char) packed[offset]).append('$')
+                .append((char) ('0' + cost / 10)).append((char) ('0' + cost % 10)).append('$');
+        encode(packed, offset + 2, BcryptEngine.SALT_LENGTH, passwordHash);
+        encode(packed, offset + 2 + BcryptEngine.SALT_LENGTH, BcryptEngine.DIGEST_LENGTH, passwordHash);
+        return passwordHash.toString();
+    }
+
+    /**
+     * Encodes bytes in bcrypt's Base64 variant, without padding.
+     */
+    private static void encode(byte[] data, int offset, int length, StringBuilder encoded) {
+        final int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int c1 = data[i++] & 0xff;
+            encoded.append(ALPHABET.charAt(c1 >> 2));
+            c1 = (c1 & 0x03) << 4;
+            if (i >= end) {
+                encoded.append(ALPHABET.charAt(c1));
+                return;
+            }
+            int c2 = data[i++] & 0xff;
+            encoded.append(ALPHABET.charAt(c1 | (c2 >> 4)));
+            c1 = (c2 & 0x0f) << 2;
+            if (i >= end) {
+                encoded.append(ALPHABET.charAt(c1));
+                return;
+            }
+            c2 = data[i++] & 0xff;
+            encoded.append(ALPHABET.charAt(c1 | (c2 >> 6)));
+            encoded.append(ALPHABET.charAt(c2 & 0x3f));
+        }
+    }
+
+    /**
+     * Decodes bcrypt's Base64 variant, requiring the unused bits of the last character to be zero.
+     */
+    private static byte[] decode(String s, int offset, int length) {
+        final byte[] decoded = new byte[length];
+        int i = offset;
+        int n = 0;
+        while (true) {
+            final int c1 = charValue(s, i++);
+            final int c2 = charValue(s, i++);
+            decoded[n++] = (byte) ((c1 << 2) | ((c2 & 0x30) >> 4));
+            if (n == length) {
+                checkUnusedBits(c2 & 0x0f);
+                return decoded;
+            }
+            final int c3 = charValue(s, i++);
+            decoded[n++] = (byte) (((c2 & 0x0f) << 4) | ((c3 & 0x3c) >> 2));
+            if (n == length) {
+                checkUnusedBits(c3 & 0x03);
+                return decoded;
+            }
+            final int c4 = charValue(s, i++);
+            decoded[n++] = (byte) (((c3 & 0x03) << 6) | c4);
+            if (n == length) {
+                return decoded;
+            }
+        }
+    }
+
+    private static int charValue(String s, int index) {
+        final char c = s.charAt(index);
+        final int value = c < INDEX.length ? INDEX[c] : -1;
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid bcrypt hash encoding");
+        }
+        return value;
+    }
+
+    private static void checkUnusedBits(int bits) {
+        if (bits != 0) {
+            throw new IllegalArgumentException("Invalid bcrypt hash encoding");
+        }
+    }
+
+    @Override
+    public int getCost() {
+        return cost;
+    }
+
+    @Override
+    public boolean matches(String rawPassword) {
+        return BcryptEngine.verify(rawPassword, salt, cost, digest);
+    }
+}
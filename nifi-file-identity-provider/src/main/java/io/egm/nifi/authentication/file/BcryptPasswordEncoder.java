@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.mindrot.jbcrypt.BCrypt;
+
+
+/**
+ * Bcrypt password encoder, with a cost given as the base 2 logarithm of the number of rounds.  Hashes with the
+ * {@code $2b$} and {@code $2y$} prefixes of other bcrypt implementations are verified like {@code $2a$} ones,
+ * which they are identical to for any password.
+ *
+ * <p>New hashes are made with jbcrypt, while hashes are verified with the {@link BcryptEngine}, which computes the
+ * same digests with fewer allocations.  Hashes with the original {@code $2$} prefix, which the engine does not
+ * handle, are verified with jbcrypt, and always need a rehash.</p>
+ */
+class BcryptPasswordEncoder implements PasswordEncoder {
+
+    static final int DEFAULT_COST = 10;
+    static final int MIN_COST = 4;
+    // The highest cost jbcrypt accepts, although the format allows 31
+    static final int MAX_COST = 30;
+
+    private static final String LEGACY_PREFIX = "$2$";
+    private static final int LEGACY_LENGTH = 59;
+
+    private final int cost;
+
+    BcryptPasswordEncoder() {
+        this(DEFAULT_COST);
+    }
+
+    BcryptPasswordEncoder(int cost) {
+        if (cost < MIN_COST || cost > MAX_COST) {
+            throw new IllegalArgumentException("Bcrypt cost must be between " + MIN_COST + " and " + MAX_COST);
+        }
+        this.cost = cost;
+    }
+
+    int getCost() {
+        return cost;
+    }
+
+    /**
+     * Returns the cost of a bcrypt hash, or -1 if the hash is not in bcrypt format.
+     */
+    static int getCost(String passwordHash) {
+        final int offset = isLegacy(passwordHash) ? LEGACY_PREFIX.length() : 4;
+        if (passwordHash == null || passwordHash.length() < offset + 3 || passwordHash.charAt(0) != '$'
+                || passwordHash.charAt(offset - 1) != '$' || passwordHash.charAt(offset + 2) != '$') {
+            return -1;
+        }
+        final char tens = passwordHash.charAt(offset);
+        final char units = passwordHash.charAt(offset + 1);
+        if (tens < '0' || tens > '9' || units < '0' || units > '9') {
+            return -1;
+        }
+        return (tens - '0') * 10 + (units - '0');
+    }
+
+    private static boolean isLegacy(String passwordHash) {
+        return passwordHash != null && passwordHash.startsWith(LEGACY_PREFIX);
+    }
+
+    /**
+     * Returns the cost of a {@code $2$} hash, which jbcrypt checks further when verifying it.
+     *
+     * @throws IllegalArgumentException if the hash is not 59 characters, or its cost out of range
+     */
+    private static int getLegacyCost(String passwordHash) {
+        final int hashCost = getCost(passwordHash);
+        if (passwordHash.length() != LEGACY_LENGTH || hashCost < MIN_COST || hashCost > MAX_COST) {
+            throw new IllegalArgumentException("Invalid bcrypt hash format");
+        }
+        return hashCost;
+    }
+
+    @Override
+    public boolean supports(String passwordHash) {
+        return passwordHash != null && (passwordHash.startsWith("$2a$") || passwordHash.startsWith("$2b$")
+                || passwordHash.startsWith("$2y$") || passwordHash.startsWith(LEGACY_PREFIX));
+    }
+
+    @Override
+    public String encode(String rawPassword) {
+        return BCrypt.hashpw(rawPassword, BCrypt.gensalt(cost));
+    }
+
+    @Override
+    public boolean matches(String rawPassword, String passwordHash) {
+        return prepare(passwordHash).matches(rawPassword);
+    }
+
+    @Override
+    public PreparedHash prepare(String passwordHash) {
+        if (!isLegacy(passwordHash)) {
+            return BcryptHash.parse(passwordHash);
+        }
+        final int hashCost = getLegacyCost(passwordHash);
+        return new PreparedHash() {
+            @Override
+            public boolean matches(String rawPassword) {
+                try {
+                    return BCrypt.checkpw(rawPassword, passwordHash);
+                } catch (IllegalArgumentException e) {
+                    // A salt that jbcrypt cannot decode
+                    return false;
+                }
+            }
+
+            @Override
+            public int getCost() {
+                return hashCost;
+            }
+        };
+    }
+
+    @Override
+    public boolean needsRehash(String passwordHash) {
+        return isLegacy(passwordHash) || getCost(passwordHash) != cost;
+    }
+
+    @Override
+    public String toString() {
+        return "bcrypt cost " + cost;
+    }
+}
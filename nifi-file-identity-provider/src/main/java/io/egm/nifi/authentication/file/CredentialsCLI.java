@@ -22,6 +22,7 @@ import java.io.FileNotFoundException;
 import java.io.InvalidObjectException;
 import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import io.egm.nifi.authentication.file.generated.UserCredentials;
 import io.egm.nifi.authentication.file.generated.UserCredentialsList;
@@ -37,8 +38,30 @@ import io.egm.nifi.authentication.file.generated.UserCredentialsList;
  *   <li>add credentials.xml admin</li>
  *   <li>reset credentials.xml admin</li>
  *   <li>remove credentials.xml admin</li>
+ *   <li>index credentials.xml</li>
+ *   <li>compact credentials.xml</li>
+ *   <li>--cost 12 add credentials.xml admin</li>
+ *   <li>--algorithm argon2id --memory 65536 reset credentials.xml admin</li>
+ *   <li>--journal 1048576 add credentials.xml admin</li>
  * </ul>
  *
+ * <p>Options set the algorithm of the password hashes written by the add and
+ * reset commands, bcrypt by default, and its parameters: {@code --cost} is the
+ * bcrypt cost or the number of PBKDF2 or Argon2id iterations, while
+ * {@code --memory} (KiB) and {@code --parallelism} only apply to Argon2id.
+ * See {@link PasswordEncoders}.</p>
+ *
+ * <p>With {@code --journal MAX_BYTES}, the add, reset and remove commands
+ * record the change in the {@link CredentialsJournal} of the file instead of
+ * rewriting it, and fold the journal into the file once it is longer than
+ * {@code MAX_BYTES}; the compact command folds it at once.  Whenever a journal
+ * exists, the commands read the users of the file with the changes of the
+ * journal, and saving the whole file folds the journal into it.</p>
+ *
+ * <p>The index command compiles the {@link CredentialsIndex} of the file, which
+ * a provider with the {@code Credentials Index} property would otherwise
+ * compile on its first load.</p>
+ *
  * <p>Requires spring-security-core, either in the classpath or by generating
  * the nifi-file-identity-provider JAR with dependencies:
  * {@code mvn compile assembly:single}</p>
@@ -64,6 +87,28 @@ public class CredentialsCLI {
 
     CredentialsAction processArgs(String[] args) {
         CredentialsAction action = null;
+        String passwordAlgorithm = null;
+        Integer passwordCost = null;
+        Integer passwordMemory = null;
+        Integer passwordParallelism = null;
+        Long journalMaxLength = null;
+        while (args.length >= 2 && args[0].startsWith("--")) {
+            try {
+                switch (args[0]) {
+                    case "--algorithm" -> passwordAlgorithm = args[1];
+                    case "--cost" -> passwordCost = Integer.parseInt(args[1]);
+                    case "--memory" -> passwordMemory = Integer.parseInt(args[1]);
+                    case "--parallelism" -> passwordParallelism = Integer.parseInt(args[1]);
+                    case "--journal" -> journalMaxLength = Long.parseLong(args[1]);
+                    default -> {
+                        return new PrintHelpAction();
+                    }
+                }
+            } catch (NumberFormatException nfe) {
+                return new PrintHelpAction();
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
         if (args.length < 2) {
             action = new PrintHelpAction();
             return action;
@@ -75,9 +120,16 @@ public class CredentialsCLI {
             case "add" -> new AddUserAction(credentialsFile);
             case "reset" -> new ResetPasswordAction(credentialsFile);
             case "remove" -> new RemoveUserAction(credentialsFile);
+            case "index" -> new CompileIndexAction(credentialsFile);
+            case "compact" -> new CompactJournalAction(credentialsFile);
             default -> new PrintHelpAction();
         };
         action.setArgs(args);
+        action.passwordAlgorithm = passwordAlgorithm;
+        action.passwordCost = passwordCost;
+        action.passwordMemory = passwordMemory;
+        action.passwordParallelism = passwordParallelism;
+        action.journalMaxLength = journalMaxLength;
         return action;
     }
 
@@ -86,6 +138,11 @@ public class CredentialsCLI {
         String[] args = null;
         String[] outputs = new String[]{};
         String credentialsFilePath = null;
+        String passwordAlgorithm = null;
+        Integer passwordCost = null;
+        Integer passwordMemory = null;
+        Integer passwordParallelism = null;
+        Long journalMaxLength = null;
         protected char[] secureInput = null;
 
         CredentialsAction() {
@@ -101,14 +158,41 @@ public class CredentialsCLI {
         CredentialsStore getCredentialsStore() throws Exception {
             File credentialsFile = new File(credentialsFilePath);
             CredentialsStore credStore;
-            if (credentialsFile.exists()) {
+            if (credentialsFile.exists()
+                    && (journalMaxLength != null || CredentialsJournal.getJournalFile(credentialsFile).exists())) {
+                // The changes recorded in the journal are part of the users
+                credStore = new CredentialsStore(credentialsFile);
+                credStore.setJournal(true);
+                credStore.load();
+            } else if (credentialsFile.exists()) {
                 credStore = CredentialsStore.fromFile(credentialsFilePath);
             } else {
                 credStore = new CredentialsStore();
             }
+            if (passwordAlgorithm != null || passwordCost != null || passwordMemory != null
+                    || passwordParallelism != null) {
+                final String algorithm = passwordAlgorithm == null ? PasswordEncoders.BCRYPT : passwordAlgorithm;
+                credStore.setPasswordEncoder(PasswordEncoders.create(algorithm, passwordCost, passwordMemory,
+                        passwordParallelism));
+            }
             return credStore;
         }
 
+        /**
+         * Records a change in the journal with the --journal option, compacting the journal once longer than its
+         * maximum, or else saves the whole file.  A null change records nothing.
+         */
+        void saveChange(CredentialsStore credStore, CredentialsJournal.Entry change) throws Exception {
+            if (journalMaxLength != null && credStore.getJournal() != null) {
+                if (change != null) {
+                    credStore.appendJournal(change);
+                    credStore.compactJournal(journalMaxLength);
+                }
+            } else {
+                credStore.save(credentialsFilePath);
+            }
+        }
+
         void setArgs(String[] args) {
             this.args = args;
         }
@@ -156,13 +240,19 @@ public class CredentialsCLI {
         void execute() {
             this.outputs = new String[] {
                     "Credentials Manager",
-                    "Usage: [OPTION] [FILE] <USER>",
+                    "Usage: [--algorithm bcrypt|pbkdf2-sha256|argon2id] [--cost COST] [--memory KIB]",
+                    "       [--parallelism LANES] [--journal MAX_BYTES] [OPTION] [FILE] <USER>",
                     "",
                     "Examples:",
                     "  list credentials.xml",
                     "  add credentials.xml admin",
                     "  reset credentials.xml admin",
-                    "  remove credentials.xml admin"
+                    "  remove credentials.xml admin",
+                    "  index credentials.xml",
+                    "  compact credentials.xml",
+                    "  --cost 12 add credentials.xml admin",
+                    "  --algorithm argon2id --memory 65536 reset credentials.xml admin",
+                    "  --journal 1048576 add credentials.xml admin"
             };
         }
     }
@@ -198,8 +288,9 @@ public class CredentialsCLI {
             String userName = args[2];
             String rawPassword = getSecureInputAsString();
             CredentialsStore credStore = getCredentialsStore();
-            credStore.addUser(userName, rawPassword);
-            credStore.save(credentialsFilePath);
+            UserCredentials userCreds = credStore.addUser(userName, rawPassword);
+            saveChange(credStore, new CredentialsJournal.Entry(CredentialsJournal.Operation.ADD, userCreds.getName(),
+                    userCreds.getPasswordHash()));
             this.outputs = new String[] {"Added user " + userName};
         }
 
@@ -222,8 +313,9 @@ public class CredentialsCLI {
             String userName = args[2];
             String rawPassword = getSecureInputAsString();
             CredentialsStore credStore = getCredentialsStore();
-            credStore.resetPassword(userName, rawPassword);
-            credStore.save(credentialsFilePath);
+            UserCredentials userCreds = credStore.resetPassword(userName, rawPassword);
+            saveChange(credStore, userCreds == null ? null : new CredentialsJournal.Entry(
+                    CredentialsJournal.Operation.RESET, userCreds.getName(), userCreds.getPasswordHash()));
             this.outputs = new String[] {"Password reset for user " + userName};
         }
 
@@ -247,8 +339,9 @@ public class CredentialsCLI {
         void execute() throws Exception {
             String userName = args[2];
             CredentialsStore credStore = getCredentialsStore();
-            credStore.removeUser(userName);
-            credStore.save(credentialsFilePath);
+            boolean removed = credStore.removeUser(userName);
+            saveChange(credStore, removed ? new CredentialsJournal.Entry(CredentialsJournal.Operation.REMOVE, userName,
+                    null) : null);
             this.outputs = new String[] {"Removed user " + userName};
         }
 
@@ -258,4 +351,48 @@ public class CredentialsCLI {
         }
     }
 
+    static class CompileIndexAction extends CredentialsAction {
+
+        CompileIndexAction(String credentialsFile) {
+            super(credentialsFile);
+        }
+
+        void execute() throws Exception {
+            final File credentialsFile = new File(credentialsFilePath);
+            // Taken before reading, with the content hash, so that the index is usable whether or not the
+            // provider compares the content of the file
+            final CredentialsFileFingerprint fingerprint = CredentialsFileFingerprint.of(credentialsFile, true);
+            final CredentialsStore credStore = getCredentialsStore();
+            final File indexFile = CredentialsIndex.getIndexFile(credentialsFile);
+            CredentialsIndex.write(credStore.getSnapshot().getUsers(), fingerprint, indexFile);
+            this.outputs = new String[] {"Compiled index " + indexFile + " of " + credStore.getSnapshot().size() + " users"};
+        }
+
+        void validate() throws Exception {
+            assertCredentialsFileExists();
+        }
+    }
+
+
+    static class CompactJournalAction extends CredentialsAction {
+
+        CompactJournalAction(String credentialsFile) {
+            super(credentialsFile);
+        }
+
+        void execute() throws Exception {
+            final File journalFile = CredentialsJournal.getJournalFile(new File(credentialsFilePath));
+            final CredentialsStore credStore = getCredentialsStore();
+            if (credStore.getJournal() == null) {
+                this.outputs = new String[] {"No journal " + journalFile};
+                return;
+            }
+            credStore.save();
+            this.outputs = new String[] {"Compacted journal " + journalFile + " into " + credentialsFilePath};
+        }
+
+        void validate() throws Exception {
+            assertCredentialsFileExists();
+        }
+    }
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Differences between two {@link CredentialsSnapshot}s as seen by username lookups: the users that were added,
+ * removed or had their password hash changed, and the number of users left unchanged.  Users are compared by
+ * their normalized name, so a user whose name only changed in case counts as changed.
+ *
+ * <p>The users of a snapshot served from a {@link CredentialsIndex} cannot be listed, so a delta with such a
+ * snapshot only covers the users of the other snapshot: those added or removed relative to the indexed one cannot
+ * all be told.</p>
+ */
+final class CredentialsDelta {
+
+    private final List<String> addedUsers;
+    private final List<String> removedUsers;
+    private final List<String> changedUsers;
+    private final int unchangedUserCount;
+
+    private CredentialsDelta(List<String> addedUsers, List<String> removedUsers, List<String> changedUsers,
+                             int unchangedUserCount) {
+        this.addedUsers = Collections.unmodifiableList(addedUsers);
+        this.removedUsers = Collections.unmodifiableList(removedUsers);
+        this.changedUsers = Collections.unmodifiableList(changedUsers);
+        this.unchangedUserCount = unchangedUserCount;
+    }
+
+    static CredentialsDelta between(CredentialsSnapshot previous, CredentialsSnapshot current) {
+        final List<String> addedUsers = new ArrayList<>();
+        final List<String> removedUsers = new ArrayList<>();
+        final List<String> changedUsers = new ArrayList<>();
+        int unchangedUserCount = 0;
+        for (UserCredentials userCreds : current.getReachableUsers()) {
+            final String name = userCreds.getName();
+            final UserCredentials previousUserCreds = previous.findUser(name);
+            if (previousUserCreds == null) {
+                addedUsers.add(name);
+            } else if (isUnchanged(previousUserCreds, userCreds)) {
+                unchangedUserCount++;
+            } else {
+                changedUsers.add(name);
+            }
+        }
+        for (UserCredentials previousUserCreds : previous.getReachableUsers()) {
+            final String name = previousUserCreds.getName();
+            final UserCredentials userCreds = current.findUser(name);
+            if (userCreds == null) {
+                removedUsers.add(name);
+            } else if (current.getIndex() != null) {
+                // Not seen by the first loop, as the users of an index cannot be listed
+                if (isUnchanged(previousUserCreds, userCreds)) {
+                    unchangedUserCount++;
+                } else {
+                    changedUsers.add(name);
+                }
+            }
+        }
+        return new CredentialsDelta(addedUsers, removedUsers, changedUsers, unchangedUserCount);
+    }
+
+    /**
+     * Returns the differences made by {@link CredentialsSnapshot#withChangedUsers(Map)} to a snapshot.
+     */
+    static CredentialsDelta of(CredentialsSnapshot previous, Map<String, UserCredentials> changedUsers) {
+        final List<String> addedUsers = new ArrayList<>();
+        final List<String> removedUsers = new ArrayList<>();
+        final List<String> changedUserNames = new ArrayList<>();
+        for (Map.Entry<String, UserCredentials> changedUser : changedUsers.entrySet()) {
+            final UserCredentials previousUserCreds = previous.findUser(changedUser.getKey());
+            final UserCredentials userCreds = changedUser.getValue();
+            if (userCreds == null) {
+                if (previousUserCreds != null) {
+                    removedUsers.add(previousUserCreds.getName());
+                }
+            } else if (previousUserCreds == null) {
+                addedUsers.add(userCreds.getName());
+            } else if (!isUnchanged(previousUserCreds, userCreds)) {
+                changedUserNames.add(userCreds.getName());
+            }
+        }
+        return new CredentialsDelta(addedUsers, removedUsers, changedUserNames,
+                previous.size() - removedUsers.size() - changedUserNames.size());
+    }
+
+    static boolean isUnchanged(UserCredentials previousUserCreds, UserCredentials userCreds) {
+        return previousUserCreds == userCreds
+                || (previousUserCreds.getName().equals(userCreds.getName())
+                    && previousUserCreds.getPasswordHash() != null
+                    && previousUserCreds.getPasswordHash().equals(userCreds.getPasswordHash()));
+    }
+
+    static CredentialsDelta added(String userName) {
+        return new CredentialsDelta(List.of(userName), List.of(), List.of(), 0);
+    }
+
+    static CredentialsDelta removed(String userName) {
+        return new CredentialsDelta(List.of(), List.of(userName), List.of(), 0);
+    }
+
+    static CredentialsDelta changed(String userName) {
+        return new CredentialsDelta(List.of(), List.of(), List.of(userName), 0);
+    }
+
+    List<String> getAddedUsers() {
+        return addedUsers;
+    }
+
+    List<String> getRemovedUsers() {
+        return removedUsers;
+    }
+
+    /**
+     * Returns the users whose password hash changed.
+     */
+    List<String> getChangedUsers() {
+        return changedUsers;
+    }
+
+    int getUnchangedUserCount() {
+        return unchangedUserCount;
+    }
+
+    boolean isEmpty() {
+        return addedUsers.isEmpty() && removedUsers.isEmpty() && changedUsers.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d added, %d removed, %d changed, %d unchanged",
+                addedUsers.size(), removedUsers.size(), changedUsers.size(), unchangedUserCount);
+    }
+}
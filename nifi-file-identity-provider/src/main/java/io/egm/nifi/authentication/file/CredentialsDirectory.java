@@ -0,0 +1,310 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+
+import jakarta.xml.bind.UnmarshalException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Credentials split across the {@code *.xml} files of a directory, each a credentials file of its own, called a
+ * shard.  The users of all shards are merged, in the order of the shard file names, into the users of one
+ * {@link CredentialsSnapshot}, and a username may only appear in one shard, whatever its case.
+ *
+ * <p>A load only parses the shards that were added or modified since the previous load, judging by the size,
+ * modification time and file key of their {@link CredentialsFileFingerprint}, in parallel; the users of the other
+ * shards are kept as they are, so that their entries, and anything associated with them, survive the load.  A save
+ * likewise only writes the shards whose users were changed.</p>
+ *
+ * <p>Loads and saves must be serialized by the caller.</p>
+ */
+final class CredentialsDirectory {
+
+    static final String SHARD_SUFFIX = ".xml";
+
+    /**
+     * Parses the users of one shard file, in file order.
+     */
+    @FunctionalInterface
+    interface ShardParser {
+        List<UserCredentials> parse(File shardFile) throws Exception;
+    }
+
+    private static final class Shard {
+        private final List<UserCredentials> users;
+        private final CredentialsFileFingerprint fingerprint;
+
+        private Shard(List<UserCredentials> users, CredentialsFileFingerprint fingerprint) {
+            this.users = users;
+            this.fingerprint = fingerprint;
+        }
+
+        private boolean isModified(CredentialsFileFingerprint currentFingerprint) {
+            return currentFingerprint == null || fingerprint == null || !currentFingerprint.hasSameAttributes(fingerprint);
+        }
+    }
+
+    private static final AtomicInteger loaderThreadCount = new AtomicInteger();
+
+    private final File directory;
+    private volatile Map<File, Shard> shards = Collections.emptyMap();
+    private volatile int lastLoadedShardCount;
+
+    CredentialsDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the shard files of the directory, sorted by name.
+     */
+    List<File> listShardFiles() throws FileNotFoundException {
+        final File[] shardFiles = directory.listFiles(file -> file.isFile() && file.getName().endsWith(SHARD_SUFFIX));
+        if (shardFiles == null) {
+            throw new FileNotFoundException("The credentials directory was not found at: " + directory.getAbsolutePath());
+        }
+        Arrays.sort(shardFiles);
+        return Arrays.asList(shardFiles);
+    }
+
+    /**
+     * Returns whether a shard was added, removed or modified since the previous load or save.
+     */
+    boolean isModified() throws IOException {
+        final List<File> shardFiles;
+        try {
+            shardFiles = listShardFiles();
+        } catch (FileNotFoundException e) {
+            return !shards.isEmpty();
+        }
+        final Map<File, Shard> currentShards = shards;
+        if (shardFiles.size() != currentShards.size()) {
+            return true;
+        }
+        for (File shardFile : shardFiles) {
+            final Shard shard = currentShards.get(shardFile);
+            if (shard == null || shard.isModified(CredentialsFileFingerprint.of(shardFile, false))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the latest modification time of the shards as of the previous load or save, or 0 if none was loaded.
+     */
+    long getLastModified() {
+        long lastModified = 0L;
+        for (Shard shard : shards.values()) {
+            if (shard.fingerprint != null) {
+                lastModified = Math.max(lastModified, shard.fingerprint.getLastModified());
+            }
+        }
+        return lastModified;
+    }
+
+    /**
+     * Returns the latest modification time of the shards currently in the directory, or 0 if there is none.
+     */
+    long getCurrentLastModified() throws IOException {
+        long lastModified = 0L;
+        try {
+            for (File shardFile : listShardFiles()) {
+                final CredentialsFileFingerprint fingerprint = CredentialsFileFingerprint.of(shardFile, false);
+                if (fingerprint != null) {
+                    lastModified = Math.max(lastModified, fingerprint.getLastModified());
+                }
+            }
+        } catch (FileNotFoundException e) {
+            return 0L;
+        }
+        return lastModified;
+    }
+
+    int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Returns the number of shards parsed by the previous load.
+     */
+    int getLastLoadedShardCount() {
+        return lastLoadedShardCount;
+    }
+
+    /**
+     * Parses the added and modified shards, on up to as many threads as there are processors, and returns the users
+     * of all shards.  Nothing is changed if a shard fails to parse or a username appears in several shards.
+     */
+    List<UserCredentials> load(ShardParser parser) throws Exception {
+        final Map<File, Shard> previousShards = shards;
+        final Map<File, CredentialsFileFingerprint> modifiedShardFiles = new LinkedHashMap<>();
+        final Map<File, Shard> newShards = new LinkedHashMap<>();
+        for (File shardFile : listShardFiles()) {
+            final CredentialsFileFingerprint fingerprint = CredentialsFileFingerprint.of(shardFile, false);
+            if (fingerprint == null) {
+                // Removed since it was listed
+                continue;
+            }
+            final Shard shard = previousShards.get(shardFile);
+            if (shard != null && !shard.isModified(fingerprint)) {
+                newShards.put(shardFile, shard);
+            } else {
+                modifiedShardFiles.put(shardFile, fingerprint);
+                newShards.put(shardFile, null);
+            }
+        }
+
+        final Map<File, List<UserCredentials>> parsedShards = parse(parser, new ArrayList<>(modifiedShardFiles.keySet()));
+        for (Map.Entry<File, CredentialsFileFingerprint> modifiedShardFile : modifiedShardFiles.entrySet()) {
+            newShards.put(modifiedShardFile.getKey(),
+                    new Shard(parsedShards.get(modifiedShardFile.getKey()), modifiedShardFile.getValue()));
+        }
+
+        final List<UserCredentials> users = merge(newShards);
+        shards = Collections.unmodifiableMap(newShards);
+        lastLoadedShardCount = modifiedShardFiles.size();
+        return users;
+    }
+
+    private static Map<File, List<UserCredentials>> parse(ShardParser parser, List<File> shardFiles) throws Exception {
+        final Map<File, List<UserCredentials>> parsedShards = new HashMap<>();
+        if (shardFiles.size() <= 1) {
+            for (File shardFile : shardFiles) {
+                parsedShards.put(shardFile, parser.parse(shardFile));
+            }
+            return parsedShards;
+        }
+        final int threadCount = Math.min(shardFiles.size(), Runtime.getRuntime().availableProcessors());
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount, runnable -> {
+            final Thread thread = new Thread(runnable, "Credentials Shard Loader-" + loaderThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final Map<File, Future<List<UserCredentials>>> futures = new LinkedHashMap<>();
+            for (File shardFile : shardFiles) {
+                futures.put(shardFile, executor.submit(() -> parser.parse(shardFile)));
+            }
+            for (Map.Entry<File, Future<List<UserCredentials>>> future : futures.entrySet()) {
+                try {
+                    parsedShards.put(future.getKey(), future.getValue().get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+            return parsedShards;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<UserCredentials> merge(Map<File, Shard> shards) throws UnmarshalException {
+        int userCount = 0;
+        for (Shard shard : shards.values()) {
+            userCount += shard.users.size();
+        }
+        final List<UserCredentials> users = new ArrayList<>(userCount);
+        final Map<String, File> shardFilesByName = new HashMap<>(Math.max(16, userCount * 4 / 3 + 1));
+        for (Map.Entry<File, Shard> shard : shards.entrySet()) {
+            for (UserCredentials userCreds : shard.getValue().users) {
+                final String name = userCreds.getName();
+                if (name != null) {
+                    final File otherShardFile = shardFilesByName.putIfAbsent(CredentialsStore.normalizeUserName(name),
+                            shard.getKey());
+                    if (otherShardFile != null && !otherShardFile.equals(shard.getKey())) {
+                        throw new UnmarshalException("User '" + name + "' of credentials file '" + shard.getKey()
+                                + "' is already defined in credentials file '" + otherShardFile + "'");
+                    }
+                }
+                users.add(userCreds);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Writes the shards whose users were changed, so that they hold the users of a snapshot.  Users are matched with
+     * their shard by their exact name, which is unique across shards; users missing from every shard are not
+     * written.
+     *
+     * @return the number of shards written
+     */
+    int save(CredentialsSnapshot snapshot, ShardWriter writer) throws Exception {
+        final List<UserCredentials> snapshotUsers = snapshot.getUsers();
+        final Map<String, UserCredentials> snapshotUsersByName = new HashMap<>(Math.max(16, snapshotUsers.size() * 4 / 3 + 1));
+        for (UserCredentials userCreds : snapshotUsers) {
+            if (userCreds.getName() != null) {
+                snapshotUsersByName.put(userCreds.getName(), userCreds);
+            }
+        }
+        final Map<File, Shard> newShards = new LinkedHashMap<>(shards);
+        int savedShardCount = 0;
+        for (Map.Entry<File, Shard> shard : shards.entrySet()) {
+            final List<UserCredentials> users = new ArrayList<>(shard.getValue().users.size());
+            boolean changed = false;
+            for (UserCredentials userCreds : shard.getValue().users) {
+                final UserCredentials snapshotUserCreds = userCreds.getName() == null ? userCreds
+                        : snapshotUsersByName.get(userCreds.getName());
+                if (snapshotUserCreds == null) {
+                    changed = true;
+                } else {
+                    users.add(snapshotUserCreds);
+                    changed |= snapshotUserCreds != userCreds;
+                }
+            }
+            if (changed) {
+                writer.write(users, shard.getKey());
+                newShards.put(shard.getKey(), new Shard(users, CredentialsFileFingerprint.of(shard.getKey(), false)));
+                savedShardCount++;
+            }
+        }
+        shards = Collections.unmodifiableMap(newShards);
+        return savedShardCount;
+    }
+
+    /**
+     * Writes the users of one shard file.
+     */
+    @FunctionalInterface
+    interface ShardWriter {
+        void write(List<UserCredentials> users, File shardFile) throws Exception;
+    }
+}
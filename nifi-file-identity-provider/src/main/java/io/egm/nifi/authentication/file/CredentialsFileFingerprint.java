@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+
+/**
+ * What identifies a version of a credentials file without parsing it: its size, modification time and file key
+ * (the device and inode on Unix), and optionally a CRC-32C of its content.
+ *
+ * <p>The attributes are compared for equality, so that a file replaced by one with an older modification time, as
+ * rsync or a swap of symbolic links may do, is seen as changed.  They cannot tell apart two writes of the same size
+ * within the granularity of modification times, though, which is where the content hash comes in: a fingerprint
+ * taken less than {@link #RACY_WINDOW_MILLIS} after the file was last modified is called racy, and the content of a
+ * file whose attributes match a racy fingerprint is compared as well.  The content hash also tells that a touched
+ * file did not change.</p>
+ *
+ * <p>A fingerprint can be written to bytes, as the {@link CredentialsIndex} does to tell which version of the file it
+ * was compiled from; the file key is then kept in its string form.</p>
+ */
+final class CredentialsFileFingerprint {
+
+    /**
+     * How long after a modification another one may leave the modification time unchanged: the 2 seconds of FAT,
+     * the coarsest granularity of common file systems.
+     */
+    static final long RACY_WINDOW_MILLIS = 2000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long size;
+    private final FileTime lastModifiedTime;
+    private final Object fileKey;
+    private final long takenMillis;
+    private final boolean contentHashed;
+    private final long contentHash;
+
+    private CredentialsFileFingerprint(BasicFileAttributes attributes, long takenMillis, boolean contentHashed,
+                                       long contentHash) {
+        this(attributes.size(), attributes.lastModifiedTime(), attributes.fileKey(), takenMillis, contentHashed,
+                contentHash);
+    }
+
+    private CredentialsFileFingerprint(long size, FileTime lastModifiedTime, Object fileKey, long takenMillis,
+                                       boolean contentHashed, long contentHash) {
+        this.size = size;
+        this.lastModifiedTime = lastModifiedTime;
+        this.fileKey = fileKey;
+        this.takenMillis = takenMillis;
+        this.contentHashed = contentHashed;
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Takes the fingerprint of a file, following symbolic links.
+     *
+     * @return the fingerprint, or null if the file does not exist
+     */
+    static CredentialsFileFingerprint of(File file, boolean hashContent) throws IOException {
+        final long takenMillis = System.currentTimeMillis();
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!hashContent) {
+            return new CredentialsFileFingerprint(attributes, takenMillis, false, 0L);
+        }
+        return new CredentialsFileFingerprint(attributes, takenMillis, true, hashContent(file));
+    }
+
+    private static long hashContent(File file) throws IOException {
+        final CRC32C crc = new CRC32C();
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Returns the fingerprint as bytes, read back by {@link #fromBytes(byte[])}.
+     */
+    byte[] toBytes() {
+        final byte[] fileKeyBytes = fileKey == null ? new byte[0] : fileKey.toString().getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer buffer = ByteBuffer.allocate(4 * Long.BYTES + 1 + Integer.BYTES + fileKeyBytes.length);
+        buffer.putLong(size).putLong(lastModifiedTime.to(TimeUnit.NANOSECONDS)).putLong(takenMillis)
+                .put((byte) (contentHashed ? 1 : 0)).putLong(contentHash)
+                .putInt(fileKey == null ? -1 : fileKeyBytes.length).put(fileKeyBytes);
+        return buffer.array();
+    }
+
+    /**
+     * Reads a fingerprint written by {@link #toBytes()}.
+     *
+     * @throws IOException if the bytes are not a fingerprint
+     */
+    static CredentialsFileFingerprint fromBytes(byte[] bytes) throws IOException {
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            final long size = buffer.getLong();
+            final FileTime lastModifiedTime = FileTime.from(buffer.getLong(), TimeUnit.NANOSECONDS);
+            final long takenMillis = buffer.getLong();
+            final boolean contentHashed = buffer.get() != 0;
+            final long contentHash = buffer.getLong();
+            final int fileKeyLength = buffer.getInt();
+            String fileKey = null;
+            if (fileKeyLength > buffer.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            if (fileKeyLength >= 0) {
+                final byte[] fileKeyBytes = new byte[fileKeyLength];
+                buffer.get(fileKeyBytes);
+                fileKey = new String(fileKeyBytes, StandardCharsets.UTF_8);
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("Trailing bytes after credentials file fingerprint");
+            }
+            return new CredentialsFileFingerprint(size, lastModifiedTime, fileKey, takenMillis, contentHashed,
+                    contentHash);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated credentials file fingerprint", e);
+        }
+    }
+
+    /**
+     * Returns whether the size, modification time and file key of both fingerprints are equal.
+     */
+    boolean hasSameAttributes(CredentialsFileFingerprint other) {
+        return size == other.size && lastModifiedTime.equals(other.lastModifiedTime) && hasSameFileKey(other);
+    }
+
+    private boolean hasSameFileKey(CredentialsFileFingerprint other) {
+        if (Objects.equals(fileKey, other.fileKey)) {
+            return true;
+        }
+        // One of them was read from bytes
+        return fileKey != null && other.fileKey != null && fileKey.toString().equals(other.fileKey.toString());
+    }
+
+    /**
+     * Returns whether both fingerprints have a content hash, and the same one.
+     */
+    boolean hasSameContent(CredentialsFileFingerprint other) {
+        return contentHashed && other.contentHashed && size == other.size && contentHash == other.contentHash;
+    }
+
+    /**
+     * Returns whether the file may have been modified again after this fingerprint was taken, without a change of
+     * its modification time.
+     */
+    boolean isRacy() {
+        return takenMillis - lastModifiedTime.toMillis() < RACY_WINDOW_MILLIS;
+    }
+
+    boolean isContentHashed() {
+        return contentHashed;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the modification time, in milliseconds since the epoch.
+     */
+    long getLastModified() {
+        return lastModifiedTime.toMillis();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size + " lastModified=" + lastModifiedTime + " fileKey=" + fileKey
+                + (contentHashed ? String.format(" crc32c=%08x", contentHash) : "");
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Background thread reloading a {@link CredentialsStore} when its credentials file changes, so that login
+ * requests do not have to check the file themselves.
+ *
+ * <p>The directory containing the credentials file is watched with a {@link WatchService}.  Any event in that
+ * directory triggers {@link CredentialsStore#reloadIfModified()}, which only parses the file if it changed;
+ * watching the directory rather than the file name also covers editors and deployment tools that replace the
+ * file through a rename or a symbolic link swap.  As some file systems (e.g. network mounts) do not deliver
+ * events, the file is also checked whenever no event has arrived for the polling interval.</p>
+ *
+ * <p>The store may also be backed by a credentials directory, which is then watched itself.</p>
+ */
+class CredentialsFileWatcher implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(CredentialsFileWatcher.class);
+
+    private static final long SHUTDOWN_TIMEOUT_MILLISECONDS = 5000;
+
+    private final CredentialsStore credentialsStore;
+    private final File credentialsFile;
+    private final long pollIntervalMilliseconds;
+    private volatile boolean running;
+    private volatile WatchService watchService;
+    private Thread watcherThread;
+
+    CredentialsFileWatcher(CredentialsStore credentialsStore, File credentialsFile, long pollIntervalMilliseconds) {
+        this.credentialsStore = credentialsStore;
+        this.credentialsFile = credentialsFile.getAbsoluteFile();
+        this.pollIntervalMilliseconds = pollIntervalMilliseconds;
+    }
+
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        watchService = createWatchService();
+        running = true;
+        watcherThread = new Thread(this::run, "Credentials File Watcher [" + credentialsFile.getName() + "]");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    private WatchService createWatchService() {
+        final Path directory = credentialsFile.isDirectory() ? credentialsFile.toPath()
+                : credentialsFile.toPath().getParent();
+        try {
+            final WatchService service = FileSystems.getDefault().newWatchService();
+            try {
+                directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            } catch (IOException | RuntimeException e) {
+                service.close();
+                throw e;
+            }
+            return service;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to watch directory '{}', polling credentials file '{}' every {} ms instead",
+                    directory, credentialsFile, pollIntervalMilliseconds, e);
+            return null;
+        }
+    }
+
+    private void run() {
+        while (running) {
+            reloadIfModified();
+            try {
+                // A reload put off by the store is attempted as soon as it is due, even without further events
+                final long deferredReloadDelay = credentialsStore.getDeferredReloadDelayMillis();
+                final long waitMilliseconds = deferredReloadDelay > 0
+                        ? Math.min(deferredReloadDelay, pollIntervalMilliseconds) : pollIntervalMilliseconds;
+                if (watchService == null) {
+                    TimeUnit.MILLISECONDS.sleep(waitMilliseconds);
+                } else {
+                    final WatchKey watchKey = watchService.poll(waitMilliseconds, TimeUnit.MILLISECONDS);
+                    if (watchKey != null) {
+                        watchKey.pollEvents();
+                        if (!watchKey.reset()) {
+                            logger.warn("Directory of credentials file '{}' is no longer watched, polling instead",
+                                    credentialsFile);
+                            watchService.close();
+                            watchService = null;
+                        }
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            } catch (IOException e) {
+                logger.warn("Failed closing watch service for credentials file '{}'", credentialsFile, e);
+                watchService = null;
+            }
+        }
+    }
+
+    private void reloadIfModified() {
+        try {
+            if (credentialsStore.reloadIfModified()) {
+                logger.debug("Reloaded credentials file '{}'", credentialsFile);
+            }
+        } catch (Exception e) {
+            // The previous credentials remain in use until the file can be loaded again
+            logger.error("Failed reloading credentials file '{}'", credentialsFile, e);
+        }
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        watcherThread.interrupt();
+        try {
+            watcherThread.join(SHUTDOWN_TIMEOUT_MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.warn("Failed closing watch service for credentials file '{}'", credentialsFile, e);
+            }
+        }
+        watcherThread = null;
+        watchService = null;
+    }
+}
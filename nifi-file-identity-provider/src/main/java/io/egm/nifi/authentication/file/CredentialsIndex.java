@@ -0,0 +1,371 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.ObjectFactory;
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Compiled form of a credentials file, read through a memory-mapped file so that it is usable at once, whatever the
+ * number of users, and only the pages of the users actually looked up are read from disk.
+ *
+ * <p>The index is a sidecar of the credentials file, named after it with an {@code .idx} suffix, and records the
+ * {@link CredentialsFileFingerprint} of the file it was compiled from, content hash included when there is one, so
+ * that a stale index is detected and compiled again.  It is written to a temporary file first and moved in place,
+ * so that readers of a previous index keep their mapping of the old file.</p>
+ *
+ * <p>The file holds, after a fixed header:</p>
+ * <ul>
+ *   <li>the fingerprint of the credentials file;</li>
+ *   <li>a Bloom filter of the normalized usernames, copied to the heap when the index is opened, which rejects
+ *   most unknown usernames without touching the mapped pages;</li>
+ *   <li>an open-addressing hash table of slots, each holding 32 bits of the username hash and a record number;</li>
+ *   <li>fixed-width records pointing into a string area with the usernames and password hashes in UTF-8.</li>
+ * </ul>
+ *
+ * <p>As with {@link CredentialsSnapshot}, the first of several users whose names only differ in case is the one
+ * found.  All multi-byte values are big-endian.</p>
+ */
+final class CredentialsIndex {
+
+    static final String FILE_SUFFIX = ".idx";
+
+    private static final long MAGIC = 0x4547_4D43_5249_4458L; // "EGMCRIDX"
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 64;
+    private static final int SLOT_LENGTH = 8;
+    private static final int RECORD_LENGTH = 16;
+    private static final int BLOOM_BITS_PER_USER = 10;
+    private static final int BLOOM_HASH_COUNT = 7;
+    private static final int MAX_SLOT_COUNT = 1 << 30;
+
+    private static final ObjectFactory factory = new ObjectFactory();
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final long sourceLastModified;
+    private final CredentialsFileFingerprint sourceFingerprint;
+    private final int userCount;
+    private final int malformedUserCount;
+    private final long[] bloomWords;
+    private final int bloomHashCount;
+    private final int slotMask;
+    private final int tableOffset;
+    private final int recordsOffset;
+    private final int stringsOffset;
+    private final LongAdder bloomRejectCount = new LongAdder();
+
+    private CredentialsIndex(File file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_LENGTH || buffer.getLong(0) != MAGIC) {
+            throw new IOException("Not a credentials index: " + file);
+        }
+        if (buffer.getInt(8) != VERSION) {
+            throw new IOException("Unsupported credentials index version " + buffer.getInt(8) + ": " + file);
+        }
+        userCount = buffer.getInt(12);
+        sourceLastModified = buffer.getLong(16);
+        malformedUserCount = buffer.getInt(32);
+        final int bloomWordCount = buffer.getInt(36);
+        bloomHashCount = buffer.getInt(40);
+        final int slotCount = buffer.getInt(44);
+        final int stringsLength = buffer.getInt(48);
+        final int fingerprintLength = buffer.getInt(52);
+        if (userCount < 0 || bloomWordCount < 1 || bloomHashCount < 1 || slotCount < 2
+                || Integer.bitCount(slotCount) != 1 || stringsLength < 0 || fingerprintLength < 0
+                || fingerprintLength > buffer.capacity() - HEADER_LENGTH) {
+            throw new IOException("Corrupt credentials index header: " + file);
+        }
+        final byte[] fingerprint = new byte[fingerprintLength];
+        buffer.get(HEADER_LENGTH, fingerprint);
+        sourceFingerprint = CredentialsFileFingerprint.fromBytes(fingerprint);
+        final long bloomStart = HEADER_LENGTH + (long) fingerprintLength;
+        final long tableStart = bloomStart + (long) bloomWordCount * Long.BYTES;
+        final long recordsStart = tableStart + (long) slotCount * SLOT_LENGTH;
+        final long stringsStart = recordsStart + (long) userCount * RECORD_LENGTH;
+        if (stringsStart + stringsLength != buffer.capacity()) {
+            throw new IOException("Truncated credentials index: " + file);
+        }
+        bloomWords = new long[bloomWordCount];
+        for (int i = 0; i < bloomWordCount; i++) {
+            bloomWords[i] = buffer.getLong((int) bloomStart + i * Long.BYTES);
+        }
+        slotMask = slotCount - 1;
+        tableOffset = (int) tableStart;
+        recordsOffset = (int) recordsStart;
+        stringsOffset = (int) stringsStart;
+    }
+
+    /**
+     * Returns the index file of a credentials file.
+     */
+    static File getIndexFile(File credentialsFile) {
+        return new File(credentialsFile.getPath() + FILE_SUFFIX);
+    }
+
+    /**
+     * Maps an index file into memory and checks its structure.  The file may be deleted or replaced afterwards;
+     * the mapping keeps the contents it was opened with.
+     */
+    static CredentialsIndex open(File indexFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Credentials index too large to map: " + indexFile);
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new CredentialsIndex(indexFile, buffer.order(ByteOrder.BIG_ENDIAN));
+        }
+    }
+
+    /**
+     * Compiles the users of a credentials file into its index file, replacing any previous index.
+     *
+     * @param users the users of the credentials file, in file order
+     * @param sourceFingerprint the fingerprint of the credentials file, taken before the users were read from it
+     */
+    static void write(List<UserCredentials> users, CredentialsFileFingerprint sourceFingerprint, File indexFile)
+            throws IOException {
+        final int userCount = users.size();
+        final long slotCountTarget = Math.max(2L, (long) userCount * 2);
+        if (slotCountTarget > MAX_SLOT_COUNT) {
+            throw new IOException("Too many users for a credentials index: " + userCount);
+        }
+        final int slotCount = Integer.highestOneBit((int) slotCountTarget - 1) << 1;
+        final int bloomWordCount = Math.max(1, (int) (((long) userCount * BLOOM_BITS_PER_USER + 63) / 64));
+        final long[] bloomWords = new long[bloomWordCount];
+        final ByteBuffer table = ByteBuffer.allocate(slotCount * SLOT_LENGTH);
+        final ByteBuffer records = ByteBuffer.allocate(userCount * RECORD_LENGTH);
+        final Set<String> indexedNames = new HashSet<>();
+        final List<byte[]> strings = new ArrayList<>(userCount * 2);
+        long stringsLength = 0;
+        int malformedUserCount = 0;
+
+        for (int record = 0; record < userCount; record++) {
+            final UserCredentials userCreds = users.get(record);
+            final byte[] name = toBytes(userCreds.getName());
+            final byte[] passwordHash = toBytes(userCreds.getPasswordHash());
+            records.putInt((int) stringsLength).putInt(name.length);
+            stringsLength += name.length;
+            records.putInt((int) stringsLength).putInt(passwordHash.length);
+            stringsLength += passwordHash.length;
+            if (stringsLength > Integer.MAX_VALUE) {
+                throw new IOException("Too much credentials data for a credentials index");
+            }
+            strings.add(name);
+            strings.add(passwordHash);
+            if (PasswordEncoders.prepare(userCreds.getPasswordHash()) == PasswordEncoders.MALFORMED_HASH) {
+                malformedUserCount++;
+            }
+
+            final String userName = userCreds.getName();
+            if (userName == null || !indexedNames.add(CredentialsStore.normalizeUserName(userName))) {
+                // Not reachable by lookups, shadowed by a case variant
+                continue;
+            }
+            final long hash = hash(CredentialsStore.normalizeUserName(userName));
+            addToBloomFilter(bloomWords, hash);
+            int slot = (int) hash & (slotCount - 1);
+            while (table.getInt(slot * SLOT_LENGTH + 4) != 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            table.putInt(slot * SLOT_LENGTH, fingerprint(hash));
+            table.putInt(slot * SLOT_LENGTH + 4, record + 1);
+        }
+
+        final byte[] fingerprint = sourceFingerprint.toBytes();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putLong(MAGIC).putInt(VERSION).putInt(userCount).putLong(sourceFingerprint.getLastModified())
+                .putLong(sourceFingerprint.getSize()).putInt(malformedUserCount).putInt(bloomWordCount)
+                .putInt(BLOOM_HASH_COUNT).putInt(slotCount).putInt((int) stringsLength).putInt(fingerprint.length);
+        final ByteBuffer bloom = ByteBuffer.allocate(bloomWordCount * Long.BYTES);
+        bloom.asLongBuffer().put(bloomWords);
+
+        final Path indexPath = indexFile.toPath().toAbsolutePath();
+        final Path tempPath = Files.createTempFile(indexPath.getParent(), indexFile.getName(), ".tmp");
+        try {
+            try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(tempPath))) {
+                output.write(header.array());
+                output.write(fingerprint);
+                output.write(bloom.array());
+                output.write(table.array());
+                output.write(records.array());
+                for (byte[] string : strings) {
+                    output.write(string);
+                }
+            }
+            try {
+                Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    private static byte[] toBytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a 64-bit hash of a normalized username: FNV-1a over its characters, then the MurmurHash3 finalizer,
+     * so that both halves are well mixed for the Bloom filter and the table.
+     */
+    static long hash(String normalizedUserName) {
+        long hash = 0xcbf2_9ce4_8422_2325L;
+        for (int i = 0; i < normalizedUserName.length(); i++) {
+            hash ^= normalizedUserName.charAt(i);
+            hash *= 0x100_0000_01b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51_afd7_ed55_8ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ce_b9fe_1a85_ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static int fingerprint(long hash) {
+        return (int) (hash >>> 32);
+    }
+
+    private static void addToBloomFilter(long[] bloomWords, long hash) {
+        final long bitCount = (long) bloomWords.length * 64;
+        final int hash1 = (int) hash;
+        final int hash2 = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_HASH_COUNT; i++) {
+            final long bit = Integer.toUnsignedLong(hash1 + i * hash2) % bitCount;
+            bloomWords[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private boolean mightContain(long hash) {
+        final long bitCount = (long) bloomWords.length * 64;
+        final int hash1 = (int) hash;
+        final int hash2 = (int) (hash >>> 32);
+        for (int i = 0; i < bloomHashCount; i++) {
+            final long bit = Integer.toUnsignedLong(hash1 + i * hash2) % bitCount;
+            if ((bloomWords[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the credentials of a user, matched case-insensitively, or null if there is none.  Each call returns a
+     * new {@link UserCredentials} read from the index.
+     */
+    UserCredentials findUser(String userName) {
+        if (userName == null) {
+            return null;
+        }
+        final String normalizedUserName = CredentialsStore.normalizeUserName(userName);
+        final long hash = hash(normalizedUserName);
+        if (!mightContain(hash)) {
+            bloomRejectCount.increment();
+            return null;
+        }
+        final int fingerprint = fingerprint(hash);
+        int slot = (int) hash & slotMask;
+        while (true) {
+            final int slotOffset = tableOffset + slot * SLOT_LENGTH;
+            final int record = buffer.getInt(slotOffset + 4);
+            if (record == 0) {
+                return null;
+            }
+            if (buffer.getInt(slotOffset) == fingerprint) {
+                final int recordOffset = recordsOffset + (record - 1) * RECORD_LENGTH;
+                final String name = readString(buffer.getInt(recordOffset), buffer.getInt(recordOffset + 4));
+                if (CredentialsStore.normalizeUserName(name).equals(normalizedUserName)) {
+                    final UserCredentials userCreds = factory.createUserCredentials();
+                    userCreds.setName(name);
+                    userCreds.setPasswordHash(readString(buffer.getInt(recordOffset + 8),
+                            buffer.getInt(recordOffset + 12)));
+                    return userCreds;
+                }
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    private String readString(int offset, int length) {
+        final byte[] bytes = new byte[length];
+        buffer.get(stringsOffset + offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns whether the index was compiled from the version of the credentials file of a fingerprint: the size,
+     * modification time and file key must match, and the content hash too if the fingerprint has one.
+     */
+    boolean isCompiledFrom(CredentialsFileFingerprint fingerprint) {
+        if (fingerprint == null || !fingerprint.hasSameAttributes(sourceFingerprint)) {
+            return false;
+        }
+        return !fingerprint.isContentHashed() || fingerprint.hasSameContent(sourceFingerprint);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getSourceLastModified() {
+        return sourceLastModified;
+    }
+
+    /**
+     * Returns the number of users in the index, including those shadowed by a case variant of their name.
+     */
+    int getUserCount() {
+        return userCount;
+    }
+
+    int getMalformedUserCount() {
+        return malformedUserCount;
+    }
+
+    /**
+     * Returns the number of lookups rejected by the Bloom filter alone.
+     */
+    long getBloomRejectCount() {
+        return bloomRejectCount.sum();
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+
+/**
+ * Append-only log of the changes made to a credentials file, kept next to it as {@code <file>.journal}, so that
+ * a change to one user is a line appended to the journal instead of a rewrite of the whole file, and a provider
+ * reading the file applies the new lines instead of parsing the file again.
+ *
+ * <p>The journal is a UTF-8 text file.  Its first line holds a generation, random for every new journal, and each
+ * following line a change:</p>
+ * <pre>
+ * # credentials journal 5f0c7a8e-...
+ * add&#9;jane&#9;$2a$12$...
+ * reset&#9;john&#9;$2a$12$...
+ * remove&#9;joe
+ * </pre>
+ *
+ * <p>Each change sets or removes one user, so replaying the journal on a file that already holds some of its
+ * changes gives the same users: the last change of a user wins.  The journal is compacted by saving the file with
+ * all its changes and deleting the journal, after which the next change starts a journal of a new generation.  A
+ * reader that finds another generation than the one it read before, or a shorter journal, loads the file again.</p>
+ *
+ * <p>Writers append and compact holding an exclusive lock on {@code <file>.journal.lock}, which is never replaced,
+ * while readers take no lock: a line is only read once complete, and a journal deleted by a compaction keeps its
+ * content for readers that opened it.</p>
+ */
+final class CredentialsJournal {
+
+    static final String FILE_SUFFIX = ".journal";
+    private static final String LOCK_FILE_SUFFIX = ".lock";
+    private static final String HEADER_PREFIX = "# credentials journal ";
+    private static final char SEPARATOR = '\t';
+    private static final int MAX_HEADER_LENGTH = 256;
+
+    enum Operation {
+        ADD("add"),
+        RESET("reset"),
+        REMOVE("remove");
+
+        private final String keyword;
+
+        Operation(String keyword) {
+            this.keyword = keyword;
+        }
+
+        static Operation of(String keyword) {
+            for (Operation operation : values()) {
+                if (operation.keyword.equals(keyword)) {
+                    return operation;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * One change: a user added or whose password was reset, with its new password hash, or a user removed.
+     */
+    static final class Entry {
+        private final Operation operation;
+        private final String userName;
+        private final String passwordHash;
+
+        Entry(Operation operation, String userName, String passwordHash) {
+            this.operation = operation;
+            this.userName = userName;
+            this.passwordHash = passwordHash;
+        }
+
+        Operation getOperation() {
+            return operation;
+        }
+
+        String getUserName() {
+            return userName;
+        }
+
+        /**
+         * Returns the new password hash, or null if the user was removed.
+         */
+        String getPasswordHash() {
+            return passwordHash;
+        }
+    }
+
+    /**
+     * The changes read from a journal, and where to read the next ones from.
+     */
+    static final class Replay {
+        private final String generation;
+        private final long position;
+        private final boolean restarted;
+        private final List<Entry> entries;
+
+        private Replay(String generation, long position, boolean restarted, List<Entry> entries) {
+            this.generation = generation;
+            this.position = position;
+            this.restarted = restarted;
+            this.entries = entries;
+        }
+
+        /**
+         * Returns the generation of the journal read, or null if there was none.
+         */
+        String getGeneration() {
+            return generation;
+        }
+
+        /**
+         * Returns the position following the last complete line read.
+         */
+        long getPosition() {
+            return position;
+        }
+
+        /**
+         * Returns whether the journal was read from its start, although a position in a journal of another
+         * generation, or beyond its end, was given.
+         */
+        boolean isRestarted() {
+            return restarted;
+        }
+
+        List<Entry> getEntries() {
+            return entries;
+        }
+    }
+
+    /**
+     * An exclusive lock on the journal of a file, for appending or compacting.
+     */
+    static final class Lock implements AutoCloseable {
+        private final FileChannel channel;
+        private final FileLock fileLock;
+
+        private Lock(FileChannel channel, FileLock fileLock) {
+            this.channel = channel;
+            this.fileLock = fileLock;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                fileLock.release();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private final File journalFile;
+    private final File lockFile;
+
+    CredentialsJournal(File journalFile) {
+        this.journalFile = journalFile;
+        this.lockFile = new File(journalFile.getPath() + LOCK_FILE_SUFFIX);
+    }
+
+    static File getJournalFile(File credentialsFile) {
+        return new File(credentialsFile.getPath() + FILE_SUFFIX);
+    }
+
+    File getFile() {
+        return journalFile;
+    }
+
+    /**
+     * Returns the length of the journal, or 0 if there is none.
+     */
+    long length() {
+        return journalFile.length();
+    }
+
+    /**
+     * Returns the modification time of the journal, or 0 if there is none.
+     */
+    long lastModified() {
+        return journalFile.lastModified();
+    }
+
+    /**
+     * Reads the complete lines following a position of a journal of a generation, or all of them if the journal
+     * is of another generation, or shorter.  A null generation reads all the lines.
+     *
+     * @throws IOException if the journal cannot be read, or a line is malformed
+     */
+    Replay read(String generation, long position) throws IOException {
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return new Replay(null, 0L, generation != null, Collections.emptyList());
+        }
+        // Read from one channel, so that a journal replaced meanwhile is read consistently
+        try (channel) {
+            final long length = channel.size();
+            final byte[] head = read(channel, 0L, (int) Math.min(length, MAX_HEADER_LENGTH));
+            final int headerEnd = indexOf(head, 0, head.length, '\n');
+            if (headerEnd < 0) {
+                if (length >= MAX_HEADER_LENGTH) {
+                    throw new IOException("Credentials journal '" + journalFile + "' does not start with a header");
+                }
+                // Being created
+                return new Replay(null, 0L, generation != null, Collections.emptyList());
+            }
+            final String header = new String(head, 0, headerEnd, StandardCharsets.UTF_8);
+            if (!header.startsWith(HEADER_PREFIX)) {
+                throw new IOException("Credentials journal '" + journalFile + "' does not start with a header");
+            }
+            final String journalGeneration = header.substring(HEADER_PREFIX.length()).trim();
+            final boolean resumed = journalGeneration.equals(generation) && position <= length;
+            final long start = resumed ? Math.max(position, headerEnd + 1) : headerEnd + 1;
+            final byte[] content = read(channel, start, (int) (length - start));
+            final List<Entry> entries = new ArrayList<>();
+            int lineStart = 0;
+            int lineEnd;
+            while ((lineEnd = indexOf(content, lineStart, content.length, '\n')) >= 0) {
+                final Entry entry = parse(new String(content, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8),
+                        start + lineStart);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+                lineStart = lineEnd + 1;
+            }
+            return new Replay(journalGeneration, start + lineStart, generation != null && !resumed, entries);
+        }
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return buffer.position() == length ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static int indexOf(byte[] content, int from, int to, char c) {
+        for (int i = from; i < to; i++) {
+            if (content[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Entry parse(String line, long position) throws IOException {
+        if (line.isEmpty() || line.startsWith("#")) {
+            // Also the header of a concurrent writer that found no journal either
+            return null;
+        }
+        final String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+        final Operation operation = Operation.of(fields[0]);
+        final int fieldCount = operation == Operation.REMOVE ? 2 : 3;
+        if (operation == null || fields.length != fieldCount || fields[1].isEmpty()
+                || (fieldCount == 3 && fields[2].isEmpty())) {
+            throw new IOException("Malformed entry at offset " + position + " of credentials journal '"
+                    + journalFile + "'");
+        }
+        return new Entry(operation, fields[1], fieldCount == 3 ? fields[2] : null);
+    }
+
+    /**
+     * Locks the journal, waiting for other writers.
+     */
+    Lock lock() throws IOException {
+        final FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            return new Lock(channel, channel.lock());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a change to the journal, starting a new journal if there is none; must be called holding the lock.
+     */
+    void append(Entry entry) throws IOException {
+        if (containsLineBreakOrSeparator(entry.userName) || containsLineBreakOrSeparator(entry.passwordHash)) {
+            throw new IllegalArgumentException("User '" + entry.userName + "' cannot be recorded in a credentials journal");
+        }
+        final StringBuilder line = new StringBuilder();
+        if (length() == 0L) {
+            line.append(HEADER_PREFIX).append(UUID.randomUUID()).append('\n');
+        }
+        line.append(entry.operation.keyword).append(SEPARATOR).append(entry.userName);
+        if (entry.operation != Operation.REMOVE) {
+            line.append(SEPARATOR).append(entry.passwordHash);
+        }
+        line.append('\n');
+        try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    private static boolean containsLineBreakOrSeparator(String value) {
+        return value != null && (value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0 || value.indexOf(SEPARATOR) >= 0);
+    }
+
+    /**
+     * Deletes the journal once its changes were saved to the credentials file; must be called holding the lock.
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(journalFile.toPath());
+    }
+}
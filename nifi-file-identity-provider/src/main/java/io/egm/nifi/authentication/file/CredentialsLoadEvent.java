@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight Recorder event for one {@link CredentialsStore#load()}: reading, parsing and publishing the credentials
+ * file.  Disabled by default.
+ */
+@Name(CredentialsLoadEvent.NAME)
+@Label("Credentials Load")
+@Description("Load of the credentials file of the file identity provider")
+@Category({"NiFi", "File Identity Provider"})
+@Enabled(false)
+@StackTrace(false)
+final class CredentialsLoadEvent extends Event {
+
+    static final String NAME = "io.egm.nifi.authentication.file.CredentialsLoad";
+
+    @Label("File")
+    String file;
+
+    @Label("File Size")
+    @DataAmount
+    long fileSize;
+
+    @Label("Streaming")
+    @Description("Whether the file was read with the streaming loader rather than JAXB")
+    boolean streaming;
+
+    @Label("Indexed")
+    @Description("Whether lookups are served from the compiled index of the file")
+    boolean indexed;
+
+    @Label("Packed")
+    @Description("Whether the users are held packed rather than as parsed entries")
+    boolean packed;
+
+    @Label("Succeeded")
+    boolean succeeded;
+
+    @Label("User Count")
+    int userCount;
+
+    @Label("Malformed User Count")
+    @Description("Number of users whose password hash is in no known format, or malformed")
+    int malformedUserCount;
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight Recorder event for one {@link CredentialsStore#reloadIfModified()} that found the credentials file
+ * modified, including the time spent waiting for another thread's reload.  Checks finding the file unchanged
+ * are not recorded.  Disabled by default.
+ */
+@Name(CredentialsReloadEvent.NAME)
+@Label("Credentials Reload")
+@Description("Reload of the modified credentials file of the file identity provider")
+@Category({"NiFi", "File Identity Provider"})
+@Enabled(false)
+@StackTrace(false)
+final class CredentialsReloadEvent extends Event {
+
+    static final String NAME = "io.egm.nifi.authentication.file.CredentialsReload";
+
+    @Label("File")
+    String file;
+
+    @Label("Reloaded")
+    @Description("Whether this call loaded the file, rather than leaving it to another thread")
+    boolean reloaded;
+
+    @Label("Coalesced")
+    @Description("Whether another thread was already reloading the file")
+    boolean coalesced;
+
+    @Label("Deferred")
+    @Description("Whether the reload was put off until the file is quiet, or the backoff of a failed reload elapsed")
+    boolean deferred;
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight Recorder event for one {@link CredentialsStore#save()} of the credentials file.  Disabled by default.
+ */
+@Name(CredentialsSaveEvent.NAME)
+@Label("Credentials Save")
+@Description("Save of the credentials file of the file identity provider")
+@Category({"NiFi", "File Identity Provider"})
+@Enabled(false)
+@StackTrace(false)
+final class CredentialsSaveEvent extends Event {
+
+    static final String NAME = "io.egm.nifi.authentication.file.CredentialsSave";
+
+    @Label("File")
+    String file;
+
+    @Label("File Size")
+    @DataAmount
+    long fileSize;
+
+    @Label("User Count")
+    int userCount;
+}
@@ -0,0 +1,661 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.ObjectFactory;
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+import io.egm.nifi.authentication.file.generated.UserCredentialsList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.function.Function;
+
+
+/**
+ * Immutable view of the users in a credentials file, together with the case-insensitive index used to look
+ * them up.  A {@link CredentialsStore} publishes a new snapshot on every load or change, so readers can use a
+ * snapshot without locking while it is being replaced.
+ *
+ * <p>The {@link UserCredentials} entries are shared between snapshots and must not be modified; changing a
+ * user means replacing its entry in a new snapshot.</p>
+ *
+ * <p>The password hash of every user is decoded once, when the snapshot is built, into a
+ * {@link PasswordEncoder.PreparedHash} kept by entry; entries shared with a previous snapshot keep their prepared
+ * hash.  A hash in no known format, or malformed, is prepared as {@link PasswordEncoders#MALFORMED_HASH}.</p>
+ *
+ * <p>Changes to a snapshot are kept by normalized name beside its users, so that changing one user costs a copy of
+ * the changes rather than of all users.  The users are rebuilt with the changes once these outgrow a quarter of
+ * them, or at once if some names only differ in case.</p>
+ *
+ * <p>A snapshot may instead be served from a {@link CredentialsIndex}, in which case its users are only reachable
+ * by lookup: {@link #getUsers()} is empty, and each lookup returns a new entry read from the index.  Users of such a
+ * snapshot can only be replaced, e.g. by a rehash, and the replacements are kept beside the index however many
+ * they are.</p>
+ *
+ * <p>A snapshot may also hold its users as {@link PackedCredentials}, in which case each lookup returns a new entry
+ * unpacked from them, and password hashes are decoded from their packed bytes when they are checked.  Its users
+ * are packed again when they are rebuilt with its changes.</p>
+ */
+final class CredentialsSnapshot {
+
+    static final CredentialsSnapshot EMPTY = new CredentialsSnapshot(Collections.emptyList(), 0L);
+
+    private static final ObjectFactory factory = new ObjectFactory();
+
+    private final List<UserCredentials> users;
+    private final Map<String, UserCredentials> usersByName;
+    private final Map<UserCredentials, PasswordEncoder.PreparedHash> preparedHashes;
+    private final int malformedUserCount;
+    private final long lastModified;
+    private final CredentialsIndex index;
+    private final PackedCredentials packed;
+    private final boolean shadowedUsers;
+    private final Map<String, UserCredentials> keptChanges;
+    private final Map<UserCredentials, PasswordEncoder.PreparedHash> keptPreparedHashes;
+    private final int userCount;
+
+    CredentialsSnapshot(List<UserCredentials> users, long lastModified) {
+        this(new ArrayList<>(users), lastModified, userCreds -> null);
+    }
+
+    /**
+     * Creates a snapshot of users parsed again, in which each user unchanged since a previous snapshot is the
+     * previous entry itself, with its prepared hash, so that anything associated with that entry survives a reload.
+     */
+    CredentialsSnapshot(List<UserCredentials> users, long lastModified, CredentialsSnapshot previous) {
+        this(retainUnchanged(new ArrayList<>(users), null, previous), lastModified, previous::findPreparedHash);
+    }
+
+    private CredentialsSnapshot(List<UserCredentials> users, long lastModified,
+                                Function<UserCredentials, PasswordEncoder.PreparedHash> previousPreparedHashes) {
+        this.users = Collections.unmodifiableList(users);
+        this.usersByName = indexUsers(this.users);
+        this.preparedHashes = prepareHashes(this.users, previousPreparedHashes);
+        this.malformedUserCount = countMalformedHashes(preparedHashes);
+        this.lastModified = lastModified;
+        this.index = null;
+        this.packed = null;
+        this.shadowedUsers = hasShadowedUsers(this.users, usersByName);
+        this.keptChanges = Collections.emptyMap();
+        this.keptPreparedHashes = Collections.emptyMap();
+        this.userCount = users.size();
+    }
+
+    /**
+     * Creates a snapshot served from a compiled index of the credentials file.
+     */
+    CredentialsSnapshot(CredentialsIndex index) {
+        this(index, null, index.getUserCount(), index.getMalformedUserCount(), index.getSourceLastModified());
+    }
+
+    /**
+     * Creates a snapshot holding its users packed.
+     */
+    CredentialsSnapshot(PackedCredentials packed, long lastModified) {
+        this(null, packed, packed.getUserCount(), packed.getMalformedUserCount(), lastModified);
+    }
+
+    private CredentialsSnapshot(CredentialsIndex index, PackedCredentials packed, int userCount,
+                                int malformedUserCount, long lastModified) {
+        this.users = Collections.emptyList();
+        this.usersByName = Collections.emptyMap();
+        this.preparedHashes = Collections.emptyMap();
+        this.malformedUserCount = malformedUserCount;
+        this.lastModified = lastModified;
+        this.index = index;
+        this.packed = packed;
+        this.shadowedUsers = packed != null && packed.hasShadowedUsers();
+        this.keptChanges = Collections.emptyMap();
+        this.keptPreparedHashes = Collections.emptyMap();
+        this.userCount = userCount;
+    }
+
+    /**
+     * Creates a snapshot from a list of users and an index already built from it, which are used as is.
+     */
+    CredentialsSnapshot(List<UserCredentials> users, Map<String, UserCredentials> usersByName, long lastModified) {
+        this(users, usersByName, lastModified, EMPTY);
+    }
+
+    /**
+     * Creates a snapshot from a list of users parsed again and an index already built from it, which are used as
+     * is, except that each user unchanged since a previous snapshot is replaced in both by the previous entry.
+     */
+    CredentialsSnapshot(List<UserCredentials> users, Map<String, UserCredentials> usersByName, long lastModified,
+                        CredentialsSnapshot previous) {
+        this.users = Collections.unmodifiableList(retainUnchanged(users, usersByName, previous));
+        this.usersByName = Collections.unmodifiableMap(usersByName);
+        this.preparedHashes = prepareHashes(this.users, previous::findPreparedHash);
+        this.malformedUserCount = countMalformedHashes(preparedHashes);
+        this.lastModified = lastModified;
+        this.index = null;
+        this.packed = null;
+        this.shadowedUsers = hasShadowedUsers(this.users, usersByName);
+        this.keptChanges = Collections.emptyMap();
+        this.keptPreparedHashes = Collections.emptyMap();
+        this.userCount = users.size();
+    }
+
+    private CredentialsSnapshot(CredentialsSnapshot snapshot, long lastModified) {
+        this(snapshot, snapshot.keptChanges, snapshot.keptPreparedHashes, snapshot.userCount,
+                snapshot.malformedUserCount, lastModified);
+    }
+
+    /**
+     * Creates a snapshot of the same users as another, with other changes kept beside them: users by normalized
+     * name, null for removed users, and their prepared hashes.
+     */
+    private CredentialsSnapshot(CredentialsSnapshot snapshot, Map<String, UserCredentials> keptChanges,
+                                Map<UserCredentials, PasswordEncoder.PreparedHash> keptPreparedHashes, int userCount,
+                                int malformedUserCount, long lastModified) {
+        this.users = snapshot.users;
+        this.usersByName = snapshot.usersByName;
+        this.preparedHashes = snapshot.preparedHashes;
+        this.malformedUserCount = malformedUserCount;
+        this.lastModified = lastModified;
+        this.index = snapshot.index;
+        this.packed = snapshot.packed;
+        this.shadowedUsers = snapshot.shadowedUsers;
+        this.keptChanges = keptChanges;
+        this.keptPreparedHashes = keptPreparedHashes;
+        this.userCount = userCount;
+    }
+
+    private static Map<String, UserCredentials> indexUsers(List<UserCredentials> users) {
+        final Map<String, UserCredentials> usersByName = new HashMap<>(Math.max(16, users.size() * 4 / 3 + 1));
+        for (UserCredentials userCreds : users) {
+            String credsUserName = userCreds.getName();
+            if (credsUserName != null) {
+                // The first of several case-variant entries wins, as with the previous linear search
+                usersByName.putIfAbsent(CredentialsStore.normalizeUserName(credsUserName), userCreds);
+            }
+        }
+        return Collections.unmodifiableMap(usersByName);
+    }
+
+    private static boolean hasShadowedUsers(List<UserCredentials> users, Map<String, UserCredentials> usersByName) {
+        int namedUserCount = 0;
+        for (UserCredentials userCreds : users) {
+            if (userCreds.getName() != null) {
+                namedUserCount++;
+            }
+        }
+        return namedUserCount > usersByName.size();
+    }
+
+    /**
+     * Replaces in place each user of a list unchanged since a previous snapshot by the previous entry itself, and
+     * in the index of the list if one is given.  Entries read from an index or unpacked are never retained, as each
+     * lookup makes a new one.
+     */
+    private static List<UserCredentials> retainUnchanged(List<UserCredentials> users,
+                                                         Map<String, UserCredentials> usersByName,
+                                                         CredentialsSnapshot previous) {
+        if (previous.usersByName.isEmpty() && previous.keptChanges.isEmpty()) {
+            return users;
+        }
+        for (ListIterator<UserCredentials> iterator = users.listIterator(); iterator.hasNext(); ) {
+            final UserCredentials userCreds = iterator.next();
+            final UserCredentials retainedUserCreds = retainUnchanged(userCreds, previous);
+            if (retainedUserCreds != userCreds) {
+                iterator.set(retainedUserCreds);
+                if (usersByName != null) {
+                    usersByName.replace(CredentialsStore.normalizeUserName(userCreds.getName()), userCreds, retainedUserCreds);
+                }
+            }
+        }
+        return users;
+    }
+
+    private static UserCredentials retainUnchanged(UserCredentials userCreds, CredentialsSnapshot previous) {
+        if (userCreds == null || userCreds.getName() == null) {
+            return userCreds;
+        }
+        final UserCredentials previousUserCreds =
+                previous.findRetainableUser(CredentialsStore.normalizeUserName(userCreds.getName()));
+        if (previousUserCreds != null && CredentialsDelta.isUnchanged(previousUserCreds, userCreds)) {
+            return previousUserCreds;
+        }
+        return userCreds;
+    }
+
+    /**
+     * Returns the entry of a user held by this snapshot, rather than read from an index or unpacked, or null.
+     */
+    private UserCredentials findRetainableUser(String normalizedName) {
+        if (keptChanges.containsKey(normalizedName)) {
+            return keptChanges.get(normalizedName);
+        }
+        return usersByName.get(normalizedName);
+    }
+
+    /**
+     * Returns the prepared hash this snapshot holds for an entry, or null.
+     */
+    private PasswordEncoder.PreparedHash findPreparedHash(UserCredentials userCreds) {
+        final PasswordEncoder.PreparedHash preparedHash = keptPreparedHashes.get(userCreds);
+        return preparedHash != null ? preparedHash : preparedHashes.get(userCreds);
+    }
+
+    private static Map<UserCredentials, PasswordEncoder.PreparedHash> prepareHashes(
+            List<UserCredentials> users, Function<UserCredentials, PasswordEncoder.PreparedHash> previousPreparedHashes) {
+        final Map<UserCredentials, PasswordEncoder.PreparedHash> preparedHashes = new IdentityHashMap<>(users.size());
+        for (UserCredentials userCreds : users) {
+            PasswordEncoder.PreparedHash preparedHash = previousPreparedHashes.apply(userCreds);
+            if (preparedHash == null) {
+                preparedHash = PasswordEncoders.prepare(userCreds.getPasswordHash());
+            }
+            preparedHashes.put(userCreds, preparedHash);
+        }
+        return preparedHashes;
+    }
+
+    private static int countMalformedHashes(Map<UserCredentials, PasswordEncoder.PreparedHash> preparedHashes) {
+        int count = 0;
+        for (PasswordEncoder.PreparedHash preparedHash : preparedHashes.values()) {
+            if (preparedHash == PasswordEncoders.MALFORMED_HASH) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    UserCredentials findUser(String userName) {
+        if (userName == null) {
+            return null;
+        }
+        if (!keptChanges.isEmpty()) {
+            final String normalizedName = CredentialsStore.normalizeUserName(userName);
+            if (keptChanges.containsKey(normalizedName)) {
+                return keptChanges.get(normalizedName);
+            }
+        }
+        if (index != null) {
+            return index.findUser(userName);
+        }
+        if (packed != null) {
+            return packed.findUser(userName);
+        }
+        return usersByName.get(CredentialsStore.normalizeUserName(userName));
+    }
+
+    /**
+     * Returns the users in file order, with users added since at the end; new entries if they are packed, and none
+     * if they are served from an index.
+     */
+    List<UserCredentials> getUsers() {
+        final List<UserCredentials> baseUsers = packed != null ? packed.unpack() : users;
+        return keptChanges.isEmpty() || index != null ? baseUsers : applyChanges(baseUsers, keptChanges, EMPTY);
+    }
+
+    /**
+     * Returns the users reachable by lookups, in file order, leaving out those shadowed by a case variant of their
+     * name; none if they are served from an index.
+     */
+    List<UserCredentials> getReachableUsers() {
+        if (index != null) {
+            return Collections.emptyList();
+        }
+        if (!keptChanges.isEmpty()) {
+            // Changes are only kept beside users of distinct names, so that every named user is reachable
+            final List<UserCredentials> reachableUsers = getUsers();
+            reachableUsers.removeIf(userCreds -> userCreds.getName() == null);
+            return reachableUsers;
+        }
+        if (packed != null) {
+            return packed.getReachableUsers();
+        }
+        final List<UserCredentials> reachableUsers = new ArrayList<>(users.size());
+        for (UserCredentials userCreds : users) {
+            if (userCreds.getName() != null && findUser(userCreds.getName()) == userCreds) {
+                reachableUsers.add(userCreds);
+            }
+        }
+        return reachableUsers;
+    }
+
+    int size() {
+        return userCount;
+    }
+
+    /**
+     * Returns the index this snapshot is served from, or null if its users are held in memory.
+     */
+    CredentialsIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the changes kept beside the users of this snapshot: users by normalized name, null for removed users.
+     */
+    Map<String, UserCredentials> getKeptChanges() {
+        return keptChanges;
+    }
+
+    /**
+     * Returns the packed users of this snapshot, or null if its users are not packed.
+     */
+    PackedCredentials getPacked() {
+        return packed;
+    }
+
+    /**
+     * Returns a snapshot of the same users, packed.
+     */
+    CredentialsSnapshot pack() {
+        if (packed != null || index != null) {
+            return this;
+        }
+        return new CredentialsSnapshot(PackedCredentials.pack(getUsers()), lastModified);
+    }
+
+    /**
+     * Returns the prepared password hash of a user.  The hash of an entry looked up in packed users is decoded from
+     * its packed bytes, and that of an entry not in this snapshot from its string.
+     */
+    PasswordEncoder.PreparedHash getPreparedHash(UserCredentials userCreds) {
+        PasswordEncoder.PreparedHash preparedHash = findPreparedHash(userCreds);
+        if (preparedHash == null && packed != null) {
+            preparedHash = packed.getPreparedHash(userCreds);
+        }
+        return preparedHash != null ? preparedHash : PasswordEncoders.prepare(userCreds.getPasswordHash());
+    }
+
+    /**
+     * Returns the names of the users whose password hash is in no known format, or malformed, in file order; those
+     * changed since the snapshot was built come last.
+     */
+    List<String> getMalformedUsers() {
+        if (malformedUserCount == 0) {
+            return Collections.emptyList();
+        }
+        final List<String> malformedUsers;
+        if (packed != null) {
+            malformedUsers = packed.getMalformedUsers();
+        } else {
+            malformedUsers = new ArrayList<>(malformedUserCount);
+            for (UserCredentials userCreds : users) {
+                if (preparedHashes.get(userCreds) == PasswordEncoders.MALFORMED_HASH) {
+                    malformedUsers.add(userCreds.getName());
+                }
+            }
+        }
+        if (!keptChanges.isEmpty()) {
+            malformedUsers.removeIf(name -> name != null
+                    && keptChanges.containsKey(CredentialsStore.normalizeUserName(name)));
+            for (UserCredentials userCreds : keptChanges.values()) {
+                if (userCreds != null && keptPreparedHashes.get(userCreds) == PasswordEncoders.MALFORMED_HASH) {
+                    malformedUsers.add(userCreds.getName());
+                }
+            }
+        }
+        return malformedUsers;
+    }
+
+    int getMalformedUserCount() {
+        return malformedUserCount;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    CredentialsSnapshot withLastModified(long lastModified) {
+        return new CredentialsSnapshot(this, lastModified);
+    }
+
+    CredentialsSnapshot withUser(UserCredentials userCreds) {
+        if (canKeepChange(userCreds)) {
+            return withKeptChanges(Collections.singletonMap(
+                    CredentialsStore.normalizeUserName(userCreds.getName()), userCreds), EMPTY);
+        }
+        final List<UserCredentials> newUsers = copyUsers();
+        newUsers.add(userCreds);
+        return rebuild(newUsers);
+    }
+
+    CredentialsSnapshot withReplacedUser(UserCredentials oldUserCreds, UserCredentials newUserCreds) {
+        if (index != null || canKeepChange(oldUserCreds)) {
+            return withKeptChanges(Collections.singletonMap(
+                    CredentialsStore.normalizeUserName(oldUserCreds.getName()), newUserCreds), EMPTY);
+        }
+        final List<UserCredentials> newUsers = copyUsers();
+        if (packed != null) {
+            // Unpacked entries are new, so the user is matched by its exact name, which is unique
+            newUsers.replaceAll(userCreds -> oldUserCreds.getName().equals(userCreds.getName()) ? newUserCreds : userCreds);
+        } else {
+            newUsers.replaceAll(userCreds -> userCreds == oldUserCreds ? newUserCreds : userCreds);
+        }
+        return rebuild(newUsers);
+    }
+
+    CredentialsSnapshot withoutUser(UserCredentials oldUserCreds) {
+        if (canKeepChange(oldUserCreds)) {
+            return withKeptChanges(Collections.singletonMap(
+                    CredentialsStore.normalizeUserName(oldUserCreds.getName()), null), EMPTY);
+        }
+        final List<UserCredentials> newUsers = copyUsers();
+        if (packed != null) {
+            newUsers.removeIf(userCreds -> oldUserCreds.getName().equals(userCreds.getName()));
+        } else {
+            newUsers.removeIf(userCreds -> userCreds == oldUserCreds);
+        }
+        return rebuild(newUsers);
+    }
+
+    /**
+     * Returns a snapshot in which the users found by several normalized names are replaced, as by
+     * {@link #withReplacedUser(UserCredentials, UserCredentials)}; names of no user are ignored.
+     */
+    CredentialsSnapshot withReplacedUsers(Map<String, UserCredentials> replacedUsers) {
+        if (index != null || packed != null) {
+            CredentialsSnapshot changed = this;
+            for (Map.Entry<String, UserCredentials> replacedUser : replacedUsers.entrySet()) {
+                final UserCredentials oldUserCreds = changed.findUser(replacedUser.getKey());
+                if (oldUserCreds != null) {
+                    changed = changed.withReplacedUser(oldUserCreds, replacedUser.getValue());
+                }
+            }
+            return changed;
+        }
+        // Replaced in a single pass, matching the entries found by lookups, as case variants may follow them
+        final Map<UserCredentials, UserCredentials> replacements = new IdentityHashMap<>(replacedUsers.size());
+        for (Map.Entry<String, UserCredentials> replacedUser : replacedUsers.entrySet()) {
+            final UserCredentials oldUserCreds = findUser(replacedUser.getKey());
+            if (oldUserCreds != null) {
+                replacements.put(oldUserCreds, replacedUser.getValue());
+            }
+        }
+        final List<UserCredentials> newUsers = copyUsers();
+        newUsers.replaceAll(userCreds -> replacements.getOrDefault(userCreds, userCreds));
+        return rebuild(newUsers);
+    }
+
+    /**
+     * Returns a snapshot in which several users are changed at once: each user whose normalized name is a key of
+     * the given map is replaced by its value, or removed if the value is null, and the other values are added at
+     * the end.  Not supported by snapshots served from an index.
+     */
+    CredentialsSnapshot withChangedUsers(Map<String, UserCredentials> changedUsers) {
+        return withChangedUsers(changedUsers, EMPTY);
+    }
+
+    /**
+     * Returns a snapshot in which several users are changed at once, as by {@link #withChangedUsers(Map)}, except
+     * that each changed user unchanged since a previous snapshot is the previous entry itself, with its prepared hash.
+     */
+    CredentialsSnapshot withChangedUsers(Map<String, UserCredentials> changedUsers, CredentialsSnapshot previous) {
+        if (!shadowedUsers) {
+            return withKeptChanges(changedUsers, previous);
+        }
+        final List<UserCredentials> newUsers = applyChanges(getUsers(), changedUsers, previous);
+        if (packed != null) {
+            return new CredentialsSnapshot(PackedCredentials.pack(newUsers), lastModified);
+        }
+        return new CredentialsSnapshot(newUsers, lastModified, userCreds -> {
+            final PasswordEncoder.PreparedHash preparedHash = findPreparedHash(userCreds);
+            return preparedHash != null ? preparedHash : previous.findPreparedHash(userCreds);
+        });
+    }
+
+    /**
+     * Returns a new list of users changed as by {@link #withChangedUsers(Map, CredentialsSnapshot)}.
+     */
+    private static List<UserCredentials> applyChanges(List<UserCredentials> currentUsers,
+                                                      Map<String, UserCredentials> changedUsers,
+                                                      CredentialsSnapshot previous) {
+        final Map<String, UserCredentials> addedUsers = new LinkedHashMap<>(changedUsers);
+        final List<UserCredentials> newUsers = new ArrayList<>(currentUsers.size() + changedUsers.size());
+        for (UserCredentials userCreds : currentUsers) {
+            final String name = userCreds.getName();
+            final String normalizedName = name == null ? null : CredentialsStore.normalizeUserName(name);
+            if (normalizedName == null || !changedUsers.containsKey(normalizedName)) {
+                newUsers.add(userCreds);
+            } else {
+                final UserCredentials changedUserCreds = retainUnchanged(addedUsers.remove(normalizedName), previous);
+                if (changedUserCreds != null) {
+                    newUsers.add(changedUserCreds);
+                }
+            }
+        }
+        for (UserCredentials addedUserCreds : addedUsers.values()) {
+            if (addedUserCreds != null) {
+                newUsers.add(retainUnchanged(addedUserCreds, previous));
+            }
+        }
+        return newUsers;
+    }
+
+    /**
+     * Returns whether a change to a user can be kept beside the users of this snapshot, which is not the case if
+     * some of them are shadowed by a case variant of their name, as changes are kept by normalized name.
+     */
+    private boolean canKeepChange(UserCredentials userCreds) {
+        return !shadowedUsers && userCreds.getName() != null;
+    }
+
+    /**
+     * Returns a new list of the users of this snapshot, with its changes, which are only dropped by packed or
+     * indexed snapshots.
+     */
+    private List<UserCredentials> copyUsers() {
+        final List<UserCredentials> currentUsers = getUsers();
+        return currentUsers == users ? new ArrayList<>(users) : currentUsers;
+    }
+
+    /**
+     * Returns a snapshot of a new list of users, packed if the users of this snapshot are, in which entries of this
+     * snapshot keep their prepared hash.
+     */
+    private CredentialsSnapshot rebuild(List<UserCredentials> newUsers) {
+        if (packed != null) {
+            return new CredentialsSnapshot(PackedCredentials.pack(newUsers), lastModified);
+        }
+        return new CredentialsSnapshot(newUsers, lastModified, this::findPreparedHash);
+    }
+
+    /**
+     * Returns a snapshot with more changes kept beside its users, or with its users rebuilt with the changes if
+     * these outgrow a quarter of them, except for an index.  Each change of one user only costs a copy of the
+     * changes.
+     */
+    private CredentialsSnapshot withKeptChanges(Map<String, UserCredentials> changedUsers,
+                                                CredentialsSnapshot previous) {
+        final Map<String, UserCredentials> newChanges = new LinkedHashMap<>(keptChanges);
+        final Map<UserCredentials, PasswordEncoder.PreparedHash> newPreparedHashes =
+                new IdentityHashMap<>(keptPreparedHashes);
+        int newSize = userCount;
+        int newMalformedUserCount = malformedUserCount;
+        for (Map.Entry<String, UserCredentials> change : changedUsers.entrySet()) {
+            final String normalizedName = change.getKey();
+            final boolean baseUser;
+            final boolean baseMalformed;
+            if (packed != null) {
+                baseUser = packed.containsUser(normalizedName);
+                baseMalformed = baseUser && packed.isMalformed(normalizedName);
+            } else if (index != null) {
+                final UserCredentials indexedUserCreds = index.findUser(normalizedName);
+                baseUser = indexedUserCreds != null;
+                baseMalformed = baseUser && PasswordEncoders.prepare(indexedUserCreds.getPasswordHash())
+                        == PasswordEncoders.MALFORMED_HASH;
+            } else {
+                final UserCredentials baseUserCreds = usersByName.get(normalizedName);
+                baseUser = baseUserCreds != null;
+                baseMalformed = baseUser && preparedHashes.get(baseUserCreds) == PasswordEncoders.MALFORMED_HASH;
+            }
+            if (keptChanges.containsKey(normalizedName)) {
+                final UserCredentials currentUserCreds = keptChanges.get(normalizedName);
+                if (currentUserCreds != null) {
+                    newSize--;
+                    if (newPreparedHashes.remove(currentUserCreds) == PasswordEncoders.MALFORMED_HASH) {
+                        newMalformedUserCount--;
+                    }
+                }
+            } else if (baseUser) {
+                newSize--;
+                if (baseMalformed) {
+                    newMalformedUserCount--;
+                }
+            }
+
+            final UserCredentials newUserCreds = retainUnchanged(change.getValue(), previous);
+            if (newUserCreds == null) {
+                if (baseUser) {
+                    newChanges.put(normalizedName, null);
+                } else {
+                    newChanges.remove(normalizedName);
+                }
+                continue;
+            }
+            PasswordEncoder.PreparedHash preparedHash = findPreparedHash(newUserCreds);
+            if (preparedHash == null) {
+                preparedHash = previous.findPreparedHash(newUserCreds);
+            }
+            if (preparedHash == null) {
+                preparedHash = PasswordEncoders.prepare(newUserCreds.getPasswordHash());
+            }
+            newChanges.put(normalizedName, newUserCreds);
+            newPreparedHashes.put(newUserCreds, preparedHash);
+            newSize++;
+            if (preparedHash == PasswordEncoders.MALFORMED_HASH) {
+                newMalformedUserCount++;
+            }
+        }
+        if (index == null && newChanges.size() > 16 + (packed != null ? packed.getUserCount() : users.size()) / 4) {
+            final List<UserCredentials> baseUsers = packed != null ? packed.unpack() : users;
+            return new CredentialsSnapshot(this, Collections.unmodifiableMap(newChanges), newPreparedHashes, newSize,
+                    newMalformedUserCount, lastModified).rebuild(applyChanges(baseUsers, newChanges, EMPTY));
+        }
+        return new CredentialsSnapshot(this, Collections.unmodifiableMap(newChanges), newPreparedHashes, newSize,
+                newMalformedUserCount, lastModified);
+    }
+
+    /**
+     * Returns a new JAXB credentials list holding the users of this snapshot, e.g. for marshalling.
+     */
+    UserCredentialsList toCredentialsList() {
+        final UserCredentialsList credentialsList = factory.createUserCredentialsList();
+        credentialsList.getUser().addAll(getUsers());
+        return credentialsList;
+    }
+}
@@ -21,7 +21,8 @@ import io.egm.nifi.authentication.file.generated.UserCredentials;
 import io.egm.nifi.authentication.file.generated.UserCredentialsList;
 
 import jakarta.xml.bind.*;
-import org.mindrot.jbcrypt.BCrypt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.xml.XMLConstants;
 import javax.xml.transform.stream.StreamSource;
@@ -29,28 +30,136 @@ import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InvalidObjectException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 
 /**
  * Data access for a simple local XML credentials file.  The credentials file
- * contains usernames and password hashes in bcrypt format.  Any compatible
- * bcrypt "2a" implementation may be used to populate the credentials file,
- * or you may use the {@link CredentialsCLI} class in this package as an admin tool.
+ * contains usernames and password hashes in bcrypt format, or in one of the
+ * other formats of the {@link PasswordEncoders}.  Any compatible bcrypt "2a"
+ * implementation may be used to populate the credentials file, or you may use
+ * the {@link CredentialsCLI} class in this package as an admin tool.
+ *
+ * <p>Usernames are matched case-insensitively through an index keyed by
+ * {@link #normalizeUserName(String)}, which is rebuilt on every load.</p>
+ *
+ * <p>The users are held in an immutable {@link CredentialsSnapshot} that is
+ * replaced atomically on every load or change.  Lookups and password checks
+ * read the current snapshot without locking; loads and changes are serialized
+ * with each other.</p>
+ *
+ * <p>The file is judged modified when its size, modification time or file key
+ * differ from those it had when last loaded or saved, see
+ * {@link CredentialsFileFingerprint}.  Optionally, its content is hashed too,
+ * so that a file touched without changes is not parsed again, and a change
+ * that left its attributes unchanged is not missed.</p>
+ *
+ * <p>When several threads notice a modified file at the same time, only one
+ * of them parses it; the others keep using the current snapshot, or wait for
+ * the parse if nothing has been loaded yet.</p>
+ *
+ * <p>A reload that fails leaves the previous snapshot in place.  Reloads can
+ * be put off until the file has not been modified for a quiet period, so that
+ * a file written in several steps is not parsed half-way, and after a failed
+ * reload of a file that has not changed since, the next attempt is put off by
+ * a backoff that doubles with every failure.</p>
+ *
+ * <p>A reload is compared with the previous snapshot: users left unchanged keep
+ * their previous entries, and the added, removed and changed users are passed
+ * to the registered change listeners as a {@link CredentialsDelta}.</p>
+ *
+ * <p>New password hashes are made by the configured {@link PasswordEncoder},
+ * bcrypt by default, while existing hashes are verified by the encoder matching
+ * their prefix.  Hashes of another algorithm or cost can be migrated one login
+ * at a time with {@link #rehashPassword(UserCredentials, String)}.</p>
+ *
+ * <p>Password hashes are decoded when the users are loaded, and a hash in no
+ * known format, or malformed, is reported then; no password matches it.</p>
+ *
+ * <p>Optionally, lookups are served from a memory-mapped
+ * {@link CredentialsIndex} compiled from the file, so that even a very large
+ * file is usable at once without holding its users in memory.  Changes to the
+ * store then load the file in full first.</p>
+ *
+ * <p>Optionally, the users are held as {@link PackedCredentials}, which take
+ * several times less heap than their JAXB entries; the parsed entries are
+ * discarded once packed.</p>
+ *
+ * <p>A store may instead be backed by a {@link CredentialsDirectory}, whose
+ * {@code *.xml} files are merged into one set of users; only the files that
+ * changed are parsed again, and written back.  Users cannot be added to such a
+ * store, and it is never indexed or packed.</p>
+ *
+ * <p>Optionally, changes recorded in the {@link CredentialsJournal} of the
+ * file are applied on load, and a reload that finds only new journal entries
+ * applies them to the current snapshot without parsing the file again.  A
+ * save then writes the changes of the journal to the file, and deletes the
+ * journal.</p>
+ *
+ * <p>Loads, reloads and saves emit Flight Recorder events, which are disabled
+ * by default.</p>
  *
  * @see CredentialsCLI
  */
 public class CredentialsStore {
 
+    private static final Logger logger = LoggerFactory.getLogger(CredentialsStore.class);
+    private static final int MAX_REPORTED_MALFORMED_USERS = 10;
+
     private static final String CREDENTIALS_XSD = "/credentials.xsd";
     private static final String JAXB_GENERATED_PATH = "io.egm.nifi.authentication.file.generated";
     private static final JAXBContext JAXB_CONTEXT = initializeJaxbContext();
     private static final ObjectFactory factory = new ObjectFactory();
 
-    private File credentialsFile;
-    private long credentialsListLastModified;
-    private UserCredentialsList credentialsList = factory.createUserCredentialsList();
+    private volatile File credentialsFile;
+    private volatile CredentialsDirectory credentialsDirectory;
+    private volatile boolean streamingLoad;
+    private volatile boolean useIndex;
+    private volatile boolean compact;
+    private volatile boolean contentHashing;
+    private final AtomicReference<CredentialsFileFingerprint> credentialsFileFingerprint = new AtomicReference<>();
+    private volatile CredentialsJournal journal;
+    private volatile String journalGeneration;
+    private volatile long journalPosition;
+    private final LongAdder journalReplayCount = new LongAdder();
+    private volatile PasswordEncoder passwordEncoder = new BcryptPasswordEncoder();
+    private volatile CredentialsSnapshot snapshot = CredentialsSnapshot.EMPTY;
+    private final Object writeLock = new Object();
+    private final ReentrantLock reloadLock = new ReentrantLock();
+    private final LongAdder loadCount = new LongAdder();
+    private final LongAdder coalescedReloadCount = new LongAdder();
+    private final LongAdder retiredBloomRejectCount = new LongAdder();
+    private final LongAdder loadErrorCount = new LongAdder();
+    private final LongAdder deferredReloadCount = new LongAdder();
+    private volatile long reloadQuietPeriodMillis;
+    private volatile long reloadFailureBackoffMillis;
+    private volatile long reloadFailureMaxBackoffMillis;
+    private volatile int failedReloadCount;
+    private volatile long failedReloadTimeMillis;
+    private volatile long failedReloadLastModified;
+    private volatile Exception failedReloadException;
+    private volatile long deferredReloadDueMillis;
+    private volatile long lastLoadTimeMillis;
+    private volatile long lastLoadDurationNanos;
+    private final List<Consumer<CredentialsDelta>> changeListeners = new CopyOnWriteArrayList<>();
+    private volatile CredentialsDelta lastDelta;
 
     private static JAXBContext initializeJaxbContext() {
         try {
@@ -91,7 +200,26 @@ public class CredentialsStore {
         final Marshaller marshaller = JAXB_CONTEXT.createMarshaller();
         final JAXBElement<UserCredentialsList> jaxbCredentialsList = factory.createCredentials(credentialsList);
         marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-        marshaller.marshal(jaxbCredentialsList, saveFile);
+
+        // Written aside and moved in place, so that a concurrent load never reads a partly written file
+        final Path savePath = saveFile.exists() ? saveFile.toPath().toRealPath() : saveFile.toPath().toAbsolutePath();
+        final Path tempPath = Files.createTempFile(savePath.getParent(), savePath.getFileName().toString(), ".tmp");
+        try {
+            marshaller.marshal(jaxbCredentialsList, tempPath.toFile());
+            if (Files.exists(savePath)) {
+                final PosixFileAttributeView attributeView = Files.getFileAttributeView(savePath, PosixFileAttributeView.class);
+                if (attributeView != null) {
+                    Files.setPosixFilePermissions(tempPath, attributeView.readAttributes().permissions());
+                }
+            }
+            try {
+                Files.move(tempPath, savePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempPath, savePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
     }
 
     public static CredentialsStore fromFile(String filePath) throws Exception {
@@ -113,77 +241,771 @@ public class CredentialsStore {
     }
 
     public CredentialsStore(UserCredentialsList credentialsList) {
-        this.credentialsList = credentialsList;
+        this.snapshot = new CredentialsSnapshot(credentialsList.getUser(), 0L);
     }
 
+    /**
+     * Creates a store of the users of all the credentials files in a directory.
+     */
+    static CredentialsStore forDirectory(File credentialsDirectory) {
+        final CredentialsStore credStore = new CredentialsStore(credentialsDirectory);
+        credStore.credentialsDirectory = new CredentialsDirectory(credentialsDirectory);
+        return credStore;
+    }
+
+    /**
+     * Returns the key under which a username is indexed.  Lower-casing uses the root locale so that lookups
+     * do not depend on the default locale of the JVM (e.g. the Turkish dotless i).
+     */
+    static String normalizeUserName(String userName) {
+        return userName.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns a copy of the current users as a JAXB credentials list.  Changes to the returned list are not
+     * reflected in the store.
+     */
     UserCredentialsList getCredentialsList() {
-        return credentialsList;
+        return snapshot.toCredentialsList();
+    }
+
+    CredentialsSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Selects the {@link StreamingCredentialsLoader} instead of JAXB for loading the credentials file.
+     */
+    void setStreamingLoad(boolean streamingLoad) {
+        this.streamingLoad = streamingLoad;
+    }
+
+    /**
+     * Returns the directory backing this store, or null if it is backed by a single file.
+     */
+    CredentialsDirectory getCredentialsDirectory() {
+        return credentialsDirectory;
+    }
+
+    /**
+     * Selects serving lookups from a {@link CredentialsIndex} of the credentials file, compiled on load when it is
+     * missing or stale.
+     */
+    void setUseIndex(boolean useIndex) {
+        this.useIndex = useIndex;
+    }
+
+    /**
+     * Selects holding the users as {@link PackedCredentials} once loaded.  Has no effect on lookups served from an
+     * index.
+     */
+    void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Selects comparing a hash of the content of the credentials file, besides its attributes, to tell whether it
+     * was modified.
+     */
+    void setContentHashing(boolean contentHashing) {
+        this.contentHashing = contentHashing;
+    }
+
+    /**
+     * Selects applying the changes of the {@link CredentialsJournal} of the credentials file.  Not supported by a
+     * store backed by a directory.
+     */
+    void setJournal(boolean useJournal) {
+        if (useJournal && credentialsDirectory != null) {
+            throw new UnsupportedOperationException("Credentials directory '" + credentialsFile + "' has no journal");
+        }
+        synchronized (writeLock) {
+            journal = useJournal ? new CredentialsJournal(CredentialsJournal.getJournalFile(credentialsFile)) : null;
+            journalGeneration = null;
+            journalPosition = 0L;
+        }
+    }
+
+    CredentialsJournal getJournal() {
+        return journal;
     }
 
     public void load() throws Exception {
-        long credentialsFileLastModified = credentialsFile.lastModified();
-        credentialsList = loadCredentialsList(credentialsFile, defaultValidationEventHandler);
-        credentialsListLastModified = credentialsFileLastModified;
+        synchronized (writeLock) {
+            final CredentialsLoadEvent loadEvent = new CredentialsLoadEvent();
+            loadEvent.begin();
+            final long loadStartNanos = System.nanoTime();
+            long credentialsFileLastModified = credentialsFile.lastModified();
+            CredentialsFileFingerprint fingerprint = null;
+            CredentialsJournal.Replay replay = null;
+            final CredentialsSnapshot previous = snapshot;
+            CredentialsSnapshot loaded;
+            try {
+                if (credentialsDirectory == null) {
+                    // Taken before parsing, so that a change made meanwhile is seen by the next check
+                    fingerprint = CredentialsFileFingerprint.of(credentialsFile, contentHashing);
+                }
+                if (credentialsDirectory != null) {
+                    final List<UserCredentials> users = credentialsDirectory.load(this::parseUsers);
+                    loaded = new CredentialsSnapshot(users, credentialsDirectory.getLastModified(), previous);
+                } else if (useIndex) {
+                    loaded = loadIndex(fingerprint, credentialsFileLastModified, previous);
+                } else {
+                    loaded = parseCredentialsFile(credentialsFileLastModified, previous);
+                }
+                if (journal != null) {
+                    // Read after the file, as a compaction saves the file before it deletes the journal
+                    replay = journal.read(null, 0L);
+                    if (!replay.getEntries().isEmpty()) {
+                        if (loaded.getIndex() != null) {
+                            // The users of an index cannot be changed
+                            loaded = parseCredentialsFile(credentialsFileLastModified, previous);
+                        }
+                        loaded = loaded.withChangedUsers(toChangedUsers(replay.getEntries()), previous);
+                    }
+                }
+            } catch (Exception ex) {
+                loadErrorCount.increment();
+                commitLoadEvent(loadEvent, null);
+                throw ex;
+            }
+            publish(loaded, CredentialsDelta.between(previous, loaded));
+            credentialsFileFingerprint.set(fingerprint);
+            if (replay != null) {
+                journalGeneration = replay.getGeneration();
+                journalPosition = replay.getPosition();
+            }
+            loadCount.increment();
+            lastLoadTimeMillis = System.currentTimeMillis();
+            lastLoadDurationNanos = System.nanoTime() - loadStartNanos;
+            commitLoadEvent(loadEvent, loaded);
+            reportMalformedUsers(loaded);
+        }
+    }
+
+    private CredentialsSnapshot parseCredentialsFile(long credentialsFileLastModified) throws Exception {
+        return parseCredentialsFile(credentialsFileLastModified, CredentialsSnapshot.EMPTY);
+    }
+
+    /**
+     * Parses the credentials file into a snapshot in which each user unchanged since a previous snapshot is the
+     * previous entry itself.
+     */
+    private CredentialsSnapshot parseCredentialsFile(long credentialsFileLastModified, CredentialsSnapshot previous)
+            throws Exception {
+        if (compact) {
+            // Packed straight from the parsed entries, without building the lookup structures of a snapshot
+            return new CredentialsSnapshot(PackedCredentials.pack(parseUsers(credentialsFile)), credentialsFileLastModified);
+        }
+        if (streamingLoad) {
+            return StreamingCredentialsLoader.load(credentialsFile, credentialsFileLastModified, previous);
+        }
+        UserCredentialsList credentialsList = loadCredentialsList(credentialsFile, defaultValidationEventHandler);
+        return new CredentialsSnapshot(credentialsList.getUser(), credentialsFileLastModified, previous);
+    }
+
+    /**
+     * Parses the users of a credentials file, in file order.
+     */
+    private List<UserCredentials> parseUsers(File file) throws Exception {
+        if (streamingLoad) {
+            return StreamingCredentialsLoader.loadUsers(file);
+        }
+        return loadCredentialsList(file, defaultValidationEventHandler).getUser();
+    }
+
+    /**
+     * Opens the index of the credentials file, or compiles it first if it is missing or was not compiled from the
+     * version of the file of a fingerprint.  If the index cannot be written, the parsed users are served from memory
+     * instead.
+     */
+    private CredentialsSnapshot loadIndex(CredentialsFileFingerprint fingerprint, long credentialsFileLastModified,
+                                          CredentialsSnapshot previous) throws Exception {
+        final File indexFile = CredentialsIndex.getIndexFile(credentialsFile);
+        if (fingerprint != null && indexFile.exists()) {
+            try {
+                final CredentialsIndex index = CredentialsIndex.open(indexFile);
+                if (index.isCompiledFrom(fingerprint)) {
+                    return new CredentialsSnapshot(index);
+                }
+            } catch (IOException e) {
+                logger.warn("Credentials index '{}' is unreadable and will be compiled again", indexFile, e);
+            }
+        }
+        final CredentialsSnapshot parsed = parseCredentialsFile(credentialsFileLastModified, previous);
+        try {
+            CredentialsIndex.write(parsed.getUsers(), fingerprint, indexFile);
+            logger.info("Compiled credentials index '{}' for {} users", indexFile, parsed.size());
+            return new CredentialsSnapshot(CredentialsIndex.open(indexFile));
+        } catch (IOException e) {
+            logger.warn("Failed writing credentials index '{}', serving credentials from memory", indexFile, e);
+            return parsed;
+        }
+    }
+
+    /**
+     * Returns the users changed by journal entries, by normalized name, null for removed users.
+     */
+    private static Map<String, UserCredentials> toChangedUsers(List<CredentialsJournal.Entry> entries) {
+        final Map<String, UserCredentials> changedUsers = new LinkedHashMap<>();
+        for (CredentialsJournal.Entry entry : entries) {
+            UserCredentials userCreds = null;
+            if (entry.getPasswordHash() != null) {
+                userCreds = factory.createUserCredentials();
+                userCreds.setName(entry.getUserName());
+                userCreds.setPasswordHash(entry.getPasswordHash());
+            }
+            // The last change of a user wins
+            final String normalizedName = normalizeUserName(entry.getUserName());
+            changedUsers.remove(normalizedName);
+            changedUsers.put(normalizedName, userCreds);
+        }
+        return changedUsers;
+    }
+
+    /**
+     * Applies journal entries to the current snapshot; must be called holding the write lock.
+     */
+    private void applyJournal(CredentialsJournal.Replay replay) {
+        if (!replay.getEntries().isEmpty()) {
+            materialize();
+            final CredentialsSnapshot previous = snapshot;
+            final Map<String, UserCredentials> changedUsers = toChangedUsers(replay.getEntries());
+            publish(previous.withChangedUsers(changedUsers), CredentialsDelta.of(previous, changedUsers));
+            journalReplayCount.increment();
+        }
+        journalGeneration = replay.getGeneration();
+        journalPosition = replay.getPosition();
+    }
+
+    /**
+     * Applies the entries appended to the journal since it was last read.
+     *
+     * @return false if the journal was compacted since, and the credentials file must be loaded again
+     */
+    private boolean replayJournal() throws IOException {
+        synchronized (writeLock) {
+            final CredentialsJournal.Replay replay = journal.read(journalGeneration, journalPosition);
+            if (replay.isRestarted()) {
+                return false;
+            }
+            applyJournal(replay);
+            return true;
+        }
+    }
+
+    /**
+     * Records a change made to this store in the journal of the credentials file, instead of saving the file.
+     */
+    void appendJournal(CredentialsJournal.Entry entry) throws IOException {
+        synchronized (writeLock) {
+            if (journal == null) {
+                throw new InvalidObjectException("Credentials journal has not been enabled");
+            }
+            try (CredentialsJournal.Lock lock = journal.lock()) {
+                final boolean upToDate = journal.length() == journalPosition;
+                journal.append(entry);
+                if (upToDate) {
+                    // The change is already in the snapshot, so only the position moves past it
+                    final CredentialsJournal.Replay replay = journal.read(journalGeneration, journalPosition);
+                    journalGeneration = replay.getGeneration();
+                    journalPosition = replay.getPosition();
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the credentials file, which folds the journal into it, if the journal is longer than a length.
+     *
+     * @return true if the journal was compacted
+     */
+    boolean compactJournal(long maxJournalLength) throws Exception {
+        final CredentialsJournal currentJournal = journal;
+        if (currentJournal == null || currentJournal.length() <= maxJournalLength) {
+            return false;
+        }
+        save();
+        return true;
+    }
+
+    /**
+     * Replaces a snapshot served from an index with the users of the credentials file, which changes need, with
+     * the users replaced beside the index replaced again; must be called holding the write lock.
+     */
+    private void materialize() {
+        final CredentialsSnapshot current = snapshot;
+        if (current.getIndex() == null || credentialsFile == null) {
+            return;
+        }
+        try {
+            CredentialsSnapshot parsed = parseCredentialsFile(credentialsFile.lastModified());
+            if (!current.getKeptChanges().isEmpty()) {
+                parsed = parsed.withReplacedUsers(current.getKeptChanges());
+            }
+            publish(parsed, CredentialsDelta.between(current, parsed));
+        } catch (Exception ex) {
+            throw new IllegalStateException("Failed loading credentials file '" + credentialsFile + "' to change it", ex);
+        }
+    }
+
+    private void commitLoadEvent(CredentialsLoadEvent loadEvent, CredentialsSnapshot loaded) {
+        loadEvent.end();
+        if (loadEvent.shouldCommit()) {
+            loadEvent.file = credentialsFile.getPath();
+            if (credentialsDirectory == null) {
+                loadEvent.fileSize = credentialsFile.length();
+            }
+            loadEvent.streaming = streamingLoad;
+            loadEvent.indexed = loaded != null && loaded.getIndex() != null;
+            loadEvent.packed = loaded != null && loaded.getPacked() != null;
+            loadEvent.succeeded = loaded != null;
+            if (loaded != null) {
+                loadEvent.userCount = loaded.size();
+                loadEvent.malformedUserCount = loaded.getMalformedUserCount();
+            }
+            loadEvent.commit();
+        }
+    }
+
+    private void reportMalformedUsers(CredentialsSnapshot loaded) {
+        if (loaded.getIndex() != null) {
+            if (loaded.getMalformedUserCount() > 0) {
+                logger.warn("Credentials file '{}' has {} users whose password hash is in no known format, or malformed, "
+                        + "and who cannot log in", credentialsFile, loaded.getMalformedUserCount());
+            }
+            return;
+        }
+        final List<String> malformedUsers = loaded.getMalformedUsers();
+        if (!malformedUsers.isEmpty()) {
+            final int reportedCount = Math.min(malformedUsers.size(), MAX_REPORTED_MALFORMED_USERS);
+            logger.warn("Credentials file '{}' has {} users whose password hash is in no known format, or malformed, "
+                            + "and who cannot log in: {}{}", credentialsFile, malformedUsers.size(),
+                    String.join(", ", malformedUsers.subList(0, reportedCount)),
+                    malformedUsers.size() > reportedCount ? ", ..." : "");
+        }
+    }
+
+    /**
+     * Publishes a new snapshot and notifies the change listeners; must be called holding the write lock.
+     */
+    private void publish(CredentialsSnapshot newSnapshot, CredentialsDelta delta) {
+        final CredentialsIndex retiredIndex = snapshot.getIndex();
+        if (retiredIndex != null && retiredIndex != newSnapshot.getIndex()) {
+            retiredBloomRejectCount.add(retiredIndex.getBloomRejectCount());
+        }
+        snapshot = newSnapshot;
+        lastDelta = delta;
+        for (Consumer<CredentialsDelta> changeListener : changeListeners) {
+            changeListener.accept(delta);
+        }
+    }
+
+    /**
+     * Registers a listener called with the differences of every new snapshot, after it has been published.
+     * Listeners are called while changes to the store are locked, so they should return quickly.
+     */
+    void addChangeListener(Consumer<CredentialsDelta> changeListener) {
+        changeListeners.add(changeListener);
+    }
+
+    /**
+     * Returns whether users were loaded from, or saved to, the credentials file.
+     */
+    boolean isLoaded() {
+        return snapshot.getLastModified() != 0L;
+    }
+
+    /**
+     * Returns the differences introduced by the latest load or change, or null if there was none.
+     */
+    CredentialsDelta getLastDelta() {
+        return lastDelta;
+    }
+
+    /**
+     * Puts off reloads until the credentials file, or the latest of the files of a credentials directory, was last
+     * modified at least this long ago, serving the users loaded before meanwhile.  0 reloads at once.
+     */
+    void setReloadQuietPeriod(long quietPeriod, TimeUnit timeUnit) {
+        this.reloadQuietPeriodMillis = timeUnit.toMillis(quietPeriod);
+    }
+
+    /**
+     * Puts off reloading a file that failed to load, and was not modified since, by a backoff doubling with every
+     * failure up to a maximum.  A backoff of 0 retries at once.
+     */
+    void setReloadFailureBackoff(long backoff, long maxBackoff, TimeUnit timeUnit) {
+        this.reloadFailureBackoffMillis = timeUnit.toMillis(backoff);
+        this.reloadFailureMaxBackoffMillis = timeUnit.toMillis(maxBackoff);
     }
 
     public boolean reloadIfModified() throws Exception {
-        long credentialsFileLastModified = credentialsFile.lastModified();
-        if (credentialsFileLastModified > credentialsListLastModified) {
-            load();
+        if (!isModified()) {
+            deferredReloadDueMillis = 0L;
+            return false;
+        }
+        final CredentialsReloadEvent reloadEvent = new CredentialsReloadEvent();
+        reloadEvent.begin();
+        // Nothing to serve meanwhile before the first load, which is only put off after failures
+        final long reloadDueMillis = isLoaded() ? getReloadDueMillis(getCurrentLastModified())
+                : getFailureBackoffDueMillis(getCurrentLastModified());
+        if (reloadDueMillis > System.currentTimeMillis()) {
+            // The file may still be being written, or failed to load and has not changed since, so the current
+            // users are served meanwhile
+            try {
+                return deferReload(reloadEvent, reloadDueMillis);
+            } finally {
+                commitReloadEvent(reloadEvent, false);
+            }
+        }
+        if (!reloadLock.tryLock()) {
+            // Another thread is already parsing the file
+            coalescedReloadCount.increment();
+            reloadEvent.coalesced = true;
+            if (snapshot.getLastModified() != 0L) {
+                commitReloadEvent(reloadEvent, false);
+                return false;
+            }
+            // Nothing loaded yet, so wait for the file rather than serve an empty store
+            reloadLock.lock();
+        }
+        boolean reloaded = false;
+        try {
+            if (!isModified()) {
+                return false;
+            }
+            final long lastModified = getCurrentLastModified();
+            // The load this thread waited for may have failed on the same file
+            final long failureBackoffDueMillis = getFailureBackoffDueMillis(lastModified);
+            if (failureBackoffDueMillis > System.currentTimeMillis()) {
+                return deferReload(reloadEvent, failureBackoffDueMillis);
+            }
+            try {
+                if (journal == null || isCredentialsFileModified() || !replayJournal()) {
+                    load();
+                }
+            } catch (Exception ex) {
+                failedReloadCount++;
+                failedReloadTimeMillis = System.currentTimeMillis();
+                failedReloadLastModified = lastModified;
+                failedReloadException = ex;
+                deferredReloadDueMillis = getReloadDueMillis(lastModified);
+                throw ex;
+            }
+            failedReloadCount = 0;
+            failedReloadException = null;
+            deferredReloadDueMillis = 0L;
+            reloaded = true;
             return true;
+        } finally {
+            reloadLock.unlock();
+            commitReloadEvent(reloadEvent, reloaded);
+        }
+    }
+
+    /**
+     * Counts a reload put off until the given time.  Returns false, as the users loaded before are served meanwhile,
+     * or throws the failure of the last load if none were.
+     */
+    private boolean deferReload(CredentialsReloadEvent reloadEvent, long reloadDueMillis) throws Exception {
+        deferredReloadDueMillis = reloadDueMillis;
+        deferredReloadCount.increment();
+        reloadEvent.deferred = true;
+        final Exception failure = failedReloadException;
+        if (failure != null && !isLoaded()) {
+            throw failure;
         }
         return false;
     }
 
+    /**
+     * Returns the time in milliseconds since the epoch from which the file, last modified at the given time, may be
+     * reloaded.
+     */
+    private long getReloadDueMillis(long lastModified) {
+        long reloadDueMillis = 0L;
+        final long quietPeriodMillis = reloadQuietPeriodMillis;
+        if (quietPeriodMillis > 0) {
+            reloadDueMillis = lastModified + quietPeriodMillis;
+        }
+        return Math.max(reloadDueMillis, getFailureBackoffDueMillis(lastModified));
+    }
+
+    /**
+     * Returns the time in milliseconds since the epoch until which the file, last modified at the given time, is
+     * left alone after failing to load, or 0 if it did not fail.
+     */
+    private long getFailureBackoffDueMillis(long lastModified) {
+        final int failureCount = failedReloadCount;
+        if (failureCount > 0 && lastModified == failedReloadLastModified && reloadFailureBackoffMillis > 0) {
+            final long backoffMillis = Math.min(reloadFailureMaxBackoffMillis,
+                    reloadFailureBackoffMillis << Math.min(failureCount - 1, 30));
+            return failedReloadTimeMillis + backoffMillis;
+        }
+        return 0L;
+    }
+
+    /**
+     * Returns the modification time of the credentials file, or the latest one of the files of a credentials
+     * directory, or 0 if there is none.
+     */
+    private long getCurrentLastModified() throws IOException {
+        if (credentialsDirectory != null) {
+            return credentialsDirectory.getCurrentLastModified();
+        }
+        final CredentialsFileFingerprint current = CredentialsFileFingerprint.of(credentialsFile, false);
+        final long lastModified = current == null ? 0L : current.getLastModified();
+        final CredentialsJournal currentJournal = journal;
+        return currentJournal == null ? lastModified : Math.max(lastModified, currentJournal.lastModified());
+    }
+
+    /**
+     * Returns how long until a reload found modified but put off by {@link #reloadIfModified()} may be attempted,
+     * or 0 if none was put off.
+     */
+    long getDeferredReloadDelayMillis() {
+        final long reloadDueMillis = deferredReloadDueMillis;
+        if (reloadDueMillis == 0L) {
+            return 0L;
+        }
+        return Math.max(1L, reloadDueMillis - System.currentTimeMillis());
+    }
+
+    private void commitReloadEvent(CredentialsReloadEvent reloadEvent, boolean reloaded) {
+        reloadEvent.end();
+        if (reloadEvent.shouldCommit()) {
+            reloadEvent.file = credentialsFile.getPath();
+            reloadEvent.reloaded = reloaded;
+            reloadEvent.commit();
+        }
+    }
+
+    private boolean isModified() throws IOException {
+        return isCredentialsFileModified() || isJournalModified();
+    }
+
+    private boolean isJournalModified() {
+        final CredentialsJournal currentJournal = journal;
+        return currentJournal != null && currentJournal.length() != journalPosition;
+    }
+
+    private boolean isCredentialsFileModified() throws IOException {
+        if (credentialsDirectory != null) {
+            return credentialsDirectory.isModified();
+        }
+        final CredentialsFileFingerprint current = CredentialsFileFingerprint.of(credentialsFile, false);
+        if (current == null) {
+            // The users loaded last remain until a file appears again
+            return false;
+        }
+        final CredentialsFileFingerprint known = credentialsFileFingerprint.get();
+        if (known == null) {
+            return true;
+        }
+        final boolean sameAttributes = current.hasSameAttributes(known);
+        if (!contentHashing || !known.isContentHashed()) {
+            return !sameAttributes;
+        }
+        if (sameAttributes && !known.isRacy()) {
+            return false;
+        }
+        // The attributes changed, or may hide a change made in the same tick as the previous one
+        final CredentialsFileFingerprint hashed = CredentialsFileFingerprint.of(credentialsFile, true);
+        if (hashed == null || !hashed.hasSameContent(known)) {
+            return true;
+        }
+        // Unchanged content, remembered so that the file is not hashed again until it is touched
+        credentialsFileFingerprint.compareAndSet(known, hashed);
+        return false;
+    }
+
+    /**
+     * Returns the number of times the credentials file was parsed by {@link #load()}.
+     */
+    long getLoadCount() {
+        return loadCount.sum();
+    }
+
+    /**
+     * Returns the number of {@link #reloadIfModified()} calls that found the file modified while another thread
+     * was already reloading it, and so did not parse the file again.
+     */
+    long getCoalescedReloadCount() {
+        return coalescedReloadCount.sum();
+    }
+
+    /**
+     * Returns the number of lookups rejected by the Bloom filters of the indexes served so far, give or take the
+     * lookups still running on a replaced index.
+     */
+    long getBloomRejectCount() {
+        final CredentialsIndex index = snapshot.getIndex();
+        return retiredBloomRejectCount.sum() + (index == null ? 0 : index.getBloomRejectCount());
+    }
+
+    /**
+     * Returns the number of {@link #reloadIfModified()} calls that found the file modified, but put off reloading
+     * it until it is quiet or the backoff of a failed reload elapsed.
+     */
+    long getDeferredReloadCount() {
+        return deferredReloadCount.sum();
+    }
+
+    /**
+     * Returns the number of times entries of the journal were applied without loading the credentials file.
+     */
+    long getJournalReplayCount() {
+        return journalReplayCount.sum();
+    }
+
+    /**
+     * Returns the number of times {@link #load()} failed reading or parsing the credentials file.
+     */
+    long getLoadErrorCount() {
+        return loadErrorCount.sum();
+    }
+
+    /**
+     * Returns the time in milliseconds since the epoch at which the last successful load ended, or 0 if none.
+     */
+    long getLastLoadTimeMillis() {
+        return lastLoadTimeMillis;
+    }
+
+    long getLastLoadDurationNanos() {
+        return lastLoadDurationNanos;
+    }
+
     public UserCredentials addUser(String userName, String rawPassword) {
+        if (credentialsDirectory != null) {
+            throw new UnsupportedOperationException("Users cannot be added to credentials directory '"
+                    + credentialsFile + "', only to one of its files");
+        }
+        if (findUser(userName) != null) {
+            throw new IllegalArgumentException("User '" + userName + "' already exists");
+        }
         UserCredentials userCreds = factory.createUserCredentials();
         userCreds.setName(userName);
         setPassword(userCreds, rawPassword);
-        List<UserCredentials> usersList = credentialsList.getUser();
-        usersList.add(userCreds);
+        synchronized (writeLock) {
+            materialize();
+            // Checked again since the user may have been added while the password was hashed
+            if (findUser(userName) != null) {
+                throw new IllegalArgumentException("User '" + userName + "' already exists");
+            }
+            publish(snapshot.withUser(userCreds), CredentialsDelta.added(userName));
+        }
         return userCreds;
     }
 
     public UserCredentials findUser(String userName) {
-        List<UserCredentials> usersList = credentialsList.getUser();
-        for (UserCredentials userCreds : usersList) {
-            String credsUserName = userCreds.getName();
-            if (userName.equalsIgnoreCase(credsUserName)) {
-                return userCreds;
+        return snapshot.findUser(userName);
+    }
+
+    PasswordEncoder getPasswordEncoder() {
+        return passwordEncoder;
+    }
+
+    /**
+     * Sets the encoder of new password hashes.
+     */
+    void setPasswordEncoder(PasswordEncoder passwordEncoder) {
+        this.passwordEncoder = passwordEncoder;
+    }
+
+    /**
+     * Returns whether the user's password hash was made with another algorithm or parameters than the configured
+     * encoder's.
+     */
+    boolean needsRehash(UserCredentials userCreds) {
+        final PasswordEncoder encoder = passwordEncoder;
+        final String passwordHash = userCreds.getPasswordHash();
+        return !encoder.supports(passwordHash) || encoder.needsRehash(passwordHash);
+    }
+
+    /**
+     * Replaces the password hash of a user, whose password was just verified, with a hash of the configured encoder.
+     * Nothing is changed if the user was changed or removed in the meantime.
+     *
+     * @return the new user credentials, or null if the user was not replaced
+     */
+    UserCredentials rehashPassword(UserCredentials userCreds, String rawPassword) {
+        return replacePasswordHash(userCreds, passwordEncoder.encode(rawPassword));
+    }
+
+    /**
+     * Replaces the password hash of a user, whose password was just verified, with a new hash of that password
+     * encoded beforehand.  Nothing is changed if the user was changed or removed in the meantime.  The users of a
+     * snapshot served from an index or packed are not parsed nor packed again; the new entry is kept beside them.
+     *
+     * @return the new user credentials, or null if the user was not replaced
+     */
+    UserCredentials replacePasswordHash(UserCredentials userCreds, String passwordHash) {
+        final UserCredentials newUserCreds = factory.createUserCredentials();
+        newUserCreds.setPasswordHash(passwordHash);
+        synchronized (writeLock) {
+            final UserCredentials currentUserCreds = findUser(userCreds.getName());
+            if (currentUserCreds == null || !CredentialsDelta.isUnchanged(currentUserCreds, userCreds)) {
+                return null;
             }
+            newUserCreds.setName(currentUserCreds.getName());
+            publish(snapshot.withReplacedUser(currentUserCreds, newUserCreds),
+                    CredentialsDelta.changed(currentUserCreds.getName()));
         }
-        return null;
+        return newUserCreds;
     }
 
     UserCredentials setPassword(UserCredentials userCreds, String rawPassword) {
-        String hashedPassword = BCrypt.hashpw(rawPassword, BCrypt.gensalt());
+        String hashedPassword = passwordEncoder.encode(rawPassword);
         userCreds.setPasswordHash(hashedPassword);
         return userCreds;
     }
 
     public UserCredentials resetPassword(String userName, String rawPassword) {
-        UserCredentials userCreds = findUser(userName);
-        if (userCreds != null) {
-            setPassword(userCreds, rawPassword);
+        UserCredentials newUserCreds = factory.createUserCredentials();
+        setPassword(newUserCreds, rawPassword);
+        synchronized (writeLock) {
+            materialize();
+            UserCredentials userCreds = findUser(userName);
+            if (userCreds == null) {
+                return null;
+            }
+            // Entries are shared with published snapshots, so the user is replaced rather than modified
+            newUserCreds.setName(userCreds.getName());
+            publish(snapshot.withReplacedUser(userCreds, newUserCreds), CredentialsDelta.changed(userCreds.getName()));
         }
-        return userCreds;
+        return newUserCreds;
     }
 
     public boolean checkPassword(String userName, String rawPassword) {
         UserCredentials userCreds = findUser(userName);
         if (userCreds != null) {
-            final String hashedPassword = userCreds.getPasswordHash();
-            return BCrypt.checkpw(rawPassword, hashedPassword);
+            return checkPassword(userCreds, rawPassword);
         }
         return false;
     }
 
+    boolean checkPassword(UserCredentials userCreds, String rawPassword) {
+        return snapshot.getPreparedHash(userCreds).matches(rawPassword);
+    }
+
+    /**
+     * Returns the work factor of the user's password hash, as reported by
+     * {@link PasswordEncoder.PreparedHash#getCost()}.
+     */
+    int getPasswordCost(UserCredentials userCreds) {
+        return snapshot.getPreparedHash(userCreds).getCost();
+    }
+
     public boolean removeUser(String userName) {
-        UserCredentials userCreds = findUser(userName);
-        if (userCreds != null) {
-            UserCredentialsList credentialsList = getCredentialsList();
-            List<UserCredentials> usersList = credentialsList.getUser();
-            return usersList.remove(userCreds);
+        synchronized (writeLock) {
+            materialize();
+            UserCredentials userCreds = findUser(userName);
+            if (userCreds != null) {
+                publish(snapshot.withoutUser(userCreds), CredentialsDelta.removed(userCreds.getName()));
+                return true;
+            }
         }
         return false;
     }
@@ -192,17 +1014,97 @@ public class CredentialsStore {
         if (credentialsFile == null) {
             throw new InvalidObjectException("Credentials file has not been specified");
         }
-        CredentialsStore.saveCredentialsList(credentialsList, credentialsFile);
-        credentialsListLastModified = credentialsFile.lastModified();
+        synchronized (writeLock) {
+            materialize();
+            final CredentialsSaveEvent saveEvent = new CredentialsSaveEvent();
+            saveEvent.begin();
+            if (credentialsDirectory != null) {
+                final int savedShardCount = credentialsDirectory.save(snapshot, (users, shardFile) -> {
+                    final UserCredentialsList credentialsList = factory.createUserCredentialsList();
+                    credentialsList.getUser().addAll(users);
+                    CredentialsStore.saveCredentialsList(credentialsList, shardFile);
+                });
+                logger.debug("Saved {} files of credentials directory '{}'", savedShardCount, credentialsFile);
+                snapshot = snapshot.withLastModified(credentialsDirectory.getLastModified());
+            } else if (journal != null) {
+                try (CredentialsJournal.Lock lock = journal.lock()) {
+                    // Entries appended since the journal was last read are saved too, rather than deleted with it
+                    applyJournal(journal.read(journalGeneration, journalPosition));
+                    saveCredentialsFile();
+                    journal.delete();
+                    journalGeneration = null;
+                    journalPosition = 0L;
+                }
+            } else {
+                saveCredentialsFile();
+            }
+            saveEvent.end();
+            if (saveEvent.shouldCommit()) {
+                saveEvent.file = credentialsFile.getPath();
+                if (credentialsDirectory == null) {
+                    saveEvent.fileSize = credentialsFile.length();
+                }
+                saveEvent.userCount = snapshot.size();
+                saveEvent.commit();
+            }
+        }
+    }
+
+    /**
+     * Writes the users of the snapshot to the credentials file; must be called holding the write lock.
+     */
+    private void saveCredentialsFile() throws Exception {
+        CredentialsStore.saveCredentialsList(snapshot.toCredentialsList(), credentialsFile);
+        snapshot = snapshot.withLastModified(credentialsFile.lastModified());
+        credentialsFileFingerprint.set(CredentialsFileFingerprint.of(credentialsFile, contentHashing));
+    }
+
+    /**
+     * Writes users whose password was rehashed, unless the credentials file was modified since it was last loaded
+     * or saved, in which case the changes on file win and the next reload replaces the in-memory changes.  With a
+     * journal, each user still current is appended to it as a reset rather than saving the file.  Users kept beside
+     * an index are not written, as saving would parse the whole file: they are written with the next change saved to
+     * the file, or rehashed again after a reload.
+     *
+     * @return true if the users were written
+     */
+    boolean saveRehashedUsers(Collection<UserCredentials> rehashedUsers) throws Exception {
+        synchronized (writeLock) {
+            if (credentialsFile == null || isModified() || snapshot.getIndex() != null) {
+                return false;
+            }
+            if (journal == null) {
+                save();
+                return true;
+            }
+            for (UserCredentials userCreds : rehashedUsers) {
+                // Users changed or removed since their rehash are left to that change
+                if (findUser(userCreds.getName()) == userCreds) {
+                    appendJournal(new CredentialsJournal.Entry(CredentialsJournal.Operation.RESET,
+                            userCreds.getName(), userCreds.getPasswordHash()));
+                }
+            }
+            return true;
+        }
     }
 
     public void save(File saveFile) throws Exception {
-        credentialsFile = saveFile;
-        save();
+        synchronized (writeLock) {
+            // Users served from an index are loaded from the file they were compiled from
+            materialize();
+            // The users of a directory are all saved to the file, which then backs the store
+            credentialsDirectory = null;
+            if (journal != null && !saveFile.equals(credentialsFile)) {
+                journal = new CredentialsJournal(CredentialsJournal.getJournalFile(saveFile));
+                journalGeneration = null;
+                journalPosition = 0L;
+            }
+            credentialsFile = saveFile;
+            save();
+        }
     }
 
     public void save(String saveFilePath) throws Exception {
-        credentialsFile = new File(saveFilePath);
-        save();
+        save(new File(saveFilePath));
     }
 }
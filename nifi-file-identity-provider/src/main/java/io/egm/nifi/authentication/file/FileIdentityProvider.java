@@ -18,8 +18,12 @@ package io.egm.nifi.authentication.file;
 
 import java.io.File;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
+import io.egm.nifi.authentication.file.generated.ObjectFactory;
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+
 import org.apache.nifi.authentication.AuthenticationResponse;
 import org.apache.nifi.authentication.LoginCredentials;
 import org.apache.nifi.authentication.LoginIdentityProvider;
@@ -29,6 +33,7 @@ import org.apache.nifi.authentication.exception.IdentityAccessException;
 import org.apache.nifi.authentication.exception.InvalidLoginCredentialsException;
 import org.apache.nifi.authentication.exception.ProviderCreationException;
 import org.apache.nifi.authentication.exception.ProviderDestructionException;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.util.FormatUtils;
 
 import org.apache.commons.lang3.StringUtils;
@@ -47,14 +52,67 @@ import org.slf4j.LoggerFactory;
 public class FileIdentityProvider implements LoginIdentityProvider {
 
     static final String PROPERTY_CREDENTIALS_FILE = "Credentials File";
+    static final String PROPERTY_CREDENTIALS_DIRECTORY = "Credentials Directory";
     static final String PROPERTY_EXPIRATION_PERIOD = "Authentication Expiration";
+    static final String PROPERTY_VERIFIED_LOGIN_CACHE_SIZE = "Verified Login Cache Size";
+    static final String PROPERTY_FAILED_LOGIN_CACHE_SIZE = "Failed Login Cache Size";
+    static final String PROPERTY_WATCH_CREDENTIALS_FILE = "Watch Credentials File";
+    static final String PROPERTY_WATCH_POLLING_INTERVAL = "Watch Polling Interval";
+    static final String PROPERTY_RELOAD_QUIET_PERIOD = "Reload Quiet Period";
+    static final String PROPERTY_RELOAD_FAILURE_BACKOFF = "Reload Failure Backoff";
+    static final String PROPERTY_RELOAD_FAILURE_MAX_BACKOFF = "Reload Failure Max Backoff";
+    static final String PROPERTY_STREAMING_CREDENTIALS_LOADER = "Streaming Credentials Loader";
+    static final String PROPERTY_CREDENTIALS_INDEX = "Credentials Index";
+    static final String PROPERTY_COMPACT_CREDENTIALS = "Compact Credentials";
+    static final String PROPERTY_COMPARE_CREDENTIALS_CONTENT = "Compare Credentials Content";
+    static final String PROPERTY_CREDENTIALS_JOURNAL = "Credentials Journal";
+    static final String PROPERTY_EAGER_LOAD = "Eager Load";
+    static final String PROPERTY_WARM_UP_VERIFICATIONS = "Warm-up Verifications";
+    static final String PROPERTY_VERIFICATION_PROCESSOR_SHARE = "Verification Processor Share";
+    static final String PROPERTY_VERIFICATION_QUEUE_SIZE = "Verification Queue Size";
+    static final String PROPERTY_VERIFICATION_MAX_WAIT = "Verification Max Wait";
+    static final String PROPERTY_LOGIN_FAILURE_LIMIT = "Login Failure Limit";
+    static final String PROPERTY_PASSWORD_HASH_ALGORITHM = "Password Hash Algorithm";
+    static final String PROPERTY_PASSWORD_HASH_COST = "Password Hash Cost";
+    static final String PROPERTY_PASSWORD_HASH_MEMORY = "Password Hash Memory";
+    static final String PROPERTY_PASSWORD_HASH_PARALLELISM = "Password Hash Parallelism";
+    static final String PROPERTY_LOGIN_FAILURE_WINDOW = "Login Failure Window";
+    static final String PROPERTY_LOGIN_FAILURE_BACKOFF = "Login Failure Backoff";
+    static final String PROPERTY_AUDIT_LOG_FILE = "Audit Log File";
+    static final String PROPERTY_AUDIT_LOG_QUEUE_SIZE = "Audit Log Queue Size";
+    static final String PROPERTY_AUDIT_LOG_WHEN_FULL = "Audit Log When Full";
+    static final String PROPERTY_AUDIT_LOG_MAX_FILE_SIZE = "Audit Log Max File Size";
+    static final String PROPERTY_AUDIT_LOG_MAX_FILES = "Audit Log Max Files";
+
+    static final String DEFAULT_WATCH_POLLING_INTERVAL = "30 secs";
+    static final String DEFAULT_RELOAD_QUIET_PERIOD = "0 secs";
+    static final String DEFAULT_RELOAD_FAILURE_BACKOFF = "1 sec";
+    static final String DEFAULT_RELOAD_FAILURE_MAX_BACKOFF = "5 mins";
+    static final int DEFAULT_VERIFICATION_QUEUE_SIZE = 100;
+    static final String DEFAULT_VERIFICATION_MAX_WAIT = "5 secs";
+    static final String DEFAULT_LOGIN_FAILURE_WINDOW = "5 mins";
+    static final String DEFAULT_LOGIN_FAILURE_BACKOFF = "1 sec";
+    static final int DEFAULT_AUDIT_LOG_QUEUE_SIZE = 8192;
+    static final String DEFAULT_AUDIT_LOG_MAX_FILE_SIZE = "10 MB";
+    static final int DEFAULT_AUDIT_LOG_MAX_FILES = 10;
+    static final int LOGIN_FAILURE_TRACKING_SIZE = 8192;
+    static final long REHASH_WRITE_DELAY_MILLISECONDS = 10_000;
 
     private static final Logger logger = LoggerFactory.getLogger(FileIdentityProvider.class);
+    private static final ObjectFactory factory = new ObjectFactory();
 
     private String issuer;
     private long expirationPeriodMilliseconds;
     private String credentialsFilePath;
     private CredentialsStore credentialsStore;
+    private LoginVerificationCache verifiedLoginCache;
+    private LoginVerificationCache failedLoginCache;
+    private CredentialsFileWatcher credentialsFileWatcher;
+    private PasswordVerificationExecutor verificationExecutor;
+    private LoginFailureThrottle loginFailureThrottle;
+    private RehashWriter rehashWriter;
+    private AuditLog auditLog;
+    private FileIdentityProviderMetrics metrics;
     private String identifier;
 
     @Override
@@ -72,18 +130,81 @@ public class FileIdentityProvider implements LoginIdentityProvider {
         }
 
         credentialsFilePath = configProperties.get(PROPERTY_CREDENTIALS_FILE);
-        if (StringUtils.isEmpty(credentialsFilePath)) {
+        final String credentialsDirectoryPath = configProperties.get(PROPERTY_CREDENTIALS_DIRECTORY);
+        final boolean useDirectory = StringUtils.isNotBlank(credentialsDirectoryPath);
+        if (useDirectory && StringUtils.isNotEmpty(credentialsFilePath)) {
+            final String message = String.format("Identity Provider '%s' accepts only one of properties '%s' and '%s'",
+                    identifier, PROPERTY_CREDENTIALS_FILE, PROPERTY_CREDENTIALS_DIRECTORY);
+            throw new ProviderCreationException(message);
+        }
+        if (useDirectory) {
+            credentialsFilePath = credentialsDirectoryPath.trim();
+        } else if (StringUtils.isEmpty(credentialsFilePath)) {
             final String message = String.format("Identity Provider '%s' requires a credentials file path in property '%s'",
                     identifier, PROPERTY_CREDENTIALS_FILE);
             throw new ProviderCreationException(message);
         }
         File credentialsFile = new File(credentialsFilePath);
         if (!credentialsFile.exists()) {
-            final String message = String.format("Identity Provider '%s' credentials file does not exist: '%s'",
-                    identifier, credentialsFilePath);
+            final String message = String.format("Identity Provider '%s' credentials %s does not exist: '%s'",
+                    identifier, useDirectory ? "directory" : "file", credentialsFilePath);
             logger.warn(message);
         }
-        credentialsStore = new CredentialsStore(credentialsFile);
+        final boolean useIndex = getBooleanProperty(configProperties, PROPERTY_CREDENTIALS_INDEX);
+        final boolean compact = getBooleanProperty(configProperties, PROPERTY_COMPACT_CREDENTIALS);
+        if (useDirectory && (useIndex || compact)) {
+            final String message = String.format("Identity Provider '%s' property '%s' cannot be combined with '%s' or '%s'",
+                    identifier, PROPERTY_CREDENTIALS_DIRECTORY, PROPERTY_CREDENTIALS_INDEX, PROPERTY_COMPACT_CREDENTIALS);
+            throw new ProviderCreationException(message);
+        }
+        final boolean useJournal = getBooleanProperty(configProperties, PROPERTY_CREDENTIALS_JOURNAL);
+        if (useDirectory && useJournal) {
+            final String message = String.format("Identity Provider '%s' property '%s' cannot be combined with '%s'",
+                    identifier, PROPERTY_CREDENTIALS_DIRECTORY, PROPERTY_CREDENTIALS_JOURNAL);
+            throw new ProviderCreationException(message);
+        }
+        credentialsStore = useDirectory ? CredentialsStore.forDirectory(credentialsFile) : new CredentialsStore(credentialsFile);
+        credentialsStore.setJournal(useJournal);
+        credentialsStore.setStreamingLoad(getBooleanProperty(configProperties, PROPERTY_STREAMING_CREDENTIALS_LOADER));
+        credentialsStore.setUseIndex(useIndex);
+        credentialsStore.setCompact(compact);
+        credentialsStore.setContentHashing(getBooleanProperty(configProperties, PROPERTY_COMPARE_CREDENTIALS_CONTENT));
+        credentialsStore.setReloadQuietPeriod(getTimePeriodProperty(configProperties, PROPERTY_RELOAD_QUIET_PERIOD,
+                DEFAULT_RELOAD_QUIET_PERIOD), TimeUnit.MILLISECONDS);
+        final long reloadFailureBackoffMilliseconds = getTimePeriodProperty(configProperties,
+                PROPERTY_RELOAD_FAILURE_BACKOFF, DEFAULT_RELOAD_FAILURE_BACKOFF);
+        final long reloadFailureMaxBackoffMilliseconds = getTimePeriodProperty(configProperties,
+                PROPERTY_RELOAD_FAILURE_MAX_BACKOFF, DEFAULT_RELOAD_FAILURE_MAX_BACKOFF);
+        if (reloadFailureMaxBackoffMilliseconds < reloadFailureBackoffMilliseconds) {
+            final String message = String.format("Identity Provider '%s' property '%s' must be at least '%s'",
+                    identifier, PROPERTY_RELOAD_FAILURE_MAX_BACKOFF, PROPERTY_RELOAD_FAILURE_BACKOFF);
+            throw new ProviderCreationException(message);
+        }
+        credentialsStore.setReloadFailureBackoff(reloadFailureBackoffMilliseconds, reloadFailureMaxBackoffMilliseconds,
+                TimeUnit.MILLISECONDS);
+        credentialsStore.addChangeListener(this::onCredentialsChanged);
+
+        final boolean eagerLoad = getBooleanProperty(configProperties, PROPERTY_EAGER_LOAD);
+        final int warmUpVerifications = getIntegerProperty(configProperties, PROPERTY_WARM_UP_VERIFICATIONS, 0);
+
+        final String auditLogFilePath = configProperties.get(PROPERTY_AUDIT_LOG_FILE);
+        AuditLog configuredAuditLog = null;
+        if (StringUtils.isNotBlank(auditLogFilePath)) {
+            final int queueSize = getIntegerProperty(configProperties, PROPERTY_AUDIT_LOG_QUEUE_SIZE,
+                    DEFAULT_AUDIT_LOG_QUEUE_SIZE);
+            if (queueSize < 1) {
+                final String message = String.format("Identity Provider '%s' property '%s' must be at least 1",
+                        identifier, PROPERTY_AUDIT_LOG_QUEUE_SIZE);
+                throw new ProviderCreationException(message);
+            }
+            final long maxFileSize = getDataSizeProperty(configProperties, PROPERTY_AUDIT_LOG_MAX_FILE_SIZE,
+                    DEFAULT_AUDIT_LOG_MAX_FILE_SIZE);
+            final int maxFiles = getIntegerProperty(configProperties, PROPERTY_AUDIT_LOG_MAX_FILES,
+                    DEFAULT_AUDIT_LOG_MAX_FILES);
+            // Not started before the other properties are validated
+            configuredAuditLog = new AuditLog(new File(auditLogFilePath.trim()), queueSize,
+                    getAuditLogBlockWhenFull(configProperties), maxFileSize, maxFiles);
+        }
 
         final String rawExpirationPeriod = configProperties.get(PROPERTY_EXPIRATION_PERIOD);
         if (rawExpirationPeriod == null || rawExpirationPeriod.isEmpty()) {
@@ -100,10 +221,266 @@ public class FileIdentityProvider implements LoginIdentityProvider {
             }
         }
 
+        final String rawProcessorShare = configProperties.get(PROPERTY_VERIFICATION_PROCESSOR_SHARE);
+        final boolean useVerificationExecutor = StringUtils.isNotBlank(rawProcessorShare);
+        double processorShare = 0;
+        int verificationQueueSize = 0;
+        long verificationMaxWaitMilliseconds = 0;
+        if (useVerificationExecutor) {
+            processorShare = getProcessorShare(rawProcessorShare);
+            verificationQueueSize = getIntegerProperty(configProperties, PROPERTY_VERIFICATION_QUEUE_SIZE,
+                    DEFAULT_VERIFICATION_QUEUE_SIZE);
+            verificationMaxWaitMilliseconds = getTimePeriodProperty(configProperties, PROPERTY_VERIFICATION_MAX_WAIT,
+                    DEFAULT_VERIFICATION_MAX_WAIT);
+            if (verificationQueueSize < 1) {
+                final String message = String.format("Identity Provider '%s' property '%s' must be at least 1",
+                        identifier, PROPERTY_VERIFICATION_QUEUE_SIZE);
+                throw new ProviderCreationException(message);
+            }
+        }
+
+        final String passwordHashAlgorithm = configProperties.get(PROPERTY_PASSWORD_HASH_ALGORITHM);
+        final int passwordHashCost = getIntegerProperty(configProperties, PROPERTY_PASSWORD_HASH_COST, 0);
+        final boolean rehashPasswords = StringUtils.isNotBlank(passwordHashAlgorithm) || passwordHashCost > 0;
+        if (rehashPasswords) {
+            final int passwordHashMemory = getIntegerProperty(configProperties, PROPERTY_PASSWORD_HASH_MEMORY, 0);
+            final int passwordHashParallelism = getIntegerProperty(configProperties, PROPERTY_PASSWORD_HASH_PARALLELISM, 0);
+            try {
+                credentialsStore.setPasswordEncoder(PasswordEncoders.create(
+                        StringUtils.isBlank(passwordHashAlgorithm) ? PasswordEncoders.BCRYPT : passwordHashAlgorithm,
+                        passwordHashCost > 0 ? passwordHashCost : null,
+                        passwordHashMemory > 0 ? passwordHashMemory : null,
+                        passwordHashParallelism > 0 ? passwordHashParallelism : null));
+            } catch (IllegalArgumentException iae) {
+                final String message = String.format("Identity Provider '%s' password hash properties are invalid: %s",
+                        identifier, iae.getMessage());
+                throw new ProviderCreationException(message);
+            }
+            logger.debug("Identity Provider '{}' hashing passwords with {}", identifier,
+                    credentialsStore.getPasswordEncoder());
+        }
+
+        final int verifiedLoginCacheSize = getIntegerProperty(configProperties, PROPERTY_VERIFIED_LOGIN_CACHE_SIZE, 0);
+        final int failedLoginCacheSize = getIntegerProperty(configProperties, PROPERTY_FAILED_LOGIN_CACHE_SIZE, 0);
+
+        final int loginFailureLimit = getIntegerProperty(configProperties, PROPERTY_LOGIN_FAILURE_LIMIT, 0);
+        if (loginFailureLimit > 0) {
+            final long windowMilliseconds = getTimePeriodProperty(configProperties, PROPERTY_LOGIN_FAILURE_WINDOW,
+                    DEFAULT_LOGIN_FAILURE_WINDOW);
+            final long backoffMilliseconds = getTimePeriodProperty(configProperties, PROPERTY_LOGIN_FAILURE_BACKOFF,
+                    DEFAULT_LOGIN_FAILURE_BACKOFF);
+            loginFailureThrottle = new LoginFailureThrottle(LOGIN_FAILURE_TRACKING_SIZE, loginFailureLimit,
+                    windowMilliseconds, backoffMilliseconds, TimeUnit.MILLISECONDS);
+        }
+
+        final boolean watchCredentialsFile = getBooleanProperty(configProperties, PROPERTY_WATCH_CREDENTIALS_FILE);
+        final long pollingIntervalMilliseconds = watchCredentialsFile ? getTimePeriodProperty(configProperties,
+                PROPERTY_WATCH_POLLING_INTERVAL, DEFAULT_WATCH_POLLING_INTERVAL) : 0;
+
+        if (eagerLoad) {
+            // Fails fast on a missing or invalid file, rather than on the first login
+            try {
+                credentialsStore.load();
+            } catch (Exception ex) {
+                final String message = String.format("Identity Provider '%s' failed loading credentials %s '%s': %s",
+                        identifier, useDirectory ? "directory" : "file", credentialsFilePath, ex.getMessage());
+                throw new ProviderCreationException(message, ex);
+            }
+        }
+
+        if (verifiedLoginCacheSize > 0) {
+            verifiedLoginCache = new LoginVerificationCache(verifiedLoginCacheSize, expirationPeriodMilliseconds,
+                    TimeUnit.MILLISECONDS);
+        }
+        if (failedLoginCacheSize > 0) {
+            failedLoginCache = new LoginVerificationCache(failedLoginCacheSize, expirationPeriodMilliseconds,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        // All properties are valid: threads started from here are stopped again if the provider fails to start
+        try {
+            if (useVerificationExecutor) {
+                verificationExecutor = new PasswordVerificationExecutor(
+                        PasswordVerificationExecutor.getThreadCount(processorShare), verificationQueueSize,
+                        verificationMaxWaitMilliseconds, TimeUnit.MILLISECONDS);
+                logger.debug("Identity Provider '{}' verifying passwords with {} threads", identifier,
+                        verificationExecutor.getThreadCount());
+            }
+            if (rehashPasswords) {
+                rehashWriter = new RehashWriter(credentialsStore, REHASH_WRITE_DELAY_MILLISECONDS, verificationExecutor);
+            }
+
+            if (watchCredentialsFile) {
+                if (!eagerLoad) {
+                    try {
+                        credentialsStore.load();
+                    } catch (Exception ex) {
+                        logger.error("Identity Provider '{}' failed loading credentials file '{}'", identifier, credentialsFilePath, ex);
+                    }
+                }
+                credentialsFileWatcher = new CredentialsFileWatcher(credentialsStore, credentialsFile, pollingIntervalMilliseconds);
+                credentialsFileWatcher.start();
+            }
+
+            if (eagerLoad && warmUpVerifications > 0) {
+                warmUp(warmUpVerifications);
+            }
+
+            if (configuredAuditLog != null) {
+                auditLog = configuredAuditLog;
+                auditLog.start();
+            }
+            metrics = new FileIdentityProviderMetrics(credentialsStore, auditLog, verifiedLoginCache, failedLoginCache,
+                    verificationExecutor, loginFailureThrottle);
+            metrics.register(identifier);
+        } catch (RuntimeException ex) {
+            stop();
+            throw ex;
+        }
+
         logger.debug("Identity Provider '{}' configured to use file '{}' and expiration period of '{}'={} milliseconds",
                 identifier, credentialsFilePath, rawExpirationPeriod, expirationPeriodMilliseconds);
     }
 
+    /**
+     * Runs lookups and password verifications of a throwaway user, with the configured encoder, so that they are
+     * compiled before the first logins.  Neither counts as a login.
+     */
+    private void warmUp(final int verificationCount) throws ProviderCreationException {
+        final long startNanos = System.nanoTime();
+        final String password = UUID.randomUUID().toString();
+        final UserCredentials warmUpUserCreds = credentialsStore.setPassword(factory.createUserCredentials(), password);
+        int matchCount = 0;
+        try {
+            for (int i = 0; i < verificationCount; i++) {
+                credentialsStore.findUser("warm-up-" + i);
+                // Every other attempt fails, as half of the logins may
+                if (checkPassword(warmUpUserCreds, i % 2 == 0 ? password : "")) {
+                    matchCount++;
+                }
+            }
+        } catch (Exception ex) {
+            final String message = String.format("Identity Provider '%s' failed warming up password verification: %s",
+                    identifier, ex.getMessage());
+            throw new ProviderCreationException(message, ex);
+        }
+        if (matchCount != (verificationCount + 1) / 2) {
+            final String message = String.format("Identity Provider '%s' verified warm-up passwords incorrectly", identifier);
+            throw new ProviderCreationException(message);
+        }
+        logger.info("Identity Provider '{}' warmed up with {} password verifications in {} ms", identifier,
+                verificationCount, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    private double getProcessorShare(final String rawValue) throws ProviderCreationException {
+        try {
+            final double processorShare = Double.parseDouble(rawValue.trim());
+            if (processorShare > 0 && processorShare <= 1) {
+                return processorShare;
+            }
+        } catch (NumberFormatException ignored) {
+            // Reported below
+        }
+        final String message = String.format("Identity Provider '%s' property '%s' value of '%s', is not a number greater than 0 and at most 1",
+                identifier, PROPERTY_VERIFICATION_PROCESSOR_SHARE, rawValue);
+        throw new ProviderCreationException(message);
+    }
+
+    private boolean getAuditLogBlockWhenFull(final Map<String, String> configProperties) throws ProviderCreationException {
+        final String rawValue = configProperties.get(PROPERTY_AUDIT_LOG_WHEN_FULL);
+        if (StringUtils.isBlank(rawValue) || AuditLog.POLICY_DROP.equalsIgnoreCase(rawValue.trim())) {
+            return false;
+        }
+        if (AuditLog.POLICY_BLOCK.equalsIgnoreCase(rawValue.trim())) {
+            return true;
+        }
+        final String message = String.format("Identity Provider '%s' property '%s' value of '%s', must be '%s' or '%s'",
+                identifier, PROPERTY_AUDIT_LOG_WHEN_FULL, rawValue, AuditLog.POLICY_DROP, AuditLog.POLICY_BLOCK);
+        throw new ProviderCreationException(message);
+    }
+
+    private long getDataSizeProperty(final Map<String, String> configProperties, final String propertyName,
+                                     final String defaultValue) throws ProviderCreationException {
+        String rawValue = configProperties.get(propertyName);
+        if (StringUtils.isBlank(rawValue)) {
+            rawValue = defaultValue;
+        }
+        try {
+            final double value = DataUnit.parseDataSize(rawValue.trim(), DataUnit.B);
+            if (value >= 1) {
+                return (long) value;
+            }
+        } catch (IllegalArgumentException iae) {
+            // Reported below
+        }
+        final String message = String.format("Identity Provider '%s' property '%s' value of '%s', is not a valid data size",
+                identifier, propertyName, rawValue);
+        throw new ProviderCreationException(message);
+    }
+
+    private boolean getBooleanProperty(final Map<String, String> configProperties, final String propertyName)
+            throws ProviderCreationException {
+        final String rawValue = configProperties.get(propertyName);
+        if (StringUtils.isBlank(rawValue)) {
+            return false;
+        }
+        final String value = rawValue.trim();
+        if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+            final String message = String.format("Identity Provider '%s' property '%s' value of '%s', must be 'true' or 'false'",
+                    identifier, propertyName, rawValue);
+            throw new ProviderCreationException(message);
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    private long getTimePeriodProperty(final Map<String, String> configProperties, final String propertyName,
+                                       final String defaultValue) throws ProviderCreationException {
+        String rawValue = configProperties.get(propertyName);
+        if (StringUtils.isBlank(rawValue)) {
+            rawValue = defaultValue;
+        }
+        try {
+            return Math.round(FormatUtils.getPreciseTimeDuration(rawValue.trim(), TimeUnit.MILLISECONDS));
+        } catch (IllegalArgumentException iae) {
+            final String message = String.format("Identity Provider '%s' property '%s' value of '%s', is not a valid time period",
+                    identifier, propertyName, rawValue);
+            throw new ProviderCreationException(message);
+        }
+    }
+
+    private int getIntegerProperty(final Map<String, String> configProperties, final String propertyName,
+                                   final int defaultValue) throws ProviderCreationException {
+        final String rawValue = configProperties.get(propertyName);
+        if (StringUtils.isBlank(rawValue)) {
+            return defaultValue;
+        }
+        try {
+            final int value = Integer.parseInt(rawValue.trim());
+            if (value < 0) {
+                throw new NumberFormatException();
+            }
+            return value;
+        } catch (NumberFormatException nfe) {
+            final String message = String.format("Identity Provider '%s' property '%s' value of '%s', is not a valid non-negative integer",
+                    identifier, propertyName, rawValue);
+            throw new ProviderCreationException(message);
+        }
+    }
+
+    private void onCredentialsChanged(final CredentialsDelta delta) {
+        logger.debug("Identity Provider '{}' credentials changed: {}", identifier, delta);
+        // Entries of unchanged users stay valid, so that a reload does not force their passwords to be checked again
+        invalidateChangedUsers(verifiedLoginCache, delta);
+        invalidateChangedUsers(failedLoginCache, delta);
+    }
+
+    private static void invalidateChangedUsers(final LoginVerificationCache cache, final CredentialsDelta delta) {
+        if (cache != null) {
+            cache.invalidate(delta.getRemovedUsers());
+            cache.invalidate(delta.getChangedUsers());
+        }
+    }
+
     String getCredentialsFilePath() {
         return credentialsFilePath;
     }
@@ -112,37 +489,187 @@ public class FileIdentityProvider implements LoginIdentityProvider {
         return expirationPeriodMilliseconds;
     }
 
+    LoginVerificationCache getVerifiedLoginCache() {
+        return verifiedLoginCache;
+    }
+
+    LoginVerificationCache getFailedLoginCache() {
+        return failedLoginCache;
+    }
+
+    CredentialsFileWatcher getCredentialsFileWatcher() {
+        return credentialsFileWatcher;
+    }
+
+    PasswordVerificationExecutor getVerificationExecutor() {
+        return verificationExecutor;
+    }
+
+    RehashWriter getRehashWriter() {
+        return rehashWriter;
+    }
+
+    LoginFailureThrottle getLoginFailureThrottle() {
+        return loginFailureThrottle;
+    }
+
+    AuditLog getAuditLog() {
+        return auditLog;
+    }
+
+    FileIdentityProviderMetrics getMetrics() {
+        return metrics;
+    }
+
     @Override
     public final AuthenticationResponse authenticate(final LoginCredentials credentials) throws InvalidLoginCredentialsException, IdentityAccessException {
         final String loginUsername = credentials.getUsername();
         final String loginPassword = credentials.getPassword();
         AuthenticationResponse authResponse = null;
+        final LoginEvent loginEvent = new LoginEvent();
+        loginEvent.begin();
+
+        if (loginFailureThrottle != null && loginFailureThrottle.isThrottled(loginUsername)) {
+            // Rejected without checking the password, which would cost as much as a real attempt
+            logger.debug("Identity Provider '{}' throttled login for user '{}'", identifier, loginUsername);
+            metrics.recordLoginFailure();
+            recordLogin(loginEvent, loginUsername, null, LoginEvent.OUTCOME_THROTTLED, "too many failed logins");
+            throw new InvalidLoginCredentialsException("The login attempt was unsuccessful");
+        }
 
+        UserCredentials userCreds = null;
+        String reason = "unknown user";
         try {
-            credentialsStore.reloadIfModified();
-            boolean passwordMatches = credentialsStore.checkPassword(loginUsername, loginPassword);
+            final long lookupStartNanos = System.nanoTime();
+            if (credentialsFileWatcher == null) {
+                reloadIfModified();
+            }
+            boolean passwordMatches = false;
+            userCreds = credentialsStore.findUser(loginUsername);
+            metrics.recordLookup(System.nanoTime() - lookupStartNanos);
+            if (userCreds != null) {
+                if (verifiedLoginCache != null && verifiedLoginCache.contains(userCreds, loginPassword)) {
+                    passwordMatches = true;
+                    reason = "verified login cached";
+                } else if (failedLoginCache == null || !failedLoginCache.contains(userCreds, loginPassword)) {
+                    final long verificationStartNanos = System.nanoTime();
+                    loginEvent.passwordChecked = true;
+                    passwordMatches = checkPassword(userCreds, loginPassword);
+                    metrics.recordVerification(System.nanoTime() - verificationStartNanos);
+                    reason = passwordMatches ? "password verified" : "invalid password";
+                    UserCredentials verifiedUserCreds = userCreds;
+                    if (passwordMatches && rehashWriter != null) {
+                        verifiedUserCreds = rehashWriter.rehashIfNeeded(userCreds, loginPassword);
+                    }
+                    if (passwordMatches && verifiedLoginCache != null) {
+                        verifiedLoginCache.put(verifiedUserCreds, loginPassword);
+                    } else if (!passwordMatches && failedLoginCache != null) {
+                        failedLoginCache.put(userCreds, loginPassword);
+                    }
+                } else {
+                    reason = "failed login cached";
+                }
+            }
+            // Only usernames in the credentials store are tracked, as failures of unknown ones cost no hashing
+            if (loginFailureThrottle != null && userCreds != null) {
+                if (passwordMatches) {
+                    loginFailureThrottle.recordSuccess(loginUsername);
+                } else {
+                    loginFailureThrottle.recordFailure(loginUsername);
+                }
+            }
             if (passwordMatches) {
                 authResponse = new AuthenticationResponse(loginUsername, loginUsername, expirationPeriodMilliseconds,
                         issuer);
             }
+        } catch (IdentityAccessException ex) {
+            // Rejected by admission control, which is expected under load and counted rather than logged as an error
+            logger.debug("Identity Provider '{}' rejected user authentication: {}", identifier, ex.getMessage());
+            metrics.recordLoginError();
+            recordLogin(loginEvent, loginUsername, userCreds, LoginEvent.OUTCOME_ERROR, ex.getMessage());
+            throw ex;
         } catch (Exception ex) {
             // This message is written to the log, so it can be specific and helpful
             logger.error("Identity Provider '{}' failed attempting user authentication", identifier, ex);
+            metrics.recordLoginError();
+            recordLogin(loginEvent, loginUsername, userCreds, LoginEvent.OUTCOME_ERROR, ex.getMessage());
 
             // This message is shown to the user so should not be very specific
             throw new IdentityAccessException("Authentication failed", ex);
         }
 
         if (authResponse == null) {
+            metrics.recordLoginFailure();
+            recordLogin(loginEvent, loginUsername, userCreds, LoginEvent.OUTCOME_FAILURE, reason);
             // This exception message is not shown in the UI
             throw new InvalidLoginCredentialsException("The login attempt was unsuccessful");
         }
 
+        metrics.recordLoginSuccess();
+        recordLogin(loginEvent, loginUsername, userCreds, LoginEvent.OUTCOME_SUCCESS, reason);
         return authResponse;
     }
 
+    private void reloadIfModified() throws Exception {
+        try {
+            credentialsStore.reloadIfModified();
+        } catch (Exception ex) {
+            if (!credentialsStore.isLoaded()) {
+                throw ex;
+            }
+            // The last users loaded keep being served until the file can be loaded again
+            logger.error("Identity Provider '{}' failed reloading credentials file '{}', serving the users loaded before",
+                    identifier, credentialsFilePath, ex);
+        }
+    }
+
+    private void recordLogin(final LoginEvent loginEvent, final String loginUsername, final UserCredentials userCreds,
+                             final String outcome, final String reason) {
+        if (auditLog != null) {
+            auditLog.record(loginUsername, outcome, reason);
+        }
+        loginEvent.end();
+        if (loginEvent.shouldCommit()) {
+            // Only computed when the event is enabled, as hashing the username is not free
+            loginEvent.userNameHash = LoginEvent.hashUserName(loginUsername);
+            loginEvent.outcome = outcome;
+            loginEvent.passwordCost = userCreds == null ? 0 : credentialsStore.getPasswordCost(userCreds);
+            loginEvent.commit();
+        }
+    }
+
+    private boolean checkPassword(final UserCredentials userCreds, final String loginPassword) throws Exception {
+        if (verificationExecutor == null) {
+            return credentialsStore.checkPassword(userCreds, loginPassword);
+        }
+        return verificationExecutor.verify(() -> credentialsStore.checkPassword(userCreds, loginPassword));
+    }
+
     @Override
     public final void preDestruction() throws ProviderDestructionException {
+        stop();
+    }
+
+    private void stop() {
+        if (credentialsFileWatcher != null) {
+            credentialsFileWatcher.close();
+            credentialsFileWatcher = null;
+        }
+        if (verificationExecutor != null) {
+            verificationExecutor.close();
+            verificationExecutor = null;
+        }
+        if (rehashWriter != null) {
+            rehashWriter.close();
+            rehashWriter = null;
+        }
+        if (auditLog != null) {
+            auditLog.close();
+            auditLog = null;
+        }
+        if (metrics != null) {
+            metrics.unregister();
+        }
     }
 
 }
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+
+/**
+ * Management interface of a {@link FileIdentityProvider}, registered with the platform MBean server under the
+ * name {@code io.egm.nifi.authentication.file:type=FileIdentityProvider,name=<identifier>}.
+ *
+ * <p>Counts and latencies are accumulated since the provider was configured, or since the last
+ * {@link #resetStatistics()}.  Latencies are in microseconds, within 12.5% of the actual values.</p>
+ */
+public interface FileIdentityProviderMXBean {
+
+    long getLoginSuccessCount();
+
+    /**
+     * Returns the number of logins rejected for a wrong username or password, or a throttled username.
+     */
+    long getLoginFailureCount();
+
+    /**
+     * Returns the number of logins that failed with an error, including those rejected by admission control.
+     */
+    long getLoginErrorCount();
+
+    /**
+     * Returns the number of user lookups, each checking the credentials file for changes unless it is watched, and
+     * finding the user.
+     */
+    long getLookupCount();
+
+    double getLookupLatencyMedianMicros();
+
+    double getLookupLatency99thPercentileMicros();
+
+    double getLookupLatencyMaxMicros();
+
+    /**
+     * Returns the number of password verifications, which excludes logins answered by the login caches.
+     */
+    long getVerificationCount();
+
+    double getVerificationLatencyMedianMicros();
+
+    double getVerificationLatency99thPercentileMicros();
+
+    double getVerificationLatencyMaxMicros();
+
+    /**
+     * Returns the number of logins answered by the verified login cache without verifying the password, or 0
+     * without the cache.
+     */
+    long getVerifiedLoginCacheHitCount();
+
+    long getVerifiedLoginCacheMissCount();
+
+    /**
+     * Returns the number of logins rejected by the failed login cache without verifying the password, or 0 without
+     * the cache.
+     */
+    long getFailedLoginCacheHitCount();
+
+    long getFailedLoginCacheMissCount();
+
+    /**
+     * Returns the number of verifications waiting for a thread of the verification pool, or 0 without the pool.
+     */
+    int getVerificationQueueDepth();
+
+    /**
+     * Returns the total time verifications waited for a thread of the verification pool, in milliseconds.
+     */
+    double getVerificationQueueWaitTotalMillis();
+
+    /**
+     * Returns the number of logins rejected because the verification queue was full.
+     */
+    long getVerificationRejectedCount();
+
+    /**
+     * Returns the number of logins rejected because their verification did not complete in time.
+     */
+    long getVerificationTimedOutCount();
+
+    /**
+     * Returns the number of logins rejected because their username had too many failed logins, or 0 without
+     * throttling.
+     */
+    long getThrottledLoginCount();
+
+    /**
+     * Returns the number of times the credentials file was loaded.
+     */
+    long getReloadCount();
+
+    /**
+     * Returns the number of threads that found the credentials file modified, but waited for a reload already
+     * underway instead of loading the file again.
+     */
+    long getCoalescedReloadCount();
+
+    /**
+     * Returns the time of the last load of the credentials file, in milliseconds since the epoch, or 0 if none.
+     */
+    long getLastReloadTime();
+
+    double getLastReloadDurationMillis();
+
+    /**
+     * Returns the number of times the credentials file could not be read or parsed.
+     */
+    long getParseErrorCount();
+
+    /**
+     * Returns the number of times a reload of the modified credentials file was put off, until it was quiet or the
+     * backoff of a failed reload elapsed.
+     */
+    long getDeferredReloadCount();
+
+    /**
+     * Returns the number of times new entries of the credentials journal were applied without reloading the
+     * credentials file.
+     */
+    long getJournalReplayCount();
+
+    /**
+     * Returns the number of lookups of unknown usernames rejected by the Bloom filter of the credentials index
+     * alone, or 0 without an index.
+     */
+    long getBloomFilterRejectCount();
+
+    int getUserCount();
+
+    /**
+     * Returns the number of users whose password hash is in no known format, or malformed.
+     */
+    int getMalformedUserCount();
+
+    /**
+     * Returns the number of audit log entries dropped because the audit queue was full, or lost to write errors;
+     * 0 without an audit log.
+     */
+    long getAuditDroppedCount();
+
+    /**
+     * Returns the number of audit log entries waiting to be written.
+     */
+    int getAuditPendingCount();
+
+    /**
+     * Resets the login counts and latencies.  The counts of the credentials file, login caches, verification pool
+     * and throttling are kept.
+     */
+    void resetStatistics();
+
+}
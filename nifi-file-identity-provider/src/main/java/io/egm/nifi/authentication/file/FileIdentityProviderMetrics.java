@@ -0,0 +1,301 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Login and reload metrics of a {@link FileIdentityProvider}, published as a {@link FileIdentityProviderMXBean}.
+ * Logins update {@link LongAdder}s and {@link LatencyHistogram}s only, so that concurrent logins do not contend on
+ * the metrics; the other metrics are read from the {@link CredentialsStore}, {@link AuditLog}, login caches,
+ * verification pool and throttle when asked for.  The optional ones are null when not configured.
+ */
+class FileIdentityProviderMetrics implements FileIdentityProviderMXBean {
+
+    static final String DOMAIN = "io.egm.nifi.authentication.file";
+
+    private static final Logger logger = LoggerFactory.getLogger(FileIdentityProviderMetrics.class);
+
+    private final CredentialsStore credentialsStore;
+    private final AuditLog auditLog;
+    private final LoginVerificationCache verifiedLoginCache;
+    private final LoginVerificationCache failedLoginCache;
+    private final PasswordVerificationExecutor verificationExecutor;
+    private final LoginFailureThrottle loginFailureThrottle;
+    private final LongAdder loginSuccessCount = new LongAdder();
+    private final LongAdder loginFailureCount = new LongAdder();
+    private final LongAdder loginErrorCount = new LongAdder();
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+    private final LatencyHistogram verificationLatency = new LatencyHistogram();
+    private ObjectName objectName;
+
+    FileIdentityProviderMetrics(CredentialsStore credentialsStore, AuditLog auditLog,
+                                LoginVerificationCache verifiedLoginCache, LoginVerificationCache failedLoginCache,
+                                PasswordVerificationExecutor verificationExecutor,
+                                LoginFailureThrottle loginFailureThrottle) {
+        this.credentialsStore = credentialsStore;
+        this.auditLog = auditLog;
+        this.verifiedLoginCache = verifiedLoginCache;
+        this.failedLoginCache = failedLoginCache;
+        this.verificationExecutor = verificationExecutor;
+        this.loginFailureThrottle = loginFailureThrottle;
+    }
+
+    static ObjectName getObjectName(String identifier) throws MalformedObjectNameException {
+        return new ObjectName(DOMAIN + ":type=FileIdentityProvider,name=" + ObjectName.quote(String.valueOf(identifier)));
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, replacing those of a previous provider with the same
+     * identifier.  A failure is logged, since the provider works without its metrics.
+     */
+    void register(String identifier) {
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = getObjectName(identifier);
+            try {
+                mBeanServer.registerMBean(this, name);
+            } catch (InstanceAlreadyExistsException e) {
+                mBeanServer.unregisterMBean(name);
+                mBeanServer.registerMBean(this, name);
+            }
+            objectName = name;
+        } catch (JMException e) {
+            logger.warn("Identity Provider '{}' failed registering its metrics MBean", identifier, e);
+        }
+    }
+
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (InstanceNotFoundException e) {
+            // Replaced by another provider with the same identifier
+        } catch (JMException e) {
+            logger.warn("Failed unregistering metrics MBean '{}'", objectName, e);
+        }
+        objectName = null;
+    }
+
+    void recordLoginSuccess() {
+        loginSuccessCount.increment();
+    }
+
+    void recordLoginFailure() {
+        loginFailureCount.increment();
+    }
+
+    void recordLoginError() {
+        loginErrorCount.increment();
+    }
+
+    void recordLookup(long durationNanos) {
+        lookupLatency.record(durationNanos);
+    }
+
+    void recordVerification(long durationNanos) {
+        verificationLatency.record(durationNanos);
+    }
+
+    private static double toMicros(long nanos) {
+        return nanos / 1_000.0;
+    }
+
+    @Override
+    public long getLoginSuccessCount() {
+        return loginSuccessCount.sum();
+    }
+
+    @Override
+    public long getLoginFailureCount() {
+        return loginFailureCount.sum();
+    }
+
+    @Override
+    public long getLoginErrorCount() {
+        return loginErrorCount.sum();
+    }
+
+    @Override
+    public long getLookupCount() {
+        return lookupLatency.getCount();
+    }
+
+    @Override
+    public double getLookupLatencyMedianMicros() {
+        return toMicros(lookupLatency.getPercentile(0.5));
+    }
+
+    @Override
+    public double getLookupLatency99thPercentileMicros() {
+        return toMicros(lookupLatency.getPercentile(0.99));
+    }
+
+    @Override
+    public double getLookupLatencyMaxMicros() {
+        return toMicros(lookupLatency.getMax());
+    }
+
+    @Override
+    public long getVerificationCount() {
+        return verificationLatency.getCount();
+    }
+
+    @Override
+    public double getVerificationLatencyMedianMicros() {
+        return toMicros(verificationLatency.getPercentile(0.5));
+    }
+
+    @Override
+    public double getVerificationLatency99thPercentileMicros() {
+        return toMicros(verificationLatency.getPercentile(0.99));
+    }
+
+    @Override
+    public double getVerificationLatencyMaxMicros() {
+        return toMicros(verificationLatency.getMax());
+    }
+
+    @Override
+    public long getVerifiedLoginCacheHitCount() {
+        return verifiedLoginCache == null ? 0 : verifiedLoginCache.getHitCount();
+    }
+
+    @Override
+    public long getVerifiedLoginCacheMissCount() {
+        return verifiedLoginCache == null ? 0 : verifiedLoginCache.getMissCount();
+    }
+
+    @Override
+    public long getFailedLoginCacheHitCount() {
+        return failedLoginCache == null ? 0 : failedLoginCache.getHitCount();
+    }
+
+    @Override
+    public long getFailedLoginCacheMissCount() {
+        return failedLoginCache == null ? 0 : failedLoginCache.getMissCount();
+    }
+
+    @Override
+    public int getVerificationQueueDepth() {
+        return verificationExecutor == null ? 0 : verificationExecutor.getQueueDepth();
+    }
+
+    @Override
+    public double getVerificationQueueWaitTotalMillis() {
+        return verificationExecutor == null ? 0.0
+                : verificationExecutor.getTotalQueueWaitNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public long getVerificationRejectedCount() {
+        return verificationExecutor == null ? 0 : verificationExecutor.getRejectedCount();
+    }
+
+    @Override
+    public long getVerificationTimedOutCount() {
+        return verificationExecutor == null ? 0 : verificationExecutor.getTimedOutCount();
+    }
+
+    @Override
+    public long getThrottledLoginCount() {
+        return loginFailureThrottle == null ? 0 : loginFailureThrottle.getThrottledCount();
+    }
+
+    @Override
+    public long getReloadCount() {
+        return credentialsStore.getLoadCount();
+    }
+
+    @Override
+    public long getCoalescedReloadCount() {
+        return credentialsStore.getCoalescedReloadCount();
+    }
+
+    @Override
+    public long getLastReloadTime() {
+        return credentialsStore.getLastLoadTimeMillis();
+    }
+
+    @Override
+    public double getLastReloadDurationMillis() {
+        return credentialsStore.getLastLoadDurationNanos() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public long getParseErrorCount() {
+        return credentialsStore.getLoadErrorCount();
+    }
+
+    @Override
+    public long getDeferredReloadCount() {
+        return credentialsStore.getDeferredReloadCount();
+    }
+
+    @Override
+    public long getJournalReplayCount() {
+        return credentialsStore.getJournalReplayCount();
+    }
+
+    @Override
+    public long getBloomFilterRejectCount() {
+        return credentialsStore.getBloomRejectCount();
+    }
+
+    @Override
+    public int getUserCount() {
+        return credentialsStore.getSnapshot().size();
+    }
+
+    @Override
+    public int getMalformedUserCount() {
+        return credentialsStore.getSnapshot().getMalformedUserCount();
+    }
+
+    @Override
+    public long getAuditDroppedCount() {
+        return auditLog == null ? 0 : auditLog.getDroppedCount();
+    }
+
+    @Override
+    public int getAuditPendingCount() {
+        return auditLog == null ? 0 : auditLog.getPendingCount();
+    }
+
+    @Override
+    public void resetStatistics() {
+        loginSuccessCount.reset();
+        loginFailureCount.reset();
+        loginErrorCount.reset();
+        lookupLatency.reset();
+        verificationLatency.reset();
+    }
+}
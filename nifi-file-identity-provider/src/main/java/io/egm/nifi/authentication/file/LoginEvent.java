@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+
+/**
+ * Flight Recorder event for one call to {@link FileIdentityProvider#authenticate}.  The username is recorded as a
+ * truncated SHA-256 hash, so that recordings can be shared without listing usernames, while the logins of one
+ * user can still be told apart.
+ *
+ * <p>Like the other events of this provider, it is disabled by default and costs next to nothing until it is
+ * enabled in a recording, for instance with
+ * {@code jfr configure +io.egm.nifi.authentication.file.Login#enabled=true}.</p>
+ */
+@Name(LoginEvent.NAME)
+@Label("Login")
+@Description("Authentication of a user by the file identity provider")
+@Category({"NiFi", "File Identity Provider"})
+@Enabled(false)
+@StackTrace(false)
+final class LoginEvent extends Event {
+
+    static final String NAME = "io.egm.nifi.authentication.file.Login";
+
+    static final String OUTCOME_SUCCESS = "success";
+    static final String OUTCOME_FAILURE = "failure";
+    static final String OUTCOME_THROTTLED = "throttled";
+    static final String OUTCOME_ERROR = "error";
+
+    private static final int USER_NAME_HASH_LENGTH = 8;
+
+    @Label("Username Hash")
+    @Description("First bytes of the SHA-256 hash of the normalized username, in hexadecimal")
+    String userNameHash;
+
+    @Label("Outcome")
+    @Description("success, failure, throttled or error")
+    String outcome;
+
+    @Label("Password Checked")
+    @Description("Whether the password was hashed, rather than answered by a cache or skipped for an unknown user")
+    boolean passwordChecked;
+
+    @Label("Password Cost")
+    @Description("Bcrypt cost, or PBKDF2 or Argon2id iterations, of the user's password hash; 0 if unknown")
+    int passwordCost;
+
+    static String hashUserName(String userName) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final byte[] hash = digest.digest(CredentialsStore.normalizeUserName(userName)
+                    .getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, USER_NAME_HASH_LENGTH);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
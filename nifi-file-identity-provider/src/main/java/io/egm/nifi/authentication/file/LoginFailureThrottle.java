@@ -0,0 +1,275 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Tracks failed logins per username, so that a username which used up its failure budget is rejected before its
+ * password is hashed.  Once the limit is reached, each further failure doubles the time the username is blocked,
+ * up to the failure window.  A username's count is forgotten after a full window without failures, or after a
+ * successful login.
+ *
+ * <p>Failures are kept in a fixed-size table updated with compare-and-set, so tracking takes no locks and memory
+ * stays bounded however many usernames are tried.  Each username maps to two slots through SipHash, keyed at
+ * random for each throttle, so that usernames cannot be chosen to share slots.  A username only takes over a slot
+ * whose failures expired.  When both its slots hold unexpired failures of other usernames, its failure is not
+ * tracked: failures of one username never block, unblock or reset the count of another.</p>
+ */
+class LoginFailureThrottle {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final int MAX_BACKOFF_SHIFT = 30;
+
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+    private final long key0;
+    private final long key1;
+    private final int failureLimit;
+    private final long windowNanos;
+    private final long backoffNanos;
+    private final LongSupplier nanoClock;
+    private final LongAdder throttledCount = new LongAdder();
+
+    LoginFailureThrottle(int capacity, int failureLimit, long window, long backoff, TimeUnit timeUnit) {
+        this(capacity, failureLimit, window, backoff, timeUnit, System::nanoTime);
+    }
+
+    LoginFailureThrottle(int capacity, int failureLimit, long window, long backoff, TimeUnit timeUnit,
+                         LongSupplier nanoClock) {
+        if (capacity < 1 || failureLimit < 1) {
+            throw new IllegalArgumentException("Capacity and failure limit must be at least 1");
+        }
+        final int tableSize = Integer.highestOneBit(Math.min(capacity, MAX_CAPACITY) * 2 - 1);
+        this.slots = new AtomicReferenceArray<>(tableSize);
+        this.mask = tableSize - 1;
+        final SecureRandom random = new SecureRandom();
+        this.key0 = random.nextLong();
+        this.key1 = random.nextLong();
+        this.failureLimit = failureLimit;
+        this.windowNanos = timeUnit.toNanos(window);
+        this.backoffNanos = timeUnit.toNanos(backoff);
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Returns whether logins for the username are currently rejected, counting the rejection if so.
+     */
+    boolean isThrottled(String userName) {
+        if (userName == null) {
+            return false;
+        }
+        final String name = CredentialsStore.normalizeUserName(userName);
+        final long hash = hash(name);
+        final long now = nanoClock.getAsLong();
+        final Entry entry1 = slots.get(index1(hash));
+        final Entry entry2 = slots.get(index2(hash));
+        final boolean throttled;
+        if (entry1 != null && entry1.name.equals(name)) {
+            throttled = isBlocked(entry1, now);
+        } else if (entry2 != null && entry2.name.equals(name)) {
+            throttled = isBlocked(entry2, now);
+        } else {
+            throttled = false;
+        }
+        if (throttled) {
+            throttledCount.increment();
+        }
+        return throttled;
+    }
+
+    void recordFailure(String userName) {
+        if (userName == null) {
+            return;
+        }
+        final String name = CredentialsStore.normalizeUserName(userName);
+        final long hash = hash(name);
+        final int index1 = index1(hash);
+        final int index2 = index2(hash);
+        while (true) {
+            final long now = nanoClock.getAsLong();
+            final Entry entry1 = slots.get(index1);
+            final Entry entry2 = slots.get(index2);
+            final int index;
+            final Entry previous;
+            if (entry1 != null && entry1.name.equals(name)) {
+                index = index1;
+                previous = entry1;
+            } else if (entry2 != null && entry2.name.equals(name)) {
+                index = index2;
+                previous = entry2;
+            } else if (failuresAt(entry1, now) == 0) {
+                index = index1;
+                previous = entry1;
+            } else if (failuresAt(entry2, now) == 0) {
+                index = index2;
+                previous = entry2;
+            } else {
+                // Both slots hold the failures of other usernames, which are kept rather than displaced
+                return;
+            }
+
+            final int failures = previous != null && previous.name.equals(name)
+                    ? saturatedIncrement(failuresAt(previous, now)) : 1;
+            long blockedUntil = now;
+            if (failures >= failureLimit) {
+                final int shift = Math.min(failures - failureLimit, MAX_BACKOFF_SHIFT);
+                final long backoff = backoffNanos > windowNanos >>> shift ? windowNanos : backoffNanos << shift;
+                blockedUntil = now + backoff;
+            }
+            if (slots.compareAndSet(index, previous, new Entry(name, failures, now, blockedUntil))) {
+                return;
+            }
+        }
+    }
+
+    void recordSuccess(String userName) {
+        if (userName == null) {
+            return;
+        }
+        final String name = CredentialsStore.normalizeUserName(userName);
+        final long hash = hash(name);
+        for (int index : new int[] {index1(hash), index2(hash)}) {
+            final Entry entry = slots.get(index);
+            if (entry != null && entry.name.equals(name)) {
+                slots.compareAndSet(index, entry, null);
+            }
+        }
+    }
+
+    /**
+     * Returns the current failure count of a username, or 0 if it is not tracked.
+     */
+    int getFailureCount(String userName) {
+        if (userName == null) {
+            return 0;
+        }
+        final String name = CredentialsStore.normalizeUserName(userName);
+        final long hash = hash(name);
+        final long now = nanoClock.getAsLong();
+        for (int index : new int[] {index1(hash), index2(hash)}) {
+            final Entry entry = slots.get(index);
+            if (entry != null && entry.name.equals(name)) {
+                return failuresAt(entry, now);
+            }
+        }
+        return 0;
+    }
+
+    int getCapacity() {
+        return slots.length();
+    }
+
+    long getThrottledCount() {
+        return throttledCount.sum();
+    }
+
+    private static boolean isBlocked(Entry entry, long now) {
+        return entry != null && now - entry.blockedUntil < 0;
+    }
+
+    private int failuresAt(Entry entry, long now) {
+        if (entry == null || (now - entry.blockedUntil >= 0 && now - entry.lastFailure >= windowNanos)) {
+            return 0;
+        }
+        return entry.failures;
+    }
+
+    private static int saturatedIncrement(int failures) {
+        return failures == Integer.MAX_VALUE ? failures : failures + 1;
+    }
+
+    private int index1(long hash) {
+        return (int) hash & mask;
+    }
+
+    private int index2(long hash) {
+        return (int) (hash >>> 32) & mask;
+    }
+
+    /**
+     * Returns the SipHash-2-4 of the UTF-16 code units of a name, with the key of this throttle.
+     */
+    private long hash(String name) {
+        final long[] v = {
+                key0 ^ 0x736f6d6570736575L,
+                key1 ^ 0x646f72616e646f6dL,
+                key0 ^ 0x6c7967656e657261L,
+                key1 ^ 0x7465646279746573L
+        };
+        final int length = name.length();
+        final int wholeWords = length / 4;
+        for (int i = 0; i < wholeWords; i++) {
+            final int offset = i * 4;
+            compress(v, name.charAt(offset) | (long) name.charAt(offset + 1) << 16
+                    | (long) name.charAt(offset + 2) << 32 | (long) name.charAt(offset + 3) << 48);
+        }
+        long last = (long) (length * 2) << 56;
+        for (int i = wholeWords * 4; i < length; i++) {
+            last |= (long) name.charAt(i) << ((i & 3) * 16);
+        }
+        compress(v, last);
+        v[2] ^= 0xff;
+        for (int i = 0; i < 4; i++) {
+            round(v);
+        }
+        return v[0] ^ v[1] ^ v[2] ^ v[3];
+    }
+
+    private static void compress(long[] v, long word) {
+        v[3] ^= word;
+        round(v);
+        round(v);
+        v[0] ^= word;
+    }
+
+    private static void round(long[] v) {
+        v[0] += v[1];
+        v[1] = Long.rotateLeft(v[1], 13);
+        v[1] ^= v[0];
+        v[0] = Long.rotateLeft(v[0], 32);
+        v[2] += v[3];
+        v[3] = Long.rotateLeft(v[3], 16);
+        v[3] ^= v[2];
+        v[0] += v[3];
+        v[3] = Long.rotateLeft(v[3], 21);
+        v[3] ^= v[0];
+        v[2] += v[1];
+        v[1] = Long.rotateLeft(v[1], 17);
+        v[1] ^= v[2];
+        v[2] = Long.rotateLeft(v[2], 32);
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final int failures;
+        private final long lastFailure;
+        private final long blockedUntil;
+
+        private Entry(String name, int failures, long lastFailure, long blockedUntil) {
+            this.name = name;
+            this.failures = failures;
+            this.lastFailure = lastFailure;
+            this.blockedUntil = blockedUntil;
+        }
+    }
+}
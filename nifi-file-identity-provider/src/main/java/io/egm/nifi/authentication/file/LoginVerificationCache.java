@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Bounded cache of recent password verification results, used to avoid repeating an expensive hash check
+ * for a username and password pair that was verified a short time ago.
+ *
+ * <p>Raw passwords are never retained.  Entries are keyed by an HMAC-SHA256 digest of the username and password
+ * under a random key generated for this cache instance, and hold the password hash the password was verified
+ * against.  An entry only matches while the user's current password hash is identical, so a password change
+ * picked up on reload invalidates it exactly.  Entries expire after a fixed time to live, and the least recently
+ * used entry is evicted when the cache is full.</p>
+ *
+ * <p>The cache only records that a verification gave its result, so the same class serves for both successful
+ * and failed verifications, in separate instances.  A user may have entries for several passwords, such as
+ * different wrong ones.</p>
+ */
+class LoginVerificationCache {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    // In access order, and only used under its own lock
+    private final LinkedHashMap<Key, Entry> entries;
+    private final long timeToLiveNanos;
+    private final LongSupplier nanoClock;
+    private final ThreadLocal<Mac> threadMac;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    LoginVerificationCache(int maximumSize, long timeToLive, TimeUnit timeUnit) {
+        this(maximumSize, timeToLive, timeUnit, System::nanoTime);
+    }
+
+    LoginVerificationCache(int maximumSize, long timeToLive, TimeUnit timeUnit, LongSupplier nanoClock) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Maximum cache size must be at least 1");
+        }
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maximumSize;
+            }
+        };
+        this.timeToLiveNanos = timeUnit.toNanos(timeToLive);
+        this.nanoClock = nanoClock;
+        final SecretKey key = generateKey();
+        this.threadMac = ThreadLocal.withInitial(() -> initializeMac(key));
+    }
+
+    private static SecretKey generateKey() {
+        try {
+            return KeyGenerator.getInstance(MAC_ALGORITHM).generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed generating " + MAC_ALGORITHM + " key", e);
+        }
+    }
+
+    private static Mac initializeMac(SecretKey key) {
+        try {
+            final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed initializing " + MAC_ALGORITHM, e);
+        }
+    }
+
+    private Key key(UserCredentials userCreds, String rawPassword) {
+        final String normalizedUserName = CredentialsStore.normalizeUserName(userCreds.getName());
+        final Mac mac = threadMac.get();
+        mac.update(normalizedUserName.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return new Key(normalizedUserName, mac.doFinal(rawPassword.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Returns true if the password was recently verified against the user's current password hash.
+     */
+    boolean contains(UserCredentials userCreds, String rawPassword) {
+        final Key key = key(userCreds, rawPassword);
+        final long now = nanoClock.getAsLong();
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            if (entry == null) {
+                missCount.increment();
+                return false;
+            }
+            if (entry.isExpired(now) || !entry.passwordHash.equals(userCreds.getPasswordHash())) {
+                entries.remove(key);
+                missCount.increment();
+                return false;
+            }
+        }
+        hitCount.increment();
+        return true;
+    }
+
+    /**
+     * Records a verification of the password against the user's current password hash.
+     */
+    void put(UserCredentials userCreds, String rawPassword) {
+        final Key key = key(userCreds, rawPassword);
+        final Entry entry = new Entry(userCreds.getPasswordHash(), nanoClock.getAsLong() + timeToLiveNanos);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Removes the entries of the users, in one pass over the cache.
+     */
+    void invalidate(Collection<String> userNames) {
+        if (userNames.isEmpty()) {
+            return;
+        }
+        final Set<String> normalizedUserNames = new HashSet<>();
+        for (String userName : userNames) {
+            normalizedUserNames.add(CredentialsStore.normalizeUserName(userName));
+        }
+        synchronized (entries) {
+            entries.keySet().removeIf(key -> normalizedUserNames.contains(key.userName));
+        }
+    }
+
+    void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    long getHitCount() {
+        return hitCount.sum();
+    }
+
+    long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * The digest of a username and password, with the normalized username to invalidate the user's entries by.
+     */
+    private static final class Key {
+        private final String userName;
+        private final byte[] digest;
+
+        private Key(String userName, byte[] digest) {
+            this.userName = userName;
+            this.digest = digest;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            // The digest covers the username too
+            return other instanceof Key otherKey && Arrays.equals(digest, otherKey.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(digest);
+        }
+    }
+
+    private static final class Entry {
+        private final String passwordHash;
+        private final long expiresAt;
+
+        private Entry(String passwordHash, long expiresAt) {
+            this.passwordHash = passwordHash;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+    }
+}
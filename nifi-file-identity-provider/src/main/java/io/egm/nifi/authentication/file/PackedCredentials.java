@@ -0,0 +1,307 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.ObjectFactory;
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+
+/**
+ * Users of a credentials file packed into a few arrays, which take a fraction of the heap of their
+ * {@link UserCredentials} entries and lookup structures, at the price of a new entry made on every lookup.
+ *
+ * <p>The usernames are held in UTF-8 in a single byte array, delimited by an array of offsets, and the password
+ * hashes likewise in another, bcrypt hashes being packed as their decoded bytes by {@link BcryptHash#pack}.  Each
+ * hash is preceded by a byte telling how it is stored.  Users are looked up through an open-addressing table of
+ * record numbers, next to which 32 bits of the hash of every normalized username are kept, so that names are only
+ * decoded to confirm a match.</p>
+ *
+ * <p>As with {@link CredentialsSnapshot}, the first of several users whose names only differ in case is the one
+ * found.</p>
+ *
+ * <p>An entry returned by a lookup knows the record it was unpacked from, so that its password hash is prepared
+ * straight from the packed bytes rather than parsed again from its string.</p>
+ */
+final class PackedCredentials {
+
+    private static final byte HASH_TEXT = 0;
+    private static final byte HASH_BCRYPT = 1;
+    private static final byte HASH_NULL = 2;
+
+    private static final ObjectFactory factory = new ObjectFactory();
+
+    private final byte[] names;
+    private final int[] nameOffsets;
+    private final BitSet nullNames;
+    private final byte[] hashes;
+    private final int[] hashOffsets;
+    private final int[] nameHashes;
+    private final int[] table;
+    private final int slotMask;
+    private final BitSet malformedRecords;
+    private final int userCount;
+    private final boolean shadowedUsers;
+
+    private PackedCredentials(List<UserCredentials> users) {
+        userCount = users.size();
+        nameOffsets = new int[userCount + 1];
+        hashOffsets = new int[userCount + 1];
+        nameHashes = new int[userCount];
+        nullNames = new BitSet();
+        malformedRecords = new BitSet();
+        final ByteArrayOutputStream nameBytes = new ByteArrayOutputStream(userCount * 16);
+        final ByteArrayOutputStream hashBytes = new ByteArrayOutputStream(userCount * (1 + BcryptHash.PACKED_LENGTH));
+        final byte[] packedHash = new byte[1 + BcryptHash.PACKED_LENGTH];
+
+        for (int record = 0; record < userCount; record++) {
+            final UserCredentials userCreds = users.get(record);
+            final String name = userCreds.getName();
+            if (name == null) {
+                nullNames.set(record);
+            } else {
+                nameBytes.writeBytes(name.getBytes(StandardCharsets.UTF_8));
+            }
+            nameOffsets[record + 1] = nameBytes.size();
+
+            final String passwordHash = userCreds.getPasswordHash();
+            if (passwordHash == null) {
+                hashBytes.write(HASH_NULL);
+                malformedRecords.set(record);
+            } else if (BcryptHash.pack(passwordHash, packedHash, 1)) {
+                packedHash[0] = HASH_BCRYPT;
+                hashBytes.write(packedHash, 0, packedHash.length);
+            } else {
+                hashBytes.write(HASH_TEXT);
+                hashBytes.writeBytes(passwordHash.getBytes(StandardCharsets.UTF_8));
+                if (PasswordEncoders.prepare(passwordHash) == PasswordEncoders.MALFORMED_HASH) {
+                    malformedRecords.set(record);
+                }
+            }
+            hashOffsets[record + 1] = hashBytes.size();
+        }
+        names = nameBytes.toByteArray();
+        hashes = hashBytes.toByteArray();
+
+        final int slotCount = Integer.highestOneBit(Math.max(2, userCount * 2) - 1) << 1;
+        table = new int[slotCount];
+        slotMask = slotCount - 1;
+        boolean shadowed = false;
+        for (int record = 0; record < userCount; record++) {
+            final String name = users.get(record).getName();
+            if (name == null) {
+                continue;
+            }
+            final String normalizedUserName = CredentialsStore.normalizeUserName(name);
+            final long hash = CredentialsIndex.hash(normalizedUserName);
+            nameHashes[record] = fingerprint(hash);
+            if (findRecord(normalizedUserName, hash) >= 0) {
+                // Not reachable by lookups, shadowed by a case variant
+                shadowed = true;
+                continue;
+            }
+            int slot = (int) hash & slotMask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & slotMask;
+            }
+            table[slot] = record + 1;
+        }
+        shadowedUsers = shadowed;
+    }
+
+    /**
+     * Packs a list of users, which may be discarded afterwards.
+     */
+    static PackedCredentials pack(List<UserCredentials> users) {
+        return new PackedCredentials(users);
+    }
+
+    private static int fingerprint(long hash) {
+        return (int) (hash >>> 32);
+    }
+
+    private int findRecord(String normalizedUserName, long hash) {
+        final int fingerprint = fingerprint(hash);
+        int slot = (int) hash & slotMask;
+        while (true) {
+            final int record = table[slot] - 1;
+            if (record < 0) {
+                return -1;
+            }
+            if (nameHashes[record] == fingerprint
+                    && CredentialsStore.normalizeUserName(getName(record)).equals(normalizedUserName)) {
+                return record;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    private int findRecord(String userName) {
+        final String normalizedUserName = CredentialsStore.normalizeUserName(userName);
+        return findRecord(normalizedUserName, CredentialsIndex.hash(normalizedUserName));
+    }
+
+    /**
+     * Returns the credentials of a user, matched case-insensitively, or null if there is none.  Each call returns a
+     * new {@link UserCredentials}.
+     */
+    UserCredentials findUser(String userName) {
+        if (userName == null) {
+            return null;
+        }
+        final int record = findRecord(userName);
+        if (record < 0) {
+            return null;
+        }
+        final UserCredentials userCreds = new PackedUser(this, record);
+        userCreds.setName(getName(record));
+        userCreds.setPasswordHash(getPasswordHash(record));
+        return userCreds;
+    }
+
+    boolean containsUser(String userName) {
+        return findRecord(userName) >= 0;
+    }
+
+    /**
+     * Returns whether the password hash of a user, matched case-insensitively, is in no known format, or malformed.
+     */
+    boolean isMalformed(String userName) {
+        final int record = findRecord(userName);
+        return record >= 0 && malformedRecords.get(record);
+    }
+
+    /**
+     * Returns the password hash of an entry returned by {@link #findUser(String)}, prepared from its record, or null
+     * if the entry was not.
+     */
+    PasswordEncoder.PreparedHash getPreparedHash(UserCredentials userCreds) {
+        if (!(userCreds instanceof PackedUser packedUser) || packedUser.packed != this) {
+            return null;
+        }
+        final int offset = hashOffsets[packedUser.record];
+        switch (hashes[offset]) {
+            case HASH_BCRYPT:
+                return BcryptHash.unpack(hashes, offset + 1);
+            case HASH_TEXT:
+                return PasswordEncoders.prepare(getPasswordHash(packedUser.record));
+            default:
+                return PasswordEncoders.MALFORMED_HASH;
+        }
+    }
+
+    private String getName(int record) {
+        if (nullNames.get(record)) {
+            return null;
+        }
+        final int offset = nameOffsets[record];
+        return new String(names, offset, nameOffsets[record + 1] - offset, StandardCharsets.UTF_8);
+    }
+
+    private String getPasswordHash(int record) {
+        final int offset = hashOffsets[record];
+        switch (hashes[offset]) {
+            case HASH_BCRYPT:
+                return BcryptHash.format(hashes, offset + 1);
+            case HASH_TEXT:
+                return new String(hashes, offset + 1, hashOffsets[record + 1] - offset - 1, StandardCharsets.UTF_8);
+            default:
+                return null;
+        }
+    }
+
+    private UserCredentials getUser(int record) {
+        final UserCredentials userCreds = factory.createUserCredentials();
+        userCreds.setName(getName(record));
+        userCreds.setPasswordHash(getPasswordHash(record));
+        return userCreds;
+    }
+
+    /**
+     * Returns new entries of all the users, in file order.
+     */
+    List<UserCredentials> unpack() {
+        final List<UserCredentials> users = new ArrayList<>(userCount);
+        for (int record = 0; record < userCount; record++) {
+            users.add(getUser(record));
+        }
+        return users;
+    }
+
+    /**
+     * Returns new entries of the users reachable by lookups, in file order, leaving out those shadowed by a case
+     * variant of their name.
+     */
+    List<UserCredentials> getReachableUsers() {
+        final List<UserCredentials> users = new ArrayList<>(userCount);
+        for (int record = 0; record < userCount; record++) {
+            final String name = getName(record);
+            if (name != null && findRecord(name) == record) {
+                users.add(getUser(record));
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Returns the names of the users whose password hash is in no known format, or malformed, in file order.
+     */
+    List<String> getMalformedUsers() {
+        final List<String> malformedUsers = new ArrayList<>(malformedRecords.cardinality());
+        for (int record = malformedRecords.nextSetBit(0); record >= 0; record = malformedRecords.nextSetBit(record + 1)) {
+            malformedUsers.add(getName(record));
+        }
+        return malformedUsers;
+    }
+
+    int getMalformedUserCount() {
+        return malformedRecords.cardinality();
+    }
+
+    /**
+     * Returns the number of users, including those shadowed by a case variant of their name.
+     */
+    int getUserCount() {
+        return userCount;
+    }
+
+    /**
+     * Returns whether some users are shadowed by a case variant of their name.
+     */
+    boolean hasShadowedUsers() {
+        return shadowedUsers;
+    }
+
+    /**
+     * An entry returned by a lookup, with the record it was unpacked from.
+     */
+    private static final class PackedUser extends UserCredentials {
+
+        private final PackedCredentials packed;
+        private final int record;
+
+        private PackedUser(PackedCredentials packed, int record) {
+            this.packed = packed;
+            this.record = record;
+        }
+    }
+}
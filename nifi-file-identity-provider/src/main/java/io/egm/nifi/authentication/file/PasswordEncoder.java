@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+
+/**
+ * Hashes and verifies passwords with one algorithm.  The algorithm of a stored password hash is recognized by
+ * its prefix, such as {@code $2a$} for bcrypt, so that hashes of different algorithms can be mixed in one
+ * credentials file.
+ *
+ * <p>Built-in encoders cover bcrypt, PBKDF2-HMAC-SHA256 and Argon2id.  Further encoders may be registered as
+ * {@link java.util.ServiceLoader} services; they need a public no-argument constructor, and are then used to
+ * verify the hashes they support.</p>
+ *
+ * @see PasswordEncoders
+ */
+public interface PasswordEncoder {
+
+    /**
+     * Returns whether the password hash was made by this encoder's algorithm, judging by its prefix.
+     */
+    boolean supports(String passwordHash);
+
+    /**
+     * Returns a new hash of the password, with a random salt and this encoder's parameters.
+     */
+    String encode(String rawPassword);
+
+    /**
+     * Returns whether the password matches a hash supported by this encoder, whatever its parameters.
+     *
+     * @throws IllegalArgumentException if the hash is malformed
+     */
+    boolean matches(String rawPassword, String passwordHash);
+
+    /**
+     * Returns whether a supported hash was made with other parameters than this encoder's.
+     */
+    boolean needsRehash(String passwordHash);
+
+    /**
+     * Returns a supported hash decoded once, to verify passwords without parsing it again.  The default
+     * implementation keeps the hash as is, and does not check it.
+     *
+     * @throws IllegalArgumentException if the hash is malformed
+     */
+    default PreparedHash prepare(String passwordHash) {
+        return rawPassword -> matches(rawPassword, passwordHash);
+    }
+
+    /**
+     * A password hash decoded by {@link #prepare(String)}.
+     */
+    @FunctionalInterface
+    interface PreparedHash {
+
+        /**
+         * Returns whether the password matches this hash.
+         */
+        boolean matches(String rawPassword);
+
+        /**
+         * Returns the work factor of this hash: the bcrypt cost, or the number of PBKDF2 or Argon2id
+         * iterations.  The default implementation returns 0, for hashes of unknown cost.
+         */
+        default int getCost() {
+            return 0;
+        }
+    }
+
+}
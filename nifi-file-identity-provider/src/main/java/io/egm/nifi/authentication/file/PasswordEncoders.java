@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.ServiceLoader;
+
+
+/**
+ * Registry of the known {@link PasswordEncoder}s, which picks the encoder of a stored hash from its prefix, and
+ * creates encoders for new hashes from an algorithm name and its cost parameters.
+ */
+final class PasswordEncoders {
+
+    static final String BCRYPT = "bcrypt";
+    static final String PBKDF2_SHA256 = "pbkdf2-sha256";
+    static final String ARGON2ID = "argon2id";
+
+    /**
+     * Stands for a hash in no known format, or malformed, which no password matches.
+     */
+    static final PasswordEncoder.PreparedHash MALFORMED_HASH = rawPassword -> false;
+
+    private static final List<PasswordEncoder> ENCODERS = loadEncoders();
+
+    private PasswordEncoders() {
+    }
+
+    private static List<PasswordEncoder> loadEncoders() {
+        final List<PasswordEncoder> encoders = new ArrayList<>();
+        encoders.add(new BcryptPasswordEncoder());
+        encoders.add(new Pbkdf2PasswordEncoder());
+        encoders.add(new Argon2PasswordEncoder());
+        for (PasswordEncoder encoder : ServiceLoader.load(PasswordEncoder.class, PasswordEncoders.class.getClassLoader())) {
+            encoders.add(encoder);
+        }
+        return Collections.unmodifiableList(encoders);
+    }
+
+    /**
+     * Returns the encoder supporting a password hash, or null if the hash is in no known format.
+     */
+    static PasswordEncoder forHash(String passwordHash) {
+        for (PasswordEncoder encoder : ENCODERS) {
+            if (encoder.supports(passwordHash)) {
+                return encoder;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the password matches a hash of any known format.
+     *
+     * @throws IllegalArgumentException if the hash is in no known format, or malformed
+     */
+    static boolean matches(String rawPassword, String passwordHash) {
+        final PasswordEncoder encoder = forHash(passwordHash);
+        if (encoder == null) {
+            throw new IllegalArgumentException("Unsupported password hash format");
+        }
+        return encoder.matches(rawPassword, passwordHash);
+    }
+
+    /**
+     * Decodes a hash of any known format once, for verifying passwords against it.
+     *
+     * @return the prepared hash, or {@link #MALFORMED_HASH} if the hash is in no known format, or malformed
+     */
+    static PasswordEncoder.PreparedHash prepare(String passwordHash) {
+        final PasswordEncoder encoder = forHash(passwordHash);
+        if (encoder == null) {
+            return MALFORMED_HASH;
+        }
+        try {
+            return encoder.prepare(passwordHash);
+        } catch (IllegalArgumentException e) {
+            return MALFORMED_HASH;
+        }
+    }
+
+    /**
+     * Creates an encoder for new hashes.  The cost is the log2 of the rounds for bcrypt, and the number of
+     * iterations for PBKDF2 and Argon2id; memory and parallelism only apply to Argon2id.  Null parameters take the
+     * algorithm's default.
+     *
+     * @throws IllegalArgumentException if the algorithm is unknown, or a parameter is out of range
+     */
+    static PasswordEncoder create(String algorithm, Integer cost, Integer memoryKib, Integer parallelism) {
+        switch (algorithm.trim().toLowerCase(Locale.ROOT)) {
+            case BCRYPT:
+                return new BcryptPasswordEncoder(cost == null ? BcryptPasswordEncoder.DEFAULT_COST : cost);
+            case PBKDF2_SHA256:
+                return new Pbkdf2PasswordEncoder(cost == null ? Pbkdf2PasswordEncoder.DEFAULT_ITERATIONS : cost);
+            case ARGON2ID:
+                return new Argon2PasswordEncoder(
+                        memoryKib == null ? Argon2PasswordEncoder.DEFAULT_MEMORY_KIB : memoryKib,
+                        cost == null ? Argon2PasswordEncoder.DEFAULT_ITERATIONS : cost,
+                        parallelism == null ? Argon2PasswordEncoder.DEFAULT_PARALLELISM : parallelism);
+            default:
+                throw new IllegalArgumentException("Unknown password hash algorithm '" + algorithm + "', expected one of "
+                        + String.join(", ", BCRYPT, PBKDF2_SHA256, ARGON2ID));
+        }
+    }
+}
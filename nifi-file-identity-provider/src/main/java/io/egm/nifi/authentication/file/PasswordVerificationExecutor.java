@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.apache.nifi.authentication.exception.IdentityAccessException;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Dedicated thread pool for password verifications, keeping expensive hash checks off the web request threads
+ * and bounding the share of processors that a burst of logins can take.  Passwords rehashed at login are encoded
+ * on the same pool.
+ *
+ * <p>Verifications wait in a bounded queue.  When the queue is full, or when a verification has not completed
+ * within the maximum wait time, the login is rejected at once with an {@link IdentityAccessException} rather
+ * than adding to the backlog.</p>
+ */
+class PasswordVerificationExecutor implements Closeable {
+
+    private final ThreadPoolExecutor executor;
+    private final long maxWaitNanos;
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder totalQueueWaitNanos = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder timedOutCount = new LongAdder();
+
+    PasswordVerificationExecutor(int threadCount, int queueCapacity, long maxWait, TimeUnit timeUnit) {
+        if (threadCount < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Thread count and queue capacity must be at least 1");
+        }
+        this.maxWaitNanos = timeUnit.toNanos(maxWait);
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new VerificationThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Returns the number of threads matching a share of the available processors, at least one.
+     */
+    static int getThreadCount(double processorShare) {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, (int) Math.round(processors * processorShare));
+    }
+
+    /**
+     * Runs a verification on the pool and waits for its result.
+     *
+     * @throws IdentityAccessException if the pool is saturated, or the result is not available in time
+     */
+    boolean verify(Callable<Boolean> verification) throws Exception {
+        return call(verification);
+    }
+
+    /**
+     * Runs a task as expensive as a verification, such as encoding a password, on the pool and waits for its result.
+     *
+     * @throws IdentityAccessException if the pool is saturated, or the result is not available in time
+     */
+    <T> T call(Callable<T> task) throws Exception {
+        final long submitted = System.nanoTime();
+        final Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                totalQueueWaitNanos.add(System.nanoTime() - submitted);
+                return task.call();
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedCount.increment();
+            throw new IdentityAccessException("Password verification queue is full", e);
+        }
+
+        try {
+            final T result = future.get(maxWaitNanos, TimeUnit.NANOSECONDS);
+            completedCount.increment();
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timedOutCount.increment();
+            throw new IdentityAccessException("Password verification did not complete in time", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IdentityAccessException("Interrupted waiting for password verification", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    int getThreadCount() {
+        return executor.getMaximumPoolSize();
+    }
+
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    long getCompletedCount() {
+        return completedCount.sum();
+    }
+
+    /**
+     * Returns the total time verifications spent in the queue before starting, in nanoseconds.
+     */
+    long getTotalQueueWaitNanos() {
+        return totalQueueWaitNanos.sum();
+    }
+
+    long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    long getTimedOutCount() {
+        return timedOutCount.sum();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static class VerificationThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "Password Verification-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
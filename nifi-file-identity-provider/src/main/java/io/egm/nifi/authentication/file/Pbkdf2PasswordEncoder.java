@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+
+/**
+ * PBKDF2-HMAC-SHA256 password encoder, using the JDK implementation.  Hashes are stored in the PHC string format
+ * {@code $pbkdf2-sha256$i=<iterations>$<salt>$<hash>}, with unpadded Base64 salt and hash.
+ */
+class Pbkdf2PasswordEncoder implements PasswordEncoder {
+
+    static final String PREFIX = "$pbkdf2-sha256$";
+    static final int DEFAULT_ITERATIONS = 600_000;
+    static final int MIN_ITERATIONS = 1_000;
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final int iterations;
+
+    Pbkdf2PasswordEncoder() {
+        this(DEFAULT_ITERATIONS);
+    }
+
+    Pbkdf2PasswordEncoder(int iterations) {
+        if (iterations < MIN_ITERATIONS) {
+            throw new IllegalArgumentException("PBKDF2 iterations must be at least " + MIN_ITERATIONS);
+        }
+        this.iterations = iterations;
+    }
+
+    @Override
+    public boolean supports(String passwordHash) {
+        return passwordHash != null && passwordHash.startsWith(PREFIX);
+    }
+
+    @Override
+    public String encode(String rawPassword) {
+        final byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        final byte[] hash = hash(rawPassword, salt, iterations, HASH_LENGTH);
+        final Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return PREFIX + "i=" + iterations + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+    }
+
+    @Override
+    public boolean matches(String rawPassword, String passwordHash) {
+        return ParsedHash.parse(passwordHash).matches(rawPassword);
+    }
+
+    @Override
+    public PreparedHash prepare(String passwordHash) {
+        return ParsedHash.parse(passwordHash);
+    }
+
+    @Override
+    public boolean needsRehash(String passwordHash) {
+        try {
+            return ParsedHash.parse(passwordHash).iterations != iterations;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    private static byte[] hash(String rawPassword, byte[] salt, int iterations, int length) {
+        final PBEKeySpec keySpec = new PBEKeySpec(rawPassword.toCharArray(), salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(keySpec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed computing " + ALGORITHM + " hash", e);
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PBKDF2-HMAC-SHA256 " + iterations + " iterations";
+    }
+
+    private static final class ParsedHash implements PreparedHash {
+        private final int iterations;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        private ParsedHash(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        static ParsedHash parse(String passwordHash) {
+            // "", "pbkdf2-sha256", "i=<iterations>", salt, hash
+            final String[] fields = passwordHash.split("\\$", -1);
+            if (fields.length != 5 || !fields[2].startsWith("i=")) {
+                throw new IllegalArgumentException("Invalid PBKDF2 hash format");
+            }
+            try {
+                final int iterations = Integer.parseInt(fields[2].substring(2));
+                final byte[] salt = Base64.getDecoder().decode(fields[3]);
+                final byte[] hash = Base64.getDecoder().decode(fields[4]);
+                if (iterations < 1 || salt.length == 0 || hash.length == 0) {
+                    throw new IllegalArgumentException("Invalid PBKDF2 hash parameters");
+                }
+                return new ParsedHash(iterations, salt, hash);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid PBKDF2 hash format", e);
+            }
+        }
+
+        @Override
+        public int getCost() {
+            return iterations;
+        }
+
+        @Override
+        public boolean matches(String rawPassword) {
+            final byte[] computedHash = hash(rawPassword, salt, iterations, hash.length);
+            return MessageDigest.isEqual(computedHash, hash);
+        }
+    }
+}
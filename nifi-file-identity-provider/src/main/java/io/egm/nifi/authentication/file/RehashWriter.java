@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+import org.apache.nifi.authentication.exception.IdentityAccessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Migrates password hashes to the configured {@link PasswordEncoder} as users log in, and writes the new hashes back
+ * to the credentials file in batches from a background thread.
+ *
+ * <p>The new hash is encoded on the {@link PasswordVerificationExecutor} if there is one, like the verification
+ * before it; if the pool is saturated, the rehash is left to a later login.</p>
+ *
+ * <p>A rehash replaces the user in the {@link CredentialsStore} at once.  The first rehash after a write schedules
+ * the next write after the batch delay, so that the rehashes of a burst of logins are saved together.  With a
+ * {@link CredentialsJournal}, a write appends the rehashed users to it instead of saving the file.  A write is
+ * skipped if the file was changed by someone else in the meantime, or if users are served from a
+ * {@link CredentialsIndex}, which a save would parse; the pending rehashes are then lost when the store reloads
+ * the file, and are done again at the users' next logins.</p>
+ */
+class RehashWriter implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(RehashWriter.class);
+
+    private final CredentialsStore credentialsStore;
+    private final long batchDelayMillis;
+    private final PasswordVerificationExecutor verificationExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final Queue<UserCredentials> pendingUsers = new ConcurrentLinkedQueue<>();
+    private final LongAdder rehashCount = new LongAdder();
+    private final LongAdder writeCount = new LongAdder();
+
+    RehashWriter(CredentialsStore credentialsStore, long batchDelayMillis) {
+        this(credentialsStore, batchDelayMillis, null);
+    }
+
+    /**
+     * Creates a writer encoding new hashes on a verification pool, or on the calling thread if it is null.
+     */
+    RehashWriter(CredentialsStore credentialsStore, long batchDelayMillis,
+                 PasswordVerificationExecutor verificationExecutor) {
+        this.credentialsStore = credentialsStore;
+        this.batchDelayMillis = batchDelayMillis;
+        this.verificationExecutor = verificationExecutor;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "Credentials Rehash Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Rehashes the password of a user who just logged in with it, if its hash was made with another algorithm or
+     * parameters.
+     *
+     * @return the credentials of the user after the rehash, which are the given ones if nothing was done
+     */
+    UserCredentials rehashIfNeeded(UserCredentials userCreds, String rawPassword) throws Exception {
+        if (!credentialsStore.needsRehash(userCreds)) {
+            return userCreds;
+        }
+        final PasswordEncoder passwordEncoder = credentialsStore.getPasswordEncoder();
+        final String passwordHash;
+        if (verificationExecutor == null) {
+            passwordHash = passwordEncoder.encode(rawPassword);
+        } else {
+            try {
+                passwordHash = verificationExecutor.call(() -> passwordEncoder.encode(rawPassword));
+            } catch (IdentityAccessException e) {
+                logger.debug("Rehash of password of user '{}' put off: {}", userCreds.getName(), e.getMessage());
+                return userCreds;
+            }
+        }
+        final UserCredentials newUserCreds = credentialsStore.replacePasswordHash(userCreds, passwordHash);
+        if (newUserCreds == null) {
+            return userCreds;
+        }
+        logger.debug("Rehashed password of user '{}' with {}", userCreds.getName(), passwordEncoder);
+        rehashCount.increment();
+        pendingUsers.add(newUserCreds);
+        if (writeScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::write, batchDelayMillis, TimeUnit.MILLISECONDS);
+        }
+        return newUserCreds;
+    }
+
+    private void write() {
+        writeScheduled.set(false);
+        final List<UserCredentials> batch = new ArrayList<>();
+        for (UserCredentials userCreds = pendingUsers.poll(); userCreds != null; userCreds = pendingUsers.poll()) {
+            batch.add(userCreds);
+        }
+        final int batchSize = batch.size();
+        try {
+            if (credentialsStore.saveRehashedUsers(batch)) {
+                writeCount.increment();
+                logger.debug("Saved {} rehashed passwords", batchSize);
+            } else {
+                logger.info("Credentials file changed since it was loaded or is served from an index, "
+                        + "{} rehashed passwords not saved", batchSize);
+            }
+        } catch (Exception ex) {
+            logger.error("Failed saving {} rehashed passwords", batchSize, ex);
+        }
+    }
+
+    /**
+     * Returns the number of passwords rehashed and not yet written.
+     */
+    int getPendingCount() {
+        return pendingUsers.size();
+    }
+
+    long getRehashCount() {
+        return rehashCount.sum();
+    }
+
+    /**
+     * Returns the number of times the credentials file was written.
+     */
+    long getWriteCount() {
+        return writeCount.sum();
+    }
+
+    /**
+     * Writes any pending rehashes and stops the writer.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        try {
+            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
+                logger.warn("Credentials rehash writer did not stop in time");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (!pendingUsers.isEmpty()) {
+            write();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+
+import jakarta.xml.bind.UnmarshalException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Loads a credentials file with a StAX stream reader, adding each {@code user} element directly to the
+ * lookup structures of a {@link CredentialsSnapshot}.  Unlike the JAXB unmarshaller used by
+ * {@link CredentialsStore#loadCredentialsList(File, jakarta.xml.bind.ValidationEventHandler)}, no schema is
+ * compiled and no intermediate object graph is built, which lowers the time and transient memory needed to
+ * load very large files.
+ *
+ * <p>The rules of {@code credentials.xsd} are enforced by hand: a {@code credentials} root element containing
+ * only {@code user} elements, non-empty {@code name} and {@code passwordHash} attributes and unique names.
+ * Violations are reported as an {@link UnmarshalException} linked to a {@link SAXParseException} giving the
+ * file and location, like the JAXB loader reports schema validation errors.</p>
+ */
+final class StreamingCredentialsLoader {
+
+    private static final String CREDENTIALS_ELEMENT = "credentials";
+    private static final String USER_ELEMENT = "user";
+    private static final String NAME_ATTRIBUTE = "name";
+    private static final String PASSWORD_HASH_ATTRIBUTE = "passwordHash";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final XMLStreamReader reader;
+    private final String systemId;
+    private final List<UserCredentials> users = new ArrayList<>();
+    private final Map<String, UserCredentials> usersByName = new HashMap<>();
+    private Set<String> caseVariantNames;
+
+    private StreamingCredentialsLoader(XMLStreamReader reader, String systemId) {
+        this.reader = reader;
+        this.systemId = systemId;
+    }
+
+    static CredentialsSnapshot load(File credentialsFile, long lastModified) throws Exception {
+        return load(credentialsFile, lastModified, CredentialsSnapshot.EMPTY);
+    }
+
+    /**
+     * Loads a credentials file again, keeping the entries of the users unchanged since a previous snapshot.
+     */
+    static CredentialsSnapshot load(File credentialsFile, long lastModified, CredentialsSnapshot previous)
+            throws Exception {
+        final StreamingCredentialsLoader loader = read(credentialsFile);
+        return new CredentialsSnapshot(loader.users, loader.usersByName, lastModified, previous);
+    }
+
+    /**
+     * Loads the users of a credentials file, in file order, without building the lookup structures of a snapshot.
+     */
+    static List<UserCredentials> loadUsers(File credentialsFile) throws Exception {
+        return read(credentialsFile).users;
+    }
+
+    private static StreamingCredentialsLoader read(File credentialsFile) throws Exception {
+        if (!credentialsFile.exists()) {
+            final String notFoundMessage = "The credentials configuration file was not found at: " +
+                    credentialsFile.getAbsolutePath();
+            throw new FileNotFoundException(notFoundMessage);
+        }
+        final String systemId = credentialsFile.toURI().toString();
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(credentialsFile), BUFFER_SIZE)) {
+            final XMLStreamReader reader = createInputFactory().createXMLStreamReader(systemId, inputStream);
+            try {
+                final StreamingCredentialsLoader loader = new StreamingCredentialsLoader(reader, systemId);
+                loader.readDocument();
+                return loader;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw invalid(e.getMessage(), systemId, e.getLocation());
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        final XMLInputFactory inputFactory = XMLInputFactory.newFactory();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        return inputFactory;
+    }
+
+    private static UnmarshalException invalid(String message, String systemId, Location location) {
+        final int lineNumber = location == null ? -1 : location.getLineNumber();
+        final int columnNumber = location == null ? -1 : location.getColumnNumber();
+        return new UnmarshalException(new SAXParseException(message, null, systemId, lineNumber, columnNumber));
+    }
+
+    private UnmarshalException invalid(String message) {
+        return invalid(message, systemId, reader.getLocation());
+    }
+
+    private void readDocument() throws XMLStreamException, UnmarshalException {
+        int depth = 0;
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    if (depth == 1) {
+                        if (!isUnqualified(CREDENTIALS_ELEMENT)) {
+                            throw invalid("cvc-elt.1.a: Cannot find the declaration of element '"
+                                    + reader.getName() + "'.");
+                        }
+                    } else if (depth == 2) {
+                        if (!isUnqualified(USER_ELEMENT)) {
+                            throw invalid("cvc-complex-type.2.4.a: Invalid content was found starting with element '"
+                                    + reader.getName() + "'. One of '{" + USER_ELEMENT + "}' is expected.");
+                        }
+                        readUser();
+                    } else {
+                        throw invalid("cvc-complex-type.2.1: Element '" + USER_ELEMENT
+                                + "' must have no character or element information item, because the type's content type is empty.");
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (depth > 0 && !reader.isWhiteSpace()) {
+                        final String element = depth == 1 ? CREDENTIALS_ELEMENT : USER_ELEMENT;
+                        throw invalid("cvc-complex-type.2.3: Element '" + element
+                                + "' cannot have character [children], because the type's content type is element-only.");
+                    }
+                    break;
+                default:
+                    // Comments, processing instructions and whitespace are ignored, as by the schema
+                    break;
+            }
+        }
+    }
+
+    private boolean isUnqualified(String localName) {
+        final String namespaceUri = reader.getNamespaceURI();
+        return (namespaceUri == null || namespaceUri.isEmpty()) && localName.equals(reader.getLocalName());
+    }
+
+    private void readUser() throws UnmarshalException {
+        String name = null;
+        String passwordHash = null;
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            final String attributeNamespace = reader.getAttributeNamespace(i);
+            final String attributeName = reader.getAttributeLocalName(i);
+            final boolean unqualified = attributeNamespace == null || attributeNamespace.isEmpty();
+            if (unqualified && NAME_ATTRIBUTE.equals(attributeName)) {
+                name = checkMinLength(NAME_ATTRIBUTE, reader.getAttributeValue(i));
+            } else if (unqualified && PASSWORD_HASH_ATTRIBUTE.equals(attributeName)) {
+                passwordHash = checkMinLength(PASSWORD_HASH_ATTRIBUTE, reader.getAttributeValue(i));
+            } else {
+                throw invalid("cvc-complex-type.3.2.2: Attribute '" + reader.getAttributeName(i)
+                        + "' is not allowed to appear in element '" + USER_ELEMENT + "'.");
+            }
+        }
+
+        final UserCredentials userCreds = new UserCredentials();
+        userCreds.setName(name);
+        userCreds.setPasswordHash(passwordHash);
+        if (name != null) {
+            indexUser(userCreds);
+        }
+        users.add(userCreds);
+    }
+
+    private String checkMinLength(String attributeName, String value) throws UnmarshalException {
+        if (value.isEmpty()) {
+            throw invalid("cvc-minLength-valid: Value '' with length = '0' of attribute '" + attributeName
+                    + "' on element '" + USER_ELEMENT + "' is not facet-valid with respect to minLength '1'.");
+        }
+        return value;
+    }
+
+    /**
+     * Adds a user to the case-insensitive index while enforcing the case-sensitive uniqueness of the schema.
+     * Names that only differ by case from an indexed name are tracked separately, as the first of them stays
+     * the one found by lookups.
+     */
+    private void indexUser(UserCredentials userCreds) throws UnmarshalException {
+        final String name = userCreds.getName();
+        final UserCredentials indexed = usersByName.putIfAbsent(CredentialsStore.normalizeUserName(name), userCreds);
+        if (indexed == null) {
+            return;
+        }
+        boolean duplicate = indexed.getName().equals(name);
+        if (!duplicate) {
+            if (caseVariantNames == null) {
+                caseVariantNames = new HashSet<>();
+            }
+            duplicate = !caseVariantNames.add(name);
+        }
+        if (duplicate) {
+            throw invalid("cvc-identity-constraint.4.1: Duplicate unique value [" + name
+                    + "] declared for identity constraint \"uniqueUsername\" of element \"" + CREDENTIALS_ELEMENT + "\".");
+        }
+    }
+}
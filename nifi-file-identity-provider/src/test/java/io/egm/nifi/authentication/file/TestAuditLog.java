@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestAuditLog {
+
+    @TempDir
+    public Path folder;
+
+    @Test
+    public void testEntriesAreWritten() throws Exception {
+        final File file = folder.resolve("audit/audit.log").toFile();
+        final AuditLog auditLog = new AuditLog(file, 16, false, 1024 * 1024, 2);
+        auditLog.start();
+        auditLog.record("jane", "success", "password verified");
+        auditLog.record("x\" reason=\"forged\nline", "failure", null);
+        auditLog.close();
+        assertFalse(auditLog.isRunning());
+
+        final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).matches("\\d{4}-\\d{2}-\\d{2}T[0-9:.]+Z outcome=success user=\"jane\" reason=\"password verified\""),
+                lines.get(0));
+        assertTrue(lines.get(1).endsWith(" outcome=failure user=\"x\\\" reason=\\\"forged\\nline\" reason=\"\""),
+                lines.get(1));
+        assertEquals(2, auditLog.getRecordedCount());
+        assertEquals(2, auditLog.getWrittenCount());
+        assertEquals(0, auditLog.getDroppedCount());
+    }
+
+    @Test
+    public void testDropWhenFull() {
+        final File file = folder.resolve("audit.log").toFile();
+        // Not started, so nothing drains the queue
+        final AuditLog auditLog = new AuditLog(file, 4, false, 1024 * 1024, 2);
+        for (int i = 0; i < 10; i++) {
+            auditLog.record("user" + i, "failure", "invalid password");
+        }
+        assertEquals(10, auditLog.getRecordedCount());
+        assertEquals(6, auditLog.getDroppedCount());
+        assertEquals(4, auditLog.getPendingCount());
+    }
+
+    @Test
+    public void testBlockWhenFull() throws Exception {
+        final File file = folder.resolve("audit.log").toFile();
+        final AuditLog auditLog = new AuditLog(file, 2, true, 1024 * 1024, 2);
+        auditLog.start();
+        for (int i = 0; i < 1000; i++) {
+            auditLog.record("user" + i, "failure", "invalid password");
+        }
+        auditLog.close();
+        assertEquals(0, auditLog.getDroppedCount());
+        assertEquals(1000, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void testRollOver() throws Exception {
+        final File file = folder.resolve("audit.log").toFile();
+        final AuditLog auditLog = new AuditLog(file, 1, true, 100, 2);
+        auditLog.start();
+        for (int i = 0; i < 20; i++) {
+            auditLog.record("user" + i, "success", "password verified");
+        }
+        auditLog.close();
+
+        assertTrue(auditLog.getRolledFile(1).exists());
+        assertTrue(auditLog.getRolledFile(2).exists());
+        assertFalse(auditLog.getRolledFile(3).exists());
+        // The last batch is in the current file, unless it filled it and was rolled over too
+        final File lastFile = file.exists() ? file : auditLog.getRolledFile(1);
+        final List<String> lastLines = Files.readAllLines(lastFile.toPath(), StandardCharsets.UTF_8);
+        assertTrue(lastLines.get(lastLines.size() - 1).contains("user=\"user19\""));
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestAuditRingBuffer {
+
+    @Test
+    public void testOfferAndPoll() {
+        final AuditRingBuffer<Integer> buffer = new AuditRingBuffer<>(3);
+        assertEquals(4, buffer.capacity());
+        assertNull(buffer.poll());
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(buffer.offer(i));
+            }
+            assertFalse(buffer.offer(4));
+            assertEquals(4, buffer.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(Integer.valueOf(i), buffer.poll());
+            }
+            assertTrue(buffer.isEmpty());
+        }
+    }
+
+    @Test
+    public void testSmallestCapacity() {
+        final AuditRingBuffer<String> buffer = new AuditRingBuffer<>(1);
+        assertEquals(2, buffer.capacity());
+        assertTrue(buffer.offer("a"));
+        assertTrue(buffer.offer("b"));
+        assertFalse(buffer.offer("c"));
+        assertEquals("a", buffer.poll());
+        assertTrue(buffer.offer("c"));
+        assertEquals("b", buffer.poll());
+        assertEquals("c", buffer.poll());
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producerCount = 4;
+        final int perProducer = 20_000;
+        final AuditRingBuffer<long[]> buffer = new AuditRingBuffer<>(64);
+        final List<CompletableFuture<Void>> producers = new ArrayList<>();
+        for (int p = 0; p < producerCount; p++) {
+            final long producer = p;
+            producers.add(CompletableFuture.runAsync(() -> {
+                for (long i = 0; i < perProducer; i++) {
+                    final long[] element = {producer, i};
+                    while (!buffer.offer(element)) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+
+        // Each producer's elements must come out once and in order
+        final long[] next = new long[producerCount];
+        long received = 0;
+        final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        while (received < (long) producerCount * perProducer && System.nanoTime() < deadline) {
+            final long[] element = buffer.poll();
+            if (element != null) {
+                assertEquals(next[(int) element[0]]++, element[1]);
+                received++;
+            } else {
+                Thread.yield();
+            }
+        }
+        for (CompletableFuture<Void> producer : producers) {
+            producer.get(1, TimeUnit.MINUTES);
+        }
+        assertEquals((long) producerCount * perProducer, received);
+        assertNull(buffer.poll());
+    }
+
+}
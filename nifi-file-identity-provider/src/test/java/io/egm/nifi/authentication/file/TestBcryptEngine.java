@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.bouncycastle.crypto.generators.OpenBSDBCrypt;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestBcryptEngine {
+
+    private static final String BCRYPT_HASH = "$2a$10$ztplXcwIaUNu8JXkrS.9ge4WjorJzdUrpBh2.02Y6VXvgxkLKAtvG";
+
+    @Test
+    public void testKnownHashes() {
+        assertTrue(BcryptHash.parse(BCRYPT_HASH).matches("CantGuessMe"));
+        assertFalse(BcryptHash.parse(BCRYPT_HASH).matches("CantGuessMe!"));
+        assertTrue(BcryptHash.parse("$2y$" + BCRYPT_HASH.substring(4)).matches("CantGuessMe"));
+        // Test vector of jbcrypt, for the empty password
+        assertTrue(BcryptHash.parse("$2a$06$DCq7YPn5Rq63x1Lad4cll.TV4S6ytwfsfvkgY8jIucDrjc8deX1s.").matches(""));
+        assertEquals(10, BcryptHash.parse(BCRYPT_HASH).getCost());
+    }
+
+    @Test
+    public void testSameDigestsAsBouncyCastle() {
+        final Random random = new Random(42);
+        final String[] alphabet = {"a", "Z", "7", " ", "é", "ß", "€", "中", "😀"};
+        for (int i = 0; i < 50; i++) {
+            final StringBuilder password = new StringBuilder();
+            // At most 68 bytes, so that the appended character counts
+            final int length = random.nextInt(18);
+            for (int j = 0; j < length; j++) {
+                password.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            final byte[] salt = new byte[BcryptEngine.SALT_LENGTH];
+            random.nextBytes(salt);
+            final String passwordHash = OpenBSDBCrypt.generate("2a", password.toString().toCharArray(), salt, 4);
+            assertTrue(BcryptHash.parse(passwordHash).matches(password.toString()), passwordHash);
+            assertFalse(BcryptHash.parse(passwordHash).matches(password + "x"), passwordHash);
+        }
+    }
+
+    @Test
+    public void testOnlyFirst72BytesCount() {
+        final String password = "x".repeat(72);
+        final byte[] salt = new byte[BcryptEngine.SALT_LENGTH];
+        assertArrayEquals(BcryptEngine.hash(password, salt, 4), BcryptEngine.hash(password + "y", salt, 4));
+        assertFalse(Arrays.equals(BcryptEngine.hash(password.substring(1), salt, 4),
+                BcryptEngine.hash(password.substring(1) + "y", salt, 4)));
+    }
+
+    @Test
+    public void testMalformedHashes() {
+        for (String passwordHash : new String[]{
+                null,
+                "fakePasswordHash",
+                BCRYPT_HASH.substring(1),
+                BCRYPT_HASH + "G",
+                "$2x$" + BCRYPT_HASH.substring(4),
+                "$2a$03$" + BCRYPT_HASH.substring(7),
+                "$2a$1X$" + BCRYPT_HASH.substring(7),
+                BCRYPT_HASH.replace('.', '+'),
+                // Unused bits of the last salt and digest characters are set
+                BCRYPT_HASH.substring(0, 28) + "f" + BCRYPT_HASH.substring(29),
+                BCRYPT_HASH.substring(0, 59) + "H"}) {
+            assertThrows(IllegalArgumentException.class, () -> BcryptHash.parse(passwordHash), passwordHash);
+        }
+    }
+}
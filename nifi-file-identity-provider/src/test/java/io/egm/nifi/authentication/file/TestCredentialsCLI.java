@@ -132,6 +132,44 @@ public class TestCredentialsCLI {
         assertTrue(passwordMatches);
     }
 
+    @Test
+    public void testResetPasswordWithCost() throws Exception {
+        final String[] args = new String[]{"--cost", "4", "reset", credentialsFilePath, "user1"};
+        final CredentialsCLI cli = new CredentialsCLI();
+        final CredentialsAction action = cli.processArgs(args);
+        assertEquals(CredentialsCLI.ResetPasswordAction.class, action.getClass());
+        action.secureInput = "ResetPassword".toCharArray();
+        action.execute();
+        final CredentialsStore credStore = CredentialsStore.fromFile(credentialsFilePath);
+        final String passwordHash = credStore.findUser("user1").getPasswordHash();
+        assertEquals(4, BcryptPasswordEncoder.getCost(passwordHash));
+        assertTrue(credStore.checkPassword("user1", "ResetPassword"));
+    }
+
+    @Test
+    public void testResetPasswordWithAlgorithm() throws Exception {
+        final String[] args = new String[]{"--algorithm", "pbkdf2-sha256", "--cost", "1000", "reset", credentialsFilePath, "user1"};
+        final CredentialsCLI cli = new CredentialsCLI();
+        final CredentialsAction action = cli.processArgs(args);
+        assertEquals(CredentialsCLI.ResetPasswordAction.class, action.getClass());
+        action.secureInput = "ResetPassword".toCharArray();
+        action.execute();
+        final CredentialsStore credStore = CredentialsStore.fromFile(credentialsFilePath);
+        assertTrue(credStore.findUser("user1").getPasswordHash().startsWith("$pbkdf2-sha256$i=1000$"));
+        assertTrue(credStore.checkPassword("user1", "ResetPassword"));
+    }
+
+    @Test
+    public void testInvalidCost() {
+        final CredentialsCLI cli = new CredentialsCLI();
+        CredentialsAction action = cli.processArgs(new String[]{"--cost", "high", "add", credentialsFilePath, "user9"});
+        assertEquals(CredentialsCLI.PrintHelpAction.class, action.getClass());
+
+        action = cli.processArgs(new String[]{"--cost", "99", "add", credentialsFilePath, "user9"});
+        assertEquals(CredentialsCLI.AddUserAction.class, action.getClass());
+        assertThrows(IllegalArgumentException.class, action::execute);
+    }
+
     @Test
     public void testRemoveUser() throws Exception {
         final String userName = "user1";
@@ -156,4 +194,53 @@ public class TestCredentialsCLI {
         assertThrows(IllegalArgumentException.class, action::validate);
     }
 
+    @Test
+    public void testCompileIndex() throws Exception {
+        final CredentialsCLI cli = new CredentialsCLI();
+        final CredentialsAction action = cli.processArgs(new String[] {"index", credentialsFilePath});
+        assertEquals(CredentialsCLI.CompileIndexAction.class, action.getClass());
+        action.validate();
+        action.execute();
+
+        final File credentialsFile = new File(credentialsFilePath);
+        final CredentialsIndex index = CredentialsIndex.open(CredentialsIndex.getIndexFile(credentialsFile));
+        assertTrue(index.isCompiledFrom(CredentialsFileFingerprint.of(credentialsFile, true)));
+        assertEquals(6, index.getUserCount());
+        assertNotNull(index.findUser("user1"));
+    }
+
+    @Test
+    public void testJournal() throws Exception {
+        final File credentialsFile = new File(credentialsFilePath);
+        final File journalFile = CredentialsJournal.getJournalFile(credentialsFile);
+        final long lastModified = credentialsFile.lastModified();
+        final CredentialsCLI cli = new CredentialsCLI();
+        CredentialsAction action = cli.processArgs(new String[] {"--journal", "100000", "--cost", "4", "add",
+                credentialsFilePath, "someuser"});
+        action.secureInput = "password1".toCharArray();
+        action.execute();
+        cli.processArgs(new String[] {"--journal", "100000", "remove", credentialsFilePath, "user1"}).execute();
+        assertEquals(lastModified, credentialsFile.lastModified());
+        assertTrue(journalFile.exists());
+
+        // Commands read the changes of the journal, with or without the option
+        action = cli.processArgs(new String[] {"list", credentialsFilePath});
+        action.execute();
+        assertEquals(6, action.outputs.length);
+        assertEquals("someuser", action.outputs[5]);
+
+        action = cli.processArgs(new String[] {"compact", credentialsFilePath});
+        assertEquals(CredentialsCLI.CompactJournalAction.class, action.getClass());
+        action.execute();
+        assertFalse(journalFile.exists());
+        final CredentialsStore credStore = CredentialsStore.fromFile(credentialsFilePath);
+        assertTrue(credStore.checkPassword("someuser", "password1"));
+        assertNull(credStore.findUser("user1"));
+
+        // A journal longer than its maximum is compacted at once
+        cli.processArgs(new String[] {"--journal", "0", "remove", credentialsFilePath, "user2"}).execute();
+        assertFalse(journalFile.exists());
+        assertNull(CredentialsStore.fromFile(credentialsFilePath).findUser("user2"));
+    }
+
 }
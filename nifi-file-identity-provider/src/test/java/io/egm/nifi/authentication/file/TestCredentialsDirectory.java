@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+import jakarta.xml.bind.UnmarshalException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestCredentialsDirectory {
+
+    private static final String BCRYPT_HASH = "$2a$10$ztplXcwIaUNu8JXkrS.9ge4WjorJzdUrpBh2.02Y6VXvgxkLKAtvG";
+
+    @TempDir
+    public Path folder;
+
+    private File writeShard(String fileName, String... userNames) throws Exception {
+        final StringBuilder xml = new StringBuilder("<credentials>\n");
+        for (String userName : userNames) {
+            xml.append("    <user name=\"").append(userName).append("\" passwordHash=\"").append(BCRYPT_HASH)
+                    .append("\"/>\n");
+        }
+        xml.append("</credentials>\n");
+        final File shardFile = folder.resolve(fileName).toFile();
+        final long previousLastModified = shardFile.lastModified();
+        Files.writeString(shardFile.toPath(), xml);
+        if (previousLastModified != 0L && shardFile.lastModified() == previousLastModified) {
+            shardFile.setLastModified(previousLastModified + 1000);
+        }
+        return shardFile;
+    }
+
+    @Test
+    public void testLoadMergesShards() throws Exception {
+        writeShard("team-a.xml", "alice", "bob");
+        writeShard("team-b.xml", "carol");
+        writeShard("team-c.xml", "dave", "Eve");
+        Files.writeString(folder.resolve("notes.txt"), "not a shard");
+
+        final CredentialsStore credStore = CredentialsStore.forDirectory(folder.toFile());
+        credStore.load();
+        final CredentialsDirectory credentialsDirectory = credStore.getCredentialsDirectory();
+        assertEquals(3, credentialsDirectory.getShardCount());
+        assertEquals(3, credentialsDirectory.getLastLoadedShardCount());
+        assertEquals(5, credStore.getSnapshot().size());
+        assertTrue(credStore.checkPassword("EVE", "CantGuessMe"));
+        assertTrue(credStore.checkPassword("carol", "CantGuessMe"));
+        assertFalse(credStore.reloadIfModified());
+    }
+
+    @Test
+    public void testReloadParsesModifiedShardsOnly() throws Exception {
+        writeShard("team-a.xml", "alice", "bob");
+        writeShard("team-b.xml", "carol");
+
+        final CredentialsStore credStore = CredentialsStore.forDirectory(folder.toFile());
+        credStore.load();
+        final UserCredentials alice = credStore.findUser("alice");
+
+        writeShard("team-b.xml", "carol", "dave");
+        assertTrue(credStore.reloadIfModified());
+        assertEquals(1, credStore.getCredentialsDirectory().getLastLoadedShardCount());
+        assertSame(alice, credStore.findUser("alice"));
+        assertEquals(List.of("dave"), credStore.getLastDelta().getAddedUsers());
+
+        // Added and removed shards are noticed too
+        writeShard("team-c.xml", "erin");
+        assertTrue(credStore.reloadIfModified());
+        assertEquals(1, credStore.getCredentialsDirectory().getLastLoadedShardCount());
+        assertNotNull(credStore.findUser("erin"));
+        Files.delete(folder.resolve("team-b.xml"));
+        assertTrue(credStore.reloadIfModified());
+        assertEquals(0, credStore.getCredentialsDirectory().getLastLoadedShardCount());
+        assertNull(credStore.findUser("carol"));
+        assertEquals(Set.of("carol", "dave"), new HashSet<>(credStore.getLastDelta().getRemovedUsers()));
+    }
+
+    @Test
+    public void testDuplicateUserAcrossShardsThrows() throws Exception {
+        writeShard("team-a.xml", "alice");
+        writeShard("team-b.xml", "bob");
+
+        final CredentialsStore credStore = CredentialsStore.forDirectory(folder.toFile());
+        credStore.load();
+        writeShard("team-b.xml", "bob", "Alice");
+        assertThrows(UnmarshalException.class, credStore::load);
+        // The previous users remain, and the failed shard is parsed again at the next load
+        assertEquals(2, credStore.getSnapshot().size());
+        assertTrue(credStore.getCredentialsDirectory().isModified());
+    }
+
+    @Test
+    public void testSaveWritesChangedShardsOnly() throws Exception {
+        final File teamA = writeShard("team-a.xml", "alice");
+        final File teamB = writeShard("team-b.xml", "bob", "carol");
+        teamA.setLastModified(teamA.lastModified() - 10_000);
+        teamB.setLastModified(teamB.lastModified() - 10_000);
+        final long teamALastModified = teamA.lastModified();
+        final long teamBLastModified = teamB.lastModified();
+
+        final CredentialsStore credStore = CredentialsStore.forDirectory(folder.toFile());
+        credStore.load();
+        credStore.setPasswordEncoder(new BcryptPasswordEncoder(4));
+        credStore.resetPassword("carol", "password");
+        assertTrue(credStore.removeUser("bob"));
+        assertThrows(UnsupportedOperationException.class, () -> credStore.addUser("dave", "password"));
+        credStore.save();
+        assertEquals(teamALastModified, teamA.lastModified());
+        assertNotEquals(teamBLastModified, teamB.lastModified());
+        assertFalse(credStore.reloadIfModified());
+
+        // A shard added since the load is left alone by the save, and picked up by the next reload
+        writeShard("team-c.xml", "erin");
+        credStore.resetPassword("alice", "password");
+        credStore.save();
+        assertTrue(folder.resolve("team-c.xml").toFile().exists());
+        assertTrue(credStore.reloadIfModified());
+        assertTrue(credStore.checkPassword("erin", "CantGuessMe"));
+
+        final CredentialsStore savedStore = CredentialsStore.forDirectory(folder.toFile());
+        savedStore.load();
+        assertNull(savedStore.findUser("bob"));
+        assertTrue(savedStore.checkPassword("alice", "password"));
+        assertTrue(savedStore.checkPassword("carol", "password"));
+        assertTrue(savedStore.checkPassword("erin", "CantGuessMe"));
+    }
+
+    @Test
+    public void testMissingDirectoryThrows() {
+        final CredentialsStore credStore = CredentialsStore.forDirectory(folder.resolve("missing").toFile());
+        assertThrows(FileNotFoundException.class, credStore::load);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestCredentialsFileFingerprint {
+
+    @TempDir
+    public Path folder;
+
+    @Test
+    public void testMissingFile() throws Exception {
+        assertNull(CredentialsFileFingerprint.of(folder.resolve("missing.xml").toFile(), true));
+    }
+
+    @Test
+    public void testAttributes() throws Exception {
+        final Path file = folder.resolve("credentials.xml");
+        Files.writeString(file, "<credentials/>");
+        final FileTime lastModified = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+        Files.setLastModifiedTime(file, lastModified);
+        final CredentialsFileFingerprint fingerprint = CredentialsFileFingerprint.of(file.toFile(), false);
+        assertEquals(14, fingerprint.getSize());
+        assertEquals(lastModified.toMillis(), fingerprint.getLastModified());
+        assertFalse(fingerprint.isRacy());
+        assertFalse(fingerprint.isContentHashed());
+        assertTrue(fingerprint.hasSameAttributes(CredentialsFileFingerprint.of(file.toFile(), true)));
+
+        // An older modification time is a change too
+        Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified.toMillis() - 1000));
+        assertFalse(fingerprint.hasSameAttributes(CredentialsFileFingerprint.of(file.toFile(), false)));
+        Files.setLastModifiedTime(file, lastModified);
+        assertTrue(fingerprint.hasSameAttributes(CredentialsFileFingerprint.of(file.toFile(), false)));
+
+        // Replaced by another file with the same size and modification time
+        final Path replacement = folder.resolve("replacement.xml");
+        Files.writeString(replacement, "<credentials/>");
+        Files.setLastModifiedTime(replacement, lastModified);
+        Files.move(replacement, file, StandardCopyOption.REPLACE_EXISTING);
+        final CredentialsFileFingerprint replaced = CredentialsFileFingerprint.of(file.toFile(), false);
+        if (Files.readAttributes(file, java.nio.file.attribute.BasicFileAttributes.class).fileKey() != null) {
+            assertFalse(fingerprint.hasSameAttributes(replaced));
+        }
+    }
+
+    @Test
+    public void testContentHash() throws Exception {
+        final File file = folder.resolve("credentials.xml").toFile();
+        Files.writeString(file.toPath(), "<credentials/>");
+        final CredentialsFileFingerprint fingerprint = CredentialsFileFingerprint.of(file, true);
+        assertTrue(fingerprint.isContentHashed());
+        assertTrue(fingerprint.isRacy());
+        assertTrue(fingerprint.hasSameContent(CredentialsFileFingerprint.of(file, true)));
+        assertFalse(fingerprint.hasSameContent(CredentialsFileFingerprint.of(file, false)));
+
+        Files.writeString(file.toPath(), "<credentialz/>");
+        assertFalse(fingerprint.hasSameContent(CredentialsFileFingerprint.of(file, true)));
+    }
+
+    @Test
+    public void testBytes() throws Exception {
+        final File file = folder.resolve("credentials.xml").toFile();
+        Files.writeString(file.toPath(), "<credentials/>");
+        final CredentialsFileFingerprint fingerprint = CredentialsFileFingerprint.of(file, true);
+        final CredentialsFileFingerprint read = CredentialsFileFingerprint.fromBytes(fingerprint.toBytes());
+        assertEquals(fingerprint.toString(), read.toString());
+        assertTrue(read.hasSameAttributes(CredentialsFileFingerprint.of(file, false)));
+        assertTrue(CredentialsFileFingerprint.of(file, false).hasSameAttributes(read));
+        assertTrue(read.hasSameContent(CredentialsFileFingerprint.of(file, true)));
+        assertEquals(fingerprint.isRacy(), read.isRacy());
+
+        final byte[] bytes = fingerprint.toBytes();
+        assertThrows(IOException.class, () -> CredentialsFileFingerprint.fromBytes(Arrays.copyOf(bytes, bytes.length - 1)));
+        assertThrows(IOException.class, () -> CredentialsFileFingerprint.fromBytes(Arrays.copyOf(bytes, bytes.length + 1)));
+    }
+}
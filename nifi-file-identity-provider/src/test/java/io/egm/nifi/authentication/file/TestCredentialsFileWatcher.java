@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestCredentialsFileWatcher {
+
+    private static final long TIMEOUT_MILLISECONDS = TimeUnit.SECONDS.toMillis(30);
+
+    @TempDir
+    public Path folder;
+
+    private static void awaitUser(CredentialsStore credStore, String userName, boolean present) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLISECONDS;
+        while ((credStore.findUser(userName) != null) != present) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for reload");
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+    }
+
+    @Test
+    public void testReloadsModifiedFile() throws Exception {
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        final CredentialsStore writerStore = new CredentialsStore(credentialsFile);
+        writerStore.addUser("user1", "SuperSecret1");
+        writerStore.save();
+
+        final CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        final CredentialsFileWatcher watcher = new CredentialsFileWatcher(credStore, credentialsFile, 100);
+        try {
+            watcher.start();
+            assertTrue(watcher.isRunning());
+            awaitUser(credStore, "user1", true);
+
+            writerStore.addUser("user2", "SuperSecret2");
+            writerStore.save();
+            // Ensure significant last modified diff on low-granularity file systems
+            credentialsFile.setLastModified(credentialsFile.lastModified() + 5000);
+            awaitUser(credStore, "user2", true);
+        } finally {
+            watcher.close();
+        }
+        assertFalse(watcher.isRunning());
+    }
+
+    @Test
+    public void testKeepsCredentialsWhenReloadFails() throws Exception {
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        final CredentialsStore writerStore = new CredentialsStore(credentialsFile);
+        writerStore.addUser("user1", "SuperSecret1");
+        writerStore.save();
+
+        final CredentialsStore credStore = CredentialsStore.fromFile(credentialsFile);
+        final CredentialsFileWatcher watcher = new CredentialsFileWatcher(credStore, credentialsFile, 100);
+        try {
+            watcher.start();
+            assertTrue(credentialsFile.delete());
+            TimeUnit.MILLISECONDS.sleep(300);
+            assertNotNull(credStore.findUser("user1"));
+        } finally {
+            watcher.close();
+        }
+    }
+
+}
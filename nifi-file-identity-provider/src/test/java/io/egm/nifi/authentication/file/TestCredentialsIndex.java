@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.ObjectFactory;
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestCredentialsIndex {
+
+    private static final String BCRYPT_HASH = "$2a$10$ztplXcwIaUNu8JXkrS.9ge4WjorJzdUrpBh2.02Y6VXvgxkLKAtvG";
+
+    private static final ObjectFactory factory = new ObjectFactory();
+
+    @TempDir
+    public Path folder;
+
+    private CredentialsFileFingerprint sourceFingerprint(String name) throws IOException {
+        final File credentialsFile = folder.resolve(name).toFile();
+        Files.writeString(credentialsFile.toPath(), "<credentials/>");
+        return CredentialsFileFingerprint.of(credentialsFile, true);
+    }
+
+    private static UserCredentials user(String name, String passwordHash) {
+        final UserCredentials userCreds = factory.createUserCredentials();
+        userCreds.setName(name);
+        userCreds.setPasswordHash(passwordHash);
+        return userCreds;
+    }
+
+    @Test
+    public void testFindUser() throws Exception {
+        final List<UserCredentials> users = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            users.add(user("User" + i, BCRYPT_HASH));
+        }
+        users.add(user("Zoë", "malformed"));
+        users.add(user("user1", "shadowed"));
+        final File indexFile = folder.resolve("credentials.xml.idx").toFile();
+        final CredentialsFileFingerprint fingerprint = sourceFingerprint("credentials.xml");
+        CredentialsIndex.write(users, fingerprint, indexFile);
+
+        final CredentialsIndex index = CredentialsIndex.open(indexFile);
+        assertEquals(1002, index.getUserCount());
+        assertEquals(2, index.getMalformedUserCount());
+        assertEquals(fingerprint.getLastModified(), index.getSourceLastModified());
+        for (int i = 0; i < 1000; i++) {
+            final UserCredentials userCreds = index.findUser("user" + i);
+            assertEquals("User" + i, userCreds.getName());
+            assertEquals(BCRYPT_HASH, userCreds.getPasswordHash());
+        }
+        assertEquals("malformed", index.findUser("ZOË").getPasswordHash());
+        // The first of several case variants wins
+        assertEquals(BCRYPT_HASH, index.findUser("user1").getPasswordHash());
+
+        for (int i = 0; i < 1000; i++) {
+            assertNull(index.findUser("unknown" + i));
+        }
+        assertNull(index.findUser(null));
+        assertTrue(index.getBloomRejectCount() > 950, "Bloom filter rejected " + index.getBloomRejectCount());
+    }
+
+    @Test
+    public void testEmptyIndex() throws Exception {
+        final File indexFile = folder.resolve("empty.xml.idx").toFile();
+        CredentialsIndex.write(List.of(), sourceFingerprint("empty.xml"), indexFile);
+        final CredentialsIndex index = CredentialsIndex.open(indexFile);
+        assertEquals(0, index.getUserCount());
+        assertNull(index.findUser("anyone"));
+    }
+
+    @Test
+    public void testIsCompiledFrom() throws Exception {
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        Files.writeString(credentialsFile.toPath(), "<credentials/>");
+        final File indexFile = CredentialsIndex.getIndexFile(credentialsFile);
+        assertEquals(credentialsFile.getPath() + ".idx", indexFile.getPath());
+        CredentialsIndex.write(List.of(user("user1", BCRYPT_HASH)), CredentialsFileFingerprint.of(credentialsFile, true),
+                indexFile);
+
+        final CredentialsIndex index = CredentialsIndex.open(indexFile);
+        assertTrue(index.isCompiledFrom(CredentialsFileFingerprint.of(credentialsFile, false)));
+        assertTrue(index.isCompiledFrom(CredentialsFileFingerprint.of(credentialsFile, true)));
+        assertFalse(index.isCompiledFrom(null));
+        Files.writeString(credentialsFile.toPath(), "<credentials></credentials>");
+        assertFalse(index.isCompiledFrom(CredentialsFileFingerprint.of(credentialsFile, false)));
+    }
+
+    @Test
+    public void testIsCompiledFromComparesContent() throws Exception {
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        Files.writeString(credentialsFile.toPath(), "<credentials/>");
+        final FileTime tick = Files.getLastModifiedTime(credentialsFile.toPath());
+        final File indexFile = CredentialsIndex.getIndexFile(credentialsFile);
+        CredentialsIndex.write(List.of(user("user1", BCRYPT_HASH)), CredentialsFileFingerprint.of(credentialsFile, true),
+                indexFile);
+        final CredentialsIndex index = CredentialsIndex.open(indexFile);
+
+        // Same size, same modification time, same file
+        Files.writeString(credentialsFile.toPath(), "<credentialz/>");
+        Files.setLastModifiedTime(credentialsFile.toPath(), tick);
+        assertTrue(index.isCompiledFrom(CredentialsFileFingerprint.of(credentialsFile, false)));
+        assertFalse(index.isCompiledFrom(CredentialsFileFingerprint.of(credentialsFile, true)));
+
+        // Without a content hash in the index, a hashed fingerprint cannot be matched
+        CredentialsIndex.write(List.of(user("user1", BCRYPT_HASH)), CredentialsFileFingerprint.of(credentialsFile, false),
+                indexFile);
+        assertFalse(CredentialsIndex.open(indexFile).isCompiledFrom(CredentialsFileFingerprint.of(credentialsFile, true)));
+    }
+
+    @Test
+    public void testReplacedIndexKeepsMapping() throws Exception {
+        final File indexFile = folder.resolve("credentials.xml.idx").toFile();
+        final CredentialsFileFingerprint fingerprint = sourceFingerprint("credentials.xml");
+        CredentialsIndex.write(List.of(user("user1", BCRYPT_HASH)), fingerprint, indexFile);
+        final CredentialsIndex index = CredentialsIndex.open(indexFile);
+        CredentialsIndex.write(List.of(user("user2", BCRYPT_HASH)), fingerprint, indexFile);
+
+        assertNotNull(index.findUser("user1"));
+        final CredentialsIndex newIndex = CredentialsIndex.open(indexFile);
+        assertNull(newIndex.findUser("user1"));
+        assertNotNull(newIndex.findUser("user2"));
+    }
+
+    @Test
+    public void testCorruptIndexThrows() throws Exception {
+        final File indexFile = folder.resolve("credentials.xml.idx").toFile();
+        Files.writeString(indexFile.toPath(), "<credentials/>");
+        assertThrows(IOException.class, () -> CredentialsIndex.open(indexFile));
+
+        CredentialsIndex.write(List.of(user("user1", BCRYPT_HASH)), sourceFingerprint("credentials.xml"), indexFile);
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+        assertThrows(IOException.class, () -> CredentialsIndex.open(indexFile));
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.CredentialsJournal.Entry;
+import io.egm.nifi.authentication.file.CredentialsJournal.Operation;
+import io.egm.nifi.authentication.file.CredentialsJournal.Replay;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestCredentialsJournal {
+
+    private static final String BCRYPT_HASH = "$2a$10$ztplXcwIaUNu8JXkrS.9ge4WjorJzdUrpBh2.02Y6VXvgxkLKAtvG";
+
+    @TempDir
+    public Path folder;
+
+    private CredentialsJournal newJournal() {
+        return new CredentialsJournal(CredentialsJournal.getJournalFile(folder.resolve("credentials.xml").toFile()));
+    }
+
+    private static void append(CredentialsJournal journal, Entry entry) throws IOException {
+        try (CredentialsJournal.Lock lock = journal.lock()) {
+            journal.append(entry);
+        }
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        final CredentialsJournal journal = newJournal();
+        assertEquals("credentials.xml.journal", journal.getFile().getName());
+        assertTrue(journal.read(null, 0L).getEntries().isEmpty());
+
+        append(journal, new Entry(Operation.ADD, "jane", BCRYPT_HASH));
+        append(journal, new Entry(Operation.RESET, "john", BCRYPT_HASH));
+        append(journal, new Entry(Operation.REMOVE, "joe", null));
+        final Replay replay = journal.read(null, 0L);
+        assertEquals(3, replay.getEntries().size());
+        assertEquals(Operation.RESET, replay.getEntries().get(1).getOperation());
+        assertEquals("john", replay.getEntries().get(1).getUserName());
+        assertEquals(BCRYPT_HASH, replay.getEntries().get(1).getPasswordHash());
+        assertNull(replay.getEntries().get(2).getPasswordHash());
+        assertEquals(journal.length(), replay.getPosition());
+        assertNotNull(replay.getGeneration());
+        assertFalse(replay.isRestarted());
+
+        // Only the entries appended since are read
+        assertTrue(journal.read(replay.getGeneration(), replay.getPosition()).getEntries().isEmpty());
+        append(journal, new Entry(Operation.ADD, "jim", BCRYPT_HASH));
+        final Replay next = journal.read(replay.getGeneration(), replay.getPosition());
+        assertEquals(1, next.getEntries().size());
+        assertEquals("jim", next.getEntries().get(0).getUserName());
+        assertFalse(next.isRestarted());
+    }
+
+    @Test
+    public void testIncompleteLineIsNotRead() throws Exception {
+        final CredentialsJournal journal = newJournal();
+        append(journal, new Entry(Operation.ADD, "jane", BCRYPT_HASH));
+        final long length = journal.length();
+        Files.writeString(journal.getFile().toPath(), "add\tjohn\t$2a$1", StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND);
+
+        final Replay replay = journal.read(null, 0L);
+        assertEquals(1, replay.getEntries().size());
+        assertEquals(length, replay.getPosition());
+    }
+
+    @Test
+    public void testReadRestartsAfterCompaction() throws Exception {
+        final CredentialsJournal journal = newJournal();
+        append(journal, new Entry(Operation.ADD, "jane", BCRYPT_HASH));
+        append(journal, new Entry(Operation.ADD, "john", BCRYPT_HASH));
+        final Replay replay = journal.read(null, 0L);
+
+        try (CredentialsJournal.Lock lock = journal.lock()) {
+            journal.delete();
+        }
+        assertTrue(journal.read(replay.getGeneration(), replay.getPosition()).isRestarted());
+        append(journal, new Entry(Operation.REMOVE, "jane", null));
+        final Replay restarted = journal.read(replay.getGeneration(), replay.getPosition());
+        assertTrue(restarted.isRestarted());
+        assertNotEquals(replay.getGeneration(), restarted.getGeneration());
+        assertEquals(1, restarted.getEntries().size());
+    }
+
+    @Test
+    public void testMalformedEntryThrows() throws Exception {
+        final CredentialsJournal journal = newJournal();
+        append(journal, new Entry(Operation.ADD, "jane", BCRYPT_HASH));
+        Files.writeString(journal.getFile().toPath(), "rename\tjane\tjanet\n", StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND);
+        assertThrows(IOException.class, () -> journal.read(null, 0L));
+
+        final File headless = folder.resolve("headless.xml.journal").toFile();
+        Files.writeString(headless.toPath(), "add\tjane\t" + BCRYPT_HASH + "\n", StandardCharsets.UTF_8);
+        assertThrows(IOException.class, () -> new CredentialsJournal(headless).read(null, 0L));
+    }
+
+    @Test
+    public void testUserNameWithSeparatorIsRejected() {
+        final CredentialsJournal journal = newJournal();
+        assertThrows(IllegalArgumentException.class, () -> append(journal, new Entry(Operation.ADD, "jane\tdoe",
+                BCRYPT_HASH)));
+        assertThrows(IllegalArgumentException.class, () -> append(journal, new Entry(Operation.REMOVE, "jane\ndoe",
+                null)));
+    }
+}
@@ -16,6 +16,7 @@
 
 package io.egm.nifi.authentication.file;
 
+import io.egm.nifi.authentication.file.generated.ObjectFactory;
 import io.egm.nifi.authentication.file.generated.UserCredentials;
 import io.egm.nifi.authentication.file.generated.UserCredentialsList;
 import org.apache.commons.io.FileUtils;
@@ -26,7 +27,21 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.InvalidObjectException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -106,6 +121,35 @@ public class TestCredentialsStore {
         assertTrue(passwordMatches);
     }
 
+    @Test
+    public void testSaveReplacesFileAtomically() throws Exception {
+        final File folder = Files.createTempDirectory("testSaveReplacesFileAtomically").toFile();
+        final File credentialsFile = new File(folder, "credentials.xml");
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+        final boolean posix = Files.getFileAttributeView(credentialsFile.toPath(), PosixFileAttributeView.class) != null;
+        final Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+        if (posix) {
+            Files.setPosixFilePermissions(credentialsFile.toPath(), permissions);
+        }
+        final Object fileKey = Files.readAttributes(credentialsFile.toPath(), BasicFileAttributes.class).fileKey();
+
+        final CredentialsStore credStore = CredentialsStore.fromFile(credentialsFile);
+        credStore.addUser("user3", "SuperSecret");
+        credStore.save();
+
+        // Written aside and moved in place, rather than truncated and written where a reader could see it half-way
+        final Object savedFileKey = Files.readAttributes(credentialsFile.toPath(), BasicFileAttributes.class).fileKey();
+        if (fileKey != null) {
+            assertNotEquals(fileKey, savedFileKey);
+        }
+        if (posix) {
+            assertEquals(permissions, Files.getPosixFilePermissions(credentialsFile.toPath()));
+        }
+        assertArrayEquals(new String[] {"credentials.xml"}, folder.list());
+        assertNotNull(CredentialsStore.fromFile(credentialsFile).findUser("user3"));
+        FileUtils.deleteDirectory(folder);
+    }
+
     @Test
     public void testResetPassword() throws Exception {
         CredentialsStore credStore = CredentialsStore.fromFile(TEST_READ_WRITE_CREDENTIALS_FILE);
@@ -142,6 +186,26 @@ public class TestCredentialsStore {
         assertFalse(removed);
     }
 
+    @Test
+    public void testFindUserIsCaseInsensitive() throws Exception {
+        CredentialsStore credStore = CredentialsStore.fromFile(TEST_READ_WRITE_CREDENTIALS_FILE);
+        UserCredentials userCreds = credStore.findUser("USER2");
+        assertNotNull(userCreds);
+        assertEquals("user2", userCreds.getName());
+        credStore.addUser("Some User", "SuperSecret");
+        assertNotNull(credStore.findUser("some user"));
+        assertNull(credStore.findUser("Other User"));
+    }
+
+    @Test
+    public void testAddDuplicateUserThrows() throws Exception {
+        CredentialsStore credStore = CredentialsStore.fromFile(TEST_READ_WRITE_CREDENTIALS_FILE);
+        assertThrows(IllegalArgumentException.class, () ->
+                credStore.addUser("User1", "SuperSecret")
+        );
+        assertEquals(2, credStore.getCredentialsList().getUser().size());
+    }
+
     @Test
     public void testCredentialsStoreReloadsFileUpdates() throws Exception {
         File tempFile = File.createTempFile("testCredentialsStoreReloadsFileUpdates_actual", "xml");
@@ -168,6 +232,627 @@ public class TestCredentialsStore {
         assertTrue(passwordMatches);
     }
 
+    @Test
+    public void testLookupsDuringConcurrentChanges() throws Exception {
+        final CredentialsStore credStore = CredentialsStore.fromFile(TEST_READ_WRITE_CREDENTIALS_FILE);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Future<?> writer = executor.submit(() -> {
+                for (int i = 0; i < 20; i++) {
+                    credStore.addUser("Some User " + i, "SuperSecret");
+                    credStore.removeUser("Some User " + (i / 2));
+                }
+                running.set(false);
+                return null;
+            });
+            for (int r = 0; r < 3; r++) {
+                executor.submit(() -> {
+                    while (running.get()) {
+                        assertNotNull(credStore.findUser("user2"));
+                        for (UserCredentials userCreds : credStore.getSnapshot().getUsers()) {
+                            assertNotNull(userCreds.getName());
+                        }
+                    }
+                    return null;
+                });
+            }
+            writer.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        }
+        assertEquals(12, credStore.getSnapshot().size());
+    }
+
+    @Test
+    public void testConcurrentReloadsAreCoalesced() throws Exception {
+        File tempFile = File.createTempFile("testConcurrentReloadsAreCoalesced_actual", "xml");
+        CredentialsStore writerStore = new CredentialsStore(tempFile);
+        writerStore.addUser("Some User", "SuperSecret1");
+        writerStore.save();
+        final CredentialsStore credStore = CredentialsStore.fromFile(tempFile);
+        assertEquals(1, credStore.getLoadCount());
+
+        writerStore.addUser("Other User", "SuperSecret2");
+        writerStore.save();
+        // Ensure significant last modified diff on low-granularity file systems
+        tempFile.setLastModified(tempFile.lastModified() + 5000);
+
+        final int threads = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<Boolean>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> {
+                    barrier.await();
+                    return credStore.reloadIfModified();
+                }));
+            }
+            int reloaded = 0;
+            for (Future<Boolean> result : results) {
+                if (result.get(1, TimeUnit.MINUTES)) {
+                    reloaded++;
+                }
+            }
+            assertEquals(1, reloaded);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(2, credStore.getLoadCount());
+        assertTrue(credStore.getCoalescedReloadCount() < threads);
+        assertNotNull(credStore.findUser("Other User"));
+    }
+
+    @Test
+    public void testReloadRetainsUnchangedUsers() throws Exception {
+        File tempFile = File.createTempFile("testReloadRetainsUnchangedUsers_actual", "xml");
+        CredentialsStore writerStore = new CredentialsStore(tempFile);
+        writerStore.addUser("User A", "SuperSecretA");
+        writerStore.addUser("User B", "SuperSecretB");
+        writerStore.addUser("User C", "SuperSecretC");
+        writerStore.save();
+
+        CredentialsStore credStore = CredentialsStore.fromFile(tempFile);
+        final List<CredentialsDelta> deltas = new ArrayList<>();
+        credStore.addChangeListener(deltas::add);
+        final UserCredentials userA = credStore.findUser("User A");
+        final UserCredentials userB = credStore.findUser("User B");
+
+        writerStore.resetPassword("User B", "SuperDuperSecretB");
+        writerStore.removeUser("User C");
+        writerStore.addUser("User D", "SuperSecretD");
+        writerStore.save();
+        // Ensure significant last modified diff on low-granularity file systems
+        tempFile.setLastModified(tempFile.lastModified() + 5000);
+        assertTrue(credStore.reloadIfModified());
+
+        assertSame(userA, credStore.findUser("User A"));
+        assertNotSame(userB, credStore.findUser("User B"));
+        assertEquals(1, deltas.size());
+        final CredentialsDelta delta = deltas.getFirst();
+        assertSame(delta, credStore.getLastDelta());
+        assertEquals(List.of("User D"), delta.getAddedUsers());
+        assertEquals(List.of("User C"), delta.getRemovedUsers());
+        assertEquals(List.of("User B"), delta.getChangedUsers());
+        assertEquals(1, delta.getUnchangedUserCount());
+    }
+
+    @Test
+    public void testReloadOnOlderModificationTime() throws Exception {
+        final File credentialsFile = File.createTempFile("testReloadOnOlderModificationTime", ".xml");
+        credentialsFile.deleteOnExit();
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+        final CredentialsStore credStore = CredentialsStore.fromFile(credentialsFile);
+        final long lastModified = credentialsFile.lastModified();
+
+        // Restored from a backup with an older modification time
+        final CredentialsStore writerStore = CredentialsStore.fromFile(credentialsFile);
+        writerStore.removeUser("user1");
+        writerStore.save();
+        assertTrue(credentialsFile.setLastModified(lastModified - 60_000));
+        assertTrue(credStore.reloadIfModified());
+        assertNull(credStore.findUser("user1"));
+        assertFalse(credStore.reloadIfModified());
+    }
+
+    @Test
+    public void testTouchedFileIsNotReloadedWithContentHashing() throws Exception {
+        final File credentialsFile = File.createTempFile("testTouchedFileIsNotReloaded", ".xml");
+        credentialsFile.deleteOnExit();
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+        final CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        credStore.setContentHashing(true);
+        credStore.load();
+
+        assertTrue(credentialsFile.setLastModified(credentialsFile.lastModified() + 5000));
+        assertFalse(credStore.reloadIfModified());
+        assertFalse(credStore.reloadIfModified());
+        assertEquals(1, credStore.getLoadCount());
+
+        // Without content hashing, a touched file is parsed again
+        credStore.setContentHashing(false);
+        assertTrue(credentialsFile.setLastModified(credentialsFile.lastModified() + 5000));
+        assertTrue(credStore.reloadIfModified());
+        assertEquals(2, credStore.getLoadCount());
+    }
+
+    @Test
+    public void testChangeWithinModificationTimeGranularityWithContentHashing() throws Exception {
+        final File credentialsFile = File.createTempFile("testChangeWithinGranularity", ".xml");
+        credentialsFile.deleteOnExit();
+        final String content = FileUtils.readFileToString(new File(TEST_CREDENTIALS_FILE), StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(credentialsFile, content, StandardCharsets.UTF_8);
+        // Modification times of a coarse file system, where both writes fall in the same tick
+        final FileTime tick = FileTime.fromMillis(System.currentTimeMillis() / 1000 * 1000);
+        Files.setLastModifiedTime(credentialsFile.toPath(), tick);
+        final CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        credStore.setContentHashing(true);
+        credStore.load();
+
+        // Same size, same modification time, same file
+        FileUtils.writeStringToFile(credentialsFile, content.replace("user1", "userA"), StandardCharsets.UTF_8);
+        Files.setLastModifiedTime(credentialsFile.toPath(), tick);
+        assertTrue(credStore.reloadIfModified());
+        assertNotNull(credStore.findUser("userA"));
+        assertNull(credStore.findUser("user1"));
+    }
+
+    @Test
+    public void testReloadQuietPeriod() throws Exception {
+        final File credentialsFile = File.createTempFile("testReloadQuietPeriod", ".xml");
+        credentialsFile.deleteOnExit();
+        final String content = FileUtils.readFileToString(new File(TEST_CREDENTIALS_FILE), StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(credentialsFile, content, StandardCharsets.UTF_8);
+        final CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        credStore.setReloadQuietPeriod(1, TimeUnit.HOURS);
+        // Nothing loaded yet, so the first load is not put off
+        assertTrue(credStore.reloadIfModified());
+
+        FileUtils.writeStringToFile(credentialsFile, content.replace("user1", "userA"), StandardCharsets.UTF_8);
+        assertFalse(credStore.reloadIfModified());
+        assertEquals(1, credStore.getDeferredReloadCount());
+        assertTrue(credStore.getDeferredReloadDelayMillis() > 0);
+        assertNotNull(credStore.findUser("user1"));
+
+        // Left alone long enough
+        assertTrue(credentialsFile.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+        assertTrue(credStore.reloadIfModified());
+        assertNotNull(credStore.findUser("userA"));
+        assertEquals(0, credStore.getDeferredReloadDelayMillis());
+    }
+
+    @Test
+    public void testFailedReloadIsBackedOff() throws Exception {
+        final File credentialsFile = File.createTempFile("testFailedReloadIsBackedOff", ".xml");
+        credentialsFile.deleteOnExit();
+        final String content = FileUtils.readFileToString(new File(TEST_CREDENTIALS_FILE), StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(credentialsFile, content, StandardCharsets.UTF_8);
+        final CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        credStore.setReloadFailureBackoff(1, 1, TimeUnit.HOURS);
+        credStore.load();
+        final long lastModified = credentialsFile.lastModified();
+
+        FileUtils.writeStringToFile(credentialsFile, "<credentials><user", StandardCharsets.UTF_8);
+        assertTrue(credentialsFile.setLastModified(lastModified + 5000));
+        assertThrows(Exception.class, credStore::reloadIfModified);
+        // The previous users are kept, and the broken file is not parsed again until it changes
+        assertNotNull(credStore.findUser("user1"));
+        assertFalse(credStore.reloadIfModified());
+        assertEquals(1, credStore.getDeferredReloadCount());
+        assertEquals(1, credStore.getLoadCount());
+
+        FileUtils.writeStringToFile(credentialsFile, content.replace("user1", "userA"), StandardCharsets.UTF_8);
+        assertTrue(credentialsFile.setLastModified(lastModified + 10_000));
+        assertTrue(credStore.reloadIfModified());
+        assertNotNull(credStore.findUser("userA"));
+        assertEquals(0, credStore.getDeferredReloadDelayMillis());
+    }
+
+    @Test
+    public void testFailedFirstLoadIsBackedOff() throws Exception {
+        final File credentialsFile = File.createTempFile("testFailedFirstLoadIsBackedOff", ".xml");
+        credentialsFile.deleteOnExit();
+        FileUtils.writeStringToFile(credentialsFile, "<credentials><user", StandardCharsets.UTF_8);
+        final CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        credStore.setReloadFailureBackoff(1, 1, TimeUnit.HOURS);
+
+        // Concurrent logins before anything was loaded: the broken file is parsed once, and its failure rethrown
+        final int threadCount = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            final List<Future<Exception>> futures = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                futures.add(executor.submit(() -> {
+                    barrier.await();
+                    try {
+                        credStore.reloadIfModified();
+                        return null;
+                    } catch (Exception e) {
+                        return e;
+                    }
+                }));
+            }
+            for (Future<Exception> future : futures) {
+                assertNotNull(future.get(1, TimeUnit.MINUTES));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, credStore.getLoadErrorCount());
+        assertFalse(credStore.isLoaded());
+        assertEquals(threadCount - 1, credStore.getDeferredReloadCount());
+        assertTrue(credStore.getDeferredReloadDelayMillis() > 0);
+
+        final String content = FileUtils.readFileToString(new File(TEST_CREDENTIALS_FILE), StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(credentialsFile, content, StandardCharsets.UTF_8);
+        assertTrue(credentialsFile.setLastModified(credentialsFile.lastModified() + 5000));
+        assertTrue(credStore.reloadIfModified());
+        assertNotNull(credStore.findUser("user1"));
+        assertEquals(0, credStore.getDeferredReloadDelayMillis());
+    }
+
+    @Test
+    public void testJournalReplay() throws Exception {
+        final File credentialsFile = File.createTempFile("testJournalReplay", ".xml");
+        credentialsFile.deleteOnExit();
+        CredentialsJournal.getJournalFile(credentialsFile).deleteOnExit();
+        new File(CredentialsJournal.getJournalFile(credentialsFile).getPath() + ".lock").deleteOnExit();
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+        final long lastModified = credentialsFile.lastModified();
+        final CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        credStore.setJournal(true);
+        credStore.load();
+
+        final CredentialsStore writerStore = new CredentialsStore(credentialsFile);
+        writerStore.setJournal(true);
+        writerStore.load();
+        writerStore.setPasswordEncoder(new BcryptPasswordEncoder(4));
+        final UserCredentials added = writerStore.addUser("User D", "password");
+        writerStore.appendJournal(new CredentialsJournal.Entry(CredentialsJournal.Operation.ADD, added.getName(),
+                added.getPasswordHash()));
+        assertTrue(writerStore.removeUser("user1"));
+        writerStore.appendJournal(new CredentialsJournal.Entry(CredentialsJournal.Operation.REMOVE, "user1", null));
+        assertEquals(lastModified, credentialsFile.lastModified());
+
+        // The new entries are applied without parsing the file again
+        final UserCredentials user2 = credStore.findUser("user2");
+        assertTrue(credStore.reloadIfModified());
+        assertEquals(1, credStore.getLoadCount());
+        assertEquals(1, credStore.getJournalReplayCount());
+        assertTrue(credStore.checkPassword("user d", "password"));
+        assertNull(credStore.findUser("user1"));
+        assertSame(user2, credStore.findUser("user2"));
+        assertEquals(List.of("User D"), credStore.getLastDelta().getAddedUsers());
+        assertEquals(List.of("user1"), credStore.getLastDelta().getRemovedUsers());
+        assertFalse(credStore.reloadIfModified());
+        assertFalse(writerStore.reloadIfModified());
+
+        // A new store applies the journal on load
+        final CredentialsStore loadedStore = new CredentialsStore(credentialsFile);
+        loadedStore.setJournal(true);
+        loadedStore.load();
+        assertNotNull(loadedStore.findUser("User D"));
+        assertNull(loadedStore.findUser("user1"));
+
+        // Compacting saves the changes to the file and deletes the journal, after which the file is loaded again
+        assertFalse(writerStore.compactJournal(Long.MAX_VALUE));
+        assertTrue(writerStore.compactJournal(0L));
+        assertFalse(CredentialsJournal.getJournalFile(credentialsFile).exists());
+        assertTrue(credStore.reloadIfModified());
+        assertEquals(2, credStore.getLoadCount());
+        assertNotNull(credStore.findUser("User D"));
+        assertNull(credStore.findUser("user1"));
+        assertNull(CredentialsStore.fromFile(credentialsFile).findUser("user1"));
+    }
+
+    @Test
+    public void testSaveKeepsEntriesAppendedMeanwhile() throws Exception {
+        final File credentialsFile = File.createTempFile("testSaveKeepsEntries", ".xml");
+        credentialsFile.deleteOnExit();
+        CredentialsJournal.getJournalFile(credentialsFile).deleteOnExit();
+        new File(CredentialsJournal.getJournalFile(credentialsFile).getPath() + ".lock").deleteOnExit();
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+        final CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        credStore.setJournal(true);
+        credStore.load();
+
+        final CredentialsStore writerStore = new CredentialsStore(credentialsFile);
+        writerStore.setJournal(true);
+        writerStore.load();
+        assertTrue(writerStore.removeUser("user1"));
+        writerStore.appendJournal(new CredentialsJournal.Entry(CredentialsJournal.Operation.REMOVE, "user1", null));
+
+        // Saved before it reloaded the journal
+        credStore.save();
+        assertFalse(CredentialsJournal.getJournalFile(credentialsFile).exists());
+        assertNull(credStore.findUser("user1"));
+        assertNull(CredentialsStore.fromFile(credentialsFile).findUser("user1"));
+    }
+
+    @Test
+    public void testStreamingLoad() throws Exception {
+        CredentialsStore credStore = new CredentialsStore(new File(TEST_CREDENTIALS_FILE));
+        credStore.setStreamingLoad(true);
+        credStore.load();
+        assertEquals(2, credStore.getSnapshot().size());
+        assertTrue(credStore.checkPassword("user2", "CantGuessMe"));
+    }
+
+    @Test
+    public void testIndexedLoad() throws Exception {
+        final File credentialsFile = File.createTempFile("testIndexedLoad", ".xml");
+        final File indexFile = CredentialsIndex.getIndexFile(credentialsFile);
+        indexFile.deleteOnExit();
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+
+        CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        credStore.setUseIndex(true);
+        credStore.load();
+        assertTrue(indexFile.exists());
+        assertNotNull(credStore.getSnapshot().getIndex());
+        assertEquals(2, credStore.getSnapshot().size());
+        assertEquals(1, credStore.getSnapshot().getMalformedUserCount());
+        assertTrue(credStore.checkPassword("USER2", "CantGuessMe"));
+        assertNull(credStore.findUser("user3"));
+
+        // A store started later opens the index without parsing the file
+        final long indexLastModified = indexFile.lastModified();
+        final CredentialsStore laterStore = new CredentialsStore(credentialsFile);
+        laterStore.setUseIndex(true);
+        laterStore.load();
+        assertEquals(indexLastModified, indexFile.lastModified());
+        assertTrue(laterStore.checkPassword("user2", "CantGuessMe"));
+
+        // Changes load the file in full, and the index is compiled again after the file changed
+        laterStore.setPasswordEncoder(new BcryptPasswordEncoder(4));
+        laterStore.addUser("user3", "password3");
+        assertNull(laterStore.getSnapshot().getIndex());
+        assertEquals(3, laterStore.getSnapshot().size());
+        laterStore.save();
+        credentialsFile.setLastModified(credentialsFile.lastModified() + 5000);
+        assertTrue(credStore.reloadIfModified());
+        assertNotNull(credStore.getSnapshot().getIndex());
+        assertEquals(3, credStore.getSnapshot().size());
+        assertTrue(credStore.checkPassword("user3", "password3"));
+
+        credentialsFile.delete();
+    }
+
+    @Test
+    public void testStaleIndexDetectedByContentHashing() throws Exception {
+        final File credentialsFile = File.createTempFile("testStaleIndexDetectedByContentHashing", ".xml");
+        final File indexFile = CredentialsIndex.getIndexFile(credentialsFile);
+        indexFile.deleteOnExit();
+        final String content = FileUtils.readFileToString(new File(TEST_CREDENTIALS_FILE), StandardCharsets.UTF_8);
+        FileUtils.writeStringToFile(credentialsFile, content, StandardCharsets.UTF_8);
+        final FileTime tick = FileTime.fromMillis(System.currentTimeMillis() / 1000 * 1000);
+        Files.setLastModifiedTime(credentialsFile.toPath(), tick);
+        final CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        credStore.setUseIndex(true);
+        credStore.setContentHashing(true);
+        credStore.load();
+        assertNotNull(credStore.findUser("user1"));
+
+        // Same size, same modification time, same file: the index of the previous content is not served
+        FileUtils.writeStringToFile(credentialsFile, content.replace("user1", "userA"), StandardCharsets.UTF_8);
+        Files.setLastModifiedTime(credentialsFile.toPath(), tick);
+        assertTrue(credStore.reloadIfModified());
+        assertNotNull(credStore.getSnapshot().getIndex());
+        assertNotNull(credStore.findUser("userA"));
+        assertNull(credStore.findUser("user1"));
+
+        credentialsFile.delete();
+    }
+
+    @Test
+    public void testCompactLoad() throws Exception {
+        final File credentialsFile = File.createTempFile("testCompactLoad", ".xml");
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+
+        CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        credStore.setCompact(true);
+        credStore.load();
+        assertNotNull(credStore.getSnapshot().getPacked());
+        assertEquals(2, credStore.getSnapshot().size());
+        assertEquals(List.of("user1"), credStore.getSnapshot().getMalformedUsers());
+        assertTrue(credStore.checkPassword("USER2", "CantGuessMe"));
+        assertFalse(credStore.checkPassword("user1", "fakePasswordHash"));
+
+        // Changes keep the users packed
+        credStore.setPasswordEncoder(new BcryptPasswordEncoder(4));
+        credStore.addUser("user3", "password3");
+        credStore.resetPassword("user2", "password2");
+        assertTrue(credStore.removeUser("user1"));
+        assertNotNull(credStore.getSnapshot().getPacked());
+        assertEquals(2, credStore.getSnapshot().size());
+        assertTrue(credStore.checkPassword("user2", "password2"));
+        assertTrue(credStore.checkPassword("user3", "password3"));
+        assertNull(credStore.findUser("user1"));
+        credStore.save();
+
+        final CredentialsStore savedStore = CredentialsStore.fromFile(credentialsFile);
+        assertEquals(2, savedStore.getSnapshot().size());
+        assertEquals(credStore.findUser("user2").getPasswordHash(), savedStore.findUser("user2").getPasswordHash());
+
+        // A reload reports the differences between packed snapshots
+        final CredentialsStore otherStore = new CredentialsStore(credentialsFile);
+        otherStore.setStreamingLoad(true);
+        otherStore.setCompact(true);
+        otherStore.load();
+        otherStore.setPasswordEncoder(new BcryptPasswordEncoder(4));
+        otherStore.addUser("user4", "password4");
+        otherStore.save();
+        credentialsFile.setLastModified(credentialsFile.lastModified() + 5000);
+        assertTrue(credStore.reloadIfModified());
+        assertEquals(List.of("user4"), credStore.getLastDelta().getAddedUsers());
+        assertEquals(2, credStore.getLastDelta().getUnchangedUserCount());
+        assertTrue(credStore.checkPassword("user4", "password4"));
+
+        credentialsFile.delete();
+    }
+
+    @Test
+    public void testPasswordEncoder() {
+        CredentialsStore credStore = new CredentialsStore();
+        credStore.setPasswordEncoder(new BcryptPasswordEncoder(5));
+        UserCredentials bcryptUserCreds = credStore.addUser("user1", "password1");
+        assertEquals(5, BcryptPasswordEncoder.getCost(bcryptUserCreds.getPasswordHash()));
+        assertFalse(credStore.needsRehash(bcryptUserCreds));
+
+        credStore.setPasswordEncoder(new Pbkdf2PasswordEncoder(1000));
+        UserCredentials pbkdf2UserCreds = credStore.addUser("user2", "password2");
+        assertTrue(pbkdf2UserCreds.getPasswordHash().startsWith(Pbkdf2PasswordEncoder.PREFIX));
+        assertTrue(credStore.needsRehash(bcryptUserCreds));
+        assertFalse(credStore.needsRehash(pbkdf2UserCreds));
+
+        // Hashes of every format are verified whatever the encoder of new hashes
+        assertTrue(credStore.checkPassword("user1", "password1"));
+        assertTrue(credStore.checkPassword("user2", "password2"));
+        assertFalse(credStore.checkPassword("user2", "password1"));
+    }
+
+    @Test
+    public void testMalformedHashesReportedAtLoad() throws Exception {
+        CredentialsStore credStore = new CredentialsStore(new File(TEST_CREDENTIALS_FILE));
+        credStore.load();
+        assertEquals(List.of("user1"), credStore.getSnapshot().getMalformedUsers());
+        assertSame(PasswordEncoders.MALFORMED_HASH,
+                credStore.getSnapshot().getPreparedHash(credStore.findUser("user1")));
+        assertFalse(credStore.checkPassword("user1", "fakePasswordHash"));
+        assertTrue(credStore.checkPassword("user2", "CantGuessMe"));
+
+        // Prepared hashes of unchanged users survive changes to other users
+        final PasswordEncoder.PreparedHash preparedHash =
+                credStore.getSnapshot().getPreparedHash(credStore.findUser("user2"));
+        credStore.addUser("user3", "password3");
+        assertSame(preparedHash, credStore.getSnapshot().getPreparedHash(credStore.findUser("user2")));
+        assertTrue(credStore.checkPassword("user3", "password3"));
+    }
+
+    @Test
+    public void testRehashPassword() {
+        CredentialsStore credStore = new CredentialsStore();
+        credStore.setPasswordEncoder(new BcryptPasswordEncoder(5));
+        UserCredentials userCreds = credStore.addUser("user1", "password1");
+        credStore.setPasswordEncoder(new BcryptPasswordEncoder(4));
+        assertTrue(credStore.needsRehash(userCreds));
+
+        UserCredentials rehashedUserCreds = credStore.rehashPassword(userCreds, "password1");
+        assertNotNull(rehashedUserCreds);
+        assertSame(rehashedUserCreds, credStore.findUser("user1"));
+        assertEquals(4, BcryptPasswordEncoder.getCost(rehashedUserCreds.getPasswordHash()));
+        assertTrue(credStore.checkPassword("user1", "password1"));
+        assertEquals(List.of("user1"), credStore.getLastDelta().getChangedUsers());
+
+        // A user replaced in the meantime is left alone
+        assertNull(credStore.rehashPassword(userCreds, "password1"));
+        assertSame(rehashedUserCreds, credStore.findUser("user1"));
+    }
+
+    @Test
+    public void testSnapshotChangesAreKeptBesideUsers() {
+        final String passwordHash = "$2a$10$ztplXcwIaUNu8JXkrS.9ge4WjorJzdUrpBh2.02Y6VXvgxkLKAtvG";
+        final List<UserCredentials> users = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            users.add(user("user" + i, passwordHash));
+        }
+        final CredentialsSnapshot snapshot = new CredentialsSnapshot(users, 0L);
+        final UserCredentials user3 = snapshot.findUser("user3");
+        final PasswordEncoder.PreparedHash user3PreparedHash = snapshot.getPreparedHash(user3);
+
+        final UserCredentials addedUser = user("added", passwordHash);
+        final UserCredentials replacedUser = user("user1", "fakePasswordHash");
+        CredentialsSnapshot changed = snapshot.withUser(addedUser)
+                .withReplacedUser(snapshot.findUser("USER1"), replacedUser)
+                .withoutUser(snapshot.findUser("user2"));
+        assertEquals(3, changed.getKeptChanges().size());
+        assertEquals(100, changed.size());
+        assertSame(addedUser, changed.findUser("ADDED"));
+        assertSame(replacedUser, changed.findUser("user1"));
+        assertNull(changed.findUser("user2"));
+        assertSame(user3, changed.findUser("user3"));
+        assertSame(user3PreparedHash, changed.getPreparedHash(user3));
+        assertEquals(List.of("user1"), changed.getMalformedUsers());
+        assertEquals(1, changed.getMalformedUserCount());
+
+        final List<UserCredentials> changedUsers = changed.getUsers();
+        assertEquals(100, changedUsers.size());
+        assertSame(replacedUser, changedUsers.get(1));
+        assertSame(user3, changedUsers.get(2));
+        assertSame(addedUser, changedUsers.get(99));
+        assertEquals(100, changed.getReachableUsers().size());
+        // The snapshot changed is left as it was
+        assertTrue(snapshot.getKeptChanges().isEmpty());
+        assertNotNull(snapshot.findUser("user2"));
+
+        // Changes outgrowing a quarter of the users are applied to them, keeping the entries and prepared hashes
+        for (int i = 10; i < 50; i++) {
+            changed = changed.withoutUser(changed.findUser("user" + i));
+        }
+        assertTrue(changed.getKeptChanges().size() < 16 + 100 / 4);
+        assertEquals(60, changed.size());
+        assertEquals(60, changed.getUsers().size());
+        assertSame(user3, changed.findUser("user3"));
+        assertSame(user3PreparedHash, changed.getPreparedHash(user3));
+        assertEquals(List.of("user1"), changed.getMalformedUsers());
+    }
+
+    @Test
+    public void testSnapshotChangesWithCaseVariantsAreApplied() {
+        final List<UserCredentials> users = new ArrayList<>();
+        users.add(user("User1", "hash1"));
+        users.add(user("user1", "hash2"));
+        final CredentialsSnapshot snapshot = new CredentialsSnapshot(users, 0L);
+
+        final CredentialsSnapshot changed = snapshot.withoutUser(snapshot.findUser("user1"));
+        assertTrue(changed.getKeptChanges().isEmpty());
+        // The shadowed case variant is found once the first is removed
+        assertEquals("hash2", changed.findUser("USER1").getPasswordHash());
+    }
+
+    private static UserCredentials user(String name, String passwordHash) {
+        final UserCredentials userCreds = new ObjectFactory().createUserCredentials();
+        userCreds.setName(name);
+        userCreds.setPasswordHash(passwordHash);
+        return userCreds;
+    }
+
+    @Test
+    public void testRehashPasswordKeepsIndex() throws Exception {
+        final File credentialsFile = File.createTempFile("testRehashPasswordKeepsIndex", ".xml");
+        final File indexFile = CredentialsIndex.getIndexFile(credentialsFile);
+        indexFile.deleteOnExit();
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+        CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        credStore.setUseIndex(true);
+        credStore.load();
+        final CredentialsIndex index = credStore.getSnapshot().getIndex();
+
+        credStore.setPasswordEncoder(new BcryptPasswordEncoder(4));
+        final UserCredentials rehashedUserCreds = credStore.rehashPassword(credStore.findUser("user2"), "CantGuessMe");
+        assertNotNull(rehashedUserCreds);
+        // Served from the same index, without parsing the file
+        assertSame(index, credStore.getSnapshot().getIndex());
+        assertEquals(2, credStore.getSnapshot().size());
+        assertEquals(1, credStore.getSnapshot().getMalformedUserCount());
+        assertSame(rehashedUserCreds, credStore.findUser("USER2"));
+        assertTrue(credStore.checkPassword("user2", "CantGuessMe"));
+        assertEquals("fakePasswordHash", credStore.findUser("user1").getPasswordHash());
+
+        // Saving parses the file and keeps the rehash
+        credStore.save();
+        assertNull(credStore.getSnapshot().getIndex());
+        final CredentialsStore savedStore = CredentialsStore.fromFile(credentialsFile);
+        assertEquals(2, savedStore.getSnapshot().size());
+        assertEquals(rehashedUserCreds.getPasswordHash(), savedStore.findUser("user2").getPasswordHash());
+        assertEquals("fakePasswordHash", savedStore.findUser("user1").getPasswordHash());
+
+        credentialsFile.delete();
+    }
+
     @Test
     public void testSaveWithoutFileThrows() {
         CredentialsStore credStore = new CredentialsStore();
@@ -16,9 +16,25 @@
 
 package io.egm.nifi.authentication.file;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import org.apache.nifi.authentication.AuthenticationResponse;
 import org.apache.nifi.authentication.LoginCredentials;
@@ -33,7 +49,9 @@ import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.read.ListAppender;
+import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.slf4j.LoggerFactory;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -47,6 +65,8 @@ public class TestFileIdentityProvider {
     private static final String TEST_CREDENTIALS_FILE = "src/test/resources/test_credentials.xml";
     private static final String TEST_INVALID_CREDENTIALS_FILE = "src/test/resources/test_credentials_invalid.xml";
 
+    @TempDir
+    public Path folder;
 
     @Test
     public void testConfigurationCredentialsFile() {
@@ -198,6 +218,594 @@ public class TestFileIdentityProvider {
         final AuthenticationResponse authResponseUppercase = provider.authenticate(loginCredentialsUppercase);
     }
 
+    @Test
+    public void testVerifiedLoginCache() {
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_VERIFIED_LOGIN_CACHE_SIZE, "10");
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+
+        provider.authenticate(new LoginCredentials("user2", "CantGuessMe"));
+        provider.authenticate(new LoginCredentials("USER2", "CantGuessMe"));
+        assertThrows(InvalidLoginCredentialsException.class, () ->
+                provider.authenticate(new LoginCredentials("user2", "WrongPassword"))
+        );
+        final LoginVerificationCache cache = provider.getVerifiedLoginCache();
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testFailedLoginCache() throws Exception {
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, credentialsFile.getPath());
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_FAILED_LOGIN_CACHE_SIZE, "10");
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+
+        for (int i = 0; i < 2; i++) {
+            assertThrows(InvalidLoginCredentialsException.class, () ->
+                    provider.authenticate(new LoginCredentials("user2", "OldPassword"))
+            );
+        }
+        final LoginVerificationCache cache = provider.getFailedLoginCache();
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        provider.authenticate(new LoginCredentials("user2", "CantGuessMe"));
+
+        // Changing the password on file makes the failed password valid again
+        final CredentialsStore store = CredentialsStore.fromFile(credentialsFile);
+        store.resetPassword("user2", "OldPassword");
+        store.save();
+        assertTrue(credentialsFile.setLastModified(credentialsFile.lastModified() + 2000));
+        final AuthenticationResponse authResponse = provider.authenticate(new LoginCredentials("user2", "OldPassword"));
+        assertEquals("user2", authResponse.getUsername());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testPasswordHashCostRehashesOnLogin() throws Exception {
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, credentialsFile.getPath());
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_PASSWORD_HASH_COST, "4");
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+
+        provider.authenticate(new LoginCredentials("user2", "CantGuessMe"));
+        provider.authenticate(new LoginCredentials("user2", "CantGuessMe"));
+        assertEquals(1, provider.getRehashWriter().getRehashCount());
+        provider.preDestruction();
+
+        final CredentialsStore savedStore = CredentialsStore.fromFile(credentialsFile);
+        assertEquals(4, BcryptPasswordEncoder.getCost(savedStore.findUser("user2").getPasswordHash()));
+        assertTrue(savedStore.checkPassword("user2", "CantGuessMe"));
+    }
+
+    @Test
+    public void testPasswordHashAlgorithmMigratesOnLogin() throws Exception {
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, credentialsFile.getPath());
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_PASSWORD_HASH_ALGORITHM, "argon2id");
+        configProperties.put(FileIdentityProvider.PROPERTY_PASSWORD_HASH_COST, "1");
+        configProperties.put(FileIdentityProvider.PROPERTY_PASSWORD_HASH_MEMORY, "64");
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+
+        provider.authenticate(new LoginCredentials("user2", "CantGuessMe"));
+        provider.authenticate(new LoginCredentials("user2", "CantGuessMe"));
+        assertEquals(1, provider.getRehashWriter().getRehashCount());
+        provider.preDestruction();
+
+        final CredentialsStore savedStore = CredentialsStore.fromFile(credentialsFile);
+        final String passwordHash = savedStore.findUser("user2").getPasswordHash();
+        assertTrue(passwordHash.startsWith("$argon2id$v=19$m=64,t=1,p=1$"), passwordHash);
+        assertTrue(savedStore.checkPassword("user2", "CantGuessMe"));
+    }
+
+    @Test
+    public void testConfigurationUnknownPasswordHashAlgorithm() {
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_PASSWORD_HASH_ALGORITHM, "md5");
+        final LoginIdentityProviderConfigurationContext configContext =
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties);
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        assertThrows(ProviderCreationException.class, () ->
+                provider.onConfigured(configContext)
+        );
+    }
+
+    @Test
+    public void testConfigurationMalformedPasswordHashCost() {
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_PASSWORD_HASH_COST, "40");
+        final LoginIdentityProviderConfigurationContext configContext =
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties);
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        assertThrows(ProviderCreationException.class, () ->
+                provider.onConfigured(configContext)
+        );
+    }
+
+    @Test
+    public void testConfigurationMalformedVerifiedLoginCacheSize() {
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_VERIFIED_LOGIN_CACHE_SIZE, "lots");
+        final LoginIdentityProviderConfigurationContext configContext =
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties);
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        assertThrows(ProviderCreationException.class, () ->
+                provider.onConfigured(configContext)
+        );
+    }
+
+    @Test
+    public void testVerificationExecutor() {
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_VERIFICATION_PROCESSOR_SHARE, "0.5");
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+        try {
+            final AuthenticationResponse authResponse = provider.authenticate(new LoginCredentials("user2", "CantGuessMe"));
+            assertEquals("user2", authResponse.getUsername());
+            assertThrows(InvalidLoginCredentialsException.class, () ->
+                    provider.authenticate(new LoginCredentials("user2", "WrongPassword"))
+            );
+            assertEquals(2, provider.getVerificationExecutor().getCompletedCount());
+        } finally {
+            provider.preDestruction();
+        }
+    }
+
+    @Test
+    public void testConfigurationMalformedVerificationProcessorShare() {
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_VERIFICATION_PROCESSOR_SHARE, "2");
+        final LoginIdentityProviderConfigurationContext configContext =
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties);
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        assertThrows(ProviderCreationException.class, () ->
+                provider.onConfigured(configContext)
+        );
+    }
+
+    @Test
+    public void testLoginFailureThrottle() {
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_LOGIN_FAILURE_LIMIT, "2");
+        configProperties.put(FileIdentityProvider.PROPERTY_LOGIN_FAILURE_BACKOFF, "1 min");
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+
+        for (int i = 0; i < 2; i++) {
+            assertThrows(InvalidLoginCredentialsException.class, () ->
+                    provider.authenticate(new LoginCredentials("user2", "WrongPassword"))
+            );
+        }
+        assertThrows(InvalidLoginCredentialsException.class, () ->
+                provider.authenticate(new LoginCredentials("USER2", "CantGuessMe"))
+        );
+        assertEquals(1, provider.getLoginFailureThrottle().getThrottledCount());
+
+        // Usernames missing from the credentials file are not tracked
+        for (int i = 0; i < 3; i++) {
+            assertThrows(InvalidLoginCredentialsException.class, () ->
+                    provider.authenticate(new LoginCredentials("unknown", "WrongPassword"))
+            );
+        }
+        assertEquals(0, provider.getLoginFailureThrottle().getFailureCount("unknown"));
+        assertEquals(1, provider.getLoginFailureThrottle().getThrottledCount());
+    }
+
+    @Test
+    public void testMetricsMBean() throws Exception {
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+
+        provider.authenticate(new LoginCredentials("user2", "CantGuessMe"));
+        assertThrows(InvalidLoginCredentialsException.class, () ->
+                provider.authenticate(new LoginCredentials("user2", "WrongPassword")));
+        assertThrows(InvalidLoginCredentialsException.class, () ->
+                provider.authenticate(new LoginCredentials("nobody", "CantGuessMe")));
+
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = FileIdentityProviderMetrics.getObjectName(TEST_PROVIDER_ID);
+        assertEquals(1L, mBeanServer.getAttribute(name, "LoginSuccessCount"));
+        assertEquals(2L, mBeanServer.getAttribute(name, "LoginFailureCount"));
+        assertEquals(0L, mBeanServer.getAttribute(name, "LoginErrorCount"));
+        assertEquals(3L, mBeanServer.getAttribute(name, "LookupCount"));
+        assertEquals(2L, mBeanServer.getAttribute(name, "VerificationCount"));
+        assertTrue((Double) mBeanServer.getAttribute(name, "VerificationLatencyMedianMicros") > 0);
+        assertEquals(1L, mBeanServer.getAttribute(name, "ReloadCount"));
+        assertTrue((Long) mBeanServer.getAttribute(name, "LastReloadTime") > 0);
+        assertEquals(0L, mBeanServer.getAttribute(name, "ParseErrorCount"));
+        assertEquals(2, mBeanServer.getAttribute(name, "UserCount"));
+        assertEquals(1, mBeanServer.getAttribute(name, "MalformedUserCount"));
+
+        mBeanServer.invoke(name, "resetStatistics", null, null);
+        assertEquals(0L, mBeanServer.getAttribute(name, "LoginSuccessCount"));
+        assertEquals(0.0, mBeanServer.getAttribute(name, "VerificationLatencyMaxMicros"));
+
+        provider.preDestruction();
+        assertFalse(mBeanServer.isRegistered(name));
+    }
+
+    @Test
+    public void testComponentMetricsMBean() throws Exception {
+        final File credentialsFile = new File(folder.toFile(), "credentials.xml");
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, credentialsFile.getPath());
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_INDEX, "true");
+        configProperties.put(FileIdentityProvider.PROPERTY_VERIFIED_LOGIN_CACHE_SIZE, "10");
+        configProperties.put(FileIdentityProvider.PROPERTY_FAILED_LOGIN_CACHE_SIZE, "10");
+        configProperties.put(FileIdentityProvider.PROPERTY_VERIFICATION_PROCESSOR_SHARE, "0.5");
+        configProperties.put(FileIdentityProvider.PROPERTY_LOGIN_FAILURE_LIMIT, "2");
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+
+        provider.authenticate(new LoginCredentials("user2", "CantGuessMe"));
+        provider.authenticate(new LoginCredentials("user2", "CantGuessMe"));
+        for (int i = 0; i < 3; i++) {
+            // Verified, answered by the failed login cache, then throttled
+            assertThrows(InvalidLoginCredentialsException.class, () ->
+                    provider.authenticate(new LoginCredentials("user2", "WrongPassword")));
+        }
+        assertThrows(InvalidLoginCredentialsException.class, () ->
+                provider.authenticate(new LoginCredentials("nobody", "CantGuessMe")));
+
+        final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = FileIdentityProviderMetrics.getObjectName(TEST_PROVIDER_ID);
+        assertEquals(1L, mBeanServer.getAttribute(name, "VerifiedLoginCacheHitCount"));
+        assertEquals(3L, mBeanServer.getAttribute(name, "VerifiedLoginCacheMissCount"));
+        assertEquals(1L, mBeanServer.getAttribute(name, "FailedLoginCacheHitCount"));
+        assertEquals(2L, mBeanServer.getAttribute(name, "FailedLoginCacheMissCount"));
+        assertEquals(0, mBeanServer.getAttribute(name, "VerificationQueueDepth"));
+        assertTrue((Double) mBeanServer.getAttribute(name, "VerificationQueueWaitTotalMillis") >= 0);
+        assertEquals(0L, mBeanServer.getAttribute(name, "VerificationRejectedCount"));
+        assertEquals(0L, mBeanServer.getAttribute(name, "VerificationTimedOutCount"));
+        assertEquals(1L, mBeanServer.getAttribute(name, "ThrottledLoginCount"));
+        assertEquals(0L, mBeanServer.getAttribute(name, "CoalescedReloadCount"));
+        assertEquals(1L, mBeanServer.getAttribute(name, "BloomFilterRejectCount"));
+
+        provider.preDestruction();
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        final File credentialsFile = new File(folder.toFile(), "credentials.xml");
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+        final long credentialsFileSize = credentialsFile.length();
+        final Path recordingPath = folder.resolve("recording.jfr");
+
+        try (Recording recording = new Recording()) {
+            recording.enable(LoginEvent.NAME);
+            recording.enable(CredentialsLoadEvent.NAME);
+            recording.enable(CredentialsReloadEvent.NAME);
+            recording.enable(CredentialsSaveEvent.NAME);
+            recording.start();
+
+            final FileIdentityProvider provider = new FileIdentityProvider();
+            provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+            final Map<String, String> configProperties = new HashMap<>();
+            configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, credentialsFile.getPath());
+            configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+            provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+
+            provider.authenticate(new LoginCredentials("user2", "CantGuessMe"));
+            assertThrows(InvalidLoginCredentialsException.class, () ->
+                    provider.authenticate(new LoginCredentials("nobody", "CantGuessMe")));
+            provider.preDestruction();
+            CredentialsStore.fromFile(credentialsFile).save();
+
+            recording.stop();
+            recording.dump(recordingPath);
+        }
+
+        final Map<String, List<RecordedEvent>> events = RecordingFile.readAllEvents(recordingPath).stream()
+                .collect(Collectors.groupingBy(event -> event.getEventType().getName()));
+
+        final List<RecordedEvent> loginEvents = events.get(LoginEvent.NAME);
+        assertEquals(2, loginEvents.size());
+        final RecordedEvent success = loginEvents.get(0);
+        assertEquals(LoginEvent.OUTCOME_SUCCESS, success.getString("outcome"));
+        assertEquals(LoginEvent.hashUserName("user2"), success.getString("userNameHash"));
+        assertEquals(16, success.getString("userNameHash").length());
+        assertTrue(success.getBoolean("passwordChecked"));
+        assertEquals(10, success.getInt("passwordCost"));
+        final RecordedEvent failure = loginEvents.get(1);
+        assertEquals(LoginEvent.OUTCOME_FAILURE, failure.getString("outcome"));
+        assertFalse(failure.getBoolean("passwordChecked"));
+        assertEquals(0, failure.getInt("passwordCost"));
+
+        final RecordedEvent reloadEvent = events.get(CredentialsReloadEvent.NAME).get(0);
+        assertTrue(reloadEvent.getBoolean("reloaded"));
+        assertFalse(reloadEvent.getBoolean("coalesced"));
+
+        final RecordedEvent loadEvent = events.get(CredentialsLoadEvent.NAME).get(0);
+        assertTrue(loadEvent.getBoolean("succeeded"));
+        assertEquals(2, loadEvent.getInt("userCount"));
+        assertEquals(credentialsFileSize, loadEvent.getLong("fileSize"));
+
+        final RecordedEvent saveEvent = events.get(CredentialsSaveEvent.NAME).get(0);
+        assertEquals(credentialsFile.getPath(), saveEvent.getString("file"));
+        assertEquals(2, saveEvent.getInt("userCount"));
+    }
+
+    @Test
+    public void testAuditLog() throws Exception {
+        final File auditLogFile = new File(folder.toFile(), "audit.log");
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_AUDIT_LOG_FILE, auditLogFile.getPath());
+        configProperties.put(FileIdentityProvider.PROPERTY_AUDIT_LOG_WHEN_FULL, "Block");
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+        assertTrue(provider.getAuditLog().isRunning());
+
+        provider.authenticate(new LoginCredentials("user2", "CantGuessMe"));
+        assertThrows(InvalidLoginCredentialsException.class, () ->
+                provider.authenticate(new LoginCredentials("user2", "WrongPassword")));
+        assertThrows(InvalidLoginCredentialsException.class, () ->
+                provider.authenticate(new LoginCredentials("nobody", "CantGuessMe")));
+        provider.preDestruction();
+
+        final List<String> lines = FileUtils.readLines(auditLogFile, StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).endsWith(" outcome=success user=\"user2\" reason=\"password verified\""));
+        assertTrue(lines.get(1).endsWith(" outcome=failure user=\"user2\" reason=\"invalid password\""));
+        assertTrue(lines.get(2).endsWith(" outcome=failure user=\"nobody\" reason=\"unknown user\""));
+    }
+
+    @Test
+    public void testAuditLogInvalidPropertiesThrow() {
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_AUDIT_LOG_FILE, new File(folder.toFile(), "audit.log").getPath());
+
+        configProperties.put(FileIdentityProvider.PROPERTY_AUDIT_LOG_WHEN_FULL, "wait");
+        assertThrows(ProviderCreationException.class, () -> new FileIdentityProvider().onConfigured(
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties)));
+
+        configProperties.remove(FileIdentityProvider.PROPERTY_AUDIT_LOG_WHEN_FULL);
+        configProperties.put(FileIdentityProvider.PROPERTY_AUDIT_LOG_MAX_FILE_SIZE, "lots");
+        assertThrows(ProviderCreationException.class, () -> new FileIdentityProvider().onConfigured(
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties)));
+    }
+
+    @Test
+    public void testWatchCredentialsFile() {
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_WATCH_CREDENTIALS_FILE, "true");
+        configProperties.put(FileIdentityProvider.PROPERTY_WATCH_POLLING_INTERVAL, "1 sec");
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+
+        final CredentialsFileWatcher watcher = provider.getCredentialsFileWatcher();
+        assertNotNull(watcher);
+        assertTrue(watcher.isRunning());
+        final AuthenticationResponse authResponse = provider.authenticate(new LoginCredentials("user2", "CantGuessMe"));
+        assertEquals("user2", authResponse.getUsername());
+
+        provider.preDestruction();
+        assertFalse(watcher.isRunning());
+        assertNull(provider.getCredentialsFileWatcher());
+    }
+
+    @Test
+    public void testEagerLoadAndWarmUp() {
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_EAGER_LOAD, "true");
+        configProperties.put(FileIdentityProvider.PROPERTY_WARM_UP_VERIFICATIONS, "3");
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+
+        // Loaded before any login, and the warm-up does not count as logins
+        final FileIdentityProviderMetrics metrics = provider.getMetrics();
+        assertEquals(1, metrics.getReloadCount());
+        assertEquals(2, metrics.getUserCount());
+        assertEquals(0, metrics.getVerificationCount());
+        assertEquals(0, metrics.getLoginFailureCount());
+        assertEquals("user2", provider.authenticate(new LoginCredentials("user2", "CantGuessMe")).getUsername());
+        assertEquals(1, metrics.getReloadCount());
+        provider.preDestruction();
+    }
+
+    @Test
+    public void testFailedConfigurationStopsThreads() throws Exception {
+        final Set<Thread> threadsBefore = new HashSet<>(Thread.getAllStackTraces().keySet());
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_EAGER_LOAD, "true");
+        configProperties.put(FileIdentityProvider.PROPERTY_WATCH_CREDENTIALS_FILE, "true");
+        configProperties.put(FileIdentityProvider.PROPERTY_AUDIT_LOG_FILE, new File(folder.toFile(), "audit.log").getPath());
+        configProperties.put(FileIdentityProvider.PROPERTY_VERIFICATION_PROCESSOR_SHARE, "0.5");
+        configProperties.put(FileIdentityProvider.PROPERTY_PASSWORD_HASH_ALGORITHM, "unknown");
+
+        // Invalid properties are reported before any thread is started
+        assertThrows(ProviderCreationException.class, () -> new FileIdentityProvider().onConfigured(
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties)));
+        assertEquals(Collections.emptyList(), getProviderThreads(threadsBefore));
+
+        // A warm-up that cannot wait for its verifications fails after the threads are started
+        configProperties.put(FileIdentityProvider.PROPERTY_PASSWORD_HASH_ALGORITHM, PasswordEncoders.BCRYPT);
+        configProperties.put(FileIdentityProvider.PROPERTY_VERIFICATION_MAX_WAIT, "0 ms");
+        configProperties.put(FileIdentityProvider.PROPERTY_WARM_UP_VERIFICATIONS, "2");
+        assertThrows(ProviderCreationException.class, () -> new FileIdentityProvider().onConfigured(
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties)));
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!getProviderThreads(threadsBefore).isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Collections.emptyList(), getProviderThreads(threadsBefore));
+    }
+
+    private static List<String> getProviderThreads(final Set<Thread> threadsBefore) {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> !threadsBefore.contains(thread) && thread.isAlive())
+                .map(Thread::getName)
+                .filter(name -> name.startsWith("Password Verification-") || name.startsWith("Credentials ")
+                        || name.startsWith("Authentication Audit Writer"))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testEagerLoadInvalidFileThrows() {
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_INVALID_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_EAGER_LOAD, "true");
+        assertThrows(ProviderCreationException.class, () -> new FileIdentityProvider().onConfigured(
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties)));
+
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, folder.resolve("missing.xml").toString());
+        assertThrows(ProviderCreationException.class, () -> new FileIdentityProvider().onConfigured(
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties)));
+    }
+
+    @Test
+    public void testCredentialsDirectory() throws Exception {
+        final File credentialsDirectory = folder.resolve("credentials").toFile();
+        assertTrue(credentialsDirectory.mkdir());
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), new File(credentialsDirectory, "team-a.xml"));
+        FileUtils.writeStringToFile(new File(credentialsDirectory, "team-b.xml"),
+                "<credentials><user name=\"user3\" passwordHash=\"$2a$10$ztplXcwIaUNu8JXkrS.9ge4WjorJzdUrpBh2.02Y6VXvgxkLKAtvG\"/></credentials>",
+                StandardCharsets.UTF_8);
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_DIRECTORY, credentialsDirectory.getPath());
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+
+        assertEquals(credentialsDirectory.getPath(), provider.getCredentialsFilePath());
+        assertEquals("user2", provider.authenticate(new LoginCredentials("user2", "CantGuessMe")).getUsername());
+        assertEquals("user3", provider.authenticate(new LoginCredentials("user3", "CantGuessMe")).getUsername());
+
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, TEST_CREDENTIALS_FILE);
+        assertThrows(ProviderCreationException.class, () -> new FileIdentityProvider().onConfigured(
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties)));
+        configProperties.remove(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_INDEX, "true");
+        assertThrows(ProviderCreationException.class, () -> new FileIdentityProvider().onConfigured(
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties)));
+    }
+
+    @Test
+    public void testCredentialsJournal() throws Exception {
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, credentialsFile.getPath());
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_JOURNAL, "true");
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+        assertEquals("user2", provider.authenticate(new LoginCredentials("user2", "CantGuessMe")).getUsername());
+
+        final CredentialsCLI cli = new CredentialsCLI();
+        final CredentialsCLI.CredentialsAction action = cli.processArgs(new String[] {"--journal", "100000",
+                "--cost", "4", "add", credentialsFile.getPath(), "user3"});
+        action.secureInput = "password".toCharArray();
+        action.execute();
+        cli.processArgs(new String[] {"--journal", "100000", "remove", credentialsFile.getPath(), "user2"}).execute();
+        assertEquals("user3", provider.authenticate(new LoginCredentials("user3", "password")).getUsername());
+        assertThrows(InvalidLoginCredentialsException.class, () ->
+                provider.authenticate(new LoginCredentials("user2", "CantGuessMe")));
+        assertEquals(1, provider.getMetrics().getReloadCount());
+        assertEquals(1, provider.getMetrics().getJournalReplayCount());
+
+        configProperties.remove(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE);
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_DIRECTORY, folder.toString());
+        assertThrows(ProviderCreationException.class, () -> new FileIdentityProvider().onConfigured(
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties)));
+    }
+
+    @Test
+    public void testInvalidReloadKeepsLoadedUsers() throws Exception {
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        FileUtils.copyFile(new File(TEST_CREDENTIALS_FILE), credentialsFile);
+        final FileIdentityProvider provider = new FileIdentityProvider();
+        provider.initialize(new MockLoginIdentityProviderInitializationContext(TEST_PROVIDER_ID));
+
+        final Map<String, String> configProperties = new HashMap<>();
+        configProperties.put(FileIdentityProvider.PROPERTY_CREDENTIALS_FILE, credentialsFile.getPath());
+        configProperties.put(FileIdentityProvider.PROPERTY_EXPIRATION_PERIOD, FIVE_MINUTES);
+        configProperties.put(FileIdentityProvider.PROPERTY_RELOAD_FAILURE_BACKOFF, "1 hour");
+        configProperties.put(FileIdentityProvider.PROPERTY_RELOAD_FAILURE_MAX_BACKOFF, "1 hour");
+        provider.onConfigured(new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties));
+        assertEquals("user2", provider.authenticate(new LoginCredentials("user2", "CantGuessMe")).getUsername());
+
+        final long lastModified = credentialsFile.lastModified();
+        FileUtils.copyFile(new File(TEST_INVALID_CREDENTIALS_FILE), credentialsFile);
+        assertTrue(credentialsFile.setLastModified(lastModified + 5000));
+        assertEquals("user2", provider.authenticate(new LoginCredentials("user2", "CantGuessMe")).getUsername());
+        assertEquals("user2", provider.authenticate(new LoginCredentials("user2", "CantGuessMe")).getUsername());
+        assertEquals(1, provider.getMetrics().getDeferredReloadCount());
+
+        configProperties.put(FileIdentityProvider.PROPERTY_RELOAD_FAILURE_MAX_BACKOFF, "1 sec");
+        assertThrows(ProviderCreationException.class, () -> new FileIdentityProvider().onConfigured(
+                new MockLoginIdentityProviderConfigurationContext(IDENTIFIER, configProperties)));
+    }
+
     @Test
     public void testValidUserWrongPasswordThrows() {
         final FileIdentityProvider provider = new FileIdentityProvider();
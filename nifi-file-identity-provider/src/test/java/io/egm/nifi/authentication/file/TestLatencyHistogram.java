@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestLatencyHistogram {
+
+    @Test
+    public void testBucketsCoverEveryDuration() {
+        for (long duration = 0; duration < 100_000; duration++) {
+            final int index = LatencyHistogram.bucketIndex(duration);
+            assertTrue(duration <= LatencyHistogram.bucketUpperBound(index));
+            if (index > 0) {
+                assertTrue(duration > LatencyHistogram.bucketUpperBound(index - 1));
+            }
+        }
+        final int index = LatencyHistogram.bucketIndex(TimeUnit.SECONDS.toNanos(3));
+        assertTrue(LatencyHistogram.bucketUpperBound(index) <= TimeUnit.SECONDS.toNanos(3) * 1.125);
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), histogram.getMax());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(500), histogram.getPercentile(0.5), 500 * 1000 * 0.125);
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(990), histogram.getPercentile(0.99), 990 * 1000 * 0.125);
+        assertEquals(histogram.getMax(), histogram.getPercentile(1.0));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(i);
+                }
+            }));
+        }
+        for (CompletableFuture<Void> future : futures) {
+            future.get(1, TimeUnit.MINUTES);
+        }
+        assertEquals(40_000, histogram.getCount());
+        assertEquals(9_999, histogram.getMax());
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestLoginFailureThrottle {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private LoginFailureThrottle createThrottle(int capacity) {
+        return new LoginFailureThrottle(capacity, 3, 60, 1, TimeUnit.SECONDS, clock::get);
+    }
+
+    private void advance(long seconds) {
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+
+    @Test
+    public void testThrottlesAfterFailureLimit() {
+        final LoginFailureThrottle throttle = createThrottle(16);
+        throttle.recordFailure("user1");
+        throttle.recordFailure("USER1");
+        assertFalse(throttle.isThrottled("user1"));
+        throttle.recordFailure("user1");
+        assertTrue(throttle.isThrottled("User1"));
+        assertFalse(throttle.isThrottled("user2"));
+        assertEquals(1, throttle.getThrottledCount());
+
+        advance(1);
+        assertFalse(throttle.isThrottled("user1"));
+        assertEquals(3, throttle.getFailureCount("user1"));
+    }
+
+    @Test
+    public void testBackoffDoublesUpToWindow() {
+        final LoginFailureThrottle throttle = createThrottle(16);
+        for (int i = 0; i < 4; i++) {
+            throttle.recordFailure("user1");
+        }
+        advance(1);
+        assertTrue(throttle.isThrottled("user1"));
+        advance(1);
+        assertFalse(throttle.isThrottled("user1"));
+
+        for (int i = 0; i < 20; i++) {
+            throttle.recordFailure("user1");
+        }
+        advance(59);
+        assertTrue(throttle.isThrottled("user1"));
+        advance(1);
+        assertFalse(throttle.isThrottled("user1"));
+    }
+
+    @Test
+    public void testFailuresExpireAfterWindow() {
+        final LoginFailureThrottle throttle = createThrottle(16);
+        throttle.recordFailure("user1");
+        throttle.recordFailure("user1");
+        advance(60);
+        assertEquals(0, throttle.getFailureCount("user1"));
+        throttle.recordFailure("user1");
+        assertFalse(throttle.isThrottled("user1"));
+        assertEquals(1, throttle.getFailureCount("user1"));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        final LoginFailureThrottle throttle = createThrottle(16);
+        throttle.recordFailure("user1");
+        throttle.recordFailure("user1");
+        throttle.recordSuccess("USER1");
+        assertEquals(0, throttle.getFailureCount("user1"));
+        throttle.recordFailure("user1");
+        assertFalse(throttle.isThrottled("user1"));
+    }
+
+    @Test
+    public void testCapacityIsBounded() {
+        final LoginFailureThrottle throttle = createThrottle(100);
+        assertEquals(128, throttle.getCapacity());
+        for (int i = 0; i < 3; i++) {
+            throttle.recordFailure("user1");
+        }
+        for (int i = 0; i < 100_000; i++) {
+            throttle.recordFailure("random" + i);
+        }
+        assertEquals(128, throttle.getCapacity());
+        // Single failures of other names do not displace a blocked name
+        assertTrue(throttle.isThrottled("user1"));
+    }
+
+    @Test
+    public void testOtherNamesDoNotThrottleUntrackedName() {
+        final LoginFailureThrottle throttle = createThrottle(4);
+        for (int i = 0; i < 10_000; i++) {
+            for (int guess = 0; guess < 3; guess++) {
+                throttle.recordFailure("random" + i);
+            }
+        }
+        assertFalse(throttle.isThrottled("user2"));
+        assertEquals(0, throttle.getFailureCount("user2"));
+        assertEquals(0, throttle.getThrottledCount());
+    }
+
+    @Test
+    public void testOtherNamesCannotResetCount() {
+        final LoginFailureThrottle throttle = createThrottle(4);
+        // Names of equal String.hashCode, and enough others to fill the table
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < 256; i++) {
+            final StringBuilder name = new StringBuilder();
+            for (int bit = 0; bit < 8; bit++) {
+                name.append((i & 1 << bit) == 0 ? "Aa" : "BB");
+            }
+            names.add(name.toString());
+        }
+        for (int i = 0; i < 1000; i++) {
+            names.add("random" + i);
+        }
+        assertEquals(names.get(0).hashCode(), names.get(255).hashCode());
+
+        for (int guess = 0; guess < 3; guess++) {
+            throttle.recordFailure("victim");
+            for (String name : names) {
+                throttle.recordFailure(name);
+                throttle.recordSuccess(name);
+            }
+        }
+        assertTrue(throttle.isThrottled("victim"));
+        assertEquals(3, throttle.getFailureCount("victim"));
+    }
+
+    @Test
+    public void testExpiredSlotsAreReused() {
+        final LoginFailureThrottle throttle = createThrottle(1);
+        throttle.recordFailure("user1");
+        // Without a free slot, the failure of user2 is not tracked
+        throttle.recordFailure("user2");
+        assertEquals(1, throttle.getFailureCount("user1"));
+        assertEquals(0, throttle.getFailureCount("user2"));
+
+        advance(60);
+        throttle.recordFailure("user2");
+        assertEquals(0, throttle.getFailureCount("user1"));
+        assertEquals(1, throttle.getFailureCount("user2"));
+    }
+
+    @Test
+    public void testConcurrentFailuresAreCounted() throws Exception {
+        final LoginFailureThrottle throttle = new LoginFailureThrottle(16, 1000, 60, 1, TimeUnit.SECONDS, clock::get);
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < 100; i++) {
+                    throttle.recordFailure("user1");
+                }
+            }));
+        }
+        for (CompletableFuture<Void> future : futures) {
+            future.get(1, TimeUnit.MINUTES);
+        }
+        assertEquals(400, throttle.getFailureCount("user1"));
+    }
+
+}
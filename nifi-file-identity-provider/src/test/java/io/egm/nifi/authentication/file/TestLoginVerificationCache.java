@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestLoginVerificationCache {
+
+    private static UserCredentials userCredentials(String name, String passwordHash) {
+        UserCredentials userCreds = new UserCredentials();
+        userCreds.setName(name);
+        userCreds.setPasswordHash(passwordHash);
+        return userCreds;
+    }
+
+    @Test
+    public void testMatchesUserAndPassword() {
+        LoginVerificationCache cache = new LoginVerificationCache(10, 1, TimeUnit.MINUTES);
+        UserCredentials user1 = userCredentials("user1", "hash1");
+        assertFalse(cache.contains(user1, "password1"));
+        cache.put(user1, "password1");
+        assertTrue(cache.contains(user1, "password1"));
+        assertTrue(cache.contains(userCredentials("USER1", "hash1"), "password1"));
+        assertFalse(cache.contains(user1, "password2"));
+        assertFalse(cache.contains(userCredentials("user2", "hash1"), "password1"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void testPasswordHashChangeInvalidates() {
+        LoginVerificationCache cache = new LoginVerificationCache(10, 1, TimeUnit.MINUTES);
+        cache.put(userCredentials("user1", "hash1"), "password1");
+        assertFalse(cache.contains(userCredentials("user1", "hash2"), "password1"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEntriesExpire() {
+        AtomicLong clock = new AtomicLong();
+        LoginVerificationCache cache = new LoginVerificationCache(10, 1, TimeUnit.SECONDS, clock::get);
+        UserCredentials user1 = userCredentials("user1", "hash1");
+        cache.put(user1, "password1");
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertTrue(cache.contains(user1, "password1"));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertFalse(cache.contains(user1, "password1"));
+    }
+
+    @Test
+    public void testSizeIsBounded() {
+        AtomicLong clock = new AtomicLong();
+        LoginVerificationCache cache = new LoginVerificationCache(2, 1, TimeUnit.MINUTES, clock::get);
+        UserCredentials user1 = userCredentials("user1", "hash1");
+        UserCredentials user2 = userCredentials("user2", "hash2");
+        UserCredentials user3 = userCredentials("user3", "hash3");
+        cache.put(user1, "password1");
+        clock.incrementAndGet();
+        cache.put(user2, "password2");
+        clock.incrementAndGet();
+        cache.put(user3, "password3");
+        assertEquals(2, cache.size());
+        assertFalse(cache.contains(user1, "password1"));
+        assertTrue(cache.contains(user2, "password2"));
+        assertTrue(cache.contains(user3, "password3"));
+    }
+
+    @Test
+    public void testEachPasswordHasItsOwnEntry() {
+        LoginVerificationCache cache = new LoginVerificationCache(10, 1, TimeUnit.MINUTES);
+        UserCredentials user1 = userCredentials("user1", "hash1");
+        cache.put(user1, "wrong1");
+        cache.put(user1, "wrong2");
+        cache.put(userCredentials("user2", "hash2"), "wrong1");
+        assertTrue(cache.contains(user1, "wrong1"));
+        assertTrue(cache.contains(user1, "wrong2"));
+        assertEquals(3, cache.size());
+
+        cache.invalidate(List.of("USER1"));
+        assertFalse(cache.contains(user1, "wrong1"));
+        assertFalse(cache.contains(user1, "wrong2"));
+        assertTrue(cache.contains(userCredentials("user2", "hash2"), "wrong1"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        LoginVerificationCache cache = new LoginVerificationCache(2, 1, TimeUnit.MINUTES);
+        UserCredentials user1 = userCredentials("user1", "hash1");
+        cache.put(user1, "password1");
+        cache.put(user1, "password2");
+        assertTrue(cache.contains(user1, "password1"));
+        cache.put(user1, "password3");
+        assertTrue(cache.contains(user1, "password1"));
+        assertFalse(cache.contains(user1, "password2"));
+        assertTrue(cache.contains(user1, "password3"));
+    }
+
+    @Test
+    public void testSizeIsBoundedUnderConcurrency() throws Exception {
+        final int threadCount = 8;
+        final int maximumSize = 50;
+        LoginVerificationCache cache = new LoginVerificationCache(maximumSize, 1, TimeUnit.MINUTES);
+        CyclicBarrier barrier = new CyclicBarrier(threadCount);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int t = 0; t < threadCount; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    barrier.await();
+                    int largestSize = 0;
+                    for (int i = 0; i < 2000; i++) {
+                        UserCredentials userCreds = userCredentials("user" + (i % 100), "hash");
+                        cache.put(userCreds, "password" + thread + "-" + i);
+                        cache.contains(userCreds, "password" + thread + "-" + (i - 1));
+                        largestSize = Math.max(largestSize, cache.size());
+                    }
+                    return largestSize;
+                }));
+            }
+            for (Future<Integer> future : futures) {
+                assertTrue(future.get(30, TimeUnit.SECONDS) <= maximumSize);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(maximumSize, cache.size());
+    }
+
+}
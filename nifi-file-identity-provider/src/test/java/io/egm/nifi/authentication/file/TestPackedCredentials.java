@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.ObjectFactory;
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestPackedCredentials {
+
+    private static final String BCRYPT_HASH = "$2a$10$ztplXcwIaUNu8JXkrS.9ge4WjorJzdUrpBh2.02Y6VXvgxkLKAtvG";
+    private static final String PBKDF2_HASH = Pbkdf2PasswordEncoder.PREFIX + "i=1000$c2FsdA$ZGlnZXN0";
+
+    private static final ObjectFactory factory = new ObjectFactory();
+
+    private static UserCredentials user(String name, String passwordHash) {
+        final UserCredentials userCreds = factory.createUserCredentials();
+        userCreds.setName(name);
+        userCreds.setPasswordHash(passwordHash);
+        return userCreds;
+    }
+
+    /**
+     * Returns distinct, well-formed bcrypt hashes of random salts and digests.
+     */
+    private static List<String> randomBcryptHashes(int count) {
+        final Random random = new Random(42);
+        final byte[] packed = new byte[BcryptHash.PACKED_LENGTH];
+        final List<String> passwordHashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(packed);
+            packed[0] = (byte) "aby".charAt(i % 3);
+            packed[1] = (byte) (BcryptPasswordEncoder.MIN_COST
+                    + i % (BcryptPasswordEncoder.MAX_COST - BcryptPasswordEncoder.MIN_COST + 1));
+            passwordHashes.add(BcryptHash.format(packed, 0));
+        }
+        return passwordHashes;
+    }
+
+    @Test
+    public void testFindUser() {
+        final List<UserCredentials> users = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            users.add(user("User" + i, BCRYPT_HASH));
+        }
+        users.add(user("Zoë", "malformed"));
+        users.add(user("user1", "shadowed"));
+        users.add(user("pbkdf2", PBKDF2_HASH));
+        final PackedCredentials packed = PackedCredentials.pack(users);
+
+        assertEquals(1003, packed.getUserCount());
+        assertEquals(List.of("Zoë", "user1"), packed.getMalformedUsers());
+        for (int i = 0; i < 1000; i++) {
+            final UserCredentials userCreds = packed.findUser("user" + i);
+            assertEquals("User" + i, userCreds.getName());
+            assertEquals(BCRYPT_HASH, userCreds.getPasswordHash());
+        }
+        assertEquals("malformed", packed.findUser("ZOË").getPasswordHash());
+        assertEquals(PBKDF2_HASH, packed.findUser("PBKDF2").getPasswordHash());
+        // The first of several case variants wins
+        assertEquals(BCRYPT_HASH, packed.findUser("user1").getPasswordHash());
+        assertNotSame(packed.findUser("user1"), packed.findUser("user1"));
+
+        for (int i = 0; i < 1000; i++) {
+            assertNull(packed.findUser("unknown" + i));
+        }
+        assertNull(packed.findUser(null));
+        assertEquals(1002, packed.getReachableUsers().size());
+        assertTrue(packed.hasShadowedUsers());
+    }
+
+    @Test
+    public void testPreparedHashFromRecord() {
+        final List<UserCredentials> users = new ArrayList<>();
+        users.add(user("bcrypt", BCRYPT_HASH));
+        users.add(user("pbkdf2", PBKDF2_HASH));
+        users.add(user("malformed", "malformed"));
+        final PackedCredentials packed = PackedCredentials.pack(users);
+        assertFalse(packed.hasShadowedUsers());
+
+        final PasswordEncoder.PreparedHash bcryptHash = packed.getPreparedHash(packed.findUser("BCRYPT"));
+        assertInstanceOf(BcryptHash.class, bcryptHash);
+        assertEquals(10, bcryptHash.getCost());
+        assertTrue(bcryptHash.matches("CantGuessMe"));
+        assertEquals(1000, packed.getPreparedHash(packed.findUser("pbkdf2")).getCost());
+        assertSame(PasswordEncoders.MALFORMED_HASH, packed.getPreparedHash(packed.findUser("malformed")));
+
+        // Only entries returned by lookups of the same users know their record
+        assertNull(packed.getPreparedHash(packed.unpack().get(0)));
+        assertNull(packed.getPreparedHash(PackedCredentials.pack(users).findUser("bcrypt")));
+    }
+
+    @Test
+    public void testBcryptHashesRoundTrip() {
+        final List<String> passwordHashes = randomBcryptHashes(1000);
+        final List<UserCredentials> users = new ArrayList<>();
+        for (int i = 0; i < passwordHashes.size(); i++) {
+            users.add(user("user" + i, passwordHashes.get(i)));
+        }
+        final PackedCredentials packed = PackedCredentials.pack(users);
+        assertEquals(0, packed.getMalformedUserCount());
+
+        final List<UserCredentials> unpacked = packed.unpack();
+        for (int i = 0; i < passwordHashes.size(); i++) {
+            assertEquals("user" + i, unpacked.get(i).getName());
+            assertEquals(passwordHashes.get(i), unpacked.get(i).getPasswordHash());
+        }
+    }
+
+    @Test
+    public void testMissingAttributes() {
+        final List<UserCredentials> users = new ArrayList<>();
+        users.add(user(null, BCRYPT_HASH));
+        users.add(user("user1", null));
+        final PackedCredentials packed = PackedCredentials.pack(users);
+
+        assertEquals(1, packed.getMalformedUserCount());
+        assertNull(packed.findUser("user1").getPasswordHash());
+        final List<UserCredentials> unpacked = packed.unpack();
+        assertNull(unpacked.get(0).getName());
+        assertEquals(BCRYPT_HASH, unpacked.get(0).getPasswordHash());
+        assertEquals(1, packed.getReachableUsers().size());
+    }
+
+    @Test
+    public void testEmpty() {
+        final PackedCredentials packed = PackedCredentials.pack(List.of());
+        assertEquals(0, packed.getUserCount());
+        assertNull(packed.findUser("anyone"));
+        assertTrue(packed.unpack().isEmpty());
+    }
+
+    @Test
+    public void testSnapshotChangesKeepPackedUsers() {
+        final List<UserCredentials> users = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            users.add(user("user" + i, BCRYPT_HASH));
+        }
+        users.add(user("malformed", "malformed"));
+        CredentialsSnapshot snapshot = new CredentialsSnapshot(users, 0L).pack();
+        final PackedCredentials packed = snapshot.getPacked();
+        assertEquals(1, snapshot.getMalformedUserCount());
+
+        final UserCredentials addedUser = user("added", PBKDF2_HASH);
+        final UserCredentials replacedUser = user("user1", "malformed");
+        snapshot = snapshot.withUser(addedUser)
+                .withReplacedUser(snapshot.findUser("USER1"), replacedUser)
+                .withoutUser(snapshot.findUser("malformed"))
+                .withoutUser(snapshot.findUser("user2"));
+        assertSame(packed, snapshot.getPacked());
+        assertEquals(100, snapshot.size());
+        assertSame(addedUser, snapshot.findUser("ADDED"));
+        assertSame(replacedUser, snapshot.findUser("user1"));
+        assertNull(snapshot.findUser("malformed"));
+        assertNull(snapshot.findUser("user2"));
+        assertEquals(BCRYPT_HASH, snapshot.findUser("user3").getPasswordHash());
+        assertEquals(List.of("user1"), snapshot.getMalformedUsers());
+        assertEquals(1000, snapshot.getPreparedHash(addedUser).getCost());
+        assertInstanceOf(BcryptHash.class, snapshot.getPreparedHash(snapshot.findUser("user3")));
+
+        final List<UserCredentials> changedUsers = snapshot.getUsers();
+        assertEquals(100, changedUsers.size());
+        assertSame(replacedUser, changedUsers.get(1));
+        assertEquals("user3", changedUsers.get(2).getName());
+        assertSame(addedUser, changedUsers.get(99));
+        assertEquals(100, snapshot.getReachableUsers().size());
+
+        // Changes outgrowing a quarter of the packed users are packed with them
+        for (int i = 10; i < 50; i++) {
+            snapshot = snapshot.withoutUser(snapshot.findUser("user" + i));
+        }
+        assertNotSame(packed, snapshot.getPacked());
+        assertEquals(60, snapshot.size());
+        assertEquals(List.of("user1"), snapshot.getMalformedUsers());
+        assertEquals(PBKDF2_HASH, snapshot.findUser("added").getPasswordHash());
+    }
+
+    @Test
+    public void testSnapshotChangesWithCaseVariantsRepack() {
+        final List<UserCredentials> users = new ArrayList<>();
+        users.add(user("User1", BCRYPT_HASH));
+        users.add(user("user1", PBKDF2_HASH));
+        final CredentialsSnapshot snapshot = new CredentialsSnapshot(users, 0L).pack();
+
+        final CredentialsSnapshot changed = snapshot.withoutUser(snapshot.findUser("user1"));
+        assertNotSame(snapshot.getPacked(), changed.getPacked());
+        // The shadowed case variant is found once the first is removed
+        assertEquals(PBKDF2_HASH, changed.findUser("USER1").getPasswordHash());
+    }
+
+    @Test
+    public void testHeapFootprint() {
+        final List<String> passwordHashes = randomBcryptHashes(100_000);
+        final List<UserCredentials> users = new ArrayList<>(passwordHashes.size());
+        for (int i = 0; i < passwordHashes.size(); i++) {
+            users.add(user(String.format("user%06d", i), passwordHashes.get(i)));
+        }
+        final CredentialsSnapshot snapshot = new CredentialsSnapshot(users, 0L);
+        final CredentialsSnapshot packedSnapshot = snapshot.pack();
+
+        final long size = GraphLayout.parseInstance(snapshot).totalSize();
+        final long packedSize = GraphLayout.parseInstance(packedSnapshot).totalSize();
+        assertTrue(packedSize * 4 < size, "Packed snapshot takes " + packedSize + " bytes, parsed one " + size);
+    }
+}
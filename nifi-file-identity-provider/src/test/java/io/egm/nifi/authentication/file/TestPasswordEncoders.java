@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.junit.jupiter.api.Test;
+import org.mindrot.jbcrypt.BCrypt;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestPasswordEncoders {
+
+    private static final String BCRYPT_HASH = "$2a$10$ztplXcwIaUNu8JXkrS.9ge4WjorJzdUrpBh2.02Y6VXvgxkLKAtvG";
+    // Computed with Python's hashlib.pbkdf2_hmac
+    private static final String PBKDF2_HASH =
+            "$pbkdf2-sha256$i=1000$MDEyMzQ1Njc4OWFiY2RlZg$dw86ONaDhA2QV5jU7FDj8CLTrR2lQ5FNOfmDTgxHajc";
+    // Test vector of the Argon2 reference implementation
+    private static final String ARGON2_HASH =
+            "$argon2id$v=19$m=65536,t=2,p=1$c29tZXNhbHQ$CTFhFdXPJO1aFaMaO6Mm5c8y7cJHAph8ArZWb2GRPPc";
+
+    @Test
+    public void testDispatchByPrefix() {
+        assertInstanceOf(BcryptPasswordEncoder.class, PasswordEncoders.forHash(BCRYPT_HASH));
+        assertInstanceOf(BcryptPasswordEncoder.class, PasswordEncoders.forHash("$2y$" + BCRYPT_HASH.substring(4)));
+        assertInstanceOf(Pbkdf2PasswordEncoder.class, PasswordEncoders.forHash(PBKDF2_HASH));
+        assertInstanceOf(Argon2PasswordEncoder.class, PasswordEncoders.forHash(ARGON2_HASH));
+        assertNull(PasswordEncoders.forHash("fakePasswordHash"));
+        assertNull(PasswordEncoders.forHash(null));
+        assertThrows(IllegalArgumentException.class, () -> PasswordEncoders.matches("password", "fakePasswordHash"));
+    }
+
+    @Test
+    public void testKnownHashes() {
+        assertTrue(PasswordEncoders.matches("CantGuessMe", BCRYPT_HASH));
+        assertTrue(PasswordEncoders.matches("CantGuessMe", "$2b$" + BCRYPT_HASH.substring(4)));
+        assertTrue(PasswordEncoders.matches("CantGuessMe", PBKDF2_HASH));
+        assertFalse(PasswordEncoders.matches("CantGuessMe!", PBKDF2_HASH));
+        assertTrue(PasswordEncoders.matches("password", ARGON2_HASH));
+        assertFalse(PasswordEncoders.matches("Password", ARGON2_HASH));
+    }
+
+    @Test
+    public void testEncodeAndMatch() {
+        final PasswordEncoder[] encoders = {
+                new BcryptPasswordEncoder(4),
+                new Pbkdf2PasswordEncoder(1000),
+                new Argon2PasswordEncoder(64, 1, 1)
+        };
+        for (PasswordEncoder encoder : encoders) {
+            final String passwordHash = encoder.encode("password1");
+            assertTrue(encoder.supports(passwordHash), passwordHash);
+            assertSame(encoder.getClass(), PasswordEncoders.forHash(passwordHash).getClass());
+            assertTrue(PasswordEncoders.matches("password1", passwordHash));
+            assertFalse(PasswordEncoders.matches("password2", passwordHash));
+            assertFalse(encoder.needsRehash(passwordHash));
+            assertNotEquals(passwordHash, encoder.encode("password1"));
+        }
+    }
+
+    @Test
+    public void testNeedsRehash() {
+        assertFalse(new BcryptPasswordEncoder(10).needsRehash(BCRYPT_HASH));
+        assertTrue(new BcryptPasswordEncoder(12).needsRehash(BCRYPT_HASH));
+        assertFalse(new Pbkdf2PasswordEncoder(1000).needsRehash(PBKDF2_HASH));
+        assertTrue(new Pbkdf2PasswordEncoder(2000).needsRehash(PBKDF2_HASH));
+        assertFalse(new Argon2PasswordEncoder(65536, 2, 1).needsRehash(ARGON2_HASH));
+        assertTrue(new Argon2PasswordEncoder(65536, 3, 1).needsRehash(ARGON2_HASH));
+        assertTrue(new Argon2PasswordEncoder(19456, 2, 1).needsRehash(ARGON2_HASH));
+    }
+
+    @Test
+    public void testBcryptCost() {
+        assertEquals(10, BcryptPasswordEncoder.getCost(BCRYPT_HASH));
+        assertEquals(-1, BcryptPasswordEncoder.getCost("fakePasswordHash"));
+        assertEquals(-1, BcryptPasswordEncoder.getCost(null));
+        assertThrows(IllegalArgumentException.class, () -> new BcryptPasswordEncoder(3));
+        assertThrows(IllegalArgumentException.class, () -> new BcryptPasswordEncoder(31));
+    }
+
+    @Test
+    public void testBcryptMaxCost() {
+        final BcryptPasswordEncoder encoder = new BcryptPasswordEncoder(BcryptPasswordEncoder.MAX_COST);
+        assertEquals(BcryptPasswordEncoder.MAX_COST, encoder.getCost());
+        // An encoding at the maximum cost takes hours, so only its salt is made, which is where jbcrypt checks the cost
+        assertTrue(BCrypt.gensalt(BcryptPasswordEncoder.MAX_COST).startsWith("$2a$30$"));
+        assertThrows(IllegalArgumentException.class, () -> BCrypt.gensalt(BcryptPasswordEncoder.MAX_COST + 1));
+
+        // Hashes of the maximum cost are parsed, and of a higher one rejected
+        assertEquals(BcryptPasswordEncoder.MAX_COST, BcryptHash.parse("$2a$30$" + BCRYPT_HASH.substring(7)).getCost());
+        assertThrows(IllegalArgumentException.class, () -> BcryptHash.parse("$2a$31$" + BCRYPT_HASH.substring(7)));
+    }
+
+    @Test
+    public void testLegacyBcryptHash() {
+        // jbcrypt still makes hashes of the original $2$ prefix from a salt of that prefix
+        final String legacyHash = BCrypt.hashpw("CantGuessMe", "$2$05$" + BCRYPT_HASH.substring(7, 29));
+        assertTrue(legacyHash.startsWith("$2$05$"));
+        assertInstanceOf(BcryptPasswordEncoder.class, PasswordEncoders.forHash(legacyHash));
+        assertTrue(PasswordEncoders.matches("CantGuessMe", legacyHash));
+        assertFalse(PasswordEncoders.matches("CantGuessMe!", legacyHash));
+
+        final PasswordEncoder.PreparedHash preparedHash = PasswordEncoders.prepare(legacyHash);
+        assertEquals(5, preparedHash.getCost());
+        assertTrue(preparedHash.matches("CantGuessMe"));
+        assertEquals(5, BcryptPasswordEncoder.getCost(legacyHash));
+        assertTrue(new BcryptPasswordEncoder(5).needsRehash(legacyHash));
+
+        assertSame(PasswordEncoders.MALFORMED_HASH, PasswordEncoders.prepare(legacyHash.substring(1)));
+        assertSame(PasswordEncoders.MALFORMED_HASH, PasswordEncoders.prepare(legacyHash + "x"));
+        assertSame(PasswordEncoders.MALFORMED_HASH, PasswordEncoders.prepare("$2$03$" + legacyHash.substring(6)));
+    }
+
+    @Test
+    public void testMalformedHashes() {
+        assertThrows(IllegalArgumentException.class, () -> PasswordEncoders.matches("password", "$pbkdf2-sha256$"));
+        assertThrows(IllegalArgumentException.class, () ->
+                PasswordEncoders.matches("password", "$pbkdf2-sha256$i=x$MDEy$MDEy"));
+        assertThrows(IllegalArgumentException.class, () ->
+                PasswordEncoders.matches("password", "$argon2id$v=16$m=64,t=1,p=1$MDEyMzQ1Njc$MDEyMzQ1Njc"));
+        assertThrows(IllegalArgumentException.class, () ->
+                PasswordEncoders.matches("password", "$argon2id$v=19$m=64,t=1$MDEyMzQ1Njc$MDEyMzQ1Njc"));
+    }
+
+    @Test
+    public void testCreate() {
+        assertEquals("bcrypt cost 12", PasswordEncoders.create("bcrypt", 12, null, null).toString());
+        assertEquals("PBKDF2-HMAC-SHA256 600000 iterations", PasswordEncoders.create("PBKDF2-SHA256", null, null, null).toString());
+        assertEquals("Argon2id m=65536,t=3,p=2", PasswordEncoders.create("argon2id", 3, 65536, 2).toString());
+        assertThrows(IllegalArgumentException.class, () -> PasswordEncoders.create("md5", null, null, null));
+        assertThrows(IllegalArgumentException.class, () -> PasswordEncoders.create("pbkdf2-sha256", 10, null, null));
+    }
+
+}
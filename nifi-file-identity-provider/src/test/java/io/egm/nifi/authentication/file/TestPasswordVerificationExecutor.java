@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import org.apache.nifi.authentication.exception.IdentityAccessException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestPasswordVerificationExecutor {
+
+    @Test
+    public void testThreadCount() {
+        assertEquals(1, PasswordVerificationExecutor.getThreadCount(0.0001));
+        assertEquals(Runtime.getRuntime().availableProcessors(), PasswordVerificationExecutor.getThreadCount(1));
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        try (PasswordVerificationExecutor executor = new PasswordVerificationExecutor(1, 1, 1, TimeUnit.MINUTES)) {
+            assertTrue(executor.verify(() -> true));
+            assertFalse(executor.verify(() -> false));
+            assertThrows(IllegalArgumentException.class, () ->
+                    executor.verify(() -> {
+                        throw new IllegalArgumentException("Invalid salt version");
+                    })
+            );
+            assertEquals(2, executor.getCompletedCount());
+        }
+    }
+
+    @Test
+    public void testRejectsWhenSaturated() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try (PasswordVerificationExecutor executor = new PasswordVerificationExecutor(1, 1, 1, TimeUnit.MINUTES)) {
+            final CompletableFuture<Boolean> running = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return executor.verify(() -> {
+                        started.countDown();
+                        return release.await(1, TimeUnit.MINUTES);
+                    });
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            assertTrue(started.await(1, TimeUnit.MINUTES));
+            final CompletableFuture<Boolean> queued = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return executor.verify(() -> true);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            while (executor.getQueueDepth() == 0) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+
+            assertThrows(IdentityAccessException.class, () -> executor.verify(() -> true));
+            assertEquals(1, executor.getRejectedCount());
+
+            release.countDown();
+            assertTrue(running.get(1, TimeUnit.MINUTES));
+            assertTrue(queued.get(1, TimeUnit.MINUTES));
+        }
+    }
+
+    @Test
+    public void testTimesOut() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        try (PasswordVerificationExecutor executor = new PasswordVerificationExecutor(1, 1, 50, TimeUnit.MILLISECONDS)) {
+            assertThrows(IdentityAccessException.class, () ->
+                    executor.verify(() -> release.await(1, TimeUnit.MINUTES))
+            );
+            assertEquals(1, executor.getTimedOutCount());
+        } finally {
+            release.countDown();
+        }
+    }
+
+}
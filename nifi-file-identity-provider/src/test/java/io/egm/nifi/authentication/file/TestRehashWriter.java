@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestRehashWriter {
+
+    @TempDir
+    public Path folder;
+
+    private CredentialsStore createStore() throws Exception {
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        final CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        credStore.setPasswordEncoder(new BcryptPasswordEncoder(4));
+        credStore.addUser("user1", "password1");
+        credStore.addUser("user2", "password2");
+        credStore.save();
+        credStore.setPasswordEncoder(new BcryptPasswordEncoder(5));
+        return credStore;
+    }
+
+    @Test
+    public void testRehashesAreWrittenInBatches() throws Exception {
+        final CredentialsStore credStore = createStore();
+        try (RehashWriter writer = new RehashWriter(credStore, 100)) {
+            final UserCredentials userCreds = credStore.findUser("user1");
+            final UserCredentials rehashedUserCreds = writer.rehashIfNeeded(userCreds, "password1");
+            assertNotSame(userCreds, rehashedUserCreds);
+            assertSame(rehashedUserCreds, writer.rehashIfNeeded(rehashedUserCreds, "password1"));
+            writer.rehashIfNeeded(credStore.findUser("user2"), "password2");
+            assertEquals(2, writer.getRehashCount());
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (writer.getWriteCount() == 0 && System.nanoTime() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            assertEquals(1, writer.getWriteCount());
+            assertEquals(0, writer.getPendingCount());
+        }
+
+        final CredentialsStore savedStore = CredentialsStore.fromFile(folder.resolve("credentials.xml").toFile());
+        for (UserCredentials userCreds : savedStore.getSnapshot().getUsers()) {
+            assertEquals(5, BcryptPasswordEncoder.getCost(userCreds.getPasswordHash()));
+        }
+        assertTrue(savedStore.checkPassword("user1", "password1"));
+    }
+
+    @Test
+    public void testCloseWritesPendingRehashes() throws Exception {
+        final CredentialsStore credStore = createStore();
+        final RehashWriter writer = new RehashWriter(credStore, TimeUnit.MINUTES.toMillis(1));
+        writer.rehashIfNeeded(credStore.findUser("user1"), "password1");
+        assertEquals(1, writer.getPendingCount());
+        writer.close();
+        assertEquals(1, writer.getWriteCount());
+
+        final CredentialsStore savedStore = CredentialsStore.fromFile(folder.resolve("credentials.xml").toFile());
+        assertEquals(5, BcryptPasswordEncoder.getCost(savedStore.findUser("user1").getPasswordHash()));
+    }
+
+    @Test
+    public void testRehashesAreEncodedOnVerificationPool() throws Exception {
+        final CredentialsStore credStore = createStore();
+        final List<String> encodingThreads = new CopyOnWriteArrayList<>();
+        credStore.setPasswordEncoder(new BcryptPasswordEncoder(5) {
+            @Override
+            public String encode(String rawPassword) {
+                encodingThreads.add(Thread.currentThread().getName());
+                return super.encode(rawPassword);
+            }
+        });
+        try (PasswordVerificationExecutor executor = new PasswordVerificationExecutor(1, 1, 1, TimeUnit.MINUTES);
+             RehashWriter writer = new RehashWriter(credStore, TimeUnit.MINUTES.toMillis(1), executor)) {
+            final UserCredentials userCreds = credStore.findUser("user1");
+            assertNotSame(userCreds, writer.rehashIfNeeded(userCreds, "password1"));
+            assertEquals(List.of("Password Verification-1"), encodingThreads);
+
+            // While the pool is saturated, the rehash is left to a later login.  The pool thread of the first rehash
+            // may still count as active after it returned, so it is first let go idle.
+            final long idleDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (executor.getActiveCount() > 0 && System.nanoTime() < idleDeadline) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            final CountDownLatch release = new CountDownLatch(1);
+            final List<CompletableFuture<Boolean>> blockers = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                blockers.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return executor.verify(() -> release.await(1, TimeUnit.MINUTES));
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }));
+                final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (executor.getActiveCount() + executor.getQueueDepth() <= i && System.nanoTime() < deadline) {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                }
+            }
+            final UserCredentials otherUserCreds = credStore.findUser("user2");
+            assertSame(otherUserCreds, writer.rehashIfNeeded(otherUserCreds, "password2"));
+            assertEquals(1, writer.getRehashCount());
+            assertEquals(1, executor.getRejectedCount());
+            release.countDown();
+            for (CompletableFuture<Boolean> blocker : blockers) {
+                assertTrue(blocker.get(1, TimeUnit.MINUTES));
+            }
+        }
+    }
+
+    @Test
+    public void testRehashesAreAppendedToJournal() throws Exception {
+        final CredentialsStore credStore = createStore();
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        credStore.setJournal(true);
+        credStore.load();
+        final long lastModified = credentialsFile.lastModified();
+        final RehashWriter writer = new RehashWriter(credStore, TimeUnit.MINUTES.toMillis(1));
+        writer.rehashIfNeeded(credStore.findUser("user1"), "password1");
+        writer.close();
+        assertEquals(1, writer.getWriteCount());
+
+        // The file is left as it was, and the rehash is a reset in its journal
+        assertEquals(lastModified, credentialsFile.lastModified());
+        assertEquals(4, BcryptPasswordEncoder.getCost(
+                CredentialsStore.fromFile(credentialsFile).findUser("user1").getPasswordHash()));
+        final CredentialsStore journalStore = new CredentialsStore(credentialsFile);
+        journalStore.setJournal(true);
+        journalStore.load();
+        assertEquals(5, BcryptPasswordEncoder.getCost(journalStore.findUser("user1").getPasswordHash()));
+        assertTrue(journalStore.checkPassword("user1", "password1"));
+        assertFalse(credStore.reloadIfModified());
+    }
+
+    @Test
+    public void testRehashesBesideIndexAreNotSaved() throws Exception {
+        createStore();
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        final CredentialsStore credStore = new CredentialsStore(credentialsFile);
+        credStore.setUseIndex(true);
+        credStore.load();
+        final CredentialsIndex index = credStore.getSnapshot().getIndex();
+        assertNotNull(index);
+        credStore.setPasswordEncoder(new BcryptPasswordEncoder(5));
+        final long lastModified = credentialsFile.lastModified();
+        final RehashWriter writer = new RehashWriter(credStore, TimeUnit.MINUTES.toMillis(1));
+        writer.rehashIfNeeded(credStore.findUser("user1"), "password1");
+        writer.close();
+        assertEquals(0, writer.getWriteCount());
+
+        // Still served from the index, with the rehash kept beside it
+        assertSame(index, credStore.getSnapshot().getIndex());
+        assertEquals(5, BcryptPasswordEncoder.getCost(credStore.findUser("user1").getPasswordHash()));
+        assertEquals(lastModified, credentialsFile.lastModified());
+        assertEquals(4, BcryptPasswordEncoder.getCost(
+                CredentialsStore.fromFile(credentialsFile).findUser("user1").getPasswordHash()));
+    }
+
+    @Test
+    public void testModifiedFileIsNotOverwritten() throws Exception {
+        final CredentialsStore credStore = createStore();
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        final RehashWriter writer = new RehashWriter(credStore, TimeUnit.MINUTES.toMillis(1));
+        writer.rehashIfNeeded(credStore.findUser("user1"), "password1");
+        final CredentialsStore otherStore = CredentialsStore.fromFile(credentialsFile);
+        otherStore.removeUser("user2");
+        otherStore.save();
+        assertTrue(credentialsFile.setLastModified(credentialsFile.lastModified() + 2000));
+        writer.close();
+        assertEquals(0, writer.getWriteCount());
+
+        final CredentialsStore savedStore = CredentialsStore.fromFile(credentialsFile);
+        assertNull(savedStore.findUser("user2"));
+        assertEquals(4, BcryptPasswordEncoder.getCost(savedStore.findUser("user1").getPasswordHash()));
+    }
+
+}
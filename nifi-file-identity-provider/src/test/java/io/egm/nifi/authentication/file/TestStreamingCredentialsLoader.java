@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 BatchIQ
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.egm.nifi.authentication.file;
+
+import io.egm.nifi.authentication.file.generated.UserCredentials;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jakarta.xml.bind.UnmarshalException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+
+public class TestStreamingCredentialsLoader {
+
+    private static final String TEST_CREDENTIALS_FILE = "src/test/resources/test_credentials.xml";
+    private static final String TEST_INVALID_CREDENTIALS_FILE = "src/test/resources/test_credentials_invalid.xml";
+    private static final String TEST_DUPLICATE_USER_CREDENTIALS_FILE = "src/test/resources/test_credentials_duplicate.xml";
+    private static final String TEST_CLI_CREDENTIALS_FILE = "src/test/resources/test_cli_credentials.xml";
+
+    @TempDir
+    public Path folder;
+
+    private File writeCredentials(String content) throws Exception {
+        final File credentialsFile = folder.resolve("credentials.xml").toFile();
+        FileUtils.writeStringToFile(credentialsFile, content, StandardCharsets.UTF_8);
+        return credentialsFile;
+    }
+
+    private void assertInvalid(String content, String expectedMessage) throws Exception {
+        final File credentialsFile = writeCredentials(content);
+        final UnmarshalException unmarshalEx = assertThrows(UnmarshalException.class, () ->
+                StreamingCredentialsLoader.load(credentialsFile, 0L)
+        );
+        assertTrue(unmarshalEx.toString().contains(expectedMessage), unmarshalEx.toString());
+    }
+
+    @Test
+    public void testConfigFileNotFound() {
+        assertThrows(FileNotFoundException.class, () ->
+                StreamingCredentialsLoader.load(new File("NonExistingFile.xml"), 0L)
+        );
+    }
+
+    @Test
+    public void testLoadMatchesJaxb() throws Exception {
+        for (String fileName : new String[] {TEST_CREDENTIALS_FILE, TEST_CLI_CREDENTIALS_FILE}) {
+            final List<UserCredentials> expected = CredentialsStore.loadCredentialsList(fileName).getUser();
+            final CredentialsSnapshot snapshot = StreamingCredentialsLoader.load(new File(fileName), 42L);
+            assertEquals(42L, snapshot.getLastModified());
+            assertEquals(expected.size(), snapshot.size());
+            for (int i = 0; i < expected.size(); i++) {
+                final UserCredentials userCreds = snapshot.getUsers().get(i);
+                assertEquals(expected.get(i).getName(), userCreds.getName());
+                assertEquals(expected.get(i).getPasswordHash(), userCreds.getPasswordHash());
+                assertSame(userCreds, snapshot.findUser(userCreds.getName().toUpperCase()));
+            }
+        }
+    }
+
+    @Test
+    public void testLoadInvalidCredentialsFileMessaging() {
+        final UnmarshalException unmarshalEx = assertThrows(UnmarshalException.class, () ->
+                StreamingCredentialsLoader.load(new File(TEST_INVALID_CREDENTIALS_FILE), 0L)
+        );
+        final String exceptionMessage = unmarshalEx.toString();
+        assertTrue(exceptionMessage.contains("invalid_credentials"));
+        assertTrue(exceptionMessage.contains(TEST_INVALID_CREDENTIALS_FILE));
+    }
+
+    @Test
+    public void testLoadInvalidDuplicateUserCredentialsFileMessaging() {
+        final UnmarshalException unmarshalEx = assertThrows(UnmarshalException.class, () ->
+                StreamingCredentialsLoader.load(new File(TEST_DUPLICATE_USER_CREDENTIALS_FILE), 0L)
+        );
+        final String exceptionMessage = unmarshalEx.toString();
+        assertTrue(exceptionMessage.contains("unique"));
+        assertTrue(exceptionMessage.contains(TEST_DUPLICATE_USER_CREDENTIALS_FILE));
+    }
+
+    @Test
+    public void testCaseVariantNamesAreNotDuplicates() throws Exception {
+        final File credentialsFile = writeCredentials("<credentials>"
+                + "<user name=\"User1\" passwordHash=\"hash1\"/>"
+                + "<user name=\"user1\" passwordHash=\"hash2\"/>"
+                + "</credentials>");
+        final CredentialsSnapshot snapshot = StreamingCredentialsLoader.load(credentialsFile, 0L);
+        assertEquals(2, snapshot.size());
+        assertEquals("hash1", snapshot.findUser("user1").getPasswordHash());
+
+        assertInvalid("<credentials>"
+                + "<user name=\"User1\" passwordHash=\"hash1\"/>"
+                + "<user name=\"user1\" passwordHash=\"hash2\"/>"
+                + "<user name=\"user1\" passwordHash=\"hash3\"/>"
+                + "</credentials>", "Duplicate unique value [user1]");
+    }
+
+    @Test
+    public void testReloadRetainsUnchangedUsers() throws Exception {
+        final String passwordHash = "$2a$10$ztplXcwIaUNu8JXkrS.9ge4WjorJzdUrpBh2.02Y6VXvgxkLKAtvG";
+        final File credentialsFile = writeCredentials("<credentials>"
+                + "<user name=\"user1\" passwordHash=\"" + passwordHash + "\"/>"
+                + "<user name=\"user2\" passwordHash=\"hash2\"/>"
+                + "</credentials>");
+        final CredentialsSnapshot previous = StreamingCredentialsLoader.load(credentialsFile, 0L);
+        final UserCredentials user1 = previous.findUser("user1");
+        final UserCredentials user2 = previous.findUser("user2");
+
+        writeCredentials("<credentials>"
+                + "<user name=\"user1\" passwordHash=\"" + passwordHash + "\"/>"
+                + "<user name=\"user2\" passwordHash=\"hash3\"/>"
+                + "</credentials>");
+        final CredentialsSnapshot reloaded = StreamingCredentialsLoader.load(credentialsFile, 1L, previous);
+        assertSame(user1, reloaded.findUser("USER1"));
+        assertSame(user1, reloaded.getUsers().get(0));
+        assertSame(previous.getPreparedHash(user1), reloaded.getPreparedHash(user1));
+        assertNotSame(user2, reloaded.findUser("user2"));
+        assertEquals("hash3", reloaded.findUser("user2").getPasswordHash());
+    }
+
+    @Test
+    public void testSchemaRulesAreEnforced() throws Exception {
+        assertInvalid("<credentials><user name=\"\" passwordHash=\"hash1\"/></credentials>", "minLength");
+        assertInvalid("<credentials><user name=\"user1\" passwordHash=\"\"/></credentials>", "minLength");
+        assertInvalid("<credentials><user name=\"user1\" role=\"admin\"/></credentials>", "'role'");
+        assertInvalid("<credentials><group name=\"admins\"/></credentials>", "'group'");
+        assertInvalid("<credentials><user name=\"user1\"><user/></user></credentials>", "content type is empty");
+        assertInvalid("<credentials>text</credentials>", "element-only");
+        assertInvalid("<credentials xmlns=\"urn:other\"/>", "Cannot find the declaration");
+        assertInvalid("<credentials><user name=\"user1\"", "credentials.xml");
+    }
+
+}